@@ -37,6 +37,7 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Random;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Future;
@@ -71,6 +72,7 @@ import com.serotonin.bacnet4j.obj.mixin.CovContext;
 import com.serotonin.bacnet4j.persistence.IPersistence;
 import com.serotonin.bacnet4j.persistence.NullPersistence;
 import com.serotonin.bacnet4j.service.VendorServiceKey;
+import com.serotonin.bacnet4j.service.acknowledgement.AcknowledgementService;
 import com.serotonin.bacnet4j.service.confirmed.ConfirmedRequestService;
 import com.serotonin.bacnet4j.service.confirmed.DeviceCommunicationControlRequest.EnableDisable;
 import com.serotonin.bacnet4j.service.unconfirmed.IAmRequest;
@@ -1042,6 +1044,29 @@ public class LocalDevice {
             send(d, serviceRequest, consumer);
     }
 
+    /**
+     * Sends the request without blocking, which unlike the ServiceFuture version may also be called from the transport
+     * thread, e.g. in a callback. Cancelling the returned future withdraws the request.
+     */
+    public <T extends AcknowledgementService> CompletableFuture<T> sendAsync(final RemoteDevice d,
+            final ConfirmedRequestService serviceRequest) {
+        ensureInitialized();
+        return transport.sendAsync(d.getAddress(), d.getMaxAPDULengthAccepted(), d.getSegmentationSupported(),
+                serviceRequest);
+    }
+
+    public <T extends AcknowledgementService> CompletableFuture<T> sendAsync(final Address address,
+            final ConfirmedRequestService serviceRequest) {
+        ensureInitialized();
+        final RemoteDevice d = getCachedRemoteDevice(address);
+        if (d == null) {
+            // Just use some hopeful defaults.
+            return transport.sendAsync(address, MaxApduLength.UP_TO_50.getMaxLengthInt(), Segmentation.noSegmentation,
+                    serviceRequest);
+        }
+        return sendAsync(d, serviceRequest);
+    }
+
     public void send(final RemoteDevice d, final UnconfirmedRequestService serviceRequest) {
         ensureInitialized();
         transport.send(d.getAddress(), serviceRequest);
@@ -159,6 +159,11 @@ public class ComplexACK extends AckAPDU implements Segmentable {
         return serviceData;
     }
 
+    @Override
+    public void setServiceData(final ByteQueue serviceData) {
+        this.serviceData = serviceData;
+    }
+
     @Override
     public byte getInvokeId() {
         return originalInvokeId;
@@ -237,6 +237,11 @@ public class ConfirmedRequest extends APDU implements Segmentable {
         return serviceData;
     }
 
+    @Override
+    public void setServiceData(final ByteQueue serviceData) {
+        this.serviceData = serviceData;
+    }
+
     public byte getServiceChoice() {
         return serviceChoice;
     }
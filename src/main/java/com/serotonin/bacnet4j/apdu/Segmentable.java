@@ -44,6 +44,11 @@ public interface Segmentable {
 
     void appendServiceData(ByteQueue segmentable);
 
+    /**
+     * Replaces the service data, e.g. with a buffer into which the segments of a message are reassembled.
+     */
+    void setServiceData(ByteQueue serviceData);
+
     void parseServiceData() throws BACnetException;
 
     ByteQueue getServiceData();
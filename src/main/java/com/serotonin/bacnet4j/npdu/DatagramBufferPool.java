@@ -0,0 +1,135 @@
+/*
+ * ============================================================================
+ * GNU General Public License
+ * ============================================================================
+ *
+ * Copyright (C) 2015 Infinite Automation Software. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * When signing a commercial license with Infinite Automation Software,
+ * the following extension to GPL is made. A special exception to the GPL is
+ * included to allow you to distribute a combined work that includes BAcnet4J
+ * without being obliged to provide the source code for any proprietary components.
+ *
+ * See www.infiniteautomation.com for commercial license options.
+ *
+ * @author Matthew Lohbihler
+ */
+package com.serotonin.bacnet4j.npdu;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import com.serotonin.bacnet4j.util.sero.ByteQueue;
+
+/**
+ * A pool of direct buffers for the networks that send and receive with a NIO DatagramChannel. The kernel copies
+ * datagrams straight to and from the buffers, so no packet objects or receive arrays are allocated per datagram.
+ * Buffers that are returned to a full pool are left for the garbage collector.
+ */
+public class DatagramBufferPool {
+    private final int bufferSize;
+    private final BlockingQueue<ByteBuffer> pool;
+
+    public DatagramBufferPool(final int bufferSize, final int poolSize) {
+        this.bufferSize = bufferSize;
+        pool = new ArrayBlockingQueue<>(poolSize);
+    }
+
+    public ByteBuffer acquire() {
+        final ByteBuffer buffer = pool.poll();
+        if (buffer != null)
+            return buffer;
+        return ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    public void release(final ByteBuffer buffer) {
+        buffer.clear();
+        pool.offer(buffer);
+    }
+
+    public void send(final DatagramChannel channel, final InetSocketAddress addr, final byte[] data)
+            throws IOException {
+        if (data.length > bufferSize) {
+            channel.send(ByteBuffer.wrap(data), addr);
+            return;
+        }
+
+        final ByteBuffer buffer = acquire();
+        try {
+            buffer.put(data);
+            buffer.flip();
+            channel.send(buffer, addr);
+        } finally {
+            release(buffer);
+        }
+    }
+
+    /**
+     * Sends the content of the queue, which is moved straight into a buffer and so consumed.
+     */
+    public void send(final DatagramChannel channel, final InetSocketAddress addr, final ByteQueue data)
+            throws IOException {
+        if (data.size() > bufferSize) {
+            send(channel, addr, data.popAll());
+            return;
+        }
+
+        final ByteBuffer buffer = acquire();
+        try {
+            data.pop(buffer);
+            buffer.flip();
+            channel.send(buffer, addr);
+        } finally {
+            release(buffer);
+        }
+    }
+
+    /**
+     * Receives from the channel until it is closed. Each datagram is copied once, into a queue of exactly its size.
+     * Several threads can receive from the same channel.
+     */
+    public void receive(final DatagramChannel channel, final Receiver receiver) {
+        final ByteBuffer buffer = acquire();
+        try {
+            while (channel.isOpen()) {
+                try {
+                    buffer.clear();
+                    final InetSocketAddress from = (InetSocketAddress) channel.receive(buffer);
+                    buffer.flip();
+
+                    final ByteQueue queue = new ByteQueue(buffer.remaining());
+                    queue.push(buffer);
+                    receiver.received(queue, from.getAddress(), from.getPort());
+                } catch (@SuppressWarnings("unused") final IOException e) {
+                    // no op. This happens if the channel gets closed by the terminate method.
+                }
+            }
+        } finally {
+            release(buffer);
+        }
+    }
+
+    public interface Receiver {
+        /**
+         * Hands a received datagram over for processing. The queue does not share memory with the receive buffer.
+         */
+        void received(ByteQueue queue, InetAddress from, int fromPort);
+    }
+}
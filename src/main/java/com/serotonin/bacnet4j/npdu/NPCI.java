@@ -48,6 +48,14 @@ public class NPCI {
             this.value = value;
         }
 
+        public static NetworkPriority forValue(int value) {
+            for (NetworkPriority e : values()) {
+                if (e.value == value)
+                    return e;
+            }
+            return normal;
+        }
+
         // 13.2.5.4
         public static NetworkPriority forEventPriority(int eventPriority) {
             if (eventPriority < 64)
@@ -173,6 +181,53 @@ public class NPCI {
         }
     }
 
+    private NPCI(NPCI other) {
+        version = other.version;
+        control = other.control;
+        destinationNetwork = other.destinationNetwork;
+        destinationLength = other.destinationLength;
+        destinationAddress = other.destinationAddress;
+        sourceNetwork = other.sourceNetwork;
+        sourceLength = other.sourceLength;
+        sourceAddress = other.sourceAddress;
+        hopCount = other.hopCount;
+        messageType = other.messageType;
+        vendorId = other.vendorId;
+    }
+
+    /**
+     * Creates the NPCI that a router puts in front of a message that it forwards (6.5.4). The source is set to the
+     * given network and address. If the message is being delivered onto its destination network the destination is
+     * removed, otherwise the hop count is decremented. Everything else, including the priority and the network message
+     * type, is kept.
+     * 
+     * @param sourceNetwork
+     *            the network that the message originally came from
+     * @param sourceAddress
+     *            the MAC address of the original sender on that network
+     * @param deliver
+     *            whether the router is directly connected to the destination network
+     */
+    public NPCI forward(int sourceNetwork, byte[] sourceAddress, boolean deliver) {
+        final NPCI result = new NPCI(this);
+
+        result.control = result.control.setBit(3);
+        result.sourceNetwork = sourceNetwork;
+        result.sourceAddress = sourceAddress;
+        result.sourceLength = sourceAddress.length;
+
+        if (deliver) {
+            result.control = result.control.clearBit(5);
+            result.destinationNetwork = 0;
+            result.destinationLength = 0;
+            result.destinationAddress = null;
+            result.hopCount = 0;
+        } else
+            result.hopCount = hopCount - 1;
+
+        return result;
+    }
+
     public void write(ByteQueue queue) {
         queue.push(version);
         queue.push(control.intValue());
@@ -30,6 +30,7 @@ package com.serotonin.bacnet4j.npdu;
 
 import com.serotonin.bacnet4j.apdu.APDU;
 import com.serotonin.bacnet4j.exception.BACnetException;
+import com.serotonin.bacnet4j.npdu.NPCI.NetworkPriority;
 import com.serotonin.bacnet4j.type.constructed.Address;
 import com.serotonin.bacnet4j.type.constructed.ServicesSupported;
 import com.serotonin.bacnet4j.type.primitive.OctetString;
@@ -41,6 +42,7 @@ public class NPDU {
     private final boolean networkMessage;
     private final int networkMessageType;
     private final ByteQueue queue;
+    private NetworkPriority networkPriority = NetworkPriority.normal;
 
     /**
      * Constructor for APDU messages.
@@ -64,6 +66,18 @@ public class NPDU {
         this.queue = queue;
     }
 
+    /**
+     * Sets the network priority with which the message was sent, as given in its NPCI.
+     */
+    public NPDU withPriority(NetworkPriority networkPriority) {
+        this.networkPriority = networkPriority;
+        return this;
+    }
+
+    public NetworkPriority getNetworkPriority() {
+        return networkPriority;
+    }
+
     public Address getFrom() {
         return from;
     }
@@ -84,6 +98,15 @@ public class NPDU {
         return queue;
     }
 
+    /**
+     * Returns the PDU type of the APDU without parsing it, or -1 if this is a network message or has no APDU.
+     */
+    public int getApduType() {
+        if (networkMessage || queue.size() == 0)
+            return -1;
+        return (queue.peek(0) & 0xff) >> 4;
+    }
+
     public APDU getAPDU(ServicesSupported servicesSupported) throws BACnetException {
         try {
             return APDU.createAPDU(servicesSupported, queue);
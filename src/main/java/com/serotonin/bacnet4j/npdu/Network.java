@@ -28,12 +28,18 @@
  */
 package com.serotonin.bacnet4j.npdu;
 
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.serotonin.bacnet4j.apdu.APDU;
 import com.serotonin.bacnet4j.enums.MaxApduLength;
 import com.serotonin.bacnet4j.exception.BACnetException;
+import com.serotonin.bacnet4j.npdu.NPCI.NetworkPriority;
+import com.serotonin.bacnet4j.npdu.pcap.CapturedFrame;
+import com.serotonin.bacnet4j.npdu.pcap.PcapWriter;
 import com.serotonin.bacnet4j.transport.Transport;
 import com.serotonin.bacnet4j.type.constructed.Address;
 import com.serotonin.bacnet4j.type.constructed.NetworkSourceAddress;
@@ -45,6 +51,8 @@ abstract public class Network {
 
     private final int localNetworkNumber;
     private Transport transport;
+    private volatile NetworkRouter router;
+    private final List<NetworkTap> taps = new CopyOnWriteArrayList<>();
 
     public Network() {
         this(0);
@@ -66,6 +74,112 @@ abstract public class Network {
         return transport;
     }
 
+    /**
+     * Returns the router that this network is a port of, if any.
+     */
+    public NetworkRouter getRouter() {
+        return router;
+    }
+
+    void setRouter(final NetworkRouter router) {
+        this.router = router;
+    }
+
+    /**
+     * Adds a tap that observes the data that this network sends and receives.
+     */
+    public void addTap(final NetworkTap tap) {
+        taps.add(tap);
+    }
+
+    public void removeTap(final NetworkTap tap) {
+        taps.remove(tap);
+    }
+
+    /**
+     * Returns whether any taps observe this network, so that subclasses can avoid making the link address of data that
+     * no one will see.
+     */
+    protected final boolean hasTaps() {
+        return !taps.isEmpty();
+    }
+
+    /**
+     * Subclasses call this with the data that they send on the link, which includes their link layer headers.
+     */
+    protected final void tapSent(final OctetString link, final byte[] data) {
+        if (taps.isEmpty())
+            return;
+        for (final NetworkTap tap : taps)
+            tap.sent(this, link, data);
+    }
+
+    /**
+     * Subclasses that can send a queue without copying it call this instead. The queue is left as it is.
+     */
+    protected final void tapSent(final OctetString link, final ByteQueue data) {
+        if (hasTaps())
+            tapSent(link, data.peekAll());
+    }
+
+    //
+    //
+    // Capture and replay. Each kind of network describes its link layer frames in the pcap format, and decodes them
+    // again so that captures can be replayed into it.
+    //
+    /**
+     * The pcap link type of the frames made by toCaptureFrame. By default, frames are in a private format in the user
+     * link type range.
+     */
+    public int getCaptureLinkType() {
+        return PcapWriter.LINKTYPE_USER0;
+    }
+
+    /**
+     * Makes a frame for a capture out of data that was sent to or received from a link address. By default, the frame
+     * is made of the direction, the link address and the data.
+     */
+    public byte[] toCaptureFrame(final boolean sent, final OctetString link, final byte[] data) {
+        final byte[] address = link.getBytes();
+        final ByteQueue queue = new ByteQueue(data.length + address.length + 2);
+        queue.push(sent ? 1 : 0);
+        queue.push(address.length);
+        queue.push(address);
+        queue.push(data);
+        return queue.popAll();
+    }
+
+    /**
+     * Returns the offset of the NPDU in data as this network sends and receives it, or -1 if the data does not carry
+     * an NPDU. By default, the data is the NPDU.
+     */
+    public int getNpduOffset(final byte[] data) {
+        return 0;
+    }
+
+    /**
+     * Decodes a frame of a capture in this network's link type, or returns null if it cannot be replayed into this
+     * network.
+     */
+    public CapturedFrame fromCaptureFrame(final byte[] frame) {
+        if (frame.length < 2)
+            return null;
+        final ByteQueue queue = new ByteQueue(frame);
+        final boolean sent = queue.pop() == 1;
+        final byte[] link = new byte[queue.popU1B()];
+        queue.pop(link);
+        final byte[] data = queue.popAll();
+        return new CapturedFrame(new OctetString(link), sent, data,
+                CapturedFrame.npduExpectsReply(data, getNpduOffset(data)));
+    }
+
+    /**
+     * Handles the data as if it had just been received from the link address. Used to replay captures.
+     */
+    public void replay(final OctetString link, final byte[] data) {
+        handleIncomingData(new ByteQueue(data), link);
+    }
+
     abstract public long getBytesOut();
 
     abstract public long getBytesIn();
@@ -170,6 +284,12 @@ abstract public class Network {
     }
 
     protected void handleIncomingData(final ByteQueue queue, final OctetString linkService) {
+        if (!taps.isEmpty()) {
+            final byte[] data = queue.peekAll();
+            for (final NetworkTap tap : taps)
+                tap.received(this, linkService, data);
+        }
+
         try {
             final NPDU npdu = handleIncomingDataImpl(queue, linkService);
             if (npdu != null) {
@@ -191,6 +311,12 @@ abstract public class Network {
         if (npci.getVersion() != 1)
             throw new MessageValidationException("Invalid protocol version: " + npci.getVersion());
 
+        // If this network is a router port, messages for other networks are forwarded from here without being parsed
+        // any further. The router decides whether the message is also for this network.
+        final NetworkRouter router = this.router;
+        if (router != null && !router.route(this, npci, queue, linkService))
+            return null;
+
         // Check the destination network number and ignore foreign networks requests
         if (npci.hasDestinationInfo()) {
             final int destNet = npci.getDestinationNetwork();
@@ -212,22 +338,22 @@ abstract public class Network {
             ls = null;
         } else {
             // Remember the network router in case we haven't heard from it before. This may happen if the router did
-            // not respond to a WhoIsRouterToNetwork request.
+            // not respond to a WhoIsRouterToNetwork request. Otherwise this refreshes when it was last heard from.
             final int nn = from.getNetworkNumber().intValue();
-            if (!transport.getNetworkRouters().containsKey(nn)) {
+            if (!transport.getNetworkRouters().containsKey(nn))
                 LOG.debug("Network router {} to {} is not currently known. Adding to transport's list", linkService,
                         nn);
-                transport.addNetworkRouter(nn, linkService);
-            }
+            transport.addNetworkRouter(nn, linkService);
             LOG.debug("Received NPDU from remote network. From={}, local={}", from, localNetworkNumber);
         }
 
+        final NetworkPriority priority = NetworkPriority.forValue(npci.getNetworkPriority());
         if (npci.isNetworkMessage())
             // Network message
-            return new NPDU(from, ls, npci.getMessageType(), queue);
+            return new NPDU(from, ls, npci.getMessageType(), queue).withPriority(priority);
 
         // APDU message
-        return new NPDU(from, ls, queue);
+        return new NPDU(from, ls, queue).withPriority(priority);
     }
 
     @Override
@@ -0,0 +1,376 @@
+/*
+ * ============================================================================
+ * GNU General Public License
+ * ============================================================================
+ *
+ * Copyright (C) 2015 Infinite Automation Software. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * When signing a commercial license with Infinite Automation Software,
+ * the following extension to GPL is made. A special exception to the GPL is
+ * included to allow you to distribute a combined work that includes BAcnet4J
+ * without being obliged to provide the source code for any proprietary components.
+ *
+ * See www.infiniteautomation.com for commercial license options.
+ *
+ * @author Matthew Lohbihler
+ */
+package com.serotonin.bacnet4j.npdu;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.serotonin.bacnet4j.exception.BACnetException;
+import com.serotonin.bacnet4j.type.constructed.Address;
+import com.serotonin.bacnet4j.type.primitive.OctetString;
+import com.serotonin.bacnet4j.util.sero.ByteQueue;
+
+/**
+ * A BACnet router (clause 6) between the networks that are attached to it as ports. A port is identified by the local
+ * network number of its network, which must be set, so any mix of IP, IPv6 and MS/TP networks can be joined.
+ *
+ * Messages for other networks are forwarded by rewriting the network layer header only; the APDU bytes are copied
+ * through without being decoded. Messages for a port's own network keep going to the local device that owns the
+ * network, so the networks still need to be initialized by their local devices as usual.
+ *
+ * Who-Is-Router-To-Network requests are answered for every network that is reachable through another port, and
+ * I-Am-Router-To-Network messages from routers further away are used to learn which networks are behind them.
+ */
+public class NetworkRouter {
+    static final Logger LOG = LoggerFactory.getLogger(NetworkRouter.class);
+
+    private static final int GLOBAL_NETWORK = 0xFFFF;
+
+    private final Map<Integer, Port> ports = new ConcurrentHashMap<>();
+    private final Map<Integer, Route> routes = new ConcurrentHashMap<>();
+
+    private final LongAdder forwardedCount = new LongAdder();
+    private final LongAdder droppedCount = new LongAdder();
+
+    /**
+     * Attaches the given network as a port of this router.
+     */
+    public NetworkRouter addPort(final Network network) {
+        final int networkNumber = network.getLocalNetworkNumber();
+        if (networkNumber < 1 || networkNumber >= GLOBAL_NETWORK)
+            throw new IllegalArgumentException("Router ports require a local network number, got " + networkNumber);
+        if (network.getRouter() != null)
+            throw new IllegalStateException("Network " + networkNumber + " is already a router port");
+        if (ports.putIfAbsent(networkNumber, new Port(network)) != null)
+            throw new IllegalStateException("There is already a port for network " + networkNumber);
+        network.setRouter(this);
+        return this;
+    }
+
+    public void removePort(final Network network) {
+        final Port port = ports.get(network.getLocalNetworkNumber());
+        if (port != null && port.network == network) {
+            ports.remove(network.getLocalNetworkNumber());
+            network.setRouter(null);
+            routes.values().removeIf(route -> route.port == port);
+        }
+    }
+
+    /**
+     * Returns the networks that this router can reach, mapped to the network number of the port that they are reached
+     * through.
+     */
+    public Map<Integer, Integer> getRoutingTable() {
+        final Map<Integer, Integer> result = new HashMap<>();
+        for (final Integer networkNumber : ports.keySet())
+            result.put(networkNumber, networkNumber);
+        for (final Map.Entry<Integer, Route> e : routes.entrySet())
+            result.put(e.getKey(), e.getValue().port.network.getLocalNetworkNumber());
+        return result;
+    }
+
+    public long getForwardedCount() {
+        return forwardedCount.sum();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.sum();
+    }
+
+    /**
+     * Broadcasts an I-Am-Router-To-Network on every port, as a router should after it starts up (6.6.2). Call this
+     * once the port networks have been initialized.
+     */
+    public void announce() {
+        for (final Port port : ports.values())
+            sendIAmRouter(port, getReachableNetworks(port));
+    }
+
+    /**
+     * Called by a port network with every NPDU that it receives, after its NPCI has been read. The queue holds the
+     * rest of the message and is left as it is.
+     *
+     * @return whether the message should also be handled by the port network's own local device.
+     */
+    boolean route(final Network network, final NPCI npci, final ByteQueue queue, final OctetString linkService) {
+        final Port port = ports.get(network.getLocalNetworkNumber());
+        if (port == null || port.network != network || port.isOwnAddress(linkService))
+            return true;
+
+        if (!npci.hasDestinationInfo() || npci.getDestinationNetwork() == network.getLocalNetworkNumber()) {
+            if (npci.isNetworkMessage())
+                receiveNetworkMessage(port, npci, queue, linkService);
+            return true;
+        }
+
+        if (npci.getDestinationNetwork() == GLOBAL_NETWORK) {
+            if (npci.isNetworkMessage() && isRouterMessage(npci.getMessageType()))
+                // Routers answer these themselves rather than pass them on.
+                receiveNetworkMessage(port, npci, queue, linkService);
+            else if (npci.getHopCount() > 1) {
+                final NPCI forward = npci.forward(getSourceNetwork(port, npci), getSourceAddress(npci, linkService),
+                        false);
+                for (final Port other : ports.values()) {
+                    if (other != port)
+                        send(other, forward, queue, other.network.getLocalBroadcastAddress(), null, true);
+                }
+            }
+            return true;
+        }
+
+        forward(port, npci, queue, linkService);
+        return false;
+    }
+
+    private void forward(final Port port, final NPCI npci, final ByteQueue queue, final OctetString linkService) {
+        final int destinationNetwork = npci.getDestinationNetwork();
+        final int sourceNetwork = getSourceNetwork(port, npci);
+        final byte[] sourceAddress = getSourceAddress(npci, linkService);
+
+        final Port target = ports.get(destinationNetwork);
+        if (target != null) {
+            // The destination network is directly connected, so deliver the message onto it.
+            if (!npci.isNetworkMessage() && queue.size() > target.network.getMaxApduLength().getMaxLengthInt()) {
+                reject(port, sourceNetwork, sourceAddress, linkService, 4, destinationNetwork);
+                return;
+            }
+
+            final NPCI deliver = npci.forward(sourceNetwork, sourceAddress, true);
+            if (npci.isDestinationBroadcast())
+                send(target, deliver, queue, target.network.getLocalBroadcastAddress(), null, true);
+            else
+                send(target, deliver, queue, new Address(npci.getDestinationAddress()), null, false);
+            return;
+        }
+
+        final Route route = routes.get(destinationNetwork);
+        if (route == null || route.port == port) {
+            LOG.debug("No route to network {}, rejecting message from {}", destinationNetwork, linkService);
+            reject(port, sourceNetwork, sourceAddress, linkService, 1, destinationNetwork);
+            // Look for a route so that the next attempt can get through.
+            for (final Port other : ports.values()) {
+                if (other != port)
+                    sendWhoIsRouter(other, destinationNetwork);
+            }
+            return;
+        }
+
+        if (npci.getHopCount() <= 1) {
+            LOG.debug("Dropping message to network {} because its hop count ran out", destinationNetwork);
+            droppedCount.increment();
+            return;
+        }
+
+        final byte[] destinationAddress = npci.isDestinationBroadcast() ? new byte[0] : npci.getDestinationAddress();
+        send(route.port, npci.forward(sourceNetwork, sourceAddress, false), queue,
+                new Address(destinationNetwork, destinationAddress), route.router, false);
+    }
+
+    private void receiveNetworkMessage(final Port port, final NPCI npci, final ByteQueue queue,
+            final OctetString linkService) {
+        switch (npci.getMessageType()) {
+        case 0x0: // Who-Is-Router-To-Network
+            if (queue.size() > 1) {
+                final int networkNumber = (queue.peek(0) & 0xff) << 8 | queue.peek(1) & 0xff;
+                if (networkNumber == port.network.getLocalNetworkNumber())
+                    break;
+                if (getReachableNetworks(port).contains(networkNumber))
+                    sendIAmRouter(port, Collections.singletonList(networkNumber));
+                else {
+                    // Not known. Ask the other ports, and answer later when a router there responds.
+                    for (final Port other : ports.values()) {
+                        if (other != port)
+                            sendWhoIsRouter(other, networkNumber);
+                    }
+                }
+            } else
+                sendIAmRouter(port, getReachableNetworks(port));
+            break;
+        case 0x1: // I-Am-Router-To-Network
+            final List<Integer> learned = new ArrayList<>();
+            for (int i = 0; i + 1 < queue.size(); i += 2) {
+                final int networkNumber = (queue.peek(i) & 0xff) << 8 | queue.peek(i + 1) & 0xff;
+                if (ports.containsKey(networkNumber))
+                    continue;
+                final Route existing = routes.get(networkNumber);
+                if (existing == null || existing.port == port) {
+                    routes.put(networkNumber, new Route(port, linkService));
+                    if (existing == null) {
+                        LOG.debug("Learned route to network {} through {} on network {}", networkNumber, linkService,
+                                port.network.getLocalNetworkNumber());
+                        learned.add(networkNumber);
+                    }
+                }
+            }
+            // Let the other ports know about the new networks (6.6.3.3).
+            if (!learned.isEmpty()) {
+                for (final Port other : ports.values()) {
+                    if (other != port)
+                        sendIAmRouter(other, learned);
+                }
+            }
+            break;
+        default:
+        }
+    }
+
+    private static boolean isRouterMessage(final int messageType) {
+        return messageType == 0x0 || messageType == 0x1;
+    }
+
+    private List<Integer> getReachableNetworks(final Port port) {
+        final List<Integer> result = new ArrayList<>();
+        for (final Port other : ports.values()) {
+            if (other != port)
+                result.add(other.network.getLocalNetworkNumber());
+        }
+        for (final Map.Entry<Integer, Route> e : routes.entrySet()) {
+            if (e.getValue().port != port)
+                result.add(e.getKey());
+        }
+        return result;
+    }
+
+    private static int getSourceNetwork(final Port port, final NPCI npci) {
+        // Some networks put a source with network 0 in their messages. That is the same as no source at all.
+        if (npci.hasSourceInfo() && npci.getSourceNetwork() != 0)
+            return npci.getSourceNetwork();
+        return port.network.getLocalNetworkNumber();
+    }
+
+    private static byte[] getSourceAddress(final NPCI npci, final OctetString linkService) {
+        if (npci.hasSourceInfo() && npci.getSourceNetwork() != 0)
+            return npci.getSourceAddress();
+        return linkService.getBytes();
+    }
+
+    private void send(final Port port, final NPCI npci, final ByteQueue data, final Address recipient,
+            final OctetString router, final boolean broadcast) {
+        final ByteQueue npdu = new ByteQueue();
+        npci.write(npdu);
+        npdu.push(data);
+
+        try {
+            port.network.sendNPDU(recipient, router, npdu, broadcast, npci.isExpectingReply());
+            forwardedCount.increment();
+        } catch (final BACnetException e) {
+            LOG.warn("Failed to forward message to {} on network {}", recipient, port.network.getLocalNetworkNumber(),
+                    e);
+            droppedCount.increment();
+        }
+    }
+
+    private void reject(final Port port, final int sourceNetwork, final byte[] sourceAddress,
+            final OctetString linkService, final int reason, final int networkNumber) {
+        droppedCount.increment();
+
+        Address recipient;
+        OctetString router;
+        if (sourceNetwork == port.network.getLocalNetworkNumber()) {
+            recipient = new Address(sourceAddress);
+            router = null;
+        } else {
+            recipient = new Address(sourceNetwork, sourceAddress);
+            router = linkService;
+        }
+        final byte[] data = { (byte) reason, (byte) (networkNumber >> 8), (byte) networkNumber };
+        sendNetworkMessage(port, recipient, router, 0x3, data, false);
+    }
+
+    private void sendWhoIsRouter(final Port port, final int networkNumber) {
+        final byte[] data = { (byte) (networkNumber >> 8), (byte) networkNumber };
+        sendNetworkMessage(port, port.network.getLocalBroadcastAddress(), null, 0x0, data, true);
+    }
+
+    private void sendIAmRouter(final Port port, final List<Integer> networkNumbers) {
+        if (networkNumbers.isEmpty())
+            return;
+
+        final byte[] data = new byte[networkNumbers.size() * 2];
+        for (int i = 0; i < networkNumbers.size(); i++) {
+            data[i * 2] = (byte) (networkNumbers.get(i) >> 8);
+            data[i * 2 + 1] = (byte) (int) networkNumbers.get(i);
+        }
+        sendNetworkMessage(port, port.network.getLocalBroadcastAddress(), null, 0x1, data, true);
+    }
+
+    private static void sendNetworkMessage(final Port port, final Address recipient, final OctetString router,
+            final int messageType, final byte[] data, final boolean broadcast) {
+        try {
+            port.network.sendNetworkMessage(recipient, router, messageType, data, broadcast, false);
+        } catch (final BACnetException e) {
+            LOG.warn("Failed to send network message {} on network {}", messageType,
+                    port.network.getLocalNetworkNumber(), e);
+        }
+    }
+
+    static class Port {
+        final Network network;
+        private volatile Set<OctetString> ownAddresses;
+
+        Port(final Network network) {
+            this.network = network;
+        }
+
+        /**
+         * Messages that a port network hears from itself, such as its own broadcasts, are not routed again. The
+         * addresses are looked up once, since some networks enumerate their interfaces to find them.
+         */
+        boolean isOwnAddress(final OctetString linkService) {
+            Set<OctetString> addresses = ownAddresses;
+            if (addresses == null) {
+                addresses = new HashSet<>();
+                for (final Address address : network.getAllLocalAddresses())
+                    addresses.add(address.getMacAddress());
+                ownAddresses = addresses;
+            }
+            return addresses.contains(linkService);
+        }
+    }
+
+    static class Route {
+        final Port port;
+        final OctetString router;
+
+        Route(final Port port, final OctetString router) {
+            this.port = port;
+            this.router = router;
+        }
+    }
+}
@@ -31,11 +31,36 @@ package com.serotonin.bacnet4j.npdu.ip;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * InetSocketAddress cache, because instantiation can take up to 10 seconds on Android.
+ *
+ * Lookups do not lock. The cache is bounded so that gateways that see many transient peers do not grow it forever:
+ * when it exceeds its maximum size, the least recently used quarter of the entries are evicted. Recency is tracked in
+ * generations that advance after every quarter of the maximum size of misses, so a hit only writes to its entry the
+ * first time it is used in a generation.
+ */
 public class InetAddrCache {
-    private static final Map<InetAddress, Map<Integer, InetSocketAddress>> socketCache = new HashMap<>();
+    public static final int DEFAULT_MAX_SIZE = 10000;
+
+    private static final Map<Object, Entry> socketCache = new ConcurrentHashMap<>();
+    private static final ReentrantLock evictionLock = new ReentrantLock();
+    private static volatile int maxSize = DEFAULT_MAX_SIZE;
+    private static final AtomicLong generation = new AtomicLong();
+    private static final AtomicInteger generationMisses = new AtomicInteger();
+
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+    private static final LongAdder evictions = new LongAdder();
 
     public static InetSocketAddress get(final String host, final int port) {
         try {
@@ -45,37 +70,160 @@ public class InetAddrCache {
         }
     }
 
+    public static InetSocketAddress get(final InetAddress addr, final int port) {
+        final Object key = key(addr.getAddress(), port);
+        final Entry e = socketCache.get(key);
+        if (e != null)
+            return hit(e);
+        return miss(key, new InetSocketAddress(addr, port));
+    }
+
     /**
-     * InetSocketAddress cache, because instantiation can take up to 10 seconds on Android.
-     * ??? Should there be a means of purging this?
-     *
-     * @param addr
-     * @param port
-     * @return
+     * Looks up the socket address of the given raw IP address, which avoids creating an InetAddress when the address
+     * is already cached.
      */
-    public static InetSocketAddress get(final InetAddress addr, final int port) {
-        Map<Integer, InetSocketAddress> ports = socketCache.get(addr);
-        if (ports == null) {
-            synchronized (socketCache) {
-                ports = socketCache.get(addr);
-                if (ports == null) {
-                    ports = new HashMap<>();
-                    socketCache.put(addr, ports);
-                }
-            }
+    public static InetSocketAddress get(final byte[] ipAddress, final int port) {
+        final Object key = key(ipAddress, port);
+        final Entry e = socketCache.get(key);
+        if (e != null)
+            return hit(e);
+
+        try {
+            return miss(key, new InetSocketAddress(InetAddress.getByAddress(ipAddress), port));
+        } catch (final UnknownHostException ex) {
+            throw new RuntimeException(ex);
         }
+    }
 
-        InetSocketAddress socket = ports.get(port);
-        if (socket == null) {
-            synchronized (ports) {
-                socket = ports.get(port);
-                if (socket == null) {
-                    socket = new InetSocketAddress(addr, port);
-                    ports.put(port, socket);
-                }
+    /**
+     * Sets the number of addresses above which the cache evicts. Defaults to {@link #DEFAULT_MAX_SIZE}.
+     */
+    public static void setMaxSize(final int maxSize) {
+        if (maxSize < 1)
+            throw new IllegalArgumentException("maxSize cannot be less than 1");
+        InetAddrCache.maxSize = maxSize;
+        evict();
+    }
+
+    public static int getMaxSize() {
+        return maxSize;
+    }
+
+    public static int size() {
+        return socketCache.size();
+    }
+
+    public static long getHits() {
+        return hits.sum();
+    }
+
+    public static long getMisses() {
+        return misses.sum();
+    }
+
+    public static long getEvictions() {
+        return evictions.sum();
+    }
+
+    public static void clear() {
+        socketCache.clear();
+        generationMisses.set(0);
+    }
+
+    private static InetSocketAddress hit(final Entry e) {
+        hits.increment();
+        final long g = generation.get();
+        if (e.generation != g)
+            e.generation = g;
+        return e.address;
+    }
+
+    private static InetSocketAddress miss(final Object key, final InetSocketAddress address) {
+        misses.increment();
+        final Entry created = new Entry(address, generation.get());
+        final Entry existing = socketCache.putIfAbsent(key, created);
+        if (existing != null)
+            // Another thread added it first.
+            return existing.address;
+
+        if (generationMisses.incrementAndGet() >= Math.max(1, maxSize / 4)) {
+            generationMisses.set(0);
+            generation.incrementAndGet();
+        }
+        evict();
+        return address;
+    }
+
+    private static void evict() {
+        final int max = maxSize;
+        if (socketCache.size() <= max)
+            return;
+
+        // Only one thread evicts at a time. Others carry on, since the cache may exceed its size briefly.
+        if (!evictionLock.tryLock())
+            return;
+        try {
+            final List<Map.Entry<Object, Entry>> entries = new ArrayList<>(socketCache.entrySet());
+            final int toEvict = entries.size() - max + max / 4;
+            if (toEvict <= 0)
+                return;
+
+            entries.sort((a, b) -> Long.compare(a.getValue().generation, b.getValue().generation));
+            for (int i = 0; i < toEvict && i < entries.size(); i++) {
+                final Map.Entry<Object, Entry> e = entries.get(i);
+                if (socketCache.remove(e.getKey(), e.getValue()))
+                    evictions.increment();
             }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * IPv4 addresses, which are most of the lookups, are keyed by a long made of the address and port. Other
+     * addresses use a wrapper of their bytes.
+     */
+    private static Object key(final byte[] ipAddress, final int port) {
+        if (ipAddress.length == 4) {
+            final long ip = (ipAddress[0] & 0xffL) << 24 | (ipAddress[1] & 0xffL) << 16 | (ipAddress[2] & 0xffL) << 8
+                    | ipAddress[3] & 0xffL;
+            return ip << 16 | port & 0xffff;
         }
+        return new AddressKey(ipAddress.clone(), port);
+    }
+
+    private static class Entry {
+        final InetSocketAddress address;
+        volatile long generation;
+
+        Entry(final InetSocketAddress address, final long generation) {
+            this.address = address;
+            this.generation = generation;
+        }
+    }
 
-        return socket;
+    private static class AddressKey {
+        private final byte[] address;
+        private final int port;
+
+        AddressKey(final byte[] address, final int port) {
+            this.address = address;
+            this.port = port;
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(address) * 31 + port;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof AddressKey))
+                return false;
+            final AddressKey other = (AddressKey) obj;
+            return port == other.port && Arrays.equals(address, other.address);
+        }
     }
 }
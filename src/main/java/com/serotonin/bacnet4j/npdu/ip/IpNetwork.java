@@ -39,11 +39,14 @@ import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -54,11 +57,16 @@ import com.serotonin.bacnet4j.npdu.MessageValidationException;
 import com.serotonin.bacnet4j.npdu.NPDU;
 import com.serotonin.bacnet4j.npdu.Network;
 import com.serotonin.bacnet4j.npdu.NetworkIdentifier;
+import com.serotonin.bacnet4j.npdu.pcap.CapturedFrame;
+import com.serotonin.bacnet4j.npdu.pcap.PcapWriter;
+import com.serotonin.bacnet4j.npdu.pcap.UdpFrames;
 import com.serotonin.bacnet4j.transport.Transport;
 import com.serotonin.bacnet4j.type.constructed.Address;
 import com.serotonin.bacnet4j.type.primitive.OctetString;
 import com.serotonin.bacnet4j.util.BACnetUtils;
+import com.serotonin.bacnet4j.util.TimingWheel;
 import com.serotonin.bacnet4j.util.sero.ByteQueue;
+import com.serotonin.bacnet4j.util.sero.ThreadUtils;
 
 /**
  * Use IpNetworkBuilder to create.
@@ -70,17 +78,28 @@ public class IpNetwork extends Network implements Runnable {
     public static final int DEFAULT_PORT = 0xBAC0; // == 47808
     public static final String DEFAULT_BIND_IP = "0.0.0.0";
 
-    private static final int MESSAGE_LENGTH = 2048;
+    static final int MESSAGE_LENGTH = 2048;
+
+    // The resolution and size of the wheel that expires FDT entries, and how often it is checked.
+    private static final long FDT_EXPIRY_TICK_MILLIS = 1000;
+    private static final int FDT_EXPIRY_WHEEL_SIZE = 1024;
+    private static final long FDT_EXPIRY_PERIOD_SECONDS = 10;
 
     private final int port;
     private final String localBindAddressStr;
     private final String broadcastAddressStr;
     private final String subnetMaskStr;
     private final boolean reuseAddress;
+    private final int receiveThreads;
 
     // BBMD support
-    private List<BDTEntry> broadcastDistributionTable = new ArrayList<>();
-    final List<FDTEntry> foreignDeviceTable = new CopyOnWriteArrayList<>();
+    // The BDT and its precomputed forwarding destinations are replaced together when the BDT is written.
+    private volatile BroadcastDistribution broadcastDistribution = new BroadcastDistribution();
+    // The FDT is keyed by the foreign device's address. Entries expire by TTL in a single timing wheel, which along
+    // with the forwarding destinations is guarded by the table's monitor.
+    final Map<InetSocketAddress, FDTEntry> foreignDeviceTable = new ConcurrentHashMap<>();
+    private volatile InetSocketAddress[] foreignDeviceAddresses = new InetSocketAddress[0];
+    private TimingWheel<FDTEntry> fdtExpiry;
     private ScheduledFuture<?> ftdMaintenance;
     private final AtomicBoolean bbmdEnabled = new AtomicBoolean(false);
 
@@ -92,25 +111,26 @@ public class IpNetwork extends Network implements Runnable {
     private ScheduledFuture<?> foreignRegistrationMaintenance;
 
     // Runtime
-    private Thread thread;
+    private Thread[] threads;
     private DatagramSocket socket;
     private OctetString broadcastMAC;
     private InetSocketAddress localBindAddress;
     private byte[] subnetMask;
-    private long bytesOut;
-    private long bytesIn;
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
 
     /**
      * Use an IpNetworkBuilder to create instances.
      */
     IpNetwork(final int port, final String localBindAddress, final String broadcastAddress, final String subnetMask,
-            final int localNetworkNumber, final boolean reuseAddress) {
+            final int localNetworkNumber, final boolean reuseAddress, final int receiveThreads) {
         super(localNetworkNumber);
         this.port = port;
         this.localBindAddressStr = localBindAddress;
         this.broadcastAddressStr = broadcastAddress;
         this.subnetMaskStr = subnetMask;
         this.reuseAddress = reuseAddress;
+        this.receiveThreads = receiveThreads;
     }
 
     @Override
@@ -135,14 +155,18 @@ public class IpNetwork extends Network implements Runnable {
         return broadcastAddressStr;
     }
 
+    public int getReceiveThreads() {
+        return receiveThreads;
+    }
+
     @Override
     public long getBytesOut() {
-        return bytesOut;
+        return bytesOut.sum();
     }
 
     @Override
     public long getBytesIn() {
-        return bytesIn;
+        return bytesIn.sum();
     }
 
     /**
@@ -158,32 +182,60 @@ public class IpNetwork extends Network implements Runnable {
         super.initialize(transport);
 
         localBindAddress = InetAddrCache.get(localBindAddressStr, port);
+        openSocket(localBindAddress, reuseAddress);
+
+        //        broadcastAddress = new Address(broadcastIp, port, new Network(0xffff, new byte[0]));
+        broadcastMAC = IpNetworkUtils.toOctetString(broadcastAddressStr, port);
+        subnetMask = BACnetUtils.dottedStringToBytes(subnetMaskStr);
+
+        // Each thread receives from the socket in turn, and then handles its datagram concurrently with the others.
+        threads = new Thread[receiveThreads];
+        for (int i = 0; i < receiveThreads; i++) {
+            String name = "BACnet4J IP socket listener for " + transport.getLocalDevice().getId();
+            if (receiveThreads > 1)
+                name += " #" + (i + 1);
+            threads[i] = new Thread(this, name);
+            threads[i].start();
+        }
+    }
 
+    /**
+     * Opens the socket that the network sends and receives with. Subclasses that use another kind of socket override
+     * this along with {@link #closeSocket()}, {@link #sendDatagram(InetSocketAddress, byte[])},
+     * {@link #sendDatagram(InetSocketAddress, ByteQueue)} and {@link #run()}.
+     */
+    protected void openSocket(final InetSocketAddress bindAddress, final boolean reuseAddress) throws IOException {
         if (reuseAddress) {
             socket = new DatagramSocket(null);
             socket.setReuseAddress(true);
             if (!socket.getReuseAddress())
                 LOG.warn("reuseAddress was set, but not supported by the underlying platform");
-            socket.bind(localBindAddress);
+            socket.bind(bindAddress);
         } else
-            socket = new DatagramSocket(localBindAddress);
+            socket = new DatagramSocket(bindAddress);
         socket.setBroadcast(true);
+    }
 
-        //        broadcastAddress = new Address(broadcastIp, port, new Network(0xffff, new byte[0]));
-        broadcastMAC = IpNetworkUtils.toOctetString(broadcastAddressStr, port);
-        subnetMask = BACnetUtils.dottedStringToBytes(subnetMaskStr);
-
-        thread = new Thread(this, "BACnet4J IP socket listener for " + transport.getLocalDevice().getId());
-        thread.start();
+    protected void closeSocket() {
+        if (socket != null)
+            socket.close();
     }
 
     @Override
     public void terminate() {
         unregisterAsForeignDevice();
-        if (socket != null)
-            socket.close();
+        closeSocket();
         if (ftdMaintenance != null)
             ftdMaintenance.cancel(false);
+
+        // A closed channel only releases its port once the threads that were receiving from it have returned, so
+        // wait for them to allow the port to be bound again.
+        if (threads != null) {
+            for (final Thread thread : threads) {
+                if (thread != Thread.currentThread())
+                    ThreadUtils.join(thread);
+            }
+        }
     }
 
     @Override
@@ -280,7 +332,7 @@ public class IpNetwork extends Network implements Runnable {
     @Override
     public void sendNPDU(final Address recipient, final OctetString router, final ByteQueue npdu,
             final boolean broadcast, final boolean expectsReply) throws BACnetException {
-        final ByteQueue queue = new ByteQueue();
+        final ByteQueue queue = new ByteQueue(npdu.size() + 4);
 
         // BACnet virtual link layer detail
         queue.push(BVLC_TYPE);
@@ -303,19 +355,48 @@ public class IpNetwork extends Network implements Runnable {
         // Combine the queues
         queue.push(npdu);
 
-        sendPacket(addr, queue.popAll());
+        sendPacket(addr, queue);
     }
 
     private void sendPacket(final InetSocketAddress addr, final byte[] data) throws BACnetException {
         try {
-            final DatagramPacket packet = new DatagramPacket(data, data.length, addr);
-            socket.send(packet);
-            bytesOut += data.length;
+            if (hasTaps())
+                tapSent(IpNetworkUtils.toOctetString(addr), data);
+            sendDatagram(addr, data);
+            bytesOut.add(data.length);
         } catch (final Exception e) {
             throw new BACnetException(e);
         }
     }
 
+    /**
+     * Sends the content of the queue, which is consumed.
+     */
+    private void sendPacket(final InetSocketAddress addr, final ByteQueue data) throws BACnetException {
+        try {
+            final int length = data.size();
+            if (hasTaps())
+                tapSent(IpNetworkUtils.toOctetString(addr), data);
+            sendDatagram(addr, data);
+            bytesOut.add(length);
+        } catch (final Exception e) {
+            throw new BACnetException(e);
+        }
+    }
+
+    protected void sendDatagram(final InetSocketAddress addr, final byte[] data) throws IOException {
+        final DatagramPacket packet = new DatagramPacket(data, data.length, addr);
+        socket.send(packet);
+    }
+
+    /**
+     * Sends the content of the queue, which is consumed. Subclasses that can send from the queue without first
+     * copying it into an array override this.
+     */
+    protected void sendDatagram(final InetSocketAddress addr, final ByteQueue data) throws IOException {
+        sendDatagram(addr, data.popAll());
+    }
+
     //
     // For receiving
     @Override
@@ -327,13 +408,10 @@ public class IpNetwork extends Network implements Runnable {
             try {
                 socket.receive(p);
 
-                bytesIn += p.getLength();
                 // Create a new byte queue for the message, because the queue will probably be processed in the
                 // transport thread.
                 final ByteQueue queue = new ByteQueue(p.getData(), 0, p.getLength());
-                final OctetString link = IpNetworkUtils.toOctetString(p.getAddress().getAddress(), p.getPort());
-
-                handleIncomingData(queue, link);
+                received(queue, p.getAddress(), p.getPort());
 
                 // Reset the packet.
                 p.setData(buffer);
@@ -343,6 +421,14 @@ public class IpNetwork extends Network implements Runnable {
         }
     }
 
+    /**
+     * Hands a received datagram over for processing. The queue must not share memory with the receive buffer.
+     */
+    protected void received(final ByteQueue queue, final InetAddress from, final int fromPort) {
+        bytesIn.add(queue.size());
+        handleIncomingData(queue, IpNetworkUtils.toOctetString(from.getAddress(), fromPort));
+    }
+
     @Override
     protected NPDU handleIncomingDataImpl(final ByteQueue queue, final OctetString linkService) throws Exception {
         LOG.trace("Received request from {}", linkService);
@@ -443,6 +529,57 @@ public class IpNetwork extends Network implements Runnable {
         return npdu;
     }
 
+    //
+    //
+    // Capture. Frames are raw IPv4 UDP packets between the local bind address and the peer.
+    //
+    @Override
+    public int getCaptureLinkType() {
+        return PcapWriter.LINKTYPE_IPV4;
+    }
+
+    @Override
+    public byte[] toCaptureFrame(final boolean sent, final OctetString link, final byte[] data) {
+        final InetSocketAddress local = localBindAddress == null ? new InetSocketAddress(port) : localBindAddress;
+        final InetSocketAddress peer = IpNetworkUtils.getInetSocketAddress(link);
+        return sent ? UdpFrames.toPacket(local, peer, data) : UdpFrames.toPacket(peer, local, data);
+    }
+
+    @Override
+    public CapturedFrame fromCaptureFrame(final byte[] frame) {
+        final UdpFrames.Datagram datagram = UdpFrames.parse(frame);
+        if (datagram == null)
+            return null;
+        final byte[] data = datagram.getPayload();
+        if (data.length < 4 || data[0] != BVLC_TYPE)
+            return null;
+
+        final boolean sent = isLocal(datagram.getSource());
+        final InetSocketAddress peer = sent ? datagram.getDestination() : datagram.getSource();
+        return new CapturedFrame(IpNetworkUtils.toOctetString(peer), sent, data,
+                CapturedFrame.npduExpectsReply(data, getNpduOffset(data)));
+    }
+
+    @Override
+    public int getNpduOffset(final byte[] data) {
+        if (data.length < 4 || data[0] != BVLC_TYPE)
+            return -1;
+        // The NPDU follows the BVLC header, and the origin address in a Forwarded-NPDU.
+        return data[1] == 0x4 ? 10 : data[1] == 0x9 || data[1] == 0xa || data[1] == 0xb ? 4 : -1;
+    }
+
+    private boolean isLocal(final InetSocketAddress addr) {
+        if (addr.getPort() != port)
+            return false;
+        if (localBindAddress != null && !localBindAddress.getAddress().isAnyLocalAddress())
+            return localBindAddress.getAddress().equals(addr.getAddress());
+        try {
+            return NetworkInterface.getByInetAddress(addr.getAddress()) != null;
+        } catch (@SuppressWarnings("unused") final SocketException e) {
+            return false;
+        }
+    }
+
     //
     //
     // Convenience methods
@@ -558,8 +695,58 @@ public class IpNetwork extends Network implements Runnable {
 
     static class FDTEntry {
         InetSocketAddress address;
-        int timeToLive;
-        long endTime;
+        volatile int timeToLive;
+        volatile long endTime;
+    }
+
+    private static final Comparator<FDTEntry> FDT_ORDER = (a, b) -> {
+        final byte[] aa = a.address.getAddress().getAddress();
+        final byte[] ba = b.address.getAddress().getAddress();
+        for (int i = 0; i < aa.length && i < ba.length; i++) {
+            final int diff = (aa[i] & 0xff) - (ba[i] & 0xff);
+            if (diff != 0)
+                return diff;
+        }
+        return a.address.getPort() - b.address.getPort();
+    };
+
+    static class BroadcastDistribution {
+        final List<BDTEntry> entries;
+        // The Forwarded-NPDU destinations of the BDT entries other than this BBMD's own.
+        final InetSocketAddress[] peers;
+        // Whether the mask of this BBMD's own entry says that forwarded messages are to be broadcast locally.
+        final boolean localBroadcast;
+
+        BroadcastDistribution() {
+            entries = Collections.emptyList();
+            peers = new InetSocketAddress[0];
+            localBroadcast = false;
+        }
+
+        BroadcastDistribution(final List<BDTEntry> entries, final byte[] myAddress) throws UnknownHostException {
+            this.entries = entries;
+
+            final List<InetSocketAddress> list = new ArrayList<>();
+            BDTEntry thisEntry = null;
+            for (final BDTEntry e : entries) {
+                if (Arrays.equals(e.address, myAddress))
+                    thisEntry = e;
+                else
+                    list.add(getForwardAddress(e));
+            }
+            peers = list.toArray(new InetSocketAddress[list.size()]);
+
+            if (thisEntry == null) {
+                // Not found. This is a configuration problem. Don't broadcast.
+                if (!entries.isEmpty())
+                    LOG.warn("Configuration error: could not find BDT entry for this instance.");
+                localBroadcast = false;
+            } else {
+                // We only need to check the last byte (the last bit in actually), because any zeros all need to
+                // be on the right.
+                localBroadcast = thisEntry.distributionMask[3] == (byte) 255;
+            }
+        }
     }
 
     private void writeBDT(final ByteQueue queue, final OctetString origin) throws BACnetException {
@@ -583,7 +770,7 @@ public class IpNetwork extends Network implements Runnable {
                 }
 
                 // Successfully read. Replace the current BDT.
-                broadcastDistributionTable = list;
+                broadcastDistribution = new BroadcastDistribution(list, localBindAddress.getAddress().getAddress());
 
                 response.pushU2B(0); // Ok
             } catch (final Exception e) {
@@ -603,7 +790,7 @@ public class IpNetwork extends Network implements Runnable {
             try {
                 final ByteQueue list = new ByteQueue();
 
-                for (final BDTEntry e : broadcastDistributionTable) {
+                for (final BDTEntry e : broadcastDistribution.entries) {
                     list.push(e.address);
                     list.pushU2B(e.port);
                     list.push(e.distributionMask);
@@ -628,15 +815,19 @@ public class IpNetwork extends Network implements Runnable {
     }
 
     private void forwardNPDU(final ByteQueue partial, final OctetString origin) throws BACnetException {
-        // Determine whether to the message should be broadcast locally.
-        boolean doLocalBroadcast = !broadcastDistributionTable.isEmpty();
+        final BroadcastDistribution bdt = broadcastDistribution;
+        final InetSocketAddress[] foreignDevices = foreignDeviceAddresses;
 
+        // Determine whether to the message should be broadcast locally. The mask of the BDT entry for this BBMD must
+        // be all 1s, and the origin must not be on the same subnet.
+        boolean doLocalBroadcast = bdt.localBroadcast;
         if (doLocalBroadcast) {
-            // 1) If the origin is on the same subnet, do not broadcast locally.
             boolean fromSameSubnet = true;
+            final byte[] myAddress = localBindAddress.getAddress().getAddress();
+            final byte[] originAddress = origin.getBytes();
             for (int i = 0; i < 4; i++) {
-                final int b1 = localBindAddress.getAddress().getAddress()[i] & subnetMask[i];
-                final int b2 = origin.getBytes()[i] & subnetMask[i];
+                final int b1 = myAddress[i] & subnetMask[i];
+                final int b2 = originAddress[i] & subnetMask[i];
                 if (b1 != b2) {
                     fromSameSubnet = false;
                     break;
@@ -647,33 +838,8 @@ public class IpNetwork extends Network implements Runnable {
                 doLocalBroadcast = false;
         }
 
-        if (doLocalBroadcast) {
-            // 2) If the mask of the BDT entry for this BBMD is not all 1s, do not broadcast locally.
-            final byte[] myAddress = localBindAddress.getAddress().getAddress();
-
-            // Find this BDT entry.
-            BDTEntry thisEntry = null;
-            for (final BDTEntry e : broadcastDistributionTable) {
-                if (Arrays.equals(e.address, myAddress)) {
-                    thisEntry = e;
-                    break;
-                }
-            }
-
-            if (thisEntry == null) {
-                // Not found. This is a configuration problem. Don't broadcast.
-                LOG.warn("Configuration error: could not find BDT entry for this instance.");
-                doLocalBroadcast = false;
-            } else {
-                // We only need to check the last byte (the last bit in actually), because any zeros all need to
-                // be on the right.
-                if (thisEntry.distributionMask[3] != (byte) 255)
-                    doLocalBroadcast = false;
-            }
-        }
-
         // Check if anything needs to be done.
-        if (foreignDeviceTable.isEmpty() && !doLocalBroadcast)
+        if (foreignDevices.length == 0 && !doLocalBroadcast)
             return;
 
         // The BVLC type, function and length were removed from this queue, so recreate.
@@ -688,13 +854,16 @@ public class IpNetwork extends Network implements Runnable {
             sendPacket(InetAddrCache.get(broadcastAddressStr, port), toSend);
 
         // Forward to all foreign devices.
-        for (final FDTEntry fd : foreignDeviceTable)
-            sendPacket(fd.address, toSend);
+        for (final InetSocketAddress fd : foreignDevices)
+            sendPacket(fd, toSend);
     }
 
     private void originalBroadcast(final ByteQueue partial, final OctetString originStr) throws BACnetException {
+        final BroadcastDistribution bdt = broadcastDistribution;
+        final InetSocketAddress[] foreignDevices = foreignDeviceAddresses;
+
         // Check if anything needs to be done.
-        if (foreignDeviceTable.isEmpty() && broadcastDistributionTable.isEmpty())
+        if (foreignDevices.length == 0 && bdt.peers.length == 0)
             return;
 
         final ByteQueue fwd = new ByteQueue();
@@ -705,22 +874,13 @@ public class IpNetwork extends Network implements Runnable {
         fwd.push(partial);
         final byte[] toSend = fwd.popAll();
 
-        try {
-            final byte[] myAddress = localBindAddress.getAddress().getAddress();
+        // Send to all subnets except own
+        for (final InetSocketAddress peer : bdt.peers)
+            sendPacket(peer, toSend);
 
-            // Send to all subnets except own
-            for (final BDTEntry e : broadcastDistributionTable) {
-                if (Arrays.equals(e.address, myAddress))
-                    continue;
-                sendToBDT(e, toSend);
-            }
-
-            // Forward to all foreign devices.
-            for (final FDTEntry fd : foreignDeviceTable)
-                sendPacket(fd.address, toSend);
-        } catch (final UnknownHostException e) {
-            throw new BACnetException(e);
-        }
+        // Forward to all foreign devices.
+        for (final InetSocketAddress fd : foreignDevices)
+            sendPacket(fd, toSend);
     }
 
     private void registerForeignDevice(final ByteQueue queue, final OctetString originStr) throws BACnetException {
@@ -737,48 +897,23 @@ public class IpNetwork extends Network implements Runnable {
             if (timeToLive < 1) {
                 response.pushU2B(0x30); // NAK
             } else {
-                // Check if the device is already in the list. If so, update its start time. Otherwise, add it.
-                FDTEntry fd = null;
-                synchronized (foreignDeviceTable) {
-                    for (final FDTEntry e : foreignDeviceTable) {
-                        if (e.address.equals(origin)) {
-                            fd = e;
-                            break;
-                        }
-                    }
-
+                // Update the entry of the device if it is already in the table. Otherwise, add it. Both are done
+                // atomically so that a concurrent expiry cannot discard the refreshed registration.
+                final long endTime = getTransport().getLocalDevice().getClock().millis() + (timeToLive + 30) * 1000L; // Adds a 30-second grace period, as per J.5.2.3
+                final FDTEntry[] added = new FDTEntry[1];
+                foreignDeviceTable.compute(origin, (k, fd) -> {
                     if (fd == null) {
-                        // Add the FDT entry
                         fd = new FDTEntry();
-                        fd.address = origin;
-                        foreignDeviceTable.add(fd);
-
-                        if (ftdMaintenance == null) {
-                            // Add a job to expire foreign device registrations.
-                            ftdMaintenance = getTransport().getLocalDevice().scheduleAtFixedRate(() -> {
-                                final long now = getTransport().getLocalDevice().getClock().millis();
-
-                                synchronized (foreignDeviceTable) {
-                                    final List<FDTEntry> toRemove = new ArrayList<>();
-
-                                    for (final FDTEntry e : foreignDeviceTable) {
-                                        if (e.endTime < now) {
-                                            LOG.debug("Removing expired foreign device: " + e);
-                                            toRemove.add(e);
-                                        }
-                                    }
-
-                                    if (!toRemove.isEmpty()) {
-                                        foreignDeviceTable.removeAll(toRemove);
-                                    }
-                                }
-                            }, 10, 10, TimeUnit.SECONDS);
-                        }
+                        fd.address = k;
+                        added[0] = fd;
                     }
-                }
+                    fd.timeToLive = timeToLive;
+                    fd.endTime = endTime;
+                    return fd;
+                });
 
-                fd.timeToLive = timeToLive;
-                fd.endTime = getTransport().getLocalDevice().getClock().millis() + (timeToLive + 30) * 1000; // Adds a 30-second grace period, as per J.5.2.3
+                if (added[0] != null)
+                    foreignDeviceAdded(added[0]);
 
                 response.pushU2B(0); // Success
             }
@@ -797,7 +932,10 @@ public class IpNetwork extends Network implements Runnable {
             try {
                 final ByteQueue list = new ByteQueue();
 
-                for (final FDTEntry e : foreignDeviceTable) {
+                // The table is not ordered, so list the entries by address to keep the response stable.
+                final List<FDTEntry> entries = new ArrayList<>(foreignDeviceTable.values());
+                entries.sort(FDT_ORDER);
+                for (final FDTEntry e : entries) {
                     pushISA(list, e.address);
                     list.pushU2B(e.timeToLive);
 
@@ -840,22 +978,20 @@ public class IpNetwork extends Network implements Runnable {
         response.push(0); // Response type
         response.pushU2B(6); // Length
 
-        synchronized (foreignDeviceTable) {
-            FDTEntry toDelete = null;
-            for (final FDTEntry fd : foreignDeviceTable) {
-                if (Arrays.equals(fd.address.getAddress().getAddress(), addr) && fd.address.getPort() == port) {
-                    toDelete = fd;
-                    break;
-                }
-            }
-
-            if (toDelete != null) {
-                foreignDeviceTable.remove(toDelete);
-                response.pushU2B(0); // Success
-            } else
-                response.pushU2B(0x50); // NAK
+        FDTEntry toDelete = null;
+        try {
+            toDelete = foreignDeviceTable.remove(new InetSocketAddress(InetAddress.getByAddress(addr), port));
+        } catch (final UnknownHostException e) {
+            LOG.warn("Invalid FDT entry address", e);
         }
 
+        if (toDelete != null) {
+            // The entry's expiry is left in the wheel, and is ignored when it comes due.
+            foreignDevicesChanged();
+            response.pushU2B(0); // Success
+        } else
+            response.pushU2B(0x50); // NAK
+
         sendPacket(IpNetworkUtils.getInetSocketAddress(origin), response.popAll());
     }
 
@@ -864,13 +1000,7 @@ public class IpNetwork extends Network implements Runnable {
         final InetSocketAddress origin = IpNetworkUtils.getInetSocketAddress(originStr);
 
         // Find the foreign device.
-        FDTEntry originFDT = null;
-        for (final FDTEntry fd : foreignDeviceTable) {
-            if (fd.address.equals(origin)) {
-                originFDT = fd;
-                break;
-            }
-        }
+        final FDTEntry originFDT = foreignDeviceTable.get(origin);
 
         final ByteQueue response = new ByteQueue();
         response.push(BVLC_TYPE);
@@ -896,22 +1026,14 @@ public class IpNetwork extends Network implements Runnable {
         // Send locally
         sendPacket(InetAddrCache.get(broadcastAddressStr, port), toSend);
 
-        try {
-            // Send to all BDTs except own
-            final byte[] myAddress = localBindAddress.getAddress().getAddress();
-            for (final BDTEntry e : broadcastDistributionTable) {
-                if (Arrays.equals(e.address, myAddress))
-                    continue;
-                sendToBDT(e, toSend);
-            }
-        } catch (final UnknownHostException e1) {
-            LOG.warn("Error forwarding to BDT", e1);
-        }
+        // Send to all BDTs except own
+        for (final InetSocketAddress peer : broadcastDistribution.peers)
+            sendPacket(peer, toSend);
 
         // Forward to all foreign devices except the origin.
-        for (final FDTEntry fd : foreignDeviceTable) {
-            if (fd != originFDT)
-                sendPacket(fd.address, toSend);
+        for (final InetSocketAddress fd : foreignDeviceAddresses) {
+            if (!fd.equals(origin))
+                sendPacket(fd, toSend);
         }
 
         response.pushU2B(0); // Success
@@ -919,15 +1041,68 @@ public class IpNetwork extends Network implements Runnable {
         return true;
     }
 
-    private void sendToBDT(final BDTEntry e, final byte[] toSend) throws UnknownHostException, BACnetException {
+    private static InetSocketAddress getForwardAddress(final BDTEntry e) throws UnknownHostException {
         // J.4.5: The B/IP address to which the Forwarded-NPDU message is sent is formed by inverting the broadcast
         // distribution mask in the BDT entry and logically ORing it with the BBMD address of the same entry.
         final byte[] target = new byte[4];
         for (int i = 0; i < 4; i++)
             target[i] = (byte) (e.address[i] | ~e.distributionMask[i]);
 
-        final InetSocketAddress to = InetAddrCache.get(InetAddress.getByAddress(target), e.port);
-        sendPacket(to, toSend);
+        return InetAddrCache.get(InetAddress.getByAddress(target), e.port);
+    }
+
+    private void foreignDeviceAdded(final FDTEntry fd) {
+        synchronized (foreignDeviceTable) {
+            if (ftdMaintenance == null) {
+                // Start the job that expires foreign device registrations.
+                final long now = getTransport().getLocalDevice().getClock().millis();
+                fdtExpiry = new TimingWheel<>(FDT_EXPIRY_TICK_MILLIS, FDT_EXPIRY_WHEEL_SIZE, now);
+                ftdMaintenance = getTransport().getLocalDevice().scheduleAtFixedRate(this::expireForeignDevices,
+                        FDT_EXPIRY_PERIOD_SECONDS, FDT_EXPIRY_PERIOD_SECONDS, TimeUnit.SECONDS);
+            }
+            fdtExpiry.schedule(fd, fd.endTime);
+            foreignDeviceAddresses = foreignDeviceTable.keySet().toArray(new InetSocketAddress[0]);
+        }
+    }
+
+    private void foreignDevicesChanged() {
+        synchronized (foreignDeviceTable) {
+            foreignDeviceAddresses = foreignDeviceTable.keySet().toArray(new InetSocketAddress[0]);
+        }
+    }
+
+    private void expireForeignDevices() {
+        final long now = getTransport().getLocalDevice().getClock().millis();
+        final List<FDTEntry> due = new ArrayList<>();
+        synchronized (foreignDeviceTable) {
+            fdtExpiry.expire(now, due::add);
+        }
+        if (due.isEmpty())
+            return;
+
+        final boolean[] removed = new boolean[1];
+        for (final FDTEntry fd : due) {
+            // Remove the entry only if it is still the one in the table and it was not refreshed in the meantime.
+            // Entries that were deleted or replaced are simply dropped.
+            final FDTEntry current = foreignDeviceTable.computeIfPresent(fd.address, (k, e) -> {
+                if (e == fd && e.endTime <= now) {
+                    LOG.debug("Removing expired foreign device: " + fd.address);
+                    removed[0] = true;
+                    return null;
+                }
+                return e;
+            });
+
+            if (current == fd) {
+                // Refreshed, so schedule the new end time.
+                synchronized (foreignDeviceTable) {
+                    fdtExpiry.schedule(fd, fd.endTime);
+                }
+            }
+        }
+
+        if (removed[0])
+            foreignDevicesChanged();
     }
 
     private static void pushISA(final ByteQueue queue, final InetSocketAddress isa) {
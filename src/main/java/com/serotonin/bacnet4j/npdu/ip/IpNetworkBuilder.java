@@ -42,6 +42,8 @@ public class IpNetworkBuilder {
     private int port = IpNetwork.DEFAULT_PORT;
     private int localNetworkNumber = Address.LOCAL_NETWORK;
     private boolean reuseAddress = false;
+    private boolean nio = false;
+    private int receiveThreads = 1;
 
     public IpNetworkBuilder withLocalBindAddress(final String localBindAddress) {
         this.localBindAddress = localBindAddress;
@@ -102,6 +104,25 @@ public class IpNetworkBuilder {
         return this;
     }
 
+    /**
+     * Use a NIO DatagramChannel with pooled direct buffers instead of a DatagramSocket. See NioIpNetwork.
+     */
+    public IpNetworkBuilder withNio(final boolean nio) {
+        this.nio = nio;
+        return this;
+    }
+
+    /**
+     * The number of threads that receive and handle datagrams, including the BVLC and BBMD functions. More than one
+     * lets a busy BBMD use more cores, but datagrams from the same sender may then be handled out of order.
+     */
+    public IpNetworkBuilder withReceiveThreads(final int receiveThreads) {
+        if (receiveThreads < 1)
+            throw new IllegalArgumentException("receiveThreads cannot be less than 1");
+        this.receiveThreads = receiveThreads;
+        return this;
+    }
+
     public String getLocalBindAddress() {
         return localBindAddress;
     }
@@ -126,10 +147,22 @@ public class IpNetworkBuilder {
         return reuseAddress;
     }
 
+    public boolean isNio() {
+        return nio;
+    }
+
+    public int getReceiveThreads() {
+        return receiveThreads;
+    }
+
     public IpNetwork build() {
         if (broadcastAddress == null || subnetMask == null) {
             throw new IllegalArgumentException("Either withBroadcast or withSubnet must be called.");
         }
-        return new IpNetwork(port, localBindAddress, broadcastAddress, subnetMask, localNetworkNumber, reuseAddress);
+        if (nio)
+            return new NioIpNetwork(port, localBindAddress, broadcastAddress, subnetMask, localNetworkNumber,
+                    reuseAddress, receiveThreads);
+        return new IpNetwork(port, localBindAddress, broadcastAddress, subnetMask, localNetworkNumber, reuseAddress,
+                receiveThreads);
     }
 }
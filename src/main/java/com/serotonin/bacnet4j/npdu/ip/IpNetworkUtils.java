@@ -93,7 +93,7 @@ public class IpNetworkUtils {
     }
 
     public static InetSocketAddress getInetSocketAddress(final OctetString mac) {
-        return InetAddrCache.get(getInetAddress(mac), getPort(mac));
+        return InetAddrCache.get(getIpBytes(mac), getPort(mac));
     }
 
     public static int getPort(final OctetString mac) {
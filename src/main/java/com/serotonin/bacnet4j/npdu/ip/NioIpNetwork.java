@@ -0,0 +1,110 @@
+/*
+ * ============================================================================
+ * GNU General Public License
+ * ============================================================================
+ *
+ * Copyright (C) 2015 Infinite Automation Software. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * When signing a commercial license with Infinite Automation Software,
+ * the following extension to GPL is made. A special exception to the GPL is
+ * included to allow you to distribute a combined work that includes BAcnet4J
+ * without being obliged to provide the source code for any proprietary components.
+ *
+ * See www.infiniteautomation.com for commercial license options.
+ *
+ * @author Matthew Lohbihler
+ */
+package com.serotonin.bacnet4j.npdu.ip;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+
+import com.serotonin.bacnet4j.npdu.DatagramBufferPool;
+import com.serotonin.bacnet4j.util.sero.ByteQueue;
+
+/**
+ * An IpNetwork that uses a NIO DatagramChannel instead of a DatagramSocket. Datagrams are received into and sent from
+ * pooled direct buffers, so the kernel copies straight to and from them and no packet objects or receive arrays are
+ * allocated per datagram. Received datagrams are copied once, into a queue of exactly their size.
+ *
+ * Use IpNetworkBuilder.withNio to create.
+ */
+public class NioIpNetwork extends IpNetwork {
+    private static final int BUFFER_POOL_SIZE = 16;
+
+    private final DatagramBufferPool buffers = new DatagramBufferPool(MESSAGE_LENGTH, BUFFER_POOL_SIZE);
+    private DatagramChannel channel;
+
+    NioIpNetwork(final int port, final String localBindAddress, final String broadcastAddress,
+            final String subnetMask, final int localNetworkNumber, final boolean reuseAddress,
+            final int receiveThreads) {
+        super(port, localBindAddress, broadcastAddress, subnetMask, localNetworkNumber, reuseAddress,
+                receiveThreads);
+    }
+
+    /**
+     * Returns the channel's socket adaptor.
+     */
+    @Override
+    public DatagramSocket getSocket() {
+        return channel == null ? null : channel.socket();
+    }
+
+    public DatagramChannel getChannel() {
+        return channel;
+    }
+
+    @Override
+    protected void openSocket(final InetSocketAddress bindAddress, final boolean reuseAddress) throws IOException {
+        channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        if (reuseAddress) {
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            if (!channel.getOption(StandardSocketOptions.SO_REUSEADDR))
+                LOG.warn("reuseAddress was set, but not supported by the underlying platform");
+        }
+        channel.setOption(StandardSocketOptions.SO_BROADCAST, true);
+        channel.bind(bindAddress);
+    }
+
+    @Override
+    protected void closeSocket() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (final IOException e) {
+                LOG.warn("Error closing channel", e);
+            }
+        }
+    }
+
+    @Override
+    protected void sendDatagram(final InetSocketAddress addr, final byte[] data) throws IOException {
+        buffers.send(channel, addr, data);
+    }
+
+    @Override
+    protected void sendDatagram(final InetSocketAddress addr, final ByteQueue data) throws IOException {
+        buffers.send(channel, addr, data);
+    }
+
+    @Override
+    public void run() {
+        buffers.receive(channel, this::received);
+    }
+}
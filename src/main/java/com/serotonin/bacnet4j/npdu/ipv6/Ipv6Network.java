@@ -35,10 +35,12 @@ import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -49,12 +51,16 @@ import com.serotonin.bacnet4j.npdu.MessageValidationException;
 import com.serotonin.bacnet4j.npdu.NPDU;
 import com.serotonin.bacnet4j.npdu.Network;
 import com.serotonin.bacnet4j.npdu.NetworkIdentifier;
+import com.serotonin.bacnet4j.npdu.pcap.CapturedFrame;
+import com.serotonin.bacnet4j.npdu.pcap.PcapWriter;
+import com.serotonin.bacnet4j.npdu.pcap.UdpFrames;
 import com.serotonin.bacnet4j.transport.Transport;
 import com.serotonin.bacnet4j.type.constructed.Address;
 import com.serotonin.bacnet4j.type.primitive.OctetString;
 import com.serotonin.bacnet4j.util.BACnetUtils;
 import com.serotonin.bacnet4j.util.sero.ByteQueue;
 import com.serotonin.bacnet4j.util.sero.StreamUtils;
+import com.serotonin.bacnet4j.util.sero.ThreadUtils;
 
 public class Ipv6Network extends Network implements Runnable {
     static final Logger LOG = LoggerFactory.getLogger(Ipv6Network.class);
@@ -63,24 +69,33 @@ public class Ipv6Network extends Network implements Runnable {
     public static final int DEFAULT_PORT = 0xBAC0; // == 47808
     public static final String DEFAULT_BIND_ADDRESS = "::";
 
-    private static final int MESSAGE_LENGTH = 2048;
+    public static final long DEFAULT_VMAC_TIME_TO_LIVE = TimeUnit.MINUTES.toMillis(10);
 
-    // Map of VMAC to IPv6 addresses.
-    private static final Map<OctetString, OctetString> vmacTable = new HashMap<>();
+    static final int MESSAGE_LENGTH = 2048;
+    private static final long ADDRESS_RESOLUTION_TIMEOUT = 10000;
+    private static final long MAINTENANCE_PERIOD_SECONDS = 60;
 
     private final String multicastAddress;
     private final int port;
     private final String localBindAddress;
 
+    // Map of VMAC to IPv6 addresses.
+    private final VmacTable vmacTable;
+    private ScheduledFuture<?> vmacMaintenance;
+
+    private final int receiveThreads;
+
     // Runtime
-    private Thread thread;
+    private Thread[] threads;
     private MulticastSocket socket;
     private OctetString broadcastMAC;
+    private InetSocketAddress bindAddress;
     private OctetString thisVMAC;
-    private long bytesOut;
-    private long bytesIn;
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
 
-    private final List<PendingAddressResolution> pendingAddressResolutions = new CopyOnWriteArrayList<>();
+    // Messages waiting for the address of their destination VMAC to be resolved.
+    private final Map<OctetString, PendingAddressResolution> pendingAddressResolutions = new ConcurrentHashMap<>();
 
     public Ipv6Network(final String multicastAddress) {
         this(multicastAddress, DEFAULT_PORT);
@@ -96,17 +111,29 @@ public class Ipv6Network extends Network implements Runnable {
 
     public Ipv6Network(final String multicastAddress, final int port, final String localBindAddress,
             final int localNetworkNumber) {
+        this(multicastAddress, port, localBindAddress, localNetworkNumber, DEFAULT_VMAC_TIME_TO_LIVE);
+    }
+
+    /**
+     * @param vmacTimeToLive
+     *            the time in millis after which the address of a VMAC that has not been heard from is resolved again
+     */
+    public Ipv6Network(final String multicastAddress, final int port, final String localBindAddress,
+            final int localNetworkNumber, final long vmacTimeToLive) {
+        this(multicastAddress, port, localBindAddress, localNetworkNumber, vmacTimeToLive, 1);
+    }
+
+    /**
+     * Use an Ipv6NetworkBuilder to set the number of receive threads.
+     */
+    Ipv6Network(final String multicastAddress, final int port, final String localBindAddress,
+            final int localNetworkNumber, final long vmacTimeToLive, final int receiveThreads) {
         super(localNetworkNumber);
         this.multicastAddress = multicastAddress;
         this.port = port;
         this.localBindAddress = localBindAddress;
-
-        try {
-            vmacTable.put(thisVMAC, Ipv6NetworkUtils.toOctetString(InetAddress.getByName("::1").getAddress(), port));
-        } catch (final UnknownHostException e) {
-            // Should never happen
-            throw new RuntimeException(e);
-        }
+        this.receiveThreads = receiveThreads;
+        vmacTable = new VmacTable(vmacTimeToLive);
     }
 
     @Override
@@ -131,14 +158,18 @@ public class Ipv6Network extends Network implements Runnable {
         return localBindAddress;
     }
 
+    public int getReceiveThreads() {
+        return receiveThreads;
+    }
+
     @Override
     public long getBytesOut() {
-        return bytesOut;
+        return bytesOut.sum();
     }
 
     @Override
     public long getBytesIn() {
-        return bytesIn;
+        return bytesIn.sum();
     }
 
     @Override
@@ -146,26 +177,75 @@ public class Ipv6Network extends Network implements Runnable {
         super.initialize(transport);
 
         if (DEFAULT_BIND_ADDRESS.equals(localBindAddress))
-            socket = new MulticastSocket(port);
+            bindAddress = new InetSocketAddress(port);
         else
-            socket = new MulticastSocket(new InetSocketAddress(InetAddress.getByName(localBindAddress), port));
+            bindAddress = new InetSocketAddress(InetAddress.getByName(localBindAddress), port);
         final InetAddress ia = InetAddress.getByName(multicastAddress);
-        socket.joinGroup(ia);
+        openSocket(bindAddress, ia);
 
         broadcastMAC = Ipv6NetworkUtils.toOctetString(ia.getAddress(), port);
 
         thisVMAC = BACnetUtils.toVirtualAddressBytes(transport.getLocalDevice().getInstanceNumber());
+        try {
+            vmacTable.pin(thisVMAC, Ipv6NetworkUtils.toOctetString(InetAddress.getByName("::1").getAddress(), port));
+        } catch (final UnknownHostException e) {
+            // Should never happen
+            throw new RuntimeException(e);
+        }
 
-        thread = new Thread(this, "BACnet4J IPv6 socket listener");
-        thread.start();
+        vmacMaintenance = transport.getLocalDevice().scheduleAtFixedRate(() -> {
+            final long now = now();
+            final int purged = vmacTable.purge(now);
+            if (purged > 0)
+                LOG.debug("Purged {} stale VMAC entries", purged);
+            purgePendingAddressResolutions(now);
+        }, MAINTENANCE_PERIOD_SECONDS, MAINTENANCE_PERIOD_SECONDS, TimeUnit.SECONDS);
+
+        threads = new Thread[receiveThreads];
+        for (int i = 0; i < receiveThreads; i++) {
+            String name = "BACnet4J IPv6 socket listener";
+            if (receiveThreads > 1)
+                name += " #" + (i + 1);
+            threads[i] = new Thread(this, name);
+            threads[i].start();
+        }
     }
 
-    @Override
-    public void terminate() {
+    /**
+     * Opens the socket that the network sends and receives with, and joins the multicast group. Subclasses that use
+     * another kind of socket override this along with {@link #closeSocket()},
+     * {@link #sendDatagram(InetSocketAddress, byte[])}, {@link #sendDatagram(InetSocketAddress, ByteQueue)} and
+     * {@link #run()}.
+     */
+    protected void openSocket(final InetSocketAddress bindAddress, final InetAddress group) throws IOException {
+        socket = new MulticastSocket(bindAddress);
+        socket.joinGroup(group);
+    }
+
+    protected void closeSocket() {
         if (socket != null)
             socket.close();
     }
 
+    @Override
+    public void terminate() {
+        if (vmacMaintenance != null)
+            vmacMaintenance.cancel(false);
+        closeSocket();
+
+        // A closed channel only releases its port once the threads that were receiving from it have returned, so
+        // wait for them to allow the port to be bound again.
+        if (threads != null) {
+            for (final Thread thread : threads) {
+                if (thread != Thread.currentThread())
+                    ThreadUtils.join(thread);
+            }
+        }
+
+        // Drop the NPDUs that were waiting for address resolutions.
+        pendingAddressResolutions.clear();
+    }
+
     @Override
     protected OctetString getBroadcastMAC() {
         return broadcastMAC;
@@ -222,43 +302,82 @@ public class Ipv6Network extends Network implements Runnable {
 
         // Get the IP address for this destination.
         if (broadcast)
-            sendPacket(Ipv6NetworkUtils.getInetSocketAddress(dest), queue.popAll());
+            sendPacket(Ipv6NetworkUtils.getInetSocketAddress(dest), queue);
         else {
-            final OctetString ipAddr = vmacTable.get(dest);
+            final long now = now();
+            final OctetString ipAddr = vmacTable.get(dest, now);
             if (ipAddr == null) {
-                purgePendingAddressResolutions();
-
-                // The IP address for this destination is not known. Queue the message and send an address
-                // resolution request.
-                final PendingAddressResolution par = new PendingAddressResolution();
-                par.destination = dest;
-                par.data = queue.popAll();
-                pendingAddressResolutions.add(par);
-
-                final ByteQueue req = new ByteQueue();
-                req.push(BVLC_TYPE);
-                req.push(0x3); // Function
-                req.pushU2B(0xa); // Length
-                req.push(thisVMAC.getBytes()); // Source
-                req.push(dest.getBytes()); // Destination
-                sendPacket(Ipv6NetworkUtils.getInetSocketAddress(broadcastMAC), req.popAll());
+                purgePendingAddressResolutions(now);
+
+                // The IP address for this destination is not known. Queue the message and, unless a resolution of
+                // this destination is already in progress, send an address resolution request.
+                final byte[] data = queue.popAll();
+                final boolean[] resolve = new boolean[1];
+                pendingAddressResolutions.compute(dest, (k, par) -> {
+                    if (par == null) {
+                        par = new PendingAddressResolution(now + ADDRESS_RESOLUTION_TIMEOUT);
+                        resolve[0] = true;
+                    }
+                    par.data.add(data);
+                    return par;
+                });
+
+                if (resolve[0]) {
+                    final ByteQueue req = new ByteQueue();
+                    req.push(BVLC_TYPE);
+                    req.push(0x3); // Function
+                    req.pushU2B(0xa); // Length
+                    req.push(thisVMAC.getBytes()); // Source
+                    req.push(dest.getBytes()); // Destination
+                    sendPacket(Ipv6NetworkUtils.getInetSocketAddress(broadcastMAC), req.popAll());
+                }
             } else
                 // The IP address is known. Send the message now.
-                sendPacket(Ipv6NetworkUtils.getInetSocketAddress(ipAddr), queue.popAll());
+                sendPacket(Ipv6NetworkUtils.getInetSocketAddress(ipAddr), queue);
         }
     }
 
     private void sendPacket(final InetSocketAddress addr, final byte[] data) throws BACnetException {
         try {
             LOG.debug("Sending datagram to {}: {}", addr, StreamUtils.dumpArrayHex(data));
-            final DatagramPacket packet = new DatagramPacket(data, data.length, addr);
-            socket.send(packet);
-            bytesOut += data.length;
+            if (hasTaps())
+                tapSent(Ipv6NetworkUtils.toOctetString(addr.getAddress().getAddress(), addr.getPort()), data);
+            sendDatagram(addr, data);
+            bytesOut.add(data.length);
         } catch (final IOException e) {
             throw new BACnetException(e);
         }
     }
 
+    /**
+     * Sends the content of the queue, which is consumed.
+     */
+    private void sendPacket(final InetSocketAddress addr, final ByteQueue data) throws BACnetException {
+        try {
+            LOG.debug("Sending datagram to {}: {}", addr, data);
+            final int length = data.size();
+            if (hasTaps())
+                tapSent(Ipv6NetworkUtils.toOctetString(addr.getAddress().getAddress(), addr.getPort()), data);
+            sendDatagram(addr, data);
+            bytesOut.add(length);
+        } catch (final IOException e) {
+            throw new BACnetException(e);
+        }
+    }
+
+    protected void sendDatagram(final InetSocketAddress addr, final byte[] data) throws IOException {
+        final DatagramPacket packet = new DatagramPacket(data, data.length, addr);
+        socket.send(packet);
+    }
+
+    /**
+     * Sends the content of the queue, which is consumed. Subclasses that can send from the queue without first
+     * copying it into an array override this.
+     */
+    protected void sendDatagram(final InetSocketAddress addr, final ByteQueue data) throws IOException {
+        sendDatagram(addr, data.popAll());
+    }
+
     //
     // For receiving
     @Override
@@ -270,13 +389,10 @@ public class Ipv6Network extends Network implements Runnable {
             try {
                 socket.receive(p);
 
-                bytesIn += p.getLength();
+                // Create a new byte queue for the message, because the queue will probably be processed in the
+                // transport thread.
                 final ByteQueue queue = new ByteQueue(p.getData(), p.getOffset(), p.getLength());
-                final OctetString link = Ipv6NetworkUtils.toOctetString(p.getAddress().getAddress(), p.getPort());
-
-                LOG.debug("Received datagram from {}: {}", link, queue);
-
-                handleIncomingData(queue, link);
+                received(queue, p.getAddress(), p.getPort());
 
                 // Reset the packet.
                 p.setData(buffer);
@@ -286,6 +402,13 @@ public class Ipv6Network extends Network implements Runnable {
         }
     }
 
+    protected void received(final ByteQueue queue, final InetAddress from, final int fromPort) {
+        bytesIn.add(queue.size());
+        final OctetString link = Ipv6NetworkUtils.toOctetString(from.getAddress(), fromPort);
+        LOG.debug("Received datagram from {}: {}", link, queue);
+        handleIncomingData(queue, link);
+    }
+
     @Override
     protected NPDU handleIncomingDataImpl(final ByteQueue queue, final OctetString fromIpv6) throws Exception {
         if (queue.size() < 4)
@@ -305,8 +428,13 @@ public class Ipv6Network extends Network implements Runnable {
 
         final OctetString sourceVMAC = BACnetUtils.popDeviceId(queue);
 
-        // Add the resolution to the table
-        vmacTable.put(sourceVMAC, fromIpv6);
+        // Add the resolution to the table. Forwarded messages carry the address of their origin, which is learned
+        // instead of the forwarder's. The multicasts of this device come back to it, and are not learned so that its
+        // own VMAC does not resolve to a remote address.
+        final long now = now();
+        final boolean learn = !sourceVMAC.equals(thisVMAC);
+        if (learn && function != 0x4 && function != 0x8)
+            vmacTable.learn(sourceVMAC, fromIpv6, now);
 
         NPDU npdu = null;
 
@@ -327,11 +455,15 @@ public class Ipv6Network extends Network implements Runnable {
             // Address-Resolution or Forwarded-Address-Resolution
             final OctetString targetVMAC = BACnetUtils.popDeviceId(queue);
 
-            // How is this source address used?
-            byte[] sourceIpv6Address = null;
+            // The Forwarded-Address-Resolution carries the address of the original requester, to which the ack is
+            // sent directly.
+            OctetString replyTo = fromIpv6;
             if (function == 0x4) {
-                sourceIpv6Address = new byte[18];
+                final byte[] sourceIpv6Address = new byte[18];
                 queue.pop(sourceIpv6Address);
+                replyTo = new OctetString(sourceIpv6Address);
+                if (learn)
+                    vmacTable.learn(sourceVMAC, replyTo, now);
             }
 
             if (thisVMAC.equals(targetVMAC)) {
@@ -342,24 +474,19 @@ public class Ipv6Network extends Network implements Runnable {
                 ack.pushU2B(0xa); // Length
                 ack.push(thisVMAC.getBytes()); // Source
                 ack.push(sourceVMAC.getBytes()); // Destination
-                sendPacket(Ipv6NetworkUtils.getInetSocketAddress(fromIpv6), ack.popAll());
+                sendPacket(Ipv6NetworkUtils.getInetSocketAddress(replyTo), ack.popAll());
             }
         } else if (function == 0x5) {
-            // Address-Resolution-Ack. Check the pending list for matching requests.
+            // Address-Resolution-Ack. The resolution was learned above, so send the messages that were waiting for it.
             //OctetString destinationVMAC = BACnetUtils.popDeviceId(queue);
             BACnetUtils.popDeviceId(queue);
 
-            List<PendingAddressResolution> matched = null;
-            for (final PendingAddressResolution par : pendingAddressResolutions) {
-                if (par.destination.equals(sourceVMAC)) {
-                    if (matched == null)
-                        matched = new ArrayList<>();
-                    matched.add(par);
-                    sendPacket(Ipv6NetworkUtils.getInetSocketAddress(fromIpv6), par.data);
-                }
+            final PendingAddressResolution par = pendingAddressResolutions.remove(sourceVMAC);
+            if (par != null) {
+                final InetSocketAddress to = Ipv6NetworkUtils.getInetSocketAddress(fromIpv6);
+                for (final byte[] data : par.data)
+                    sendPacket(to, data);
             }
-            if (matched != null)
-                pendingAddressResolutions.removeAll(matched);
         } else if (function == 0x6) {
             // Virtual-Address-Resolution. Reply with a Virtual-Address-Resolution-Ack
             final ByteQueue ack = new ByteQueue();
@@ -368,7 +495,7 @@ public class Ipv6Network extends Network implements Runnable {
             ack.pushU2B(0xa); // Length
             ack.push(thisVMAC.getBytes()); // Source
             ack.push(sourceVMAC.getBytes()); // Destination
-            sendPacket(Ipv6NetworkUtils.getInetSocketAddress(fromIpv6), queue.popAll());
+            sendPacket(Ipv6NetworkUtils.getInetSocketAddress(fromIpv6), ack.popAll());
         } else if (function == 0x7) {
             // Virtual-Address-Resolution-Ack.
             //OctetString destinationVMAC = BACnetUtils.popDeviceId(queue);
@@ -377,7 +504,8 @@ public class Ipv6Network extends Network implements Runnable {
             // Forwarded-NPDU. Use the address/port as the link service address.
             final byte[] addr = new byte[18];
             queue.pop(addr);
-            vmacTable.put(sourceVMAC, new OctetString(addr));
+            if (learn)
+                vmacTable.learn(sourceVMAC, new OctetString(addr), now);
             npdu = parseNpduData(queue, sourceVMAC);
         } else
             throw new MessageValidationException(
@@ -386,6 +514,49 @@ public class Ipv6Network extends Network implements Runnable {
         return npdu;
     }
 
+    //
+    //
+    // Capture. Frames are raw IPv6 UDP packets between the local bind address and the peer.
+    //
+    @Override
+    public int getCaptureLinkType() {
+        return PcapWriter.LINKTYPE_IPV6;
+    }
+
+    @Override
+    public byte[] toCaptureFrame(final boolean sent, final OctetString link, final byte[] data) {
+        final InetSocketAddress local = bindAddress == null ? new InetSocketAddress(port) : bindAddress;
+        final InetSocketAddress peer = Ipv6NetworkUtils.getInetSocketAddress(link);
+        return sent ? UdpFrames.toPacket(local, peer, data) : UdpFrames.toPacket(peer, local, data);
+    }
+
+    @Override
+    public CapturedFrame fromCaptureFrame(final byte[] frame) {
+        final UdpFrames.Datagram datagram = UdpFrames.parse(frame);
+        if (datagram == null)
+            return null;
+        final byte[] data = datagram.getPayload();
+        if (data.length < 7 || data[0] != BVLC_TYPE)
+            return null;
+
+        // The frames that this network sent carry its VMAC as the source.
+        final OctetString sourceVMAC = new OctetString(new byte[] { data[4], data[5], data[6] });
+        final boolean sent = sourceVMAC.equals(thisVMAC);
+        final InetSocketAddress peer = sent ? datagram.getDestination() : datagram.getSource();
+        return new CapturedFrame(
+                Ipv6NetworkUtils.toOctetString(peer.getAddress().getAddress(), peer.getPort()), sent, data,
+                CapturedFrame.npduExpectsReply(data, getNpduOffset(data)));
+    }
+
+    @Override
+    public int getNpduOffset(final byte[] data) {
+        if (data.length < 4 || data[0] != BVLC_TYPE)
+            return -1;
+        // The NPDU follows the BVLC header, which has a destination VMAC in an Original-Unicast-NPDU and the origin
+        // address in a Forwarded-NPDU.
+        return data[1] == 0x1 ? 10 : data[1] == 0x2 || data[1] == 0xc ? 7 : data[1] == 0x8 ? 25 : -1;
+    }
+
     //
     //
     // Convenience methods
@@ -400,23 +571,21 @@ public class Ipv6Network extends Network implements Runnable {
         return new Address(getLocalNetworkNumber(), thisVMAC);
     }
 
-    private void purgePendingAddressResolutions() {
-        final long now = getTransport().getLocalDevice().getClock().millis();
-        List<PendingAddressResolution> toRemove = null;
-        for (final PendingAddressResolution par : pendingAddressResolutions) {
-            if (par.deadline < now) {
-                if (toRemove == null)
-                    toRemove = new ArrayList<>();
-                toRemove.add(par);
-            }
-        }
-        if (toRemove != null)
-            pendingAddressResolutions.removeAll(toRemove);
+    private long now() {
+        return getTransport().getLocalDevice().getClock().millis();
+    }
+
+    private void purgePendingAddressResolutions(final long now) {
+        pendingAddressResolutions.values().removeIf(par -> par.deadline < now);
     }
 
-    class PendingAddressResolution {
-        OctetString destination;
-        byte[] data;
-        final long deadline = getTransport().getLocalDevice().getClock().millis() + 1000 * 10;
+    static class PendingAddressResolution {
+        // Only modified while the resolution is in the pending map.
+        final List<byte[]> data = new ArrayList<>();
+        final long deadline;
+
+        PendingAddressResolution(final long deadline) {
+            this.deadline = deadline;
+        }
     }
 }
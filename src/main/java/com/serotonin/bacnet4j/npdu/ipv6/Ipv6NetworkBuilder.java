@@ -28,11 +28,16 @@
  */
 package com.serotonin.bacnet4j.npdu.ipv6;
 
+import java.util.concurrent.TimeUnit;
+
 public class Ipv6NetworkBuilder {
     private final String multicastAddress;
     private int port = Ipv6Network.DEFAULT_PORT;
     private String localBindAddress = Ipv6Network.DEFAULT_BIND_ADDRESS;
     private int localNetworkNumber = 0;
+    private long vmacTimeToLive = Ipv6Network.DEFAULT_VMAC_TIME_TO_LIVE;
+    private int receiveThreads = 1;
+    private boolean nio = false;
 
     public Ipv6NetworkBuilder(String multicastAddress) {
         this.multicastAddress = multicastAddress;
@@ -53,7 +58,35 @@ public class Ipv6NetworkBuilder {
         return this;
     }
 
+    public Ipv6NetworkBuilder vmacTimeToLive(long vmacTimeToLive, TimeUnit unit) {
+        this.vmacTimeToLive = unit.toMillis(vmacTimeToLive);
+        return this;
+    }
+
+    /**
+     * The number of threads that receive and handle datagrams. More than one lets a busy network use more cores, but
+     * datagrams from the same sender may then be handled out of order.
+     */
+    public Ipv6NetworkBuilder receiveThreads(int receiveThreads) {
+        if (receiveThreads < 1)
+            throw new IllegalArgumentException("receiveThreads cannot be less than 1");
+        this.receiveThreads = receiveThreads;
+        return this;
+    }
+
+    /**
+     * Whether to use a NIO DatagramChannel with pooled direct buffers instead of a MulticastSocket.
+     */
+    public Ipv6NetworkBuilder nio(boolean nio) {
+        this.nio = nio;
+        return this;
+    }
+
     public Ipv6Network build() {
-        return new Ipv6Network(multicastAddress, port, localBindAddress, localNetworkNumber);
+        if (nio)
+            return new NioIpv6Network(multicastAddress, port, localBindAddress, localNetworkNumber, vmacTimeToLive,
+                    receiveThreads);
+        return new Ipv6Network(multicastAddress, port, localBindAddress, localNetworkNumber, vmacTimeToLive,
+                receiveThreads);
     }
 }
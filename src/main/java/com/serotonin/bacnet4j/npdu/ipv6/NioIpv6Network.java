@@ -0,0 +1,128 @@
+/*
+ * ============================================================================
+ * GNU General Public License
+ * ============================================================================
+ *
+ * Copyright (C) 2015 Infinite Automation Software. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * When signing a commercial license with Infinite Automation Software,
+ * the following extension to GPL is made. A special exception to the GPL is
+ * included to allow you to distribute a combined work that includes BAcnet4J
+ * without being obliged to provide the source code for any proprietary components.
+ *
+ * See www.infiniteautomation.com for commercial license options.
+ *
+ * @author Matthew Lohbihler
+ */
+package com.serotonin.bacnet4j.npdu.ipv6;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.util.Collections;
+
+import com.serotonin.bacnet4j.npdu.DatagramBufferPool;
+import com.serotonin.bacnet4j.util.sero.ByteQueue;
+
+/**
+ * An Ipv6Network that uses a NIO DatagramChannel instead of a MulticastSocket, in the same way that NioIpNetwork does
+ * for B/IP. Datagrams are received into and sent from pooled direct buffers. Outgoing messages are moved from their
+ * queues straight into the buffers, and received datagrams are copied once, into a queue of exactly their size.
+ *
+ * The multicast group is joined on the interface of the bind address, or if bound to the wildcard address, on the
+ * first interface that is up, supports multicast and has an IPv6 address.
+ *
+ * Use Ipv6NetworkBuilder.nio to create.
+ */
+public class NioIpv6Network extends Ipv6Network {
+    private static final int BUFFER_POOL_SIZE = 16;
+
+    private final DatagramBufferPool buffers = new DatagramBufferPool(MESSAGE_LENGTH, BUFFER_POOL_SIZE);
+    private DatagramChannel channel;
+    private MembershipKey membershipKey;
+
+    NioIpv6Network(final String multicastAddress, final int port, final String localBindAddress,
+            final int localNetworkNumber, final long vmacTimeToLive, final int receiveThreads) {
+        super(multicastAddress, port, localBindAddress, localNetworkNumber, vmacTimeToLive, receiveThreads);
+    }
+
+    public DatagramChannel getChannel() {
+        return channel;
+    }
+
+    @Override
+    protected void openSocket(final InetSocketAddress bindAddress, final InetAddress group) throws IOException {
+        channel = DatagramChannel.open(StandardProtocolFamily.INET6);
+        // As MulticastSocket does, so that other applications can join the group on the same port.
+        channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        channel.bind(bindAddress);
+
+        final NetworkInterface ni = getMulticastInterface(bindAddress.getAddress());
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, ni);
+        membershipKey = channel.join(group, ni);
+    }
+
+    private static NetworkInterface getMulticastInterface(final InetAddress bindAddress) throws IOException {
+        if (!bindAddress.isAnyLocalAddress()) {
+            final NetworkInterface ni = NetworkInterface.getByInetAddress(bindAddress);
+            if (ni != null)
+                return ni;
+        }
+
+        for (final NetworkInterface ni : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            if (!ni.isUp() || !ni.supportsMulticast())
+                continue;
+            for (final InetAddress addr : Collections.list(ni.getInetAddresses())) {
+                if (addr instanceof Inet6Address)
+                    return ni;
+            }
+        }
+        throw new IOException("No network interface that supports IPv6 multicast");
+    }
+
+    @Override
+    protected void closeSocket() {
+        if (membershipKey != null)
+            membershipKey.drop();
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (final IOException e) {
+                LOG.warn("Error closing channel", e);
+            }
+        }
+    }
+
+    @Override
+    protected void sendDatagram(final InetSocketAddress addr, final byte[] data) throws IOException {
+        buffers.send(channel, addr, data);
+    }
+
+    @Override
+    protected void sendDatagram(final InetSocketAddress addr, final ByteQueue data) throws IOException {
+        buffers.send(channel, addr, data);
+    }
+
+    @Override
+    public void run() {
+        buffers.receive(channel, this::received);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * ============================================================================
+ * GNU General Public License
+ * ============================================================================
+ *
+ * Copyright (C) 2015 Infinite Automation Software. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * When signing a commercial license with Infinite Automation Software,
+ * the following extension to GPL is made. A special exception to the GPL is
+ * included to allow you to distribute a combined work that includes BAcnet4J
+ * without being obliged to provide the source code for any proprietary components.
+ *
+ * See www.infiniteautomation.com for commercial license options.
+ *
+ * @author Matthew Lohbihler
+ */
+package com.serotonin.bacnet4j.npdu.ipv6;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.serotonin.bacnet4j.type.primitive.OctetString;
+
+/**
+ * Resolves the VMACs of B/IPv6 nodes to their B/IPv6 addresses. Entries are learned from the source VMACs of
+ * received messages, and become stale when nothing has been heard from the node within the time to live. Stale entries
+ * are not returned by lookups, so that the node's address is resolved again, and are removed by purge.
+ *
+ * Lookups do not lock. An entry is only replaced when a node's address changes; otherwise only its time is updated.
+ */
+class VmacTable {
+    private final Map<OctetString, Entry> entries = new ConcurrentHashMap<>();
+    private final long timeToLive;
+
+    /**
+     * @param timeToLive
+     *            the time in millis after which an entry that has not been refreshed is stale
+     */
+    VmacTable(final long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * Returns the B/IPv6 address of the VMAC, or null if it is not known or the entry is stale.
+     */
+    OctetString get(final OctetString vmac, final long now) {
+        final Entry e = entries.get(vmac);
+        if (e == null || e.lastHeard < now - timeToLive)
+            return null;
+        return e.address;
+    }
+
+    /**
+     * Records that a message from the VMAC was received from the given B/IPv6 address.
+     */
+    void learn(final OctetString vmac, final OctetString address, final long now) {
+        final Entry e = entries.get(vmac);
+        if (e != null && e.address.equals(address)) {
+            if (e.lastHeard < now)
+                e.lastHeard = now;
+        } else
+            entries.put(vmac, new Entry(address, now));
+    }
+
+    /**
+     * Adds an entry that never becomes stale.
+     */
+    void pin(final OctetString vmac, final OctetString address) {
+        entries.put(vmac, new Entry(address, Long.MAX_VALUE));
+    }
+
+    /**
+     * Removes the stale entries.
+     *
+     * @return the number of entries that were removed
+     */
+    int purge(final long now) {
+        int count = 0;
+        final Iterator<Entry> iter = entries.values().iterator();
+        while (iter.hasNext()) {
+            if (iter.next().lastHeard < now - timeToLive) {
+                iter.remove();
+                count++;
+            }
+        }
+        return count;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    private static class Entry {
+        final OctetString address;
+        volatile long lastHeard;
+
+        Entry(final OctetString address, final long lastHeard) {
+            this.address = address;
+            this.lastHeard = lastHeard;
+        }
+    }
+}
@@ -34,6 +34,8 @@ import com.serotonin.bacnet4j.npdu.MessageValidationException;
 import com.serotonin.bacnet4j.npdu.NPDU;
 import com.serotonin.bacnet4j.npdu.Network;
 import com.serotonin.bacnet4j.npdu.NetworkIdentifier;
+import com.serotonin.bacnet4j.npdu.pcap.CapturedFrame;
+import com.serotonin.bacnet4j.npdu.pcap.PcapWriter;
 import com.serotonin.bacnet4j.transport.Transport;
 import com.serotonin.bacnet4j.type.constructed.Address;
 import com.serotonin.bacnet4j.type.primitive.OctetString;
@@ -109,6 +111,7 @@ public class MstpNetwork extends Network {
 
         final OctetString dest = getDestination(recipient, router);
         final byte mstpAddress = MstpNetworkUtils.getMstpAddress(dest);
+        tapSent(dest, data);
 
         if (expectsReply) {
             if (node instanceof SlaveNode)
@@ -134,6 +137,62 @@ public class MstpNetwork extends Network {
         handleIncomingData(new ByteQueue(frame.getData()), MstpNetworkUtils.toOctetString(frame.getSourceAddress()));
     }
 
+    //
+    //
+    // Capture. Frames are MS/TP frames as they are on the wire, from the preamble to the data CRC.
+    //
+    @Override
+    public int getCaptureLinkType() {
+        return PcapWriter.LINKTYPE_BACNET_MS_TP;
+    }
+
+    @Override
+    public byte[] toCaptureFrame(final boolean sent, final OctetString link, final byte[] data) {
+        final FrameType type = CapturedFrame.npduExpectsReply(data, 0) ? FrameType.bacnetDataExpectingReply
+                : FrameType.bacnetDataNotExpectingReply;
+        final byte peer = MstpNetworkUtils.getMstpAddress(link);
+        final byte thisStation = node.getThisStation();
+        final Frame frame = sent ? new Frame(type, peer, thisStation, data) : new Frame(type, thisStation, peer, data);
+
+        final ByteQueue queue = new ByteQueue(data.length + 10);
+        queue.push(0x55);
+        queue.push(0xFF);
+        queue.push(type.id);
+        queue.push(frame.getDestinationAddress());
+        queue.push(frame.getSourceAddress());
+        queue.pushU2B(data.length);
+        queue.push(new HeaderCRC().getCrc(frame));
+        if (data.length > 0) {
+            queue.push(data);
+            final int crc = new DataCRC().getCrc(frame);
+            queue.push(crc);
+            queue.push(crc >> 8);
+        }
+        return queue.popAll();
+    }
+
+    @Override
+    public CapturedFrame fromCaptureFrame(final byte[] frame) {
+        if (frame.length < 8 || (frame[0] & 0xff) != 0x55 || (frame[1] & 0xff) != 0xFF)
+            return null;
+
+        // Only BACnet data frames are replayed; the token passing belongs to the MS/TP node.
+        final byte type = frame[2];
+        if (type != FrameType.bacnetDataExpectingReply.id && type != FrameType.bacnetDataNotExpectingReply.id)
+            return null;
+
+        final int length = (frame[5] & 0xff) << 8 | frame[6] & 0xff;
+        if (length == 0 || frame.length < 8 + length)
+            return null;
+        final byte[] data = new byte[length];
+        System.arraycopy(frame, 8, data, 0, length);
+
+        final boolean sent = frame[4] == node.getThisStation();
+        final byte peer = sent ? frame[3] : frame[4];
+        return new CapturedFrame(MstpNetworkUtils.toOctetString(peer), sent, data,
+                type == FrameType.bacnetDataExpectingReply.id);
+    }
+
     @Override
     protected NPDU handleIncomingDataImpl(final ByteQueue queue, final OctetString linkService)
             throws MessageValidationException {
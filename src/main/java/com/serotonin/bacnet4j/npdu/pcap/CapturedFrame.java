@@ -0,0 +1,90 @@
+/*
+ * ============================================================================
+ * GNU General Public License
+ * ============================================================================
+ *
+ * Copyright (C) 2015 Infinite Automation Software. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * When signing a commercial license with Infinite Automation Software,
+ * the following extension to GPL is made. A special exception to the GPL is
+ * included to allow you to distribute a combined work that includes BAcnet4J
+ * without being obliged to provide the source code for any proprietary components.
+ *
+ * See www.infiniteautomation.com for commercial license options.
+ *
+ * @author Matthew Lohbihler
+ */
+package com.serotonin.bacnet4j.npdu.pcap;
+
+import com.serotonin.bacnet4j.type.primitive.OctetString;
+
+/**
+ * A frame of a capture as decoded by a network, with the data as the network sends and receives it.
+ */
+public class CapturedFrame {
+    private final OctetString link;
+    private final boolean sent;
+    private final byte[] data;
+    private final boolean expectsReply;
+
+    /**
+     * @param link
+     *            the link address of the peer, i.e. the destination of a sent frame or the source of a received one
+     * @param sent
+     *            whether the frame was sent by the network that was captured
+     * @param data
+     *            the link data, which is given to handleIncomingData when replayed
+     * @param expectsReply
+     *            whether the frame carries an NPDU that expects a reply
+     */
+    public CapturedFrame(final OctetString link, final boolean sent, final byte[] data, final boolean expectsReply) {
+        this.link = link;
+        this.sent = sent;
+        this.data = data;
+        this.expectsReply = expectsReply;
+    }
+
+    public OctetString getLink() {
+        return link;
+    }
+
+    public boolean isSent() {
+        return sent;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public boolean isExpectsReply() {
+        return expectsReply;
+    }
+
+    /**
+     * Returns whether the NPDU starting at the offset in the data expects a reply, as given by the NPCI control
+     * octet.
+     */
+    public static boolean npduExpectsReply(final byte[] data, final int offset) {
+        if (offset < 0 || data.length < offset + 2)
+            return false;
+        return (data[offset + 1] & 0x04) != 0;
+    }
+
+    @Override
+    public String toString() {
+        return "CapturedFrame [link=" + link + ", sent=" + sent + ", length=" + data.length + ", expectsReply="
+                + expectsReply + "]";
+    }
+}
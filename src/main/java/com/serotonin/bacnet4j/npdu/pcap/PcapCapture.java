@@ -0,0 +1,100 @@
+/*
+ * ============================================================================
+ * GNU General Public License
+ * ============================================================================
+ *
+ * Copyright (C) 2015 Infinite Automation Software. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * When signing a commercial license with Infinite Automation Software,
+ * the following extension to GPL is made. A special exception to the GPL is
+ * included to allow you to distribute a combined work that includes BAcnet4J
+ * without being obliged to provide the source code for any proprietary components.
+ *
+ * See www.infiniteautomation.com for commercial license options.
+ *
+ * @author Matthew Lohbihler
+ */
+package com.serotonin.bacnet4j.npdu.pcap;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Clock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.serotonin.bacnet4j.npdu.Network;
+import com.serotonin.bacnet4j.npdu.NetworkTap;
+import com.serotonin.bacnet4j.type.primitive.OctetString;
+
+/**
+ * Captures the traffic of a network to a pcap stream that Wireshark can open, for debugging or for replaying with
+ * PcapReplay. The capture starts when it is created, and ends when it is closed.
+ *
+ * <pre>
+ * try (PcapCapture capture = new PcapCapture(network, new FileOutputStream("bacnet.pcap"), localDevice.getClock())) {
+ *     ...
+ * }
+ * </pre>
+ */
+public class PcapCapture implements NetworkTap, Closeable {
+    static final Logger LOG = LoggerFactory.getLogger(PcapCapture.class);
+
+    private final Network network;
+    private final Clock clock;
+    private final PcapWriter writer;
+    private volatile boolean failed;
+
+    public PcapCapture(final Network network, final OutputStream out, final Clock clock) throws IOException {
+        this.network = network;
+        this.clock = clock;
+        writer = new PcapWriter(out, network.getCaptureLinkType());
+        network.addTap(this);
+    }
+
+    public long getFrames() {
+        return writer.getFrames();
+    }
+
+    @Override
+    public void sent(final Network network, final OctetString link, final byte[] data) {
+        write(true, link, data);
+    }
+
+    @Override
+    public void received(final Network network, final OctetString link, final byte[] data) {
+        write(false, link, data);
+    }
+
+    private void write(final boolean sent, final OctetString link, final byte[] data) {
+        if (failed)
+            return;
+        try {
+            writer.write(clock.instant(), network.toCaptureFrame(sent, link, data));
+        } catch (final IOException e) {
+            // Stop capturing rather than logging an error for every frame.
+            LOG.error("Error while writing capture, stopping", e);
+            failed = true;
+            network.removeTap(this);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        network.removeTap(this);
+        writer.close();
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * ============================================================================
+ * GNU General Public License
+ * ============================================================================
+ *
+ * Copyright (C) 2015 Infinite Automation Software. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * When signing a commercial license with Infinite Automation Software,
+ * the following extension to GPL is made. A special exception to the GPL is
+ * included to allow you to distribute a combined work that includes BAcnet4J
+ * without being obliged to provide the source code for any proprietary components.
+ *
+ * See www.infiniteautomation.com for commercial license options.
+ *
+ * @author Matthew Lohbihler
+ */
+package com.serotonin.bacnet4j.npdu.pcap;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads captures in the classic libpcap format, in either byte order and with microsecond or nanosecond timestamps.
+ * The newer pcapng format is not supported; Wireshark can save captures in the classic format.
+ */
+public class PcapReader implements Closeable {
+    private final DataInputStream in;
+    private final boolean swapped;
+    private final boolean nanos;
+    private final int snaplen;
+    private final int linkType;
+    private final byte[] header = new byte[16];
+
+    public PcapReader(final InputStream in) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(in));
+
+        final int magic = this.in.readInt();
+        if (magic == PcapWriter.MAGIC || magic == PcapWriter.MAGIC_NANOS)
+            swapped = false;
+        else if (Integer.reverseBytes(magic) == PcapWriter.MAGIC
+                || Integer.reverseBytes(magic) == PcapWriter.MAGIC_NANOS)
+            swapped = true;
+        else
+            throw new IOException("Not a pcap capture, magic number is " + Integer.toHexString(magic));
+        nanos = magic == PcapWriter.MAGIC_NANOS || Integer.reverseBytes(magic) == PcapWriter.MAGIC_NANOS;
+
+        // Version, time zone and accuracy
+        this.in.skipBytes(12);
+        snaplen = readInt();
+        linkType = readInt() & 0xffff;
+    }
+
+    public int getLinkType() {
+        return linkType;
+    }
+
+    public int getSnaplen() {
+        return snaplen;
+    }
+
+    /**
+     * Returns the next frame, or null at the end of the capture.
+     */
+    public PcapRecord next() throws IOException {
+        final int read = in.read(header, 0, 1);
+        if (read < 0)
+            return null;
+        in.readFully(header, 1, 15);
+
+        final long seconds = getInt(0) & 0xffffffffL;
+        final long fraction = getInt(4) & 0xffffffffL;
+        final int included = getInt(8);
+        final int original = getInt(12);
+        if (included < 0 || included > Math.max(snaplen, PcapWriter.SNAPLEN))
+            throw new IOException("Invalid frame length " + included);
+
+        final byte[] data = new byte[included];
+        try {
+            in.readFully(data);
+        } catch (@SuppressWarnings("unused") final EOFException e) {
+            // The capture was cut off in the middle of a frame.
+            return null;
+        }
+
+        return new PcapRecord(seconds * 1_000_000_000L + (nanos ? fraction : fraction * 1000), original, data);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private int readInt() throws IOException {
+        final int i = in.readInt();
+        return swapped ? Integer.reverseBytes(i) : i;
+    }
+
+    private int getInt(final int pos) {
+        final int i = (header[pos] & 0xff) << 24 | (header[pos + 1] & 0xff) << 16 | (header[pos + 2] & 0xff) << 8
+                | header[pos + 3] & 0xff;
+        return swapped ? Integer.reverseBytes(i) : i;
+    }
+}
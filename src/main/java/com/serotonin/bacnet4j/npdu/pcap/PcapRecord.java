@@ -0,0 +1,72 @@
+/*
+ * ============================================================================
+ * GNU General Public License
+ * ============================================================================
+ *
+ * Copyright (C) 2015 Infinite Automation Software. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * When signing a commercial license with Infinite Automation Software,
+ * the following extension to GPL is made. A special exception to the GPL is
+ * included to allow you to distribute a combined work that includes BAcnet4J
+ * without being obliged to provide the source code for any proprietary components.
+ *
+ * See www.infiniteautomation.com for commercial license options.
+ *
+ * @author Matthew Lohbihler
+ */
+package com.serotonin.bacnet4j.npdu.pcap;
+
+/**
+ * A frame read from a capture.
+ */
+public class PcapRecord {
+    private final long timestampNanos;
+    private final int originalLength;
+    private final byte[] data;
+
+    public PcapRecord(final long timestampNanos, final int originalLength, final byte[] data) {
+        this.timestampNanos = timestampNanos;
+        this.originalLength = originalLength;
+        this.data = data;
+    }
+
+    /**
+     * The time at which the frame was captured, in nanoseconds since the epoch.
+     */
+    public long getTimestampNanos() {
+        return timestampNanos;
+    }
+
+    public int getOriginalLength() {
+        return originalLength;
+    }
+
+    /**
+     * The captured data, which is shorter than the original length if the frame was truncated.
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    public boolean isTruncated() {
+        return data.length < originalLength;
+    }
+
+    @Override
+    public String toString() {
+        return "PcapRecord [timestampNanos=" + timestampNanos + ", originalLength=" + originalLength + ", length="
+                + data.length + "]";
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * ============================================================================
+ * GNU General Public License
+ * ============================================================================
+ *
+ * Copyright (C) 2015 Infinite Automation Software. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * When signing a commercial license with Infinite Automation Software,
+ * the following extension to GPL is made. A special exception to the GPL is
+ * included to allow you to distribute a combined work that includes BAcnet4J
+ * without being obliged to provide the source code for any proprietary components.
+ *
+ * See www.infiniteautomation.com for commercial license options.
+ *
+ * @author Matthew Lohbihler
+ */
+package com.serotonin.bacnet4j.npdu.pcap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.serotonin.bacnet4j.LocalDevice;
+import com.serotonin.bacnet4j.npdu.Network;
+import com.serotonin.bacnet4j.npdu.NetworkTap;
+import com.serotonin.bacnet4j.transport.LatencyHistogram;
+import com.serotonin.bacnet4j.type.primitive.OctetString;
+
+/**
+ * Feeds a capture into the network of a local device as if the frames had just been received, so that captured
+ * traffic can be used as a regression benchmark. Frames that the captured device sent are not replayed, nor are those
+ * from excluded sources. The frames are replayed either at the pace at which they were captured, or as fast as
+ * possible.
+ *
+ * The latency of a replayed request is the time until the device sends its next reply to the requester's link
+ * address. The replies are really sent, so replays should be run on a network where this does no harm.
+ */
+public class PcapReplay {
+    private final LocalDevice localDevice;
+    private boolean realTime;
+    private final Set<OctetString> excludedSources = new HashSet<>();
+    private long drainTimeoutMillis = 5000;
+
+    public PcapReplay(final LocalDevice localDevice) {
+        this.localDevice = localDevice;
+    }
+
+    /**
+     * Replay at the pace of the capture. By default, frames are replayed as fast as possible.
+     */
+    public PcapReplay withRealTime(final boolean realTime) {
+        this.realTime = realTime;
+        return this;
+    }
+
+    /**
+     * Do not replay the frames from the link address, e.g. those of the captured device in a capture that does not
+     * tell which frames it sent.
+     */
+    public PcapReplay withExcludedSource(final OctetString link) {
+        excludedSources.add(link);
+        return this;
+    }
+
+    /**
+     * How long to wait for the replies to the last requests after the capture has been fed.
+     */
+    public PcapReplay withDrainTimeout(final long timeout, final TimeUnit unit) {
+        drainTimeoutMillis = unit.toMillis(timeout);
+        return this;
+    }
+
+    public Result replay(final InputStream in) throws IOException, InterruptedException {
+        final Network network = localDevice.getNetwork();
+        final Result result = new Result();
+        final ReplyTracker tracker = new ReplyTracker(result.latency);
+
+        try (PcapReader reader = new PcapReader(in)) {
+            if (reader.getLinkType() != network.getCaptureLinkType())
+                throw new IOException("Capture link type " + reader.getLinkType()
+                        + " does not match the network's link type " + network.getCaptureLinkType());
+
+            network.addTap(tracker);
+            try {
+                final long start = System.nanoTime();
+                long firstTimestamp = -1;
+
+                PcapRecord record;
+                while ((record = reader.next()) != null) {
+                    result.framesRead++;
+
+                    final CapturedFrame frame = record.isTruncated() ? null
+                            : network.fromCaptureFrame(record.getData());
+                    if (frame == null || frame.isSent() || excludedSources.contains(frame.getLink())) {
+                        result.framesSkipped++;
+                        continue;
+                    }
+
+                    if (realTime) {
+                        if (firstTimestamp == -1)
+                            firstTimestamp = record.getTimestampNanos();
+                        final long wait = record.getTimestampNanos() - firstTimestamp - (System.nanoTime() - start);
+                        if (wait > 0)
+                            TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+
+                    if (frame.isExpectsReply()) {
+                        tracker.requested(frame.getLink());
+                        result.requests++;
+                    }
+                    network.replay(frame.getLink(), frame.getData());
+                    result.framesReplayed++;
+                }
+
+                result.feedNanos = System.nanoTime() - start;
+                tracker.drain(drainTimeoutMillis);
+                result.durationNanos = System.nanoTime() - start;
+            } finally {
+                network.removeTap(tracker);
+            }
+        }
+
+        result.unanswered = tracker.outstanding();
+        return result;
+    }
+
+    /**
+     * Pairs the requests that were fed with the replies that the network sends to the same link address, in order.
+     */
+    static class ReplyTracker implements NetworkTap {
+        private final LatencyHistogram latency;
+        private final Map<OctetString, Queue<Long>> pending = new HashMap<>();
+        private int outstanding;
+
+        ReplyTracker(final LatencyHistogram latency) {
+            this.latency = latency;
+        }
+
+        synchronized void requested(final OctetString link) {
+            pending.computeIfAbsent(link, k -> new ArrayDeque<>()).add(System.nanoTime());
+            outstanding++;
+        }
+
+        @Override
+        public void sent(final Network network, final OctetString link, final byte[] data) {
+            // Only NPDUs are replies, and not the requests that the device makes itself.
+            final int npduOffset = network.getNpduOffset(data);
+            if (npduOffset < 0 || data.length < npduOffset + 2 || CapturedFrame.npduExpectsReply(data, npduOffset))
+                return;
+
+            synchronized (this) {
+                final Queue<Long> times = pending.get(link);
+                if (times == null)
+                    return;
+                final long requested = times.remove();
+                if (times.isEmpty())
+                    pending.remove(link);
+                outstanding--;
+                latency.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - requested));
+                if (outstanding == 0)
+                    notifyAll();
+            }
+        }
+
+        @Override
+        public void received(final Network network, final OctetString link, final byte[] data) {
+            // no op
+        }
+
+        synchronized void drain(final long timeoutMillis) throws InterruptedException {
+            final long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (outstanding > 0) {
+                final long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0)
+                    break;
+                wait(wait);
+            }
+        }
+
+        synchronized int outstanding() {
+            return outstanding;
+        }
+    }
+
+    public static class Result {
+        final LatencyHistogram latency = new LatencyHistogram();
+        long framesRead;
+        long framesReplayed;
+        long framesSkipped;
+        long requests;
+        long unanswered;
+        long feedNanos;
+        long durationNanos;
+
+        public long getFramesRead() {
+            return framesRead;
+        }
+
+        public long getFramesReplayed() {
+            return framesReplayed;
+        }
+
+        /**
+         * Frames that were sent by the captured device, excluded, truncated or not of a kind that can be replayed.
+         */
+        public long getFramesSkipped() {
+            return framesSkipped;
+        }
+
+        public long getRequests() {
+            return requests;
+        }
+
+        /**
+         * Requests to which no reply was seen before the drain timeout.
+         */
+        public long getUnanswered() {
+            return unanswered;
+        }
+
+        /**
+         * The time it took to feed the frames, without waiting for the last replies.
+         */
+        public long getFeedNanos() {
+            return feedNanos;
+        }
+
+        public long getDurationNanos() {
+            return durationNanos;
+        }
+
+        /**
+         * Replayed frames per second of feeding.
+         */
+        public double getThroughput() {
+            return feedNanos == 0 ? 0 : framesReplayed * 1e9 / feedNanos;
+        }
+
+        /**
+         * The latencies of the replies, in milliseconds.
+         */
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+
+        @Override
+        public String toString() {
+            return "Result [framesRead=" + framesRead + ", framesReplayed=" + framesReplayed + ", framesSkipped="
+                    + framesSkipped + ", requests=" + requests + ", unanswered=" + unanswered + ", throughput="
+                    + String.format("%.1f", getThroughput()) + "/s, latency avg=" + latency.getAverage() + "ms, p99="
+                    + latency.getPercentile(99) + "ms, max=" + latency.getMax() + "ms]";
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * ============================================================================
+ * GNU General Public License
+ * ============================================================================
+ *
+ * Copyright (C) 2015 Infinite Automation Software. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * When signing a commercial license with Infinite Automation Software,
+ * the following extension to GPL is made. A special exception to the GPL is
+ * included to allow you to distribute a combined work that includes BAcnet4J
+ * without being obliged to provide the source code for any proprietary components.
+ *
+ * See www.infiniteautomation.com for commercial license options.
+ *
+ * @author Matthew Lohbihler
+ */
+package com.serotonin.bacnet4j.npdu.pcap;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Instant;
+
+/**
+ * Writes frames to a stream in the classic libpcap format, which Wireshark and tcpdump read. Records have microsecond
+ * timestamps. Writes are synchronized so that frames from the send and receive threads of a network can share a
+ * writer.
+ */
+public class PcapWriter implements Closeable {
+    public static final int MAGIC = 0xa1b2c3d4;
+    public static final int MAGIC_NANOS = 0xa1b23c4d;
+    public static final int SNAPLEN = 65535;
+
+    /**
+     * Raw IPv4 packets, i.e. without a link layer header.
+     */
+    public static final int LINKTYPE_IPV4 = 228;
+    /**
+     * Raw IPv6 packets.
+     */
+    public static final int LINKTYPE_IPV6 = 229;
+    /**
+     * MS/TP frames, starting with the preamble.
+     */
+    public static final int LINKTYPE_BACNET_MS_TP = 165;
+    /**
+     * The first of the link types reserved for private use.
+     */
+    public static final int LINKTYPE_USER0 = 147;
+
+    private final OutputStream out;
+    private final int linkType;
+    private final byte[] header = new byte[16];
+    private long frames;
+
+    public PcapWriter(final OutputStream out, final int linkType) throws IOException {
+        this.out = new BufferedOutputStream(out);
+        this.linkType = linkType;
+
+        final byte[] fileHeader = new byte[24];
+        putInt(fileHeader, 0, MAGIC);
+        putShort(fileHeader, 4, 2); // Major version
+        putShort(fileHeader, 6, 4); // Minor version
+        // Time zone and accuracy are always 0.
+        putInt(fileHeader, 16, SNAPLEN);
+        putInt(fileHeader, 20, linkType);
+        this.out.write(fileHeader);
+    }
+
+    public int getLinkType() {
+        return linkType;
+    }
+
+    public synchronized long getFrames() {
+        return frames;
+    }
+
+    public void write(final Instant time, final byte[] frame) throws IOException {
+        write(time.getEpochSecond(), time.getNano() / 1000, frame);
+    }
+
+    public synchronized void write(final long seconds, final int micros, final byte[] frame) throws IOException {
+        final int included = Math.min(frame.length, SNAPLEN);
+        putInt(header, 0, (int) seconds);
+        putInt(header, 4, micros);
+        putInt(header, 8, included);
+        putInt(header, 12, frame.length);
+        out.write(header);
+        out.write(frame, 0, included);
+        frames++;
+    }
+
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+
+    // Big endian, which readers recognize from the magic number.
+    private static void putInt(final byte[] b, final int pos, final int value) {
+        b[pos] = (byte) (value >> 24);
+        b[pos + 1] = (byte) (value >> 16);
+        b[pos + 2] = (byte) (value >> 8);
+        b[pos + 3] = (byte) value;
+    }
+
+    private static void putShort(final byte[] b, final int pos, final int value) {
+        b[pos] = (byte) (value >> 8);
+        b[pos + 1] = (byte) value;
+    }
+}
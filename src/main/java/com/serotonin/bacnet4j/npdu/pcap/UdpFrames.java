@@ -0,0 +1,208 @@
+/*
+ * ============================================================================
+ * GNU General Public License
+ * ============================================================================
+ *
+ * Copyright (C) 2015 Infinite Automation Software. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * When signing a commercial license with Infinite Automation Software,
+ * the following extension to GPL is made. A special exception to the GPL is
+ * included to allow you to distribute a combined work that includes BAcnet4J
+ * without being obliged to provide the source code for any proprietary components.
+ *
+ * See www.infiniteautomation.com for commercial license options.
+ *
+ * @author Matthew Lohbihler
+ */
+package com.serotonin.bacnet4j.npdu.pcap;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Makes and parses the raw IPv4 and IPv6 UDP packets with which B/IP and B/IPv6 traffic is captured.
+ */
+public class UdpFrames {
+    private static final int PROTOCOL_UDP = 17;
+    private static final int TTL = 64;
+
+    /**
+     * Returns a raw IPv4 or IPv6 packet, depending on the addresses, that carries the payload from the source to the
+     * destination. The addresses must be of the same family.
+     */
+    public static byte[] toPacket(final InetSocketAddress source, final InetSocketAddress destination,
+            final byte[] payload) {
+        final byte[] src = source.getAddress().getAddress();
+        final byte[] dst = destination.getAddress().getAddress();
+        if (src.length != dst.length)
+            throw new IllegalArgumentException("Address families differ: " + source + ", " + destination);
+        if (src.length == 4)
+            return toIpv4Packet(src, source.getPort(), dst, destination.getPort(), payload);
+        return toIpv6Packet(src, source.getPort(), dst, destination.getPort(), payload);
+    }
+
+    public static byte[] toIpv4Packet(final byte[] src, final int srcPort, final byte[] dst, final int dstPort,
+            final byte[] payload) {
+        final int udpLength = 8 + payload.length;
+        final byte[] b = new byte[20 + udpLength];
+        b[0] = 0x45; // Version 4, 5 word header
+        putShort(b, 2, b.length);
+        b[6] = 0x40; // Don't fragment
+        b[8] = TTL;
+        b[9] = PROTOCOL_UDP;
+        System.arraycopy(src, 0, b, 12, 4);
+        System.arraycopy(dst, 0, b, 16, 4);
+        putShort(b, 10, ~sum(b, 0, 20, 0) & 0xffff);
+
+        // The UDP checksum is optional in IPv4, and left out.
+        putUdp(b, 20, srcPort, dstPort, payload);
+        return b;
+    }
+
+    public static byte[] toIpv6Packet(final byte[] src, final int srcPort, final byte[] dst, final int dstPort,
+            final byte[] payload) {
+        final int udpLength = 8 + payload.length;
+        final byte[] b = new byte[40 + udpLength];
+        b[0] = 0x60; // Version 6
+        putShort(b, 4, udpLength);
+        b[6] = PROTOCOL_UDP;
+        b[7] = TTL;
+        System.arraycopy(src, 0, b, 8, 16);
+        System.arraycopy(dst, 0, b, 24, 16);
+        putUdp(b, 40, srcPort, dstPort, payload);
+
+        // The UDP checksum is mandatory in IPv6. It covers a pseudo header of the addresses, length and protocol.
+        int sum = sum(b, 8, 32, 0);
+        sum += udpLength + PROTOCOL_UDP;
+        sum = sum(b, 40, udpLength, sum);
+        int checksum = ~sum & 0xffff;
+        if (checksum == 0)
+            checksum = 0xffff;
+        putShort(b, 46, checksum);
+        return b;
+    }
+
+    /**
+     * A UDP datagram parsed from a raw IP packet.
+     */
+    public static class Datagram {
+        private final InetSocketAddress source;
+        private final InetSocketAddress destination;
+        private final byte[] payload;
+
+        public Datagram(final InetSocketAddress source, final InetSocketAddress destination, final byte[] payload) {
+            this.source = source;
+            this.destination = destination;
+            this.payload = payload;
+        }
+
+        public InetSocketAddress getSource() {
+            return source;
+        }
+
+        public InetSocketAddress getDestination() {
+            return destination;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+    }
+
+    /**
+     * Parses a raw IPv4 or IPv6 packet, returning null if it is not an unfragmented UDP datagram. IPv6 extension
+     * headers are not followed.
+     */
+    public static Datagram parse(final byte[] packet) {
+        if (packet.length < 1)
+            return null;
+
+        final int version = (packet[0] & 0xff) >> 4;
+        final int addressLength;
+        final int srcOffset;
+        final int udpOffset;
+        if (version == 4) {
+            if (packet.length < 20 || packet[9] != PROTOCOL_UDP)
+                return null;
+            // More fragments flag or a fragment offset
+            if ((getShort(packet, 6) & 0x3fff) != 0)
+                return null;
+            addressLength = 4;
+            srcOffset = 12;
+            udpOffset = (packet[0] & 0xf) * 4;
+        } else if (version == 6) {
+            if (packet.length < 40 || packet[6] != PROTOCOL_UDP)
+                return null;
+            addressLength = 16;
+            srcOffset = 8;
+            udpOffset = 40;
+        } else
+            return null;
+
+        if (packet.length < udpOffset + 8)
+            return null;
+        final int udpLength = getShort(packet, udpOffset + 4);
+        if (udpLength < 8 || packet.length < udpOffset + udpLength)
+            return null;
+
+        final byte[] src = new byte[addressLength];
+        final byte[] dst = new byte[addressLength];
+        System.arraycopy(packet, srcOffset, src, 0, addressLength);
+        System.arraycopy(packet, srcOffset + addressLength, dst, 0, addressLength);
+        final byte[] payload = new byte[udpLength - 8];
+        System.arraycopy(packet, udpOffset + 8, payload, 0, payload.length);
+
+        try {
+            return new Datagram(new InetSocketAddress(InetAddress.getByAddress(src), getShort(packet, udpOffset)),
+                    new InetSocketAddress(InetAddress.getByAddress(dst), getShort(packet, udpOffset + 2)), payload);
+        } catch (@SuppressWarnings("unused") final UnknownHostException e) {
+            // Cannot happen with addresses of a valid length.
+            return null;
+        }
+    }
+
+    private static void putUdp(final byte[] b, final int pos, final int srcPort, final int dstPort,
+            final byte[] payload) {
+        putShort(b, pos, srcPort);
+        putShort(b, pos + 2, dstPort);
+        putShort(b, pos + 4, 8 + payload.length);
+        System.arraycopy(payload, 0, b, pos + 8, payload.length);
+    }
+
+    /**
+     * Adds the 16 bit words of the range to the sum, folding the carries.
+     */
+    private static int sum(final byte[] b, final int pos, final int length, final int start) {
+        long sum = start;
+        for (int i = 0; i < length; i += 2) {
+            final int hi = b[pos + i] & 0xff;
+            final int lo = i + 1 < length ? b[pos + i + 1] & 0xff : 0;
+            sum += hi << 8 | lo;
+        }
+        while (sum >> 16 != 0)
+            sum = (sum & 0xffff) + (sum >> 16);
+        return (int) sum;
+    }
+
+    private static void putShort(final byte[] b, final int pos, final int value) {
+        b[pos] = (byte) (value >> 8);
+        b[pos + 1] = (byte) value;
+    }
+
+    private static int getShort(final byte[] b, final int pos) {
+        return (b[pos] & 0xff) << 8 | b[pos + 1] & 0xff;
+    }
+}
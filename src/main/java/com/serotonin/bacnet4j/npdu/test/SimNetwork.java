@@ -0,0 +1,162 @@
+/*
+ * ============================================================================
+ * GNU General Public License
+ * ============================================================================
+ *
+ * Copyright (C) 2015 Infinite Automation Software. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * When signing a commercial license with Infinite Automation Software,
+ * the following extension to GPL is made. A special exception to the GPL is
+ * included to allow you to distribute a combined work that includes BAcnet4J
+ * without being obliged to provide the source code for any proprietary components.
+ *
+ * See www.infiniteautomation.com for commercial license options.
+ *
+ * @author Matthew Lohbihler
+ */
+package com.serotonin.bacnet4j.npdu.test;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import com.serotonin.bacnet4j.apdu.APDU;
+import com.serotonin.bacnet4j.enums.MaxApduLength;
+import com.serotonin.bacnet4j.exception.BACnetException;
+import com.serotonin.bacnet4j.npdu.MessageValidationException;
+import com.serotonin.bacnet4j.npdu.NPDU;
+import com.serotonin.bacnet4j.npdu.Network;
+import com.serotonin.bacnet4j.npdu.NetworkIdentifier;
+import com.serotonin.bacnet4j.transport.Transport;
+import com.serotonin.bacnet4j.type.constructed.Address;
+import com.serotonin.bacnet4j.type.primitive.OctetString;
+import com.serotonin.bacnet4j.util.BACnetUtils;
+import com.serotonin.bacnet4j.util.sero.ByteQueue;
+
+/**
+ * A network for load simulations, which attaches a local device to a SimNetworkMap. Sending only schedules the message
+ * in the map, and the map's dispatcher delivers it, so a network has no thread of its own. Unlike the TestNetwork,
+ * the transport's timeouts and retries are left as they are, so that they can be exercised by the loss model.
+ *
+ * MACs are 3 bytes long, so that millions of devices can share a segment.
+ */
+public class SimNetwork extends Network {
+    public static final OctetString BROADCAST = new OctetString(new byte[0]);
+
+    private final SimNetworkMap networkMap;
+    private final OctetString mac;
+    private final Address address;
+
+    // When the link is next free to send, in the map's clock. Guarded by the map's lock.
+    long linkFreeAt;
+
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+
+    public SimNetwork(final SimNetworkMap map, final int id) {
+        this(map, id, Address.LOCAL_NETWORK);
+    }
+
+    /**
+     * Creates a simulated network on the segment of the given network number.
+     */
+    public SimNetwork(final SimNetworkMap map, final int id, final int localNetworkNumber) {
+        this(map, BACnetUtils.toVirtualAddressBytes(id), localNetworkNumber);
+    }
+
+    public SimNetwork(final SimNetworkMap map, final OctetString mac, final int localNetworkNumber) {
+        super(localNetworkNumber);
+        this.networkMap = map;
+        this.mac = mac;
+        address = new Address(localNetworkNumber, mac);
+    }
+
+    public OctetString getMac() {
+        return mac;
+    }
+
+    @Override
+    public NetworkIdentifier getNetworkIdentifier() {
+        return new TestNetworkIdentifier();
+    }
+
+    @Override
+    public MaxApduLength getMaxApduLength() {
+        return MaxApduLength.UP_TO_1476;
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public void initialize(final Transport transport) throws Exception {
+        super.initialize(transport);
+        networkMap.add(this);
+    }
+
+    @Override
+    public void terminate() {
+        networkMap.remove(this);
+    }
+
+    @Override
+    protected OctetString getBroadcastMAC() {
+        return BROADCAST;
+    }
+
+    @Override
+    public Address[] getAllLocalAddresses() {
+        return new Address[] { address };
+    }
+
+    @Override
+    public Address getLoopbackAddress() {
+        return address;
+    }
+
+    @Override
+    public Address getSourceAddress(final APDU apdu) {
+        return address;
+    }
+
+    @Override
+    public void sendNPDU(final Address recipient, final OctetString router, final ByteQueue npdu,
+            final boolean broadcast, final boolean expectsReply) throws BACnetException {
+        final byte[] data = npdu.popAll();
+        final OctetString dest = getDestination(recipient, router);
+        tapSent(dest, data);
+        bytesOut.add(data.length);
+        networkMap.send(this, dest, data);
+    }
+
+    /**
+     * Called by the map's dispatcher. The data may be shared with other recipients of a broadcast, so it is only read.
+     */
+    void receive(final OctetString from, final byte[] data) {
+        bytesIn.add(data.length);
+        handleIncomingData(ByteQueue.wrap(data, 0, data.length), from);
+    }
+
+    @Override
+    protected NPDU handleIncomingDataImpl(final ByteQueue queue, final OctetString linkService)
+            throws MessageValidationException {
+        return parseNpduData(queue, linkService);
+    }
+}
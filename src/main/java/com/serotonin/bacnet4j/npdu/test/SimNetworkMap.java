@@ -0,0 +1,395 @@
+/*
+ * ============================================================================
+ * GNU General Public License
+ * ============================================================================
+ *
+ * Copyright (C) 2015 Infinite Automation Software. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * When signing a commercial license with Infinite Automation Software,
+ * the following extension to GPL is made. A special exception to the GPL is
+ * included to allow you to distribute a combined work that includes BAcnet4J
+ * without being obliged to provide the source code for any proprietary components.
+ *
+ * See www.infiniteautomation.com for commercial license options.
+ *
+ * @author Matthew Lohbihler
+ */
+package com.serotonin.bacnet4j.npdu.test;
+
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.serotonin.bacnet4j.type.primitive.OctetString;
+
+/**
+ * The medium that connects SimNetworks. Unlike the TestNetworkMap, messages are not delivered by a thread per
+ * network, but are scheduled in virtual time: each message is given a delivery time from the latency and bandwidth
+ * models, and a single dispatcher thread delivers the messages as the clock reaches their times. No thread sleeps
+ * for a message, so that thousands of simulated devices can share one JVM. With a clock that is advanced manually,
+ * such as a WarpClock, the dispatcher follows the clock, so the simulation can run faster than real time.
+ *
+ * Networks are grouped into segments by their local network number, so a broadcast is only fanned out to the members
+ * of the sender's segment. As on a real link, a global broadcast also only reaches the sender's segment; routers
+ * forward it to the others.
+ *
+ * The models are configured before networks are added, e.g.
+ *
+ * <pre>
+ * new SimNetworkMap(clock).withLatency(2, 20).withLossRate(0.001).withBandwidth(125000);
+ * </pre>
+ */
+public class SimNetworkMap {
+    static final Logger LOG = LoggerFactory.getLogger(SimNetworkMap.class);
+
+    // The longest the dispatcher waits before checking the clock again, in case it was advanced.
+    private static final long MAX_WAIT_MILLIS = 10;
+
+    private final Clock clock;
+    private final Map<Integer, Segment> segments = new ConcurrentHashMap<>();
+
+    // Models
+    private long minLatency;
+    private long maxLatency;
+    private double lossRate;
+    private long bytesPerSecond;
+
+    // Deliveries are ordered by time, and then by the order in which they were sent. They, the random generator and
+    // the link state of the senders are guarded by the lock.
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Object deliveryLock = new Object();
+    private final Condition available = lock.newCondition();
+    private final PriorityQueue<Delivery> deliveries = new PriorityQueue<>();
+    private Random random = new Random();
+    private long sequence;
+
+    private Thread dispatcher;
+    private volatile boolean running;
+    private int networkCount;
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    public SimNetworkMap() {
+        this(Clock.systemUTC());
+    }
+
+    public SimNetworkMap(final Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Each message is delayed by a time chosen uniformly between min and max millis. Defaults to 0.
+     */
+    public SimNetworkMap withLatency(final long min, final long max) {
+        if (min < 0 || max < min)
+            throw new IllegalArgumentException("Invalid latency range: " + min + " to " + max);
+        minLatency = min;
+        maxLatency = max;
+        return this;
+    }
+
+    /**
+     * The probability with which each delivery of a message to a network is lost. Defaults to 0.
+     */
+    public SimNetworkMap withLossRate(final double lossRate) {
+        if (lossRate < 0 || lossRate > 1)
+            throw new IllegalArgumentException("lossRate must be between 0 and 1");
+        this.lossRate = lossRate;
+        return this;
+    }
+
+    /**
+     * The rate at which each network can send. A network's messages queue behind each other on its link, and a
+     * message starts its latency once it has been sent. 0, the default, is unlimited.
+     */
+    public SimNetworkMap withBandwidth(final long bytesPerSecond) {
+        if (bytesPerSecond < 0)
+            throw new IllegalArgumentException("bytesPerSecond cannot be negative");
+        this.bytesPerSecond = bytesPerSecond;
+        return this;
+    }
+
+    /**
+     * Seeds the random generator of the latency and loss models, so that a simulation can be repeated.
+     */
+    public SimNetworkMap withSeed(final long seed) {
+        random = new Random(seed);
+        return this;
+    }
+
+    public Clock getClock() {
+        return clock;
+    }
+
+    public long getSent() {
+        return sent.sum();
+    }
+
+    public long getDelivered() {
+        return delivered.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Returns the number of messages that have not yet been delivered.
+     */
+    public int getPending() {
+        lock.lock();
+        try {
+            return deliveries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void add(final SimNetwork network) {
+        segments.computeIfAbsent(network.getLocalNetworkNumber(), k -> new Segment()).add(network);
+
+        lock.lock();
+        try {
+            // The dispatcher runs while there are networks.
+            if (networkCount++ == 0) {
+                running = true;
+                dispatcher = new Thread(this::dispatch, "BACnet4J simulated network dispatcher");
+                dispatcher.setDaemon(true);
+                dispatcher.start();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void remove(final SimNetwork network) {
+        final Segment segment = segments.get(network.getLocalNetworkNumber());
+        if (segment == null || !segment.remove(network))
+            throw new IllegalStateException("Network map does not contain " + network.getMac());
+
+        Thread toJoin = null;
+        lock.lock();
+        try {
+            if (--networkCount == 0) {
+                running = false;
+                deliveries.clear();
+                available.signalAll();
+                toJoin = dispatcher;
+                dispatcher = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (toJoin != null && toJoin != Thread.currentThread()) {
+            try {
+                toJoin.join();
+            } catch (@SuppressWarnings("unused") final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Schedules the delivery of the data to the destination, or to the sender's segment if the destination is the
+     * broadcast MAC.
+     */
+    void send(final SimNetwork from, final OctetString destination, final byte[] data) {
+        sent.increment();
+
+        final Segment segment = segments.get(from.getLocalNetworkNumber());
+        final Object recipients;
+        if (segment == null) {
+            // The sender was never added.
+            dropped.increment();
+            return;
+        }
+        if (SimNetwork.BROADCAST.equals(destination))
+            recipients = segment.members;
+        else {
+            recipients = segment.byMac.get(destination);
+            if (recipients == null) {
+                // No such device. The message goes nowhere, as it would on a real link.
+                dropped.increment();
+                return;
+            }
+        }
+
+        lock.lock();
+        try {
+            final long now = clock.millis();
+
+            long time = now;
+            if (bytesPerSecond > 0) {
+                // Wait for the link to be free, and then for the message to be sent.
+                time = Math.max(now, from.linkFreeAt) + data.length * 1000L / bytesPerSecond;
+                from.linkFreeAt = time;
+            }
+
+            if (maxLatency > minLatency)
+                time += minLatency + (long) (random.nextDouble() * (maxLatency - minLatency + 1));
+            else
+                time += minLatency;
+
+            final Delivery d = new Delivery(time, sequence++, from, recipients, data);
+            deliveries.add(d);
+            if (deliveries.peek() == d)
+                available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Delivers the messages whose time has come. This is done by the dispatcher thread, but may also be called to
+     * deliver messages immediately after advancing a manual clock.
+     *
+     * @return the number of deliveries that were made
+     */
+    public int deliverDue() {
+        // Deliveries are made by one thread at a time, so that they are made in order.
+        synchronized (deliveryLock) {
+            return deliverDueImpl();
+        }
+    }
+
+    private int deliverDueImpl() {
+        final List<Delivery> due = new ArrayList<>();
+        final List<SimNetwork> recipients = new ArrayList<>();
+
+        lock.lock();
+        try {
+            final long now = clock.millis();
+            while (!deliveries.isEmpty() && deliveries.peek().time <= now) {
+                final Delivery d = deliveries.poll();
+                due.add(d);
+                // Decide the losses here, where the random generator is guarded.
+                if (d.recipients instanceof SimNetwork)
+                    addUnlessLost((SimNetwork) d.recipients, recipients);
+                else {
+                    for (final SimNetwork network : (SimNetwork[]) d.recipients)
+                        addUnlessLost(network, recipients);
+                }
+                // Mark the end of the delivery's recipients.
+                recipients.add(null);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        int count = 0;
+        int index = 0;
+        for (final Delivery d : due) {
+            SimNetwork network;
+            while ((network = recipients.get(index++)) != null) {
+                network.receive(d.from.getMac(), d.data);
+                count++;
+            }
+        }
+        delivered.add(count);
+        return count;
+    }
+
+    private void addUnlessLost(final SimNetwork network, final List<SimNetwork> recipients) {
+        if (lossRate > 0 && random.nextDouble() < lossRate)
+            dropped.increment();
+        else
+            recipients.add(network);
+    }
+
+    private void dispatch() {
+        while (running) {
+            lock.lock();
+            try {
+                final Delivery next = deliveries.peek();
+                final long wait = next == null ? MAX_WAIT_MILLIS : next.time - clock.millis();
+                if (wait > 0) {
+                    available.await(Math.min(wait, MAX_WAIT_MILLIS), TimeUnit.MILLISECONDS);
+                    continue;
+                }
+            } catch (@SuppressWarnings("unused") final InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                deliverDue();
+            } catch (final Exception e) {
+                LOG.error("Error delivering simulated messages", e);
+            }
+        }
+    }
+
+    /**
+     * The networks with the same local network number.
+     */
+    static class Segment {
+        final Map<OctetString, SimNetwork> byMac = new ConcurrentHashMap<>();
+        // A snapshot of the members, which broadcasts are fanned out to.
+        volatile SimNetwork[] members = new SimNetwork[0];
+
+        synchronized void add(final SimNetwork network) {
+            if (byMac.putIfAbsent(network.getMac(), network) != null)
+                throw new IllegalStateException("Network map already contains " + network.getMac());
+            members = byMac.values().toArray(new SimNetwork[0]);
+        }
+
+        synchronized boolean remove(final SimNetwork network) {
+            if (!byMac.remove(network.getMac(), network))
+                return false;
+            members = byMac.values().toArray(new SimNetwork[0]);
+            return true;
+        }
+    }
+
+    static class Delivery implements Comparable<Delivery> {
+        final long time;
+        final long sequence;
+        final SimNetwork from;
+        // Either a SimNetwork, or an array of them for a broadcast.
+        final Object recipients;
+        final byte[] data;
+
+        Delivery(final long time, final long sequence, final SimNetwork from, final Object recipients,
+                final byte[] data) {
+            this.time = time;
+            this.sequence = sequence;
+            this.from = from;
+            this.recipients = recipients;
+            this.data = data;
+        }
+
+        @Override
+        public int compareTo(final Delivery that) {
+            if (time != that.time)
+                return Long.compare(time, that.time);
+            return Long.compare(sequence, that.sequence);
+        }
+    }
+}
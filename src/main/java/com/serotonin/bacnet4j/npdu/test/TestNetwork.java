@@ -79,7 +79,15 @@ public class TestNetwork extends Network implements Runnable {
     }
 
     public TestNetwork(final TestNetworkMap map, final Address address, final int sendDelay) {
-        super(0);
+        this(map, address, sendDelay, 0);
+    }
+
+    /**
+     * Creates a test network that knows its network number, as is needed for router ports.
+     */
+    public TestNetwork(final TestNetworkMap map, final Address address, final int sendDelay,
+            final int localNetworkNumber) {
+        super(localNetworkNumber);
         this.networkMap = map;
         this.address = address;
         this.sendDelay = sendDelay;
@@ -165,8 +173,10 @@ public class TestNetwork extends Network implements Runnable {
     public void sendNPDU(final Address recipient, final OctetString router, final ByteQueue npdu,
             final boolean broadcast, final boolean expectsReply) throws BACnetException {
         final SendData d = new SendData();
-        d.recipient = recipient;
+        // Messages for remote networks go to the router.
+        d.recipient = router == null ? recipient : new Address(router);
         d.data = npdu.popAll();
+        tapSent(d.recipient.getMacAddress(), d.data);
 
         queue.add(d);
         ThreadUtils.notifySync(queue);
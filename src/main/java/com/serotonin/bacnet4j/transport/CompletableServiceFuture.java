@@ -0,0 +1,88 @@
+/*
+ * ============================================================================
+ * GNU General Public License
+ * ============================================================================
+ *
+ * Copyright (C) 2015 Infinite Automation Software. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * When signing a commercial license with Infinite Automation Software,
+ * the following extension to GPL is made. A special exception to the GPL is
+ * included to allow you to distribute a combined work that includes BAcnet4J
+ * without being obliged to provide the source code for any proprietary components.
+ *
+ * See www.infiniteautomation.com for commercial license options.
+ *
+ * @author Matthew Lohbihler
+ */
+package com.serotonin.bacnet4j.transport;
+
+import java.util.concurrent.CompletableFuture;
+
+import com.serotonin.bacnet4j.ResponseConsumer;
+import com.serotonin.bacnet4j.apdu.AckAPDU;
+import com.serotonin.bacnet4j.exception.BACnetException;
+import com.serotonin.bacnet4j.service.acknowledgement.AcknowledgementService;
+
+/**
+ * A non-blocking alternative to the ServiceFuture. The future completes in the transport thread when the response
+ * arrives, so dependent stages should either be quick or use one of the *Async variants with an executor. Failures
+ * complete the future exceptionally with the same exception types that ServiceFuture.get() throws.
+ *
+ * Cancelling the future before it completes withdraws the request from the transport: if it has not been sent yet it
+ * is dropped, and otherwise it is removed from the unacked messages so that its invoke id is released and any late
+ * response is ignored.
+ *
+ * @param <T>
+ *            the type of the acknowledgement expected
+ */
+public class CompletableServiceFuture<T extends AcknowledgementService> extends CompletableFuture<T>
+        implements ResponseConsumer {
+    private volatile Runnable cancelHandler;
+
+    void setCancelHandler(final Runnable cancelHandler) {
+        this.cancelHandler = cancelHandler;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void success(final AcknowledgementService ack) {
+        complete((T) ack);
+    }
+
+    @Override
+    public void fail(final AckAPDU ack) {
+        final BACnetException e = ServiceFutureImpl.failure(ack);
+        if (e == null)
+            complete(null);
+        else
+            completeExceptionally(e);
+    }
+
+    @Override
+    public void ex(final BACnetException e) {
+        completeExceptionally(e);
+    }
+
+    @Override
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+        final boolean cancelled = super.cancel(mayInterruptIfRunning);
+        if (cancelled) {
+            final Runnable handler = cancelHandler;
+            if (handler != null)
+                handler.run();
+        }
+        return cancelled;
+    }
+}
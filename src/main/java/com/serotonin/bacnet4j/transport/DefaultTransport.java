@@ -28,13 +28,24 @@
  */
 package com.serotonin.bacnet4j.transport;
 
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
 
+import org.apache.commons.lang3.mutable.MutableBoolean;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -60,10 +71,13 @@ import com.serotonin.bacnet4j.exception.BACnetRejectException;
 import com.serotonin.bacnet4j.exception.BACnetTimeoutException;
 import com.serotonin.bacnet4j.exception.CommunicationDisabledException;
 import com.serotonin.bacnet4j.exception.NotImplementedException;
+import com.serotonin.bacnet4j.exception.RequestQueueFullException;
 import com.serotonin.bacnet4j.exception.ServiceTooBigException;
+import com.serotonin.bacnet4j.npdu.NPCI.NetworkPriority;
 import com.serotonin.bacnet4j.npdu.NPDU;
 import com.serotonin.bacnet4j.npdu.Network;
 import com.serotonin.bacnet4j.npdu.NetworkIdentifier;
+import com.serotonin.bacnet4j.service.Service;
 import com.serotonin.bacnet4j.service.acknowledgement.AcknowledgementService;
 import com.serotonin.bacnet4j.service.confirmed.ConfirmedRequestService;
 import com.serotonin.bacnet4j.service.confirmed.DeviceCommunicationControlRequest.EnableDisable;
@@ -82,33 +96,80 @@ import com.serotonin.bacnet4j.util.sero.ByteQueue;
 import com.serotonin.bacnet4j.util.sero.ThreadUtils;
 
 /**
+ * The default transport implementation. Processing of messages is done by one or more workers, each of which runs in
+ * its own thread. Work is striped over the workers by the address of the peer, so that all messages to and from a
+ * given peer are always handled by the same worker and so are kept in order. By default a single worker is used.
+ *
  * @author Matthew
  */
 public class DefaultTransport implements Transport, Runnable {
     static final Logger LOG = LoggerFactory.getLogger(DefaultTransport.class);
     static final MaxSegments MAX_SEGMENTS = MaxSegments.MORE_THAN_64;
+    public static final int DEFAULT_WORKER_COUNT = 1;
+    public static final int DEFAULT_MIN_TIMEOUT = 500;
+    public static final int DEFAULT_MAX_TIMEOUT = 30000;
+    public static final long DEFAULT_REASSEMBLY_BUDGET = 0;
+
+    public static final int DEFAULT_ROUTER_DISCOVERY_TIMEOUT = 3000;
+    // How long a router that reported itself busy is left alone, per 6.6.3.6.
+    static final long ROUTER_BUSY_TIME = 30000;
+    // A known router's last heard time is only refreshed when it is older than the max age divided by this.
+    static final int ROUTER_REFRESH_DIVISOR = 4;
+
+    // The longest that a worker will pause when the clock is not the system clock.
+    static final long MAX_POLL_PAUSE = 50;
 
     final Map<Integer, OctetString> networkRouters = new ConcurrentHashMap<>();
+    // When each router was last heard from, by network number.
+    final Map<Integer, Long> networkRoutersSeen = new ConcurrentHashMap<>();
+    // When each network whose router is busy can be sent to again, by network number.
+    final Map<Integer, Long> busyNetworks = new ConcurrentHashMap<>();
 
     // Configuration
     private LocalDevice localDevice;
     final Network network;
     int timeout = DEFAULT_TIMEOUT;
+    boolean adaptiveTimeouts;
+    int minTimeout = DEFAULT_MIN_TIMEOUT;
+    int maxTimeout = DEFAULT_MAX_TIMEOUT;
     int retries = DEFAULT_RETRIES;
     int segTimeout = DEFAULT_SEG_TIMEOUT;
     int segWindow = DEFAULT_SEG_WINDOW;
+    boolean adaptiveSegWindow;
+    int workerCount = DEFAULT_WORKER_COUNT;
+    int maxRequestsInFlight;
+    int maxRequestsQueued;
+    int maxIncomingQueued;
+    int routerDiscoveryTimeout = DEFAULT_ROUTER_DISCOVERY_TIMEOUT;
+    long routerMaxAge;
+    boolean abortShedRequests = true;
+    Executor handlerExecutor;
+    volatile ReadCoalescer readCoalescer;
+    int sendStackSampling;
+    volatile RequestTracer requestTracer;
     ServicesSupported servicesSupported;
 
-    // Message queues
-    private final Queue<Outgoing> outgoing = new ConcurrentLinkedQueue<>();
-    private final Queue<NPDU> incoming = new ConcurrentLinkedQueue<>();
-    private final Queue<DelayedOutgoing> delayedOutgoing = new LinkedList<>();
+    // Buffers for reassembling incoming segmented messages.
+    final ReassemblyBufferPool reassemblyBuffers = new ReassemblyBufferPool(DEFAULT_REASSEMBLY_BUDGET);
+
+    // Round trip times to peers, for adaptive timeouts.
+    final RttEstimator rttEstimator = new RttEstimator();
+
+    // Segment window sizes for each peer, for adaptive segment windows.
+    final SegmentWindowController sendWindows = new SegmentWindowController(DEFAULT_SEG_WINDOW);
+    final SegmentWindowController receiveWindows = new SegmentWindowController(DEFAULT_SEG_WINDOW);
+
+    // Metrics
+    final QueueDelayStats outgoingDelays = new QueueDelayStats();
+    final QueueDelayStats incomingDelays = new QueueDelayStats();
+    volatile TransportMetrics metrics = new TransportStats();
+    final LongAdder shedUnconfirmed = new LongAdder();
+    final LongAdder shedConfirmed = new LongAdder();
+    final LongAdder shedNetworkMessages = new LongAdder();
 
     // Processing
-    final UnackedMessages unackedMessages = new UnackedMessages();
-    private Thread thread;
+    private volatile Worker[] workers;
     private volatile boolean running = true;
-    private final Object pauseLock = new Object();
 
     public DefaultTransport(final Network network) {
         this.network = network;
@@ -133,6 +194,53 @@ public class DefaultTransport implements Transport, Runnable {
         return timeout;
     }
 
+    /**
+     * Sets whether the timeouts of requests are derived from the measured round trip times to their peers rather than
+     * being fixed. Until a round trip has been measured for a peer, the configured timeout is used. Timed out requests
+     * are retried with double the previous timeout. The timeouts are kept within the minimum and maximum timeouts.
+     * Off by default.
+     */
+    public void setAdaptiveTimeouts(final boolean adaptiveTimeouts) {
+        this.adaptiveTimeouts = adaptiveTimeouts;
+    }
+
+    public boolean isAdaptiveTimeouts() {
+        return adaptiveTimeouts;
+    }
+
+    public void setMinTimeout(final int minTimeout) {
+        this.minTimeout = minTimeout;
+    }
+
+    public int getMinTimeout() {
+        return minTimeout;
+    }
+
+    public void setMaxTimeout(final int maxTimeout) {
+        this.maxTimeout = maxTimeout;
+    }
+
+    public int getMaxTimeout() {
+        return maxTimeout;
+    }
+
+    /**
+     * Returns the timeout that a new request to the given peer would have.
+     */
+    public int getTimeout(final Address address) {
+        if (!adaptiveTimeouts)
+            return timeout;
+        return rttEstimator.getTimeout(address, timeout, minTimeout, maxTimeout);
+    }
+
+    /**
+     * Returns the smoothed round trip time to the given peer in ms, or -1 if it has not been measured.
+     */
+    public long getRoundTripTime(final Address address) {
+        final RttEstimator.Rtt rtt = rttEstimator.get(address);
+        return rtt == null ? -1 : rtt.getSmoothedRtt();
+    }
+
     @Override
     public void setSegTimeout(final int segTimeout) {
         this.segTimeout = segTimeout;
@@ -156,6 +264,8 @@ public class DefaultTransport implements Transport, Runnable {
     @Override
     public void setSegWindow(final int segWindow) {
         this.segWindow = segWindow;
+        sendWindows.setInitialSize(segWindow);
+        receiveWindows.setInitialSize(segWindow);
     }
 
     @Override
@@ -163,6 +273,348 @@ public class DefaultTransport implements Transport, Runnable {
         return segWindow;
     }
 
+    /**
+     * Sets whether the segment windows used with each peer are sized from how segmented transfers with the peer have
+     * gone rather than being fixed. Windows start at the configured segment window, grow by one segment for each
+     * window that is transferred cleanly, and are halved when segments are lost. Off by default.
+     */
+    public void setAdaptiveSegWindow(final boolean adaptiveSegWindow) {
+        this.adaptiveSegWindow = adaptiveSegWindow;
+    }
+
+    public boolean isAdaptiveSegWindow() {
+        return adaptiveSegWindow;
+    }
+
+    /**
+     * Returns the window size that would be proposed for a new segmented message to the given peer.
+     */
+    public int getSendSegWindow(final Address address) {
+        if (!adaptiveSegWindow)
+            return segWindow;
+        return sendWindows.getWindowSize(address);
+    }
+
+    /**
+     * Returns the largest window size that would be accepted for a new segmented message from the given peer.
+     */
+    public int getReceiveSegWindow(final Address address) {
+        if (!adaptiveSegWindow)
+            return SegmentWindowController.MAX_WINDOW_SIZE;
+        return receiveWindows.getWindowSize(address);
+    }
+
+    /**
+     * Sets the number of workers that process messages. Each worker has its own thread, and peers are assigned to
+     * workers by their address. Must be set before the transport is initialized.
+     *
+     * With more than one worker, the requests of different peers are handled at the same time, so the local device's
+     * objects and any listeners must be thread safe, as they already are for changes made by the application and
+     * timers. Objects written by custom service handlers that are not thread safe need a single worker.
+     */
+    public void setWorkerCount(final int workerCount) {
+        if (workers != null)
+            throw new IllegalStateException("Worker count needs to be set before the transport is initialized");
+        if (workerCount < 1)
+            throw new IllegalArgumentException("workerCount must be at least 1");
+        this.workerCount = workerCount;
+    }
+
+    public int getWorkerCount() {
+        return workerCount;
+    }
+
+    /**
+     * Sets the maximum number of confirmed requests that can be pending with a single peer at once. Requests beyond
+     * this number wait in a per-peer queue until earlier requests complete. A value of 0 - the default - means no
+     * limit.
+     */
+    public void setMaxRequestsInFlight(final int maxRequestsInFlight) {
+        this.maxRequestsInFlight = maxRequestsInFlight;
+    }
+
+    public int getMaxRequestsInFlight() {
+        return maxRequestsInFlight;
+    }
+
+    /**
+     * Sets the maximum number of confirmed requests that can wait for a single peer when the in-flight limit has been
+     * reached. Requests beyond this number are failed with a RequestQueueFullException. A value of 0 - the default -
+     * means no limit.
+     */
+    public void setMaxRequestsQueued(final int maxRequestsQueued) {
+        this.maxRequestsQueued = maxRequestsQueued;
+    }
+
+    public int getMaxRequestsQueued() {
+        return maxRequestsQueued;
+    }
+
+    /**
+     * Sets how long messages to a remote network whose router is not known wait for a router to answer the
+     * Who-Is-Router-To-Network that is sent for it. The messages fail when no router answers in time.
+     */
+    public void setRouterDiscoveryTimeout(final int routerDiscoveryTimeout) {
+        this.routerDiscoveryTimeout = routerDiscoveryTimeout;
+    }
+
+    public int getRouterDiscoveryTimeout() {
+        return routerDiscoveryTimeout;
+    }
+
+    /**
+     * Sets how long in ms a network router is remembered after it was last heard from. The router of a network is
+     * rediscovered when messages are sent to the network after that. A value of 0 - the default - remembers routers
+     * until they are rejected.
+     */
+    public void setRouterMaxAge(final long routerMaxAge) {
+        this.routerMaxAge = routerMaxAge;
+    }
+
+    public long getRouterMaxAge() {
+        return routerMaxAge;
+    }
+
+    /**
+     * Returns true if the router of the given network has said that it is busy, so that messages to the network are
+     * being held back.
+     */
+    public boolean isNetworkBusy(final int networkNumber) {
+        final Long until = busyNetworks.get(networkNumber);
+        if (until == null)
+            return false;
+        if (until > localDevice.getClock().millis())
+            return true;
+        busyNetworks.remove(networkNumber, until);
+        return false;
+    }
+
+    /**
+     * Sets the maximum number of received messages that can wait to be processed by a worker. When a worker falls
+     * behind, messages are shed in order of how little is lost by dropping them. Unconfirmed requests are shed once
+     * the queue is half full. Confirmed requests and network messages are shed once it is full. Acknowledgements are
+     * never shed, so that the transactions of this device's own requests can finish. A value of 0 - the default -
+     * means no limit.
+     */
+    public void setMaxIncomingQueued(final int maxIncomingQueued) {
+        this.maxIncomingQueued = maxIncomingQueued;
+    }
+
+    public int getMaxIncomingQueued() {
+        return maxIncomingQueued;
+    }
+
+    /**
+     * Sets whether confirmed requests that are shed are answered with an Abort for out-of-resources, so that the client
+     * does not wait for a timeout. Otherwise they are dropped without a reply. True by default.
+     */
+    public void setAbortShedRequests(final boolean abortShedRequests) {
+        this.abortShedRequests = abortShedRequests;
+    }
+
+    public boolean isAbortShedRequests() {
+        return abortShedRequests;
+    }
+
+    /**
+     * Returns the number of unconfirmed requests that were shed because the incoming queue was too long.
+     */
+    public long getShedUnconfirmedCount() {
+        return shedUnconfirmed.sum();
+    }
+
+    /**
+     * Returns the number of confirmed requests that were shed because the incoming queue was too long.
+     */
+    public long getShedConfirmedCount() {
+        return shedConfirmed.sum();
+    }
+
+    /**
+     * Returns the number of network messages that were shed because the incoming queue was too long.
+     */
+    public long getShedNetworkMessageCount() {
+        return shedNetworkMessages.sum();
+    }
+
+    /**
+     * Sets the executor in which incoming confirmed requests are handled, so that slow handlers - such as reading all
+     * properties of all objects, or file access - do not hold up the processing of other messages. Requests from a
+     * single client are still handled one at a time and in the order that they were received, and the responses are
+     * sent by the transport as usual. A value of null - the default - handles requests in the transport thread.
+     */
+    public void setHandlerExecutor(final Executor handlerExecutor) {
+        this.handlerExecutor = handlerExecutor;
+    }
+
+    public Executor getHandlerExecutor() {
+        return handlerExecutor;
+    }
+
+    /**
+     * Sets whether identical ReadProperty and ReadPropertyMultiple requests to the same device should share a single
+     * transaction while they are in flight. The response is given to all of the requesters. Off by default.
+     */
+    public void setCoalesceReads(final boolean coalesceReads) {
+        readCoalescer = coalesceReads ? new ReadCoalescer() : null;
+    }
+
+    public boolean isCoalesceReads() {
+        return readCoalescer != null;
+    }
+
+    /**
+     * Sets how often the stack of the thread that sends a message is captured, so that it can be logged if the
+     * message fails. Capturing the stack is expensive, so it is meant for diagnosis. 0 never captures it, 1 always
+     * does, and N captures it for a random 1 in N messages. Off by default.
+     */
+    public void setSendStackSampling(final int sendStackSampling) {
+        this.sendStackSampling = sendStackSampling;
+    }
+
+    public int getSendStackSampling() {
+        return sendStackSampling;
+    }
+
+    /**
+     * Sets the receiver of the traces of sent messages, or null to not trace them. Traces include the send stack if
+     * it was captured.
+     *
+     * @see #setSendStackSampling(int)
+     */
+    public void setRequestTracer(final RequestTracer requestTracer) {
+        this.requestTracer = requestTracer;
+    }
+
+    public RequestTracer getRequestTracer() {
+        return requestTracer;
+    }
+
+    /**
+     * @return the stack of the current thread if it is to be captured, otherwise null.
+     */
+    private Exception sendStack() {
+        final int sampling = sendStackSampling;
+        if (sampling <= 0)
+            return null;
+        if (sampling > 1 && ThreadLocalRandom.current().nextInt(sampling) != 0)
+            return null;
+        return new Exception("Send stack");
+    }
+
+    /**
+     * Sets the maximum number of bytes that can be used at once to reassemble incoming segmented messages. Segmented
+     * messages that would exceed it are aborted with an out-of-resources reason. A value of 0 - the default - means
+     * no limit.
+     */
+    public void setReassemblyBudget(final long reassemblyBudget) {
+        reassemblyBuffers.setBudget(reassemblyBudget);
+    }
+
+    public long getReassemblyBudget() {
+        return reassemblyBuffers.getBudget();
+    }
+
+    /**
+     * Returns the number of bytes that are currently used to reassemble incoming segmented messages.
+     */
+    public long getReassemblyMemoryUsed() {
+        return reassemblyBuffers.getUsed();
+    }
+
+    /**
+     * Returns the time that outgoing messages have waited to be sent, by network priority.
+     */
+    public QueueDelayStats getOutgoingQueueDelays() {
+        return outgoingDelays;
+    }
+
+    /**
+     * Returns the time that incoming messages have waited to be processed, by network priority.
+     */
+    public QueueDelayStats getIncomingQueueDelays() {
+        return incomingDelays;
+    }
+
+    /**
+     * Sets the receiver of the transport's measurements. By default this is a TransportStats.
+     */
+    public void setMetrics(final TransportMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public TransportMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the number of messages waiting to be sent.
+     */
+    public int getOutgoingQueueSize() {
+        int size = 0;
+        final Worker[] workers = this.workers;
+        if (workers != null) {
+            for (final Worker worker : workers)
+                size += worker.outgoing.size();
+        }
+        return size;
+    }
+
+    /**
+     * Returns the number of received messages waiting to be processed.
+     */
+    public int getIncomingQueueSize() {
+        int size = 0;
+        final Worker[] workers = this.workers;
+        if (workers != null) {
+            for (final Worker worker : workers)
+                size += worker.incoming.size();
+        }
+        return size;
+    }
+
+    /**
+     * Returns the number of messages waiting to be resent because the network could not send them. The count is
+     * updated each time a worker goes through its loop.
+     */
+    public int getDelayedOutgoingQueueSize() {
+        int size = 0;
+        final Worker[] workers = this.workers;
+        if (workers != null) {
+            for (final Worker worker : workers)
+                size += worker.delayedOutgoingCount;
+        }
+        return size;
+    }
+
+    /**
+     * Returns the number of messages - requests, and segmented messages being sent or received - that are waiting for
+     * an acknowledgement. The count is updated each time a worker goes through its loop.
+     */
+    public int getUnackedMessageCount() {
+        int size = 0;
+        final Worker[] workers = this.workers;
+        if (workers != null) {
+            for (final Worker worker : workers)
+                size += worker.unackedCount;
+        }
+        return size;
+    }
+
+    /**
+     * Returns the number of times, by peer address, that a request could not be sent right away because all of the
+     * invoke ids for the peer were in use.
+     */
+    public Map<Address, Long> getInvokeIdExhaustions() {
+        final Map<Address, Long> result = new HashMap<>();
+        final Worker[] workers = this.workers;
+        if (workers != null) {
+            for (final Worker worker : workers)
+                worker.unackedMessages.getInvokeIdExhaustions().forEach((k, v) -> result.merge(k, v, Long::sum));
+        }
+        return result;
+    }
+
     @Override
     public Network getNetwork() {
         return network;
@@ -183,9 +635,20 @@ public class DefaultTransport implements Transport, Runnable {
         servicesSupported = localDevice.getServicesSupported();
 
         running = true;
+
+        // Create the workers before initializing the network so that they can queue anything that it receives.
+        final Worker[] workers = new Worker[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            String name = "BACnet4J transport for device " + localDevice.getInstanceNumber();
+            if (workerCount > 1)
+                name += ", worker " + i;
+            workers[i] = new Worker(name);
+        }
+        this.workers = workers;
+
         network.initialize(this);
-        thread = new Thread(this, "BACnet4J transport for device " + localDevice.getInstanceNumber());
-        thread.start();
+        for (final Worker worker : workers)
+            worker.start();
 
         // Send a WhoIsRouter message.
         LOG.debug("Broadcasting WhoIsRouter to local network");
@@ -194,32 +657,33 @@ public class DefaultTransport implements Transport, Runnable {
 
     @Override
     public void terminate() {
-        // Stop the processing thread.
+        // Stop the processing threads.
         running = false;
-        ThreadUtils.notifySync(pauseLock);
-        if (thread != null)
-            ThreadUtils.join(thread);
-
-        // Cancel any queued outgoing messages.
-        for (final Outgoing og : outgoing) {
-            if (og instanceof OutgoingConfirmed) {
-                final OutgoingConfirmed ogc = (OutgoingConfirmed) og;
-                if (ogc.consumer != null) {
-                    ogc.consumer.ex(new BACnetException("Cancelled due to transport shutdown"));
-                }
-            }
-        }
-
-        // Cancel any unacked messages
-        for (final UnackedMessageContext ctx : unackedMessages.getRequests().values()) {
-            if (ctx.getConsumer() != null) {
-                ctx.getConsumer().ex(new BACnetException("Cancelled due to transport shutdown"));
-            }
+        if (workers != null) {
+            for (final Worker worker : workers)
+                worker.wakeup();
+            for (final Worker worker : workers)
+                worker.join();
+
+            for (final Worker worker : workers)
+                worker.cancelAll();
         }
 
         network.terminate();
     }
 
+    /**
+     * Runs the processing loop of the first worker in the calling thread, until the transport is terminated. Each
+     * worker already runs its loop in its own thread once the transport is initialized, so this only remains for
+     * callers that drive the transport with a single worker as a Runnable.
+     */
+    @Override
+    public void run() {
+        final Worker[] workers = this.workers;
+        if (workers != null)
+            workers[0].run();
+    }
+
     @Override
     public long getBytesOut() {
         return network.getBytesOut();
@@ -237,7 +701,50 @@ public class DefaultTransport implements Transport, Runnable {
 
     @Override
     public void addNetworkRouter(final int networkNumber, final OctetString mac) {
-        networkRouters.put(networkNumber, mac);
+        // This is called for every message received through a router, so a known router is only written to the maps
+        // when it is aged, and then only once in a while.
+        if (mac.equals(networkRouters.get(networkNumber))) {
+            if (routerMaxAge <= 0)
+                return;
+            final long now = localDevice.getClock().millis();
+            final Long seen = networkRoutersSeen.get(networkNumber);
+            if (seen == null || now - seen >= routerMaxAge / ROUTER_REFRESH_DIVISOR)
+                networkRoutersSeen.put(networkNumber, now);
+            return;
+        }
+
+        networkRoutersSeen.put(networkNumber, localDevice.getClock().millis());
+        if (!mac.equals(networkRouters.put(networkNumber, mac))) {
+            // A new router. Release any messages that were waiting for it.
+            final Worker[] workers = this.workers;
+            if (workers != null) {
+                for (final Worker worker : workers)
+                    worker.execute(() -> worker.routerFound(networkNumber));
+            }
+        }
+    }
+
+    /**
+     * Returns the router to the given network, or null if it is not known or has not been heard from within the
+     * maximum age.
+     */
+    OctetString getNetworkRouter(final int networkNumber) {
+        final OctetString router = networkRouters.get(networkNumber);
+        if (router != null && routerMaxAge > 0) {
+            final Long seen = networkRoutersSeen.get(networkNumber);
+            if (seen != null && seen + routerMaxAge < localDevice.getClock().millis()) {
+                LOG.debug("Forgetting router {} to network {} because it has not been heard from", router,
+                        networkNumber);
+                removeNetworkRouter(networkNumber);
+                return null;
+            }
+        }
+        return router;
+    }
+
+    void removeNetworkRouter(final int networkNumber) {
+        networkRouters.remove(networkNumber);
+        networkRoutersSeen.remove(networkNumber);
     }
 
     @Override
@@ -267,16 +774,14 @@ public class DefaultTransport implements Transport, Runnable {
             }
         }
 
-        if (allowSend) {
-            outgoing.add(new OutgoingUnconfirmed(address, service, broadcast, new Exception()));
-            ThreadUtils.notifySync(pauseLock);
-        }
+        if (allowSend)
+            workerFor(address).add(new OutgoingUnconfirmed(address, service, broadcast));
     }
 
     @Override
     public ServiceFuture send(final Address address, final int maxAPDULengthAccepted,
             final Segmentation segmentationSupported, final ConfirmedRequestService service) {
-        if (Thread.currentThread() == thread)
+        if (isTransportThread())
             throw new IllegalStateException("Cannot send future request in the transport thread. Use a callback " //
                     + "call instead, or make this call in a new thread.");
         final ServiceFutureImpl future = new ServiceFutureImpl();
@@ -289,9 +794,14 @@ public class DefaultTransport implements Transport, Runnable {
             final ConfirmedRequestService service, final ResponseConsumer consumer) {
         // 16.1.2
         if (EnableDisable.enable.equals(localDevice.getCommunicationControlState())) {
-            outgoing.add(new OutgoingConfirmed(address, maxAPDULengthAccepted, segmentationSupported, service, consumer,
-                    new Exception()));
-            ThreadUtils.notifySync(pauseLock);
+            final ReadCoalescer coalescer = readCoalescer;
+            if (coalescer != null && consumer != null && ReadCoalescer.isCoalescable(service)) {
+                coalescer.join(address, service, consumer, (transaction) -> workerFor(address).add(
+                        new OutgoingConfirmed(address, maxAPDULengthAccepted, segmentationSupported, service, transaction)));
+            } else {
+                workerFor(address).add(new OutgoingConfirmed(address, maxAPDULengthAccepted, segmentationSupported,
+                        service, consumer));
+            }
         } else {
             // Communication has been disabled as the result of a DeviceCommunicationControlRequest. The consumer
             // is informed with an exception.
@@ -299,50 +809,172 @@ public class DefaultTransport implements Transport, Runnable {
         }
     }
 
+    @Override
+    public <T extends AcknowledgementService> CompletableFuture<T> sendAsync(final Address address,
+            final int maxAPDULengthAccepted, final Segmentation segmentationSupported,
+            final ConfirmedRequestService service) {
+        final CompletableServiceFuture<T> future = new CompletableServiceFuture<>();
+        // 16.1.2
+        if (EnableDisable.enable.equals(localDevice.getCommunicationControlState())) {
+            final Worker worker = workerFor(address);
+            final ReadCoalescer coalescer = readCoalescer;
+            if (coalescer != null && ReadCoalescer.isCoalescable(service)) {
+                final ReadCoalescer.Transaction transaction = coalescer.join(address, service, future, (t) -> {
+                    final OutgoingConfirmed out = new OutgoingConfirmed(address, maxAPDULengthAccepted,
+                            segmentationSupported, service, t);
+                    t.setCancelHandler(() -> worker.cancel(out));
+                    worker.add(out);
+                });
+                // The shared request is only cancelled when all of its requesters have cancelled.
+                future.setCancelHandler(() -> transaction.leave(future));
+            } else {
+                final OutgoingConfirmed out = new OutgoingConfirmed(address, maxAPDULengthAccepted,
+                        segmentationSupported, service, future);
+                future.setCancelHandler(() -> worker.cancel(out));
+                worker.add(out);
+            }
+        } else {
+            future.ex(new CommunicationDisabledException());
+        }
+        return future;
+    }
+
     @Override
     public void incoming(final NPDU npdu) {
-        incoming.add(npdu);
-        ThreadUtils.notifySync(pauseLock);
+        final Worker worker = workerFor(npdu.getFrom());
+        final int max = maxIncomingQueued;
+        if (max > 0 && shed(worker, npdu, max))
+            return;
+        worker.incoming(npdu);
     }
 
-    abstract class Outgoing {
-        protected final Address address;
-        protected OctetString linkService;
-        // TODO remove this when it is no longer needed.
-        protected final Exception stack;
+    /**
+     * Sheds the message if the worker's incoming queue is too long for its kind.
+     *
+     * @return true if the message was shed
+     */
+    private boolean shed(final Worker worker, final NPDU npdu, final int max) {
+        final int size = worker.incoming.size();
+        // Half full, but at least one message is let in.
+        if (size < Math.max(1, max / 2))
+            return false;
 
-        public Outgoing(final Address address, final Exception stack) {
-            if (address == null)
-                throw new IllegalArgumentException("address cannot be null");
-            this.address = address;
-            this.stack = stack;
+        // Network messages include the answers to router discovery and busy and reject reports from routers, so they
+        // are only shed when the queue is full.
+        if (npdu.isNetworkMessage()) {
+            if (size < max)
+                return false;
+            shedNetworkMessages.increment();
+            return true;
         }
 
-        void send() {
-            // Check if the message is to be sent to a specific remote network.
-            final int targetNetworkNumber = address.getNetworkNumber().intValue();
-            if (targetNetworkNumber != Address.LOCAL_NETWORK && targetNetworkNumber != Address.ALL_NETWORKS
-                    && targetNetworkNumber != network.getLocalNetworkNumber()) {
-                // Going to a specific remote network. Check if we know the router for it.
-                linkService = networkRouters.get(targetNetworkNumber);
-                if (linkService == null) {
-                    handleException(new BACnetException(
-                            "Unable to find router to network " + address.getNetworkNumber().intValue()));
-                    return;
+        final int type = npdu.getApduType();
+        if (type == UnconfirmedRequest.TYPE_ID) {
+            shedUnconfirmed.increment();
+            return true;
+        }
+
+        if (type == ConfirmedRequest.TYPE_ID && size >= max) {
+            shedConfirmed.increment();
+            LOG.debug("Shedding confirmed request from {}", npdu.getFrom());
+            final ByteQueue data = npdu.getNetworkMessageData();
+            if (abortShedRequests && data.size() > 2) {
+                // The invoke id is the third byte of the header.
+                final Abort abort = new Abort(true, data.peek(2), AbortReason.outOfResources);
+                try {
+                    network.sendAPDU(npdu.getFrom(), npdu.getLinkService(), abort, false);
+                } catch (final BACnetException e) {
+                    LOG.warn("Error sending abort for shed request", e);
                 }
             }
+            return true;
+        }
 
-            try {
-                sendImpl();
-            } catch (final BACnetRecoverableException e) {
-                LOG.info("Send delayed due to recoverable error: {}", e.getMessage());
-                delayedOutgoing.add(new DelayedOutgoing(this));
+        return false;
+    }
+
+    /**
+     * Returns the worker that handles all traffic with the given peer.
+     */
+    Worker workerFor(final Address address) {
+        final Worker[] workers = this.workers;
+        if (workers.length == 1)
+            return workers[0];
+        int h = address.hashCode();
+        h ^= h >>> 16;
+        return workers[(h & 0x7fffffff) % workers.length];
+    }
+
+    static boolean isSystemClock(final Clock clock) {
+        return clock.getClass() == Clock.systemUTC().getClass();
+    }
+
+    private boolean isTransportThread() {
+        final Worker[] workers = this.workers;
+        if (workers != null) {
+            final Thread current = Thread.currentThread();
+            for (final Worker worker : workers) {
+                if (worker.thread == current)
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    abstract class Outgoing {
+        protected final Address address;
+        protected OctetString linkService;
+        // The stack of the sending thread, if it was captured.
+        protected final Exception stack;
+        // The trace of the message, if there is a tracer.
+        protected final RequestTrace trace;
+        // Set when the client withdraws the message before it has been sent.
+        volatile boolean cancelled;
+
+        public Outgoing(final Address address, final Service service) {
+            if (address == null)
+                throw new IllegalArgumentException("address cannot be null");
+            this.address = address;
+            stack = sendStack();
+            final RequestTracer tracer = requestTracer;
+            trace = tracer == null ? null : new RequestTrace(address, service, stack, tracer);
+        }
+
+        void send(final Worker worker) {
+            if (cancelled)
+                return;
+
+            // Check if the message is to be sent to a specific remote network.
+            final int targetNetworkNumber = address.getNetworkNumber().intValue();
+            if (targetNetworkNumber != Address.LOCAL_NETWORK && targetNetworkNumber != Address.ALL_NETWORKS
+                    && targetNetworkNumber != network.getLocalNetworkNumber()) {
+                // Going to a specific remote network. Check if we know the router for it.
+                linkService = getNetworkRouter(targetNetworkNumber);
+                if (linkService == null) {
+                    // Ask for the router, and wait for it to answer.
+                    worker.awaitRouter(targetNetworkNumber, this);
+                    return;
+                }
+                if (isNetworkBusy(targetNetworkNumber)) {
+                    LOG.debug("Delaying message to network {} because its router is busy", targetNetworkNumber);
+                    worker.delayedOutgoing.add(new DelayedOutgoing(this));
+                    return;
+                }
+            }
+
+            try {
+                sendImpl(worker);
+            } catch (final BACnetRecoverableException e) {
+                LOG.info("Send delayed due to recoverable error: {}", e.getMessage());
+                worker.delayedOutgoing.add(new DelayedOutgoing(this));
             } catch (final BACnetException e) {
                 handleException(e);
             }
         }
 
-        abstract protected void sendImpl() throws BACnetException;
+        abstract protected void sendImpl(Worker worker) throws BACnetException;
+
+        abstract NetworkPriority getNetworkPriority();
 
         abstract protected void handleException(BACnetException e);
     }
@@ -351,25 +983,30 @@ public class DefaultTransport implements Transport, Runnable {
         private final int maxAPDULengthAccepted;
         private final Segmentation segmentationSupported;
         private final ConfirmedRequestService service;
+        // The consumer given by the caller, wrapped if the request is traced.
         private final ResponseConsumer consumer;
+        private final boolean responseWanted;
+        // The key of the request once it has been sent. Only used in the worker thread.
+        private UnackedMessageKey key;
 
         public OutgoingConfirmed(final Address address, final int maxAPDULengthAccepted,
                 final Segmentation segmentationSupported, final ConfirmedRequestService service,
-                final ResponseConsumer consumer, final Exception stack) {
-            super(address, stack);
+                final ResponseConsumer consumer) {
+            super(address, service);
             this.maxAPDULengthAccepted = maxAPDULengthAccepted;
             this.segmentationSupported = segmentationSupported;
             this.service = service;
-            this.consumer = consumer;
+            this.consumer = trace == null ? consumer : trace.wrap(consumer);
+            responseWanted = consumer != null;
         }
 
         @Override
-        protected void sendImpl() throws BACnetException {
+        protected void sendImpl(final Worker worker) throws BACnetException {
             final ByteQueue serviceData = new ByteQueue();
             service.write(serviceData);
 
-            final UnackedMessageContext ctx = new UnackedMessageContext(localDevice.getClock(), timeout, retries,
-                    consumer, service);
+            final UnackedMessageContext ctx = new UnackedMessageContext(localDevice.getClock(), getTimeout(address),
+                    retries, consumer, service);
             final UnackedMessageKey key;
             APDU apdu;
 
@@ -384,17 +1021,18 @@ public class DefaultTransport implements Transport, Runnable {
                 if (segmentsRequired > 255)
                     throw new ServiceTooBigException("Request too big to send to device; too many segments required");
 
-                key = unackedMessages.addClient(address, linkService, ctx);
+                key = worker.unackedMessages.addClient(address, linkService, ctx);
                 // Prepare the segmenting session.
+                final int window = getSendSegWindow(address);
                 ctx.setSegmentTemplate(new ConfirmedRequest(true, true, true, MAX_SEGMENTS, network.getMaxApduLength(),
-                        key.getInvokeId(), 0, segWindow, service.getChoiceId(), null, service.getNetworkPriority()));
-                ctx.setServiceData(serviceData);
-                ctx.setSegBuf(new byte[maxServiceData]);
+                        key.getInvokeId(), 0, window, service.getChoiceId(), null, service.getNetworkPriority()));
+                ctx.setServiceData(serviceData, maxServiceData);
 
                 // Send an initial message to negotiate communication terms.
-                apdu = ctx.getSegmentTemplate().clone(true, 0, segWindow, ctx.getNextSegment());
+                apdu = ctx.getSegmentTemplate().clone(true, 0, window, ctx.getNextSegment());
+                metrics.segmentSent(address);
             } else {
-                key = unackedMessages.addClient(address, linkService, ctx);
+                key = worker.unackedMessages.addClient(address, linkService, ctx);
                 // We can send the whole APDU in one shot.
                 apdu = new ConfirmedRequest(false, false, true, MAX_SEGMENTS, network.getMaxApduLength(),
                         key.getInvokeId(), (byte) 0, 0, service.getChoiceId(), serviceData,
@@ -402,15 +1040,25 @@ public class DefaultTransport implements Transport, Runnable {
             }
 
             ctx.setOriginalApdu(apdu);
-            sendForResponse(key, ctx);
+            this.key = key;
+            worker.sendForResponse(key, ctx);
+            if (trace != null)
+                trace.sent();
+        }
+
+        @Override
+        NetworkPriority getNetworkPriority() {
+            return service.getNetworkPriority();
         }
 
         @Override
         protected void handleException(final BACnetException e) {
-            if (consumer == null) {
+            if (!responseWanted) {
                 LOG.warn("Error during send", e);
-                LOG.warn("Original stack", stack);
-            } else
+                if (stack != null)
+                    LOG.warn("Original stack", stack);
+            }
+            if (consumer != null)
                 consumer.ex(e);
         }
 
@@ -427,20 +1075,33 @@ public class DefaultTransport implements Transport, Runnable {
         private final boolean broadcast;
 
         public OutgoingUnconfirmed(final Address address, final UnconfirmedRequestService service,
-                final boolean broadcast, final Exception stack) {
-            super(address, stack);
+                final boolean broadcast) {
+            super(address, service);
             this.service = service;
             this.broadcast = broadcast;
         }
 
         @Override
-        protected void sendImpl() throws BACnetException {
+        protected void sendImpl(final Worker worker) throws BACnetException {
             network.sendAPDU(address, linkService, new UnconfirmedRequest(service), broadcast);
+            if (trace != null) {
+                trace.sent();
+                trace.complete(null);
+            }
+        }
+
+        @Override
+        NetworkPriority getNetworkPriority() {
+            return service.getNetworkPriority();
         }
 
         @Override
         protected void handleException(final BACnetException e) {
             LOG.error("Error during send", e);
+            if (stack != null)
+                LOG.error("Original stack", stack);
+            if (trace != null)
+                trace.complete(e);
         }
 
         @Override
@@ -450,6 +1111,57 @@ public class DefaultTransport implements Transport, Runnable {
         }
     }
 
+    /**
+     * An incoming confirmed request. It is handled either in the worker thread or by the handler executor, after which
+     * the response is sent by the worker.
+     */
+    class IncomingConfirmed implements Runnable {
+        final Worker worker;
+        final ConfirmedRequest confAPDU;
+        final Address address;
+        final OctetString linkService;
+        final byte invokeId;
+        final UnackedMessageContext reassembly;
+
+        // The result of handling the request.
+        AcknowledgementService ack;
+        BACnetException ex;
+
+        IncomingConfirmed(final Worker worker, final ConfirmedRequest confAPDU, final Address address,
+                final OctetString linkService, final byte invokeId, final UnackedMessageContext reassembly) {
+            this.worker = worker;
+            this.confAPDU = confAPDU;
+            this.address = address;
+            this.linkService = linkService;
+            this.invokeId = invokeId;
+            this.reassembly = reassembly;
+        }
+
+        void handle() {
+            try {
+                confAPDU.parseServiceData();
+                ack = handleConfirmedRequest(address, invokeId, confAPDU.getServiceRequest());
+            } catch (final BACnetException e) {
+                ex = e;
+            }
+        }
+
+        @Override
+        public void run() {
+            handle();
+            worker.execute(() -> worker.handled(this));
+        }
+    }
+
+    static class RouterDiscovery {
+        final long deadline;
+        final List<Outgoing> outgoings = new ArrayList<>();
+
+        RouterDiscovery(final long deadline) {
+            this.deadline = deadline;
+        }
+    }
+
     class DelayedOutgoing {
         final Outgoing outgoing;
         final long retryTime;
@@ -470,488 +1182,944 @@ public class DefaultTransport implements Transport, Runnable {
     //
     // Processing
     //
-    @Override
-    public void run() {
-        Outgoing out;
-        NPDU in;
-        boolean pause;
+    /**
+     * A worker processes the messages for a subset of the peers. All of the state that it uses for processing -
+     * including the list of unacked messages - is confined to its own thread.
+     */
+    class Worker implements Runnable {
+        final PriorityMessageQueue<Outgoing> outgoing = new PriorityMessageQueue<>(outgoingDelays);
+        final PriorityMessageQueue<NPDU> incoming = new PriorityMessageQueue<>(incomingDelays);
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        final Queue<DelayedOutgoing> delayedOutgoing = new LinkedList<>();
+        final UnackedMessages unackedMessages;
+        // Confirmed requests waiting for the in-flight count of their peer to drop below the maximum.
+        private final Map<Address, Queue<OutgoingConfirmed>> waiting = new HashMap<>();
+        // Messages waiting for the router to their network to be found, by network number.
+        private final Map<Integer, RouterDiscovery> routerDiscoveries = new HashMap<>();
+        // Incoming requests waiting for the handler executor, by client. A client has an entry while one of its
+        // requests is being handled.
+        private final Map<Address, Queue<IncomingConfirmed>> handling = new HashMap<>();
+        private final Object pauseLock = new Object();
+        private boolean wakeupPending;
+        final Thread thread;
+
+        // Sizes of the confined state, for metrics.
+        volatile int delayedOutgoingCount;
+        volatile int unackedCount;
+
+        Worker(final String name) {
+            unackedMessages = new UnackedMessages(localDevice.getClock());
+            thread = new Thread(this, name);
+        }
 
-        while (running) {
-            pause = true;
+        void start() {
+            thread.start();
+        }
 
-            // Send an outgoing message.
-            out = outgoing.poll();
-            if (out != null) {
-                try {
-                    out.send();
-                } catch (final Exception e) {
-                    LOG.error("Error during send: {}", out, e);
-                    LOG.error("Original send stack", out.stack);
-                }
-                pause = false;
+        void join() {
+            ThreadUtils.join(thread);
+        }
+
+        void wakeup() {
+            synchronized (pauseLock) {
+                wakeupPending = true;
+                pauseLock.notify();
             }
+        }
 
-            // Receive an incoming message.
-            in = incoming.poll();
-            if (in != null) {
-                try {
-                    receiveImpl(in);
-                } catch (final Exception e) {
-                    LOG.error("Error during receive: {}", in, e);
+        /**
+         * Waits until the given time, or until woken up by a new message. Wakeups that happen while the worker is busy
+         * are remembered, so that the worker does not pause when there is something to do.
+         */
+        private void pauseUntil(final long wakeupTime) {
+            final Clock clock = localDevice.getClock();
+            long wait = wakeupTime == Long.MAX_VALUE ? 0 : Math.max(1, wakeupTime - clock.millis());
+            if (!isSystemClock(clock) && (wait == 0 || wait > MAX_POLL_PAUSE)) {
+                // Other clocks - such as those used in testing - can be moved forward arbitrarily, so they need to be
+                // polled.
+                wait = MAX_POLL_PAUSE;
+            }
+
+            synchronized (pauseLock) {
+                if (!wakeupPending)
+                    ThreadUtils.wait(pauseLock, wait);
+                wakeupPending = false;
+            }
+        }
+
+        void add(final Outgoing out) {
+            outgoing.add(out, out.getNetworkPriority());
+            wakeup();
+        }
+
+        void incoming(final NPDU npdu) {
+            incoming.add(npdu, npdu.getNetworkPriority());
+            wakeup();
+        }
+
+        /**
+         * Runs the given task in the worker thread, for access to the state that is confined to it.
+         */
+        void execute(final Runnable task) {
+            tasks.add(task);
+            wakeup();
+        }
+
+        /**
+         * Withdraws the given request. If it has already been sent its unacked message is removed, releasing the invoke
+         * id. Responses that arrive for it later are ignored.
+         */
+        void cancel(final OutgoingConfirmed out) {
+            out.cancelled = true;
+            execute(() -> {
+                final Queue<OutgoingConfirmed> queue = waiting.get(out.address);
+                if (queue != null && queue.remove(out) && queue.isEmpty())
+                    waiting.remove(out.address);
+
+                if (out.key != null) {
+                    // Make sure the key has not since been reused by another request.
+                    final UnackedMessageContext ctx = unackedMessages.getRequests().get(out.key);
+                    if (ctx != null && ctx.getConsumer() == out.consumer) {
+                        LOG.debug("Removing cancelled request {}", out.key);
+                        unackedMessages.remove(out.key);
+                        ctx.releaseReassemblyBuffer();
+                    }
                 }
-                pause = false;
-            }
-
-            // Find delayed outgoings to retry.
-            if (!delayedOutgoing.isEmpty()) {
-                final Iterator<DelayedOutgoing> iter = delayedOutgoing.iterator();
-                while (iter.hasNext()) {
-                    final DelayedOutgoing delayedOutgoing = iter.next();
-                    if (delayedOutgoing.isReady()) {
-                        iter.remove();
-                        outgoing.add(delayedOutgoing.outgoing);
-                        LOG.info("Retrying delayed outgoing {}", delayedOutgoing.outgoing);
-                        pause = false;
-                    } else {
-                        // No other entries in the list should be ready either
-                        // since they were added chronologically.
-                        break;
+
+                if (out.trace != null)
+                    out.trace.complete(new CancellationException());
+            });
+        }
+
+        /**
+         * Cancels any queued outgoing and unacked messages. Called after the worker thread has stopped.
+         */
+        void cancelAll() {
+            // Cancel any queued outgoing messages.
+            final List<Outgoing> queued = outgoing.drain();
+            waiting.values().forEach(queued::addAll);
+            routerDiscoveries.values().forEach(d -> queued.addAll(d.outgoings));
+            for (final Outgoing og : queued) {
+                if (og instanceof OutgoingConfirmed) {
+                    final OutgoingConfirmed ogc = (OutgoingConfirmed) og;
+                    if (ogc.consumer != null) {
+                        ogc.consumer.ex(new BACnetException("Cancelled due to transport shutdown"));
                     }
                 }
             }
 
-            if (pause && running) {
+            // Cancel any unacked messages
+            for (final UnackedMessageContext ctx : unackedMessages.getRequests().values()) {
+                if (ctx.getConsumer() != null) {
+                    ctx.getConsumer().ex(new BACnetException("Cancelled due to transport shutdown"));
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            Outgoing out;
+            NPDU in;
+            boolean pause;
+
+            while (running) {
+                pause = true;
+
+                // Send an outgoing message.
+                out = outgoing.poll();
+                if (out != null) {
+                    if (out.cancelled)
+                        LOG.debug("Dropping cancelled request {}", out);
+                    else if (out instanceof OutgoingConfirmed && mustWait((OutgoingConfirmed) out))
+                        park((OutgoingConfirmed) out);
+                    else
+                        send(out);
+                    pause = false;
+                }
+
+                // Receive an incoming message.
+                in = incoming.poll();
+                if (in != null) {
+                    try {
+                        receiveImpl(in);
+                    } catch (final Exception e) {
+                        LOG.error("Error during receive: {}", in, e);
+                    }
+                    pause = false;
+                }
+
+                // Run a task posted by another thread.
+                final Runnable task = tasks.poll();
+                if (task != null) {
+                    try {
+                        task.run();
+                    } catch (final Exception e) {
+                        LOG.error("Error during task: {}", task, e);
+                    }
+                    pause = false;
+                }
+
+                // Find delayed outgoings to retry.
+                if (!delayedOutgoing.isEmpty()) {
+                    final Iterator<DelayedOutgoing> iter = delayedOutgoing.iterator();
+                    while (iter.hasNext()) {
+                        final DelayedOutgoing delayedOutgoing = iter.next();
+                        if (delayedOutgoing.isReady()) {
+                            iter.remove();
+                            outgoing.add(delayedOutgoing.outgoing, delayedOutgoing.outgoing.getNetworkPriority());
+                            LOG.info("Retrying delayed outgoing {}", delayedOutgoing.outgoing);
+                            pause = false;
+                        } else {
+                            // No other entries in the list should be ready either
+                            // since they were added chronologically.
+                            break;
+                        }
+                    }
+                }
+
+                // Expire unacked messages whose deadlines have passed.
                 try {
-                    pause = expire();
+                    if (expire())
+                        pause = false;
                 } catch (final Exception e) {
                     LOG.error("Error during expire messages: ", e);
                 }
+
+                // Send waiting requests to peers that now have room for them.
+                if (sendWaiting())
+                    pause = false;
+
+                // Fail messages to networks whose routers could not be found.
+                if (expireRouterDiscoveries())
+                    pause = false;
+
+                delayedOutgoingCount = delayedOutgoing.size();
+                unackedCount = unackedMessages.size();
+
+                if (pause && running) {
+                    long wakeupTime = unackedMessages.getNextDeadline();
+                    final DelayedOutgoing nextDelayed = delayedOutgoing.peek();
+                    if (nextDelayed != null)
+                        wakeupTime = Math.min(wakeupTime, nextDelayed.retryTime);
+                    for (final RouterDiscovery discovery : routerDiscoveries.values())
+                        wakeupTime = Math.min(wakeupTime, discovery.deadline);
+                    pauseUntil(wakeupTime);
+                }
             }
+        }
 
-            if (pause && running)
-                ThreadUtils.waitSync(pauseLock, 50);
+        private void send(final Outgoing out) {
+            try {
+                out.send(this);
+            } catch (final Exception e) {
+                LOG.error("Error during send: {}", out, e);
+                if (out.stack != null)
+                    LOG.error("Original send stack", out.stack);
+            }
         }
-    }
 
-    private void receiveImpl(final NPDU in) {
-        if (in.isNetworkMessage()) {
-            switch (in.getNetworkMessageType()) {
-            case 0x1: // I-Am-Router-To-Network
-            case 0x2: // I-Could-Be-Router-To-Network
-                final ByteQueue data = in.getNetworkMessageData();
-                while (data.size() > 1) {
-                    final int nn = data.popU2B();
-                    LOG.debug("Adding network router {} for network {}", in.getFrom().getMacAddress(), nn);
-                    networkRouters.put(nn, in.getFrom().getMacAddress());
+        /**
+         * Holds the message until the router to the given network is found, asking for the router if that has not
+         * already been done.
+         */
+        void awaitRouter(final int networkNumber, final Outgoing out) {
+            RouterDiscovery discovery = routerDiscoveries.get(networkNumber);
+            if (discovery == null) {
+                LOG.debug("Looking for router to network {}", networkNumber);
+                discovery = new RouterDiscovery(localDevice.getClock().millis() + routerDiscoveryTimeout);
+                routerDiscoveries.put(networkNumber, discovery);
+                try {
+                    network.sendNetworkMessage(getLocalBroadcastAddress(), null, 0,
+                            new byte[] { (byte) (networkNumber >> 8), (byte) networkNumber }, true, false);
+                } catch (final BACnetException e) {
+                    LOG.warn("Error sending Who-Is-Router-To-Network for network {}", networkNumber, e);
                 }
-                break;
-            case 0x3: // Reject-Message-To-Network
-                String reason;
-                final int reasonCode = in.getNetworkMessageData().popU1B();
-                if (reasonCode == 0)
-                    reason = "Other error";
-                else if (reasonCode == 1)
-                    reason = "The router is not directly connected to DNET and cannot find a router to DNET on any " //
-                            + "directly connected network using Who-Is-Router-To-Network messages.";
-                else if (reasonCode == 2)
-                    reason = "The router is busy and unable to accept messages for the specified DNET at the " //
-                            + "present time.";
-                else if (reasonCode == 3)
-                    reason = "It is an unknown network layer message type. The DNET returned in this case is a " //
-                            + "local matter.";
-                else if (reasonCode == 4)
-                    reason = "The message is too long to be routed to this DNET.";
-                else if (reasonCode == 5)
-                    reason = "The source message was rejected due to a BACnet security error and that error cannot " //
-                            + " be forwarded to the source device. See Clause 24.12.1.1 for more details on the " //
-                            + "generation of Reject-Message-To-Network messages indicating this reason.";
-                else if (reasonCode == 6)
-                    reason = "The source message was rejected due to errors in the addressing. The length of the " //
-                            + "DADR or SADR was determined to be invalid.";
-                else
-                    reason = "Unknown reason code";
-                LOG.warn("Received Reject-Message-To-Network with reason '{}': {}", reasonCode, reason);
-                break;
-            default:
             }
-        } else {
-            receiveAPDU(in);
+            discovery.outgoings.add(out);
+        }
+
+        /**
+         * Sends the messages that were waiting for the router to the given network.
+         */
+        void routerFound(final int networkNumber) {
+            final RouterDiscovery discovery = routerDiscoveries.remove(networkNumber);
+            if (discovery != null) {
+                LOG.debug("Found router to network {}, sending {} messages", networkNumber,
+                        discovery.outgoings.size());
+                for (final Outgoing out : discovery.outgoings)
+                    outgoing.add(out, out.getNetworkPriority());
+            }
         }
-    }
 
-    private void receiveAPDU(final NPDU npdu) {
-        final Address from = npdu.getFrom();
-        final OctetString linkService = npdu.getLinkService();
-        APDU apdu;
+        /**
+         * @return true if any router discoveries timed out.
+         */
+        private boolean expireRouterDiscoveries() {
+            if (routerDiscoveries.isEmpty())
+                return false;
 
-        try {
-            apdu = npdu.getAPDU(servicesSupported);
-        } catch (final BACnetException e) {
-            // Error parsing the APDU. Drop the request.
-            LOG.debug("Error parsing APDU", e);
-            return;
+            boolean didSomething = false;
+            final long now = localDevice.getClock().millis();
+            final Iterator<Map.Entry<Integer, RouterDiscovery>> iter = routerDiscoveries.entrySet().iterator();
+            while (iter.hasNext()) {
+                final Map.Entry<Integer, RouterDiscovery> e = iter.next();
+                if (e.getValue().deadline <= now) {
+                    iter.remove();
+                    for (final Outgoing out : e.getValue().outgoings)
+                        out.handleException(new BACnetException("Unable to find router to network " + e.getKey()));
+                    didSomething = true;
+                }
+            }
+            return didSomething;
         }
 
-        if (apdu instanceof ConfirmedRequest) {
-            // Received a request that must be handled and responded to.
-            final ConfirmedRequest confAPDU = (ConfirmedRequest) apdu;
-            final byte invokeId = confAPDU.getInvokeId();
+        /**
+         * Determines whether the request needs to wait because its peer already has the maximum number of requests in
+         * flight, or because there are other requests already waiting for the peer.
+         */
+        private boolean mustWait(final OutgoingConfirmed out) {
+            if (maxRequestsInFlight <= 0)
+                return false;
+            return waiting.containsKey(out.address)
+                    || unackedMessages.getClientCount(out.address) >= maxRequestsInFlight;
+        }
 
-            try {
-                ConfirmedRequestService.checkConfirmedRequestService(servicesSupported, confAPDU.getServiceChoice());
-            } catch (final BACnetRejectException e) {
-                try {
-                    network.sendAPDU(from, linkService, new Reject(confAPDU.getInvokeId(), e.getRejectReason()), false);
-                } catch (final BACnetException e1) {
-                    LOG.warn("Error sending error response", e1);
+        private void park(final OutgoingConfirmed out) {
+            final Queue<OutgoingConfirmed> queue = waiting.computeIfAbsent(out.address, (a) -> new LinkedList<>());
+            if (maxRequestsQueued > 0 && queue.size() >= maxRequestsQueued) {
+                LOG.debug("Rejecting request to {} because its queue is full", out.address);
+                out.handleException(new RequestQueueFullException(
+                        "Too many requests waiting for " + out.address + ": " + queue.size()));
+            } else
+                queue.add(out);
+        }
+
+        /**
+         * @return true if any waiting requests were sent.
+         */
+        private boolean sendWaiting() {
+            if (waiting.isEmpty())
+                return false;
+
+            boolean didSomething = false;
+            final Iterator<Map.Entry<Address, Queue<OutgoingConfirmed>>> iter = waiting.entrySet().iterator();
+            while (iter.hasNext()) {
+                final Map.Entry<Address, Queue<OutgoingConfirmed>> e = iter.next();
+                final Queue<OutgoingConfirmed> queue = e.getValue();
+                while (!queue.isEmpty() && unackedMessages.getClientCount(e.getKey()) < maxRequestsInFlight) {
+                    send(queue.poll());
+                    didSomething = true;
                 }
-                LOG.warn("Receiving a confirmed service request that ist not supported or available. TYPE_ID '{}'", confAPDU.getServiceChoice());
-                return;
+                if (queue.isEmpty())
+                    iter.remove();
             }
+            return didSomething;
+        }
 
-            if (confAPDU.isSegmentedMessage()) {
-                final UnackedMessageKey key = new UnackedMessageKey(from, linkService, invokeId, false);
-                UnackedMessageContext ctx;
-                if (confAPDU.getSequenceNumber() == 0)
-                    // This is the first segment
-                    ctx = new UnackedMessageContext(localDevice.getClock(), timeout, retries, null, null);
-                else {
-                    ctx = unackedMessages.remove(key);
-                    if (ctx == null)
-                        LOG.warn("Received a request segment for an unknown request: {}", confAPDU);
+        private void receiveImpl(final NPDU in) {
+            if (in.isNetworkMessage()) {
+                switch (in.getNetworkMessageType()) {
+                case 0x1: // I-Am-Router-To-Network
+                case 0x2: // I-Could-Be-Router-To-Network
+                    final ByteQueue data = in.getNetworkMessageData();
+                    while (data.size() > 1) {
+                        final int nn = data.popU2B();
+                        LOG.debug("Adding network router {} for network {}", in.getFrom().getMacAddress(), nn);
+                        addNetworkRouter(nn, in.getFrom().getMacAddress());
+                    }
+                    break;
+                case 0x3: // Reject-Message-To-Network
+                    String reason;
+                    final ByteQueue rejectData = in.getNetworkMessageData();
+                    final int reasonCode = rejectData.popU1B();
+                    if (rejectData.size() > 1) {
+                        final int dnet = rejectData.popU2B();
+                        if (reasonCode == 1) {
+                            // The router has no route to the network. Find another.
+                            LOG.debug("Forgetting router {} to network {} because it has no route", in.getFrom(),
+                                    dnet);
+                            removeNetworkRouter(dnet);
+                        } else if (reasonCode == 2)
+                            networkBusy(dnet);
+                    }
+                    if (reasonCode == 0)
+                        reason = "Other error";
+                    else if (reasonCode == 1)
+                        reason = "The router is not directly connected to DNET and cannot find a router to DNET on any " //
+                                + "directly connected network using Who-Is-Router-To-Network messages.";
+                    else if (reasonCode == 2)
+                        reason = "The router is busy and unable to accept messages for the specified DNET at the " //
+                                + "present time.";
+                    else if (reasonCode == 3)
+                        reason = "It is an unknown network layer message type. The DNET returned in this case is a " //
+                                + "local matter.";
+                    else if (reasonCode == 4)
+                        reason = "The message is too long to be routed to this DNET.";
+                    else if (reasonCode == 5)
+                        reason = "The source message was rejected due to a BACnet security error and that error cannot " //
+                                + " be forwarded to the source device. See Clause 24.12.1.1 for more details on the " //
+                                + "generation of Reject-Message-To-Network messages indicating this reason.";
+                    else if (reasonCode == 6)
+                        reason = "The source message was rejected due to errors in the addressing. The length of the " //
+                                + "DADR or SADR was determined to be invalid.";
+                    else
+                        reason = "Unknown reason code";
+                    LOG.warn("Received Reject-Message-To-Network with reason '{}': {}", reasonCode, reason);
+                    break;
+                case 0x4: // Router-Busy-To-Network
+                    for (final int nn : getRoutedNetworks(in))
+                        networkBusy(nn);
+                    break;
+                case 0x5: // Router-Available-To-Network
+                    for (final int nn : getRoutedNetworks(in))
+                        busyNetworks.remove(nn);
+                    break;
+                default:
                 }
+            } else {
+                receiveAPDU(in);
+            }
+        }
+
+        private void networkBusy(final int networkNumber) {
+            LOG.debug("Holding back messages to network {} because its router is busy", networkNumber);
+            busyNetworks.put(networkNumber, localDevice.getClock().millis() + ROUTER_BUSY_TIME);
+        }
+
+        /**
+         * Returns the networks listed in a router's message, or all of the networks that the router is known to route
+         * to if there are none listed.
+         */
+        private List<Integer> getRoutedNetworks(final NPDU in) {
+            final List<Integer> result = new ArrayList<>();
+            final ByteQueue data = in.getNetworkMessageData();
+            while (data.size() > 1)
+                result.add(data.popU2B());
+            if (result.isEmpty()) {
+                networkRouters.forEach((nn, mac) -> {
+                    if (mac.equals(in.getFrom().getMacAddress()))
+                        result.add(nn);
+                });
+            }
+            return result;
+        }
+
+        private void receiveAPDU(final NPDU npdu) {
+            final Address from = npdu.getFrom();
+            final OctetString linkService = npdu.getLinkService();
+            APDU apdu;
+
+            try {
+                apdu = npdu.getAPDU(servicesSupported);
+            } catch (final BACnetException e) {
+                // Error parsing the APDU. Drop the request.
+                LOG.debug("Error parsing APDU", e);
+                return;
+            }
+
+            if (apdu instanceof ConfirmedRequest) {
+                // Received a request that must be handled and responded to.
+                final ConfirmedRequest confAPDU = (ConfirmedRequest) apdu;
+                final byte invokeId = confAPDU.getInvokeId();
 
                 try {
-                    segmentedIncoming(key, confAPDU, ctx);
-                } catch (final BACnetException e) {
-                    LOG.warn("Error handling incoming request", e);
-                    final com.serotonin.bacnet4j.apdu.Error error = new com.serotonin.bacnet4j.apdu.Error(
-                            confAPDU.getInvokeId(), 127,
-                            new ErrorClassAndCode(ErrorClass.services, ErrorCode.operationalProblem));
+                    ConfirmedRequestService.checkConfirmedRequestService(servicesSupported, confAPDU.getServiceChoice());
+                } catch (final BACnetRejectException e) {
                     try {
-                        network.sendAPDU(from, linkService, error, false);
+                        network.sendAPDU(from, linkService, new Reject(confAPDU.getInvokeId(), e.getRejectReason()), false);
                     } catch (final BACnetException e1) {
                         LOG.warn("Error sending error response", e1);
                     }
-                    localDevice.getExceptionDispatcher().fireReceivedException(e);
+                    LOG.warn("Receiving a confirmed service request that ist not supported or available. TYPE_ID '{}'", confAPDU.getServiceChoice());
+                    return;
                 }
-            } else
-                // Just handle the message.
-                incomingConfirmedRequest(confAPDU, from, linkService, invokeId);
-        } else if (apdu instanceof UnconfirmedRequest) {
-            // Received a request that must be handled with no response.
-            final UnconfirmedRequest ur = (UnconfirmedRequest) apdu;
 
-            try {
-                ur.parseServiceData();
-                localDevice.getEventHandler().requestReceived(from, ur.getService());
-                ur.getService().handle(localDevice, from);
-            } catch (@SuppressWarnings("unused") final BACnetRejectException e) {
-                // Ignore
-            } catch (final BACnetException e) {
-                localDevice.getExceptionDispatcher().fireReceivedException(e);
-            }
-        } else {
-            // Must be an acknowledgement
-            LOG.debug("incomingApdu: recieved an acknowledgement from {}", from);
-
-            final AckAPDU ack = (AckAPDU) apdu;
-            final UnackedMessageKey key = new UnackedMessageKey(from, linkService, ack.getOriginalInvokeId(),
-                    ack.isServer());
-            final UnackedMessageContext ctx = unackedMessages.remove(key);
-
-            if (ctx == null) {
-                // This can legitimately happen when requests are sent for which the sender did not need the response,
-                // such as COV unsubscribes.
-                LOG.debug("Received an acknowledgement from {} for an unknown request: {}", from, ack);
-            } else if (ack instanceof SegmentACK)
-                segmentedOutgoing(key, ctx, (SegmentACK) ack);
-            else if (ctx.getConsumer() != null) {
-                final ResponseConsumer consumer = ctx.getConsumer();
-                if (ack instanceof SimpleACK) {
-                    consumer.success(null);
-                } else if (ack instanceof ComplexACK) {
-                    final ComplexACK cack = (ComplexACK) ack;
-                    if (cack.isSegmentedMessage()) {
+                if (confAPDU.isSegmentedMessage()) {
+                    final UnackedMessageKey key = new UnackedMessageKey(from, linkService, invokeId, false);
+                    UnackedMessageContext ctx;
+                    if (confAPDU.getSequenceNumber() == 0) {
+                        // This is the first segment. Drop any earlier attempt of the same request.
+                        final UnackedMessageContext previous = unackedMessages.remove(key);
+                        if (previous != null)
+                            previous.releaseReassemblyBuffer();
+                        ctx = new UnackedMessageContext(localDevice.getClock(), timeout, retries, null, null);
+                    } else {
+                        ctx = unackedMessages.remove(key);
+                        if (ctx == null)
+                            LOG.warn("Received a request segment for an unknown request: {}", confAPDU);
+                    }
+
+                    try {
+                        segmentedIncoming(key, confAPDU, ctx);
+                    } catch (final BACnetException e) {
+                        LOG.warn("Error handling incoming request", e);
+                        final com.serotonin.bacnet4j.apdu.Error error = new com.serotonin.bacnet4j.apdu.Error(
+                                confAPDU.getInvokeId(), 127,
+                                new ErrorClassAndCode(ErrorClass.services, ErrorCode.operationalProblem));
                         try {
-                            segmentedIncoming(key, cack, ctx);
-                        } catch (final BACnetException e) {
-                            consumer.ex(e);
+                            network.sendAPDU(from, linkService, error, false);
+                        } catch (final BACnetException e1) {
+                            LOG.warn("Error sending error response", e1);
                         }
-                    } else
-                        completeComplexAckResponse(cack, consumer);
-                } else if (ack instanceof com.serotonin.bacnet4j.apdu.Error)
-                    consumer.fail(ack);
-                else if (ack instanceof Reject)
-                    consumer.fail(ack);
-                else if (ack instanceof Abort)
-                    consumer.fail(ack);
-                else
-                    LOG.error("Unexpected ack from {}, APDU: {}", from, ack);
+                        localDevice.getExceptionDispatcher().fireReceivedException(e);
+                    }
+                } else
+                    // Just handle the message.
+                    incomingConfirmedRequest(confAPDU, from, linkService, invokeId, null);
+            } else if (apdu instanceof UnconfirmedRequest) {
+                // Received a request that must be handled with no response.
+                final UnconfirmedRequest ur = (UnconfirmedRequest) apdu;
+
+                try {
+                    ur.parseServiceData();
+                    localDevice.getEventHandler().requestReceived(from, ur.getService());
+                    ur.getService().handle(localDevice, from);
+                } catch (@SuppressWarnings("unused") final BACnetRejectException e) {
+                    // Ignore
+                } catch (final BACnetException e) {
+                    localDevice.getExceptionDispatcher().fireReceivedException(e);
+                }
+            } else {
+                // Must be an acknowledgement
+                LOG.debug("incomingApdu: recieved an acknowledgement from {}", from);
+
+                final AckAPDU ack = (AckAPDU) apdu;
+                final UnackedMessageKey key = new UnackedMessageKey(from, linkService, ack.getOriginalInvokeId(),
+                        ack.isServer());
+                final UnackedMessageContext ctx = unackedMessages.remove(key);
+
+                // Failures end any reassembly of a segmented message.
+                if (ctx != null && (ack instanceof com.serotonin.bacnet4j.apdu.Error || ack instanceof Reject
+                        || ack instanceof Abort))
+                    ctx.releaseReassemblyBuffer();
+
+                // Measure the round trip of requests that were answered on the first attempt.
+                if (ctx != null && !(ack instanceof SegmentACK) && !ctx.isRetried() && isSimpleRequest(key, ctx))
+                    rttEstimator.sample(from, ctx.getAge(), localDevice.getClock().millis());
+
+                // Measure the latency of requests whose responses are complete. Segmented responses are measured once
+                // all of their segments have arrived.
+                if (ctx != null && key.isFromServer() && !(ack instanceof SegmentACK)
+                        && !(ack instanceof ComplexACK && ((ComplexACK) ack).isSegmentedMessage()))
+                    metrics.requestCompleted(from, ctx.getService(), ctx.getAge());
+
+                if (ctx == null) {
+                    // This can legitimately happen when requests are sent for which the sender did not need the response,
+                    // such as COV unsubscribes.
+                    LOG.debug("Received an acknowledgement from {} for an unknown request: {}", from, ack);
+                } else if (ack instanceof SegmentACK)
+                    segmentedOutgoing(key, ctx, (SegmentACK) ack);
+                else if (ctx.getConsumer() != null) {
+                    final ResponseConsumer consumer = ctx.getConsumer();
+                    if (ack instanceof SimpleACK) {
+                        consumer.success(null);
+                    } else if (ack instanceof ComplexACK) {
+                        final ComplexACK cack = (ComplexACK) ack;
+                        if (cack.isSegmentedMessage()) {
+                            try {
+                                segmentedIncoming(key, cack, ctx);
+                            } catch (final BACnetException e) {
+                                consumer.ex(e);
+                            }
+                        } else
+                            completeComplexAckResponse(cack, consumer);
+                    } else if (ack instanceof com.serotonin.bacnet4j.apdu.Error)
+                        consumer.fail(ack);
+                    else if (ack instanceof Reject)
+                        consumer.fail(ack);
+                    else if (ack instanceof Abort)
+                        consumer.fail(ack);
+                    else
+                        LOG.error("Unexpected ack from {}, APDU: {}", from, ack);
+                }
             }
         }
-    }
 
-    private void segmentedIncoming(final UnackedMessageKey key, final Segmentable msg, final UnackedMessageContext ctx)
-            throws BACnetException {
-        final int windowSize = msg.getProposedWindowSize();
-        final int currentSeq = msg.getSequenceNumber() & 0xff;
-        boolean complete = false;
+        private void segmentedIncoming(final UnackedMessageKey key, final Segmentable msg, final UnackedMessageContext ctx)
+                throws BACnetException {
+            final int currentSeq = msg.getSequenceNumber() & 0xff;
+            boolean complete = false;
+            metrics.segmentReceived(key.getAddress());
 
-        if (ctx.getSegmentWindow() == null) {
-            LOG.debug("Received first segment {} for {}", currentSeq, key);
+            if (ctx.getSegmentWindow() == null) {
+                LOG.debug("Received first segment {} for {}", currentSeq, key);
 
-            // This is the first segment.
-            ctx.setSegmentWindow(new SegmentWindow(windowSize, currentSeq + 1));
-            ctx.setSegmentedMessage(msg);
+                // Accept no more than the window that transfers from this peer have shown to work.
+                final int windowSize = Math.min(msg.getProposedWindowSize(), getReceiveSegWindow(key.getAddress()));
 
-            // Send a segment acknowledgement going with the proposed window size.
-            network.sendAPDU(key.getAddress(), key.getLinkService(),
-                    new SegmentACK(false, !key.isFromServer(), msg.getInvokeId(), currentSeq, windowSize, true), false);
-        } else {
-            final SegmentWindow segmentWindow = ctx.getSegmentWindow();
+                // This is the first segment. Its data is moved into a buffer that the rest of the segments are
+                // appended to.
+                final ReassemblyBufferPool.Buffer buffer = reassemblyBuffers
+                        .acquire(msg.getServiceData().size() * (windowSize + 1));
+                if (buffer == null) {
+                    abortReassembly(key, msg, ctx);
+                    return;
+                }
+                buffer.queue.push(msg.getServiceData());
+                msg.setServiceData(buffer.queue);
+                ctx.setReassemblyBuffer(buffer);
 
-            LOG.debug("Received segment {}, first={}, window size={}, for {}", currentSeq,
-                    segmentWindow.getFirstSequenceId(), segmentWindow.getWindowSize(), key);
+                ctx.setSegmentWindow(new SegmentWindow(windowSize, currentSeq + 1));
+                ctx.setSegmentedMessage(msg);
 
-            if (segmentWindow.fitsInWindow(msg)) {
-                segmentWindow.setSegment(msg);
+                // Send a segment acknowledgement with the window size.
+                network.sendAPDU(key.getAddress(), key.getLinkService(),
+                        new SegmentACK(false, !key.isFromServer(), msg.getInvokeId(), currentSeq, windowSize, true), false);
+            } else {
+                final SegmentWindow segmentWindow = ctx.getSegmentWindow();
 
-                // Do we need to send an ack?
-                complete = segmentWindow.isMessageComplete();
-                if (complete || segmentWindow.isFull()) {
-                    final int lastSeq = segmentWindow.getLatestSequenceId();
+                LOG.debug("Received segment {}, first={}, window size={}, for {}", currentSeq,
+                        segmentWindow.getFirstSequenceId(), segmentWindow.getWindowSize(), key);
 
-                    LOG.debug("Sending ack for segment {}, key={}", lastSeq, key);
+                if (segmentWindow.fitsInWindow(msg)) {
+                    segmentWindow.setSegment(msg);
 
-                    // Send an acknowledgement
-                    network.sendAPDU(key.getAddress(), key.getLinkService(), new SegmentACK(false, !key.isFromServer(),
-                            msg.getInvokeId(), lastSeq, windowSize, !segmentWindow.isMessageComplete()), false);
+                    // Do we need to send an ack?
+                    complete = segmentWindow.isMessageComplete();
+                    if (complete || segmentWindow.isFull()) {
+                        final int lastSeq = segmentWindow.getLatestSequenceId();
 
-                    // Append the window onto the original response.
-                    for (final Segmentable segment : segmentWindow.getSegments()) {
-                        ctx.getSegmentedMessage().appendServiceData(segment.getServiceData());
-                        if (!segment.isMoreFollows())
-                            break;
+                        // Make sure that the window fits into the reassembly buffer.
+                        int length = 0;
+                        for (final Segmentable segment : segmentWindow.getSegments()) {
+                            length += segment.getServiceData().size();
+                            if (!segment.isMoreFollows())
+                                break;
+                        }
+                        if (!ensureReassemblyRoom(ctx, length)) {
+                            abortReassembly(key, msg, ctx);
+                            return;
+                        }
+
+                        LOG.debug("Sending ack for segment {}, key={}", lastSeq, key);
+
+                        // Send an acknowledgement
+                        network.sendAPDU(key.getAddress(), key.getLinkService(),
+                                new SegmentACK(false, !key.isFromServer(), msg.getInvokeId(), lastSeq,
+                                        segmentWindow.getWindowSize(), !segmentWindow.isMessageComplete()),
+                                false);
+                        if (adaptiveSegWindow)
+                            receiveWindows.windowComplete(key.getAddress(), SegmentWindowController.MAX_WINDOW_SIZE);
+
+                        // Append the window onto the original response.
+                        for (final Segmentable segment : segmentWindow.getSegments()) {
+                            ctx.getSegmentedMessage().appendServiceData(segment.getServiceData());
+                            if (!segment.isMoreFollows())
+                                break;
+                        }
+                        segmentWindow.clear(lastSeq + 1);
                     }
-                    segmentWindow.clear(lastSeq + 1);
+                } else {
+                    LOG.warn("Segment did not fit in segment window: segment={}, first={}, windowSize={}, key={}",
+                            currentSeq, segmentWindow.getFirstSequenceId(), segmentWindow.getWindowSize(), key);
                 }
-            } else {
-                LOG.warn("Segment did not fit in segment window: segment={}, first={}, windowSize={}, key={}",
-                        currentSeq, segmentWindow.getFirstSequenceId(), segmentWindow.getWindowSize(), key);
             }
+
+            if (!complete) {
+                // More segments to come. Put the value back in the pending requests.
+                ctx.reset(segTimeout * 4, 0);
+                unackedMessages.add(key, ctx);
+            } else if (msg instanceof ComplexACK) {
+                // We're done receiving the segmented response.
+                metrics.requestCompleted(key.getAddress(), ctx.getService(), ctx.getAge());
+                completeComplexAckResponse((ComplexACK) ctx.getSegmentedMessage(), ctx.getConsumer(),
+                        ctx::releaseReassemblyBuffer);
+            } else
+                // We're done receiving the segmented request. The buffer is released once the request is handled.
+                incomingConfirmedRequest((ConfirmedRequest) ctx.getSegmentedMessage(), key.getAddress(),
+                        key.getLinkService(), msg.getInvokeId(), ctx);
         }
 
-        if (!complete) {
-            // More segments to come. Put the value back in the pending requests.
-            ctx.reset(segTimeout * 4, 0);
-            unackedMessages.add(key, ctx);
-        } else if (msg instanceof ComplexACK)
-            // We're done receiving the segmented response.
-            completeComplexAckResponse((ComplexACK) ctx.getSegmentedMessage(), ctx.getConsumer());
-        else
-            // We're done receiving the segmented request.
-            incomingConfirmedRequest((ConfirmedRequest) ctx.getSegmentedMessage(), key.getAddress(),
-                    key.getLinkService(), msg.getInvokeId());
-    }
+        /**
+         * Makes sure that the given number of bytes can be appended to the message that is being reassembled, by
+         * moving it to a larger buffer if necessary.
+         *
+         * @return false if a larger buffer would exceed the reassembly budget.
+         */
+        private boolean ensureReassemblyRoom(final UnackedMessageContext ctx, final int length) {
+            final ReassemblyBufferPool.Buffer buffer = ctx.getReassemblyBuffer();
+            if (buffer == null || buffer.hasRoom(length))
+                return true;
+
+            final ReassemblyBufferPool.Buffer larger = reassemblyBuffers
+                    .acquire(Math.max(buffer.capacity * 2, buffer.queue.size() + length));
+            if (larger == null)
+                return false;
+            larger.queue.push(buffer.queue);
+            ctx.getSegmentedMessage().setServiceData(larger.queue);
+            ctx.setReassemblyBuffer(larger);
+            buffer.release();
+            return true;
+        }
 
-    private static void completeComplexAckResponse(final ComplexACK cack, final ResponseConsumer consumer) {
-        try {
-            cack.parseServiceData();
-            if (consumer != null) {
-                consumer.success(cack.getService());
-            }
-        } catch (final BACnetException e) {
-            if (consumer != null) {
-                consumer.ex(e);
-            }
+        private void abortReassembly(final UnackedMessageKey key, final Segmentable msg,
+                final UnackedMessageContext ctx) throws BACnetException {
+            LOG.warn("Aborting segmented message from {} because the reassembly budget of {} bytes is used up",
+                    key.getAddress(), reassemblyBuffers.getBudget());
+            ctx.releaseReassemblyBuffer();
+            network.sendAPDU(key.getAddress(), key.getLinkService(),
+                    new Abort(!key.isFromServer(), msg.getInvokeId(), AbortReason.outOfResources), false);
+            ctx.useConsumer((consumer) -> consumer
+                    .ex(new BACnetException("Segmented response aborted because the reassembly budget is used up")));
         }
-    }
 
-    /**
-     * The first part of the segmented message has already been sent. This is called each time a segment ack is
-     * received.
-     *
-     * This method handles outgoing segmented requests and responses.
-     */
-    private void segmentedOutgoing(final UnackedMessageKey key, final UnackedMessageContext ctx, final SegmentACK ack) {
-        // TODO handle NAK
+        /**
+         * The first part of the segmented message has already been sent. This is called each time a segment ack is
+         * received.
+         *
+         * This method handles outgoing segmented requests and responses.
+         */
+        private void segmentedOutgoing(final UnackedMessageKey key, final UnackedMessageContext ctx, final SegmentACK ack) {
+            LOG.debug("Received segment ack {} for {}", ack.getSequenceNumber(), key);
+
+            if (ack.isNegativeAck()) {
+                // Segments were lost. Resend from the one after the last that was received in order.
+                LOG.debug("Received negative segment ack {} for {}", ack.getSequenceNumber(), key);
+                if (adaptiveSegWindow)
+                    sendWindows.segmentLost(key.getAddress());
+                ctx.rewindToSegment(ctx.toSegmentIndex(ack.getSequenceNumber()) + 1);
+            } else {
+                // This may be a segment ack for an inter-window segment. We ignore all segment acks except for the
+                // one for the last segment that was sent.
+                if (ctx.toSegmentIndex(ack.getSequenceNumber()) < ctx.getLastIdSent()) {
+                    unackedMessages.add(key, ctx);
+                    return;
+                }
 
-        LOG.debug("Received segment ack {} for {}", ack.getSequenceNumber(), key);
+                if (adaptiveSegWindow) {
+                    // The window was received cleanly. A peer that accepted less than the proposed window will not
+                    // accept more next time.
+                    final int proposed = ctx.getSegmentTemplate().getProposedWindowSize();
+                    sendWindows.windowComplete(key.getAddress(),
+                            ack.getActualWindowSize() < proposed ? ack.getActualWindowSize()
+                                    : SegmentWindowController.MAX_WINDOW_SIZE);
+                }
 
-        if (ctx.getServiceData().size() == 0) {
-            // There any no more segments to send. If this is a request, expect the response.
-            if (ctx.getOriginalApdu() instanceof ConfirmedRequest)
-                unackedMessages.add(key, ctx);
-            // However, if this is a response, there is nothing left to do.
-            LOG.debug("Done sending segmented response");
-            return;
-        }
+                if (ctx.getRemainingServiceData() == 0) {
+                    // There any no more segments to send. If this is a request, expect the response.
+                    if (ctx.getOriginalApdu() instanceof ConfirmedRequest)
+                        unackedMessages.add(key, ctx);
+                    // However, if this is a response, there is nothing left to do.
+                    LOG.debug("Done sending segmented response");
+                    return;
+                }
+            }
 
-        // This may be a segment ack for an inter-window segment. We ignore all segment acks except for the
-        // one for the last segment that was sent.
-        if (ack.getSequenceNumber() < ctx.getLastIdSent())
-            return;
+            int remaining = ack.getActualWindowSize();
 
-        int remaining = ack.getActualWindowSize();
+            // Send the next window of messages.
+            int sequenceNumber = ctx.getLastIdSent();
+            while (remaining > 0 && ctx.getRemainingServiceData() > 0) {
+                final ByteQueue segData = ctx.getNextSegment();
+                final APDU segment = ctx.getSegmentTemplate().clone(ctx.getRemainingServiceData() > 0, ++sequenceNumber,
+                        ack.getActualWindowSize(), segData);
 
-        // Send the next window of messages.
-        int sequenceNumber = ctx.getLastIdSent();
-        while (remaining > 0 && ctx.getServiceData().size() > 0) {
-            final ByteQueue segData = ctx.getNextSegment();
-            final APDU segment = ctx.getSegmentTemplate().clone(ctx.getServiceData().size() > 0, ++sequenceNumber,
-                    ack.getActualWindowSize(), segData);
+                LOG.debug("Sending segment {} for {}", sequenceNumber, key);
+                try {
+                    network.sendAPDU(key.getAddress(), key.getLinkService(), segment, false);
+                    metrics.segmentSent(key.getAddress());
+                } catch (final BACnetException e) {
+                    ctx.useConsumer((consumer) -> consumer.ex(e));
+                    return;
+                }
 
-            LOG.debug("Sending segment {} for {}", sequenceNumber, key);
-            try {
-                network.sendAPDU(key.getAddress(), key.getLinkService(), segment, false);
-            } catch (final BACnetException e) {
-                ctx.useConsumer((consumer) -> consumer.ex(e));
+                remaining--;
+            }
+            ctx.setLastIdSent(sequenceNumber);
+            ctx.reset(segTimeout, retries);
+
+            // Expect the segment ack.
+            unackedMessages.add(key, ctx);
+        }
+
+        /**
+         * @param reassembly
+         *            the context in which the request was reassembled if it was segmented, otherwise null
+         */
+        private void incomingConfirmedRequest(final ConfirmedRequest confAPDU, final Address address,
+                final OctetString linkService, final byte invokeId, final UnackedMessageContext reassembly) {
+            final IncomingConfirmed in = new IncomingConfirmed(this, confAPDU, address, linkService, invokeId,
+                    reassembly);
+            final Executor executor = handlerExecutor;
+            if (executor == null) {
+                in.handle();
+                respond(in);
                 return;
             }
 
-            remaining--;
+            final Queue<IncomingConfirmed> queue = handling.get(address);
+            if (queue == null) {
+                handling.put(address, new LinkedList<>());
+                submit(executor, in);
+            } else
+                queue.add(in);
         }
-        ctx.setLastIdSent(sequenceNumber);
-        ctx.reset(segTimeout, retries);
 
-        // Expect the segment ack.
-        unackedMessages.add(key, ctx);
-    }
+        private void submit(final Executor executor, final IncomingConfirmed in) {
+            try {
+                executor.execute(in);
+            } catch (final RejectedExecutionException e) {
+                LOG.warn("Handler executor rejected request from {}", in.address, e);
+                in.ex = new BACnetAbortException(AbortReason.outOfResources, e);
+                handled(in);
+            }
+        }
 
-    private void incomingConfirmedRequest(final ConfirmedRequest confAPDU, final Address address,
-            final OctetString linkService, final byte invokeId) {
-        try {
+        /**
+         * Called in the worker thread when the handler executor has finished with a request. Sends the response and
+         * starts the next request from the same client.
+         */
+        void handled(final IncomingConfirmed in) {
+            respond(in);
+
+            final Queue<IncomingConfirmed> queue = handling.get(in.address);
+            if (queue != null) {
+                final IncomingConfirmed next = queue.poll();
+                if (next == null)
+                    handling.remove(in.address);
+                else
+                    submit(handlerExecutor == null ? Runnable::run : handlerExecutor, next);
+            }
+        }
+
+        private void respond(final IncomingConfirmed in) {
+            // The request has been parsed, so its data is no longer needed.
+            if (in.reassembly != null)
+                in.reassembly.releaseReassemblyBuffer();
+
+            final ConfirmedRequest confAPDU = in.confAPDU;
+            final Address address = in.address;
+            final OctetString linkService = in.linkService;
+            final byte invokeId = in.invokeId;
             try {
-                confAPDU.parseServiceData();
-                final AcknowledgementService ackService = handleConfirmedRequest(address, invokeId,
-                        confAPDU.getServiceRequest());
-
-                // 16.1.2: Check if communication is currently disabled. If so, only certain requests are responded.
-                boolean allowResponse = true;
-                if (EnableDisable.disable.equals(localDevice.getCommunicationControlState())) {
-                    // Communication is disabled. Check if the response should be allowed anyway. This includes at
-                    // least communication control and reinitialize device.
-                    if (!confAPDU.getServiceRequest().isCommunicationControlOverride()) {
-                        allowResponse = false;
+                try {
+                    if (in.ex != null)
+                        throw in.ex;
+
+                    // 16.1.2: Check if communication is currently disabled. If so, only certain requests are responded.
+                    boolean allowResponse = true;
+                    if (EnableDisable.disable.equals(localDevice.getCommunicationControlState())) {
+                        // Communication is disabled. Check if the response should be allowed anyway. This includes at
+                        // least communication control and reinitialize device.
+                        if (!confAPDU.getServiceRequest().isCommunicationControlOverride()) {
+                            allowResponse = false;
+                        }
                     }
-                }
 
-                if (allowResponse) {
-                    // Send the response.
-                    sendConfirmedResponse(address, linkService, confAPDU, ackService);
-                } else {
-                    LOG.info("Response suppressed because communication has been disabled.");
+                    if (allowResponse) {
+                        // Send the response.
+                        sendConfirmedResponse(address, linkService, confAPDU, in.ack);
+                    } else {
+                        LOG.info("Response suppressed because communication has been disabled.");
+                    }
+                } catch (final BACnetErrorException e) {
+                    network.sendAPDU(address, linkService,
+                            new com.serotonin.bacnet4j.apdu.Error(invokeId, e.getBacnetError()), false);
+                } catch (final BACnetRejectException e) {
+                    network.sendAPDU(address, linkService, new Reject(invokeId, e.getRejectReason()), false);
+                } catch (final BACnetAbortException e) {
+                    network.sendAPDU(address, linkService, new Abort(true, invokeId, e.getAbortReason()), false);
+                } catch (final BACnetException e) {
+                    LOG.warn("Error handling incoming request", e);
+                    final com.serotonin.bacnet4j.apdu.Error error = new com.serotonin.bacnet4j.apdu.Error(
+                            confAPDU.getInvokeId(), 127,
+                            new ErrorClassAndCode(ErrorClass.services, ErrorCode.operationalProblem));
+                    network.sendAPDU(address, linkService, error, false);
+                    localDevice.getExceptionDispatcher().fireReceivedException(e);
                 }
-            } catch (final BACnetErrorException e) {
-                network.sendAPDU(address, linkService,
-                        new com.serotonin.bacnet4j.apdu.Error(invokeId, e.getBacnetError()), false);
-            } catch (final BACnetRejectException e) {
-                network.sendAPDU(address, linkService, new Reject(invokeId, e.getRejectReason()), false);
-            } catch (final BACnetAbortException e) {
-                network.sendAPDU(address, linkService, new Abort(true, invokeId, e.getAbortReason()), false);
             } catch (final BACnetException e) {
-                LOG.warn("Error handling incoming request", e);
-                final com.serotonin.bacnet4j.apdu.Error error = new com.serotonin.bacnet4j.apdu.Error(
-                        confAPDU.getInvokeId(), 127,
-                        new ErrorClassAndCode(ErrorClass.services, ErrorCode.operationalProblem));
-                network.sendAPDU(address, linkService, error, false);
                 localDevice.getExceptionDispatcher().fireReceivedException(e);
             }
-        } catch (final BACnetException e) {
-            localDevice.getExceptionDispatcher().fireReceivedException(e);
         }
-    }
 
-    private AcknowledgementService handleConfirmedRequest(final Address from, final byte invokeId,
-            final ConfirmedRequestService service) throws BACnetException {
-        try {
-            localDevice.getEventHandler().requestReceived(from, service);
-            return service.handle(localDevice, from);
-        } catch (@SuppressWarnings("unused") final NotImplementedException e) {
-            LOG.warn("Unsupported confirmed request: invokeId=" + invokeId + ", from=" + from + ", request="
-                    + service.getClass().getName());
-            throw new BACnetRejectException(RejectReason.unrecognizedService, e);
-        } catch (final BACnetErrorException e) {
-            throw e;
-        } catch (final Exception e) {
-            LOG.warn("Error while handling confirmed request", e);
-            throw new BACnetErrorException(ErrorClass.device, ErrorCode.operationalProblem);
-        }
-    }
-
-    private void sendConfirmedResponse(final Address address, final OctetString linkService,
-            final ConfirmedRequest request, final AcknowledgementService response) throws BACnetException {
-        if (response == null)
-            network.sendAPDU(address, linkService,
-                    new SimpleACK(request.getInvokeId(), request.getServiceRequest().getChoiceId()), false);
-        else {
-            // A complex ack response. Serialize the data.
-            final ByteQueue serviceData = new ByteQueue();
-            response.write(serviceData);
-
-            // Check if we need to segment the message.
-            if (serviceData.size() > request.getMaxApduLengthAccepted().getMaxLengthInt()
-                    - ComplexACK.getHeaderSize(false)) {
-                final int maxServiceData = request.getMaxApduLengthAccepted().getMaxLengthInt()
-                        - ComplexACK.getHeaderSize(true);
-                // Check if the device can accept what we want to send.
-                if (!request.isSegmentedResponseAccepted()) {
-                    LOG.warn("Response too big to send to device without segmentation");                   
-                    throw new BACnetAbortException(AbortReason.bufferOverflow);         
-                }
-                final int segmentsRequired = serviceData.size() / maxServiceData + 1;
-                if (segmentsRequired > request.getMaxSegmentsAccepted().getMaxSegments() || segmentsRequired > 255) {
-                    LOG.warn("Response too big to send to device; too many segments required");
-                    throw new BACnetAbortException(AbortReason.bufferOverflow); 
-                }
-                LOG.debug("Sending confirmed response as segmented with {} segments", segmentsRequired);
-                // Prepare the segmenting session.
-                final UnackedMessageContext ctx = new UnackedMessageContext(localDevice.getClock(), timeout, retries,
-                        null, null);
-                final UnackedMessageKey key = unackedMessages.addServer(address, linkService, request.getInvokeId(),
-                        ctx);
-
-                ctx.setSegmentTemplate(
-                        new ComplexACK(true, true, request.getInvokeId(), 0, segWindow, response.getChoiceId(), null));
-                ctx.setServiceData(serviceData);
-                ctx.setSegBuf(new byte[maxServiceData]);
-
-                // Send an initial message to negotiate communication terms.
-                final APDU apdu = ctx.getSegmentTemplate().clone(true, 0, segWindow, ctx.getNextSegment());
-
-                ctx.setOriginalApdu(apdu);
-                sendForResponse(key, ctx);
-            } else {
-                // We can send the whole APDU in one shot.
+        private void sendConfirmedResponse(final Address address, final OctetString linkService,
+                final ConfirmedRequest request, final AcknowledgementService response) throws BACnetException {
+            if (response == null)
                 network.sendAPDU(address, linkService,
-                        new ComplexACK(false, false, request.getInvokeId(), 0, 0, response), false);
+                        new SimpleACK(request.getInvokeId(), request.getServiceRequest().getChoiceId()), false);
+            else {
+                // A complex ack response. Serialize the data.
+                final ByteQueue serviceData = new ByteQueue();
+                response.write(serviceData);
+
+                // Check if we need to segment the message.
+                if (serviceData.size() > request.getMaxApduLengthAccepted().getMaxLengthInt()
+                        - ComplexACK.getHeaderSize(false)) {
+                    final int maxServiceData = request.getMaxApduLengthAccepted().getMaxLengthInt()
+                            - ComplexACK.getHeaderSize(true);
+                    // Check if the device can accept what we want to send.
+                    if (!request.isSegmentedResponseAccepted()) {
+                        LOG.warn("Response too big to send to device without segmentation");                   
+                        throw new BACnetAbortException(AbortReason.bufferOverflow);         
+                    }
+                    final int segmentsRequired = serviceData.size() / maxServiceData + 1;
+                    if (segmentsRequired > request.getMaxSegmentsAccepted().getMaxSegments() || segmentsRequired > 255) {
+                        LOG.warn("Response too big to send to device; too many segments required");
+                        throw new BACnetAbortException(AbortReason.bufferOverflow); 
+                    }
+                    LOG.debug("Sending confirmed response as segmented with {} segments", segmentsRequired);
+                    // Prepare the segmenting session.
+                    final UnackedMessageContext ctx = new UnackedMessageContext(localDevice.getClock(), timeout, retries,
+                            null, null);
+                    final UnackedMessageKey key = unackedMessages.addServer(address, linkService, request.getInvokeId(),
+                            ctx);
+
+                    final int window = getSendSegWindow(address);
+                    ctx.setSegmentTemplate(
+                            new ComplexACK(true, true, request.getInvokeId(), 0, window, response.getChoiceId(), null));
+                    ctx.setServiceData(serviceData, maxServiceData);
+
+                    // Send an initial message to negotiate communication terms.
+                    final APDU apdu = ctx.getSegmentTemplate().clone(true, 0, window, ctx.getNextSegment());
+                    metrics.segmentSent(address);
+
+                    ctx.setOriginalApdu(apdu);
+                    sendForResponse(key, ctx);
+                } else {
+                    // We can send the whole APDU in one shot.
+                    network.sendAPDU(address, linkService,
+                            new ComplexACK(false, false, request.getInvokeId(), 0, 0, response), false);
+                }
             }
         }
-    }
 
-    private boolean expire() {
-        boolean didSomething = false;
-
-        final long now = localDevice.getClock().millis();
-        final Iterator<Map.Entry<UnackedMessageKey, UnackedMessageContext>> umIter = unackedMessages.getRequests()
-                .entrySet().iterator();
+        /**
+         * Handles the unacked messages that have expired, either by resending them or by timing them out.
+         *
+         * @return true if any messages expired
+         */
+        private boolean expire() {
+            final long now = localDevice.getClock().millis();
+            final MutableBoolean didSomething = new MutableBoolean();
+
+            unackedMessages.expire(now, (key, ctx) -> {
+                didSomething.setTrue();
+
+                // Segments that we sent, or were waiting for, have been lost.
+                if (adaptiveSegWindow) {
+                    if (ctx.getSegmentWindow() != null)
+                        receiveWindows.segmentLost(key.getAddress());
+                    else if (ctx.getSegmentTemplate() != null && ctx.getRemainingServiceData() > 0)
+                        sendWindows.segmentLost(key.getAddress());
+                }
 
-        // Check for expired unacked messages
-        while (umIter.hasNext()) {
-            final Map.Entry<UnackedMessageKey, UnackedMessageContext> e = umIter.next();
-            final UnackedMessageKey key = e.getKey();
-            final UnackedMessageContext ctx = e.getValue();
-            if (ctx.isExpired(now)) {
                 if (ctx.hasMoreAttempts()) {
                     // Resend
-                    ctx.retry(timeout);
+                    metrics.requestRetried(key.getAddress(), ctx.getService());
+                    if (adaptiveTimeouts && isSimpleRequest(key, ctx))
+                        // Back off.
+                        ctx.retry(Math.max(minTimeout, Math.min(maxTimeout, ctx.getTimeout() * 2)));
+                    else
+                        ctx.retry(timeout);
+                    unackedMessages.add(key, ctx);
                     sendForResponse(key, ctx);
                 } else {
                     LOG.debug("Timeout on key {}", key);
 
                     // Timeout
-                    umIter.remove();
+                    metrics.requestTimedOut(key.getAddress(), ctx.getService());
+                    unackedMessages.remove(key);
+                    ctx.releaseReassemblyBuffer();
                     if (ctx.getSegmentWindow() == null) {
                         // Not a segmented message, at least as far as we know.
                         ctx.useConsumer((consumer) -> consumer.ex(new BACnetTimeoutException()));
@@ -978,20 +2146,73 @@ public class DefaultTransport implements Transport, Runnable {
                         }
                     }
                 }
+            });
+
+            // Forget the round trip times of peers that have not answered in a while.
+            rttEstimator.expire(now);
 
-                didSomething = true;
+            return didSomething.isTrue();
+        }
+
+        /**
+         * @return true if the context is for a request that this device sent without segmentation, and that has not
+         *         received any response segments.
+         */
+        private boolean isSimpleRequest(final UnackedMessageKey key, final UnackedMessageContext ctx) {
+            return key.isFromServer() && ctx.getSegmentTemplate() == null && ctx.getSegmentWindow() == null;
+        }
+
+        void sendForResponse(final UnackedMessageKey key, final UnackedMessageContext ctx) {
+            try {
+                network.sendAPDU(key.getAddress(), key.getLinkService(), ctx.getOriginalApdu(), false);
+            } catch (final BACnetException e) {
+                unackedMessages.remove(key);
+                ctx.useConsumer((consumer) -> consumer.ex(e));
             }
         }
+    }
 
-        return !didSomething;
+    private static void completeComplexAckResponse(final ComplexACK cack, final ResponseConsumer consumer) {
+        completeComplexAckResponse(cack, consumer, null);
     }
 
-    void sendForResponse(final UnackedMessageKey key, final UnackedMessageContext ctx) {
+    /**
+     * @param parsed
+     *            if not null, run once the service data has been parsed and before the consumer is notified
+     */
+    private static void completeComplexAckResponse(final ComplexACK cack, final ResponseConsumer consumer,
+            final Runnable parsed) {
         try {
-            network.sendAPDU(key.getAddress(), key.getLinkService(), ctx.getOriginalApdu(), false);
+            try {
+                cack.parseServiceData();
+            } finally {
+                if (parsed != null)
+                    parsed.run();
+            }
+            if (consumer != null) {
+                consumer.success(cack.getService());
+            }
         } catch (final BACnetException e) {
-            unackedMessages.remove(key);
-            ctx.useConsumer((consumer) -> consumer.ex(e));
+            if (consumer != null) {
+                consumer.ex(e);
+            }
+        }
+    }
+
+    private AcknowledgementService handleConfirmedRequest(final Address from, final byte invokeId,
+            final ConfirmedRequestService service) throws BACnetException {
+        try {
+            localDevice.getEventHandler().requestReceived(from, service);
+            return service.handle(localDevice, from);
+        } catch (@SuppressWarnings("unused") final NotImplementedException e) {
+            LOG.warn("Unsupported confirmed request: invokeId=" + invokeId + ", from=" + from + ", request="
+                    + service.getClass().getName());
+            throw new BACnetRejectException(RejectReason.unrecognizedService, e);
+        } catch (final BACnetErrorException e) {
+            throw e;
+        } catch (final Exception e) {
+            LOG.warn("Error while handling confirmed request", e);
+            throw new BACnetErrorException(ErrorClass.device, ErrorCode.operationalProblem);
         }
     }
 
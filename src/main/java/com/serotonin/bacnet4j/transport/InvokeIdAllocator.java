@@ -0,0 +1,118 @@
+/*
+ * ============================================================================
+ * GNU General Public License
+ * ============================================================================
+ *
+ * Copyright (C) 2015 Infinite Automation Software. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * When signing a commercial license with Infinite Automation Software,
+ * the following extension to GPL is made. A special exception to the GPL is
+ * included to allow you to distribute a combined work that includes BAcnet4J
+ * without being obliged to provide the source code for any proprietary components.
+ *
+ * See www.infiniteautomation.com for commercial license options.
+ *
+ * @author Matthew Lohbihler
+ */
+package com.serotonin.bacnet4j.transport;
+
+/**
+ * Allocates the invoke ids used for requests to a single peer. The ids in use are tracked in a bitmap. Allocation
+ * continues on from the last id that was handed out rather than reusing the lowest free id, so that an id is not
+ * reused right after it is released, when a late response may still be on its way.
+ *
+ * This class is not thread safe.
+ */
+public class InvokeIdAllocator {
+    public static final int SIZE = 256;
+
+    private final long[] used = new long[SIZE / 64];
+    private int next;
+    private int count;
+
+    public InvokeIdAllocator() {
+        this(0);
+    }
+
+    /**
+     * @param next
+     *            the id from which allocation starts, e.g. where an earlier allocator for the peer left off
+     */
+    public InvokeIdAllocator(final int next) {
+        this.next = next & 0xff;
+    }
+
+    /**
+     * @return the allocated id, or -1 if all ids are in use.
+     */
+    public int allocate() {
+        if (count == SIZE)
+            return -1;
+
+        for (int i = 0; i < SIZE; i++) {
+            final int id = (next + i) & 0xff;
+            if (!isUsed(id)) {
+                reserve(id);
+                next = id + 1;
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Marks the given id as in use.
+     */
+    public void reserve(final int id) {
+        if (!isUsed(id)) {
+            used[id >> 6] |= 1L << (id & 63);
+            count++;
+        }
+    }
+
+    public void release(final int id) {
+        if (isUsed(id)) {
+            used[id >> 6] &= ~(1L << (id & 63));
+            count--;
+        }
+    }
+
+    public boolean isUsed(final int id) {
+        return (used[id >> 6] & 1L << (id & 63)) != 0;
+    }
+
+    /**
+     * @return the number of ids currently in use.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return the id from which the next allocation starts.
+     */
+    public int getNext() {
+        return next & 0xff;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    @Override
+    public String toString() {
+        return "InvokeIdAllocator [count=" + count + ", next=" + next + "]";
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * ============================================================================
+ * GNU General Public License
+ * ============================================================================
+ *
+ * Copyright (C) 2015 Infinite Automation Software. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * When signing a commercial license with Infinite Automation Software,
+ * the following extension to GPL is made. A special exception to the GPL is
+ * included to allow you to distribute a combined work that includes BAcnet4J
+ * without being obliged to provide the source code for any proprietary components.
+ *
+ * See www.infiniteautomation.com for commercial license options.
+ *
+ * @author Matthew Lohbihler
+ */
+package com.serotonin.bacnet4j.transport;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies in milliseconds, with fixed buckets that roughly double in size. Latencies can be recorded
+ * from any thread.
+ */
+public class LatencyHistogram {
+    /**
+     * The inclusive upper bounds of the buckets, in ms. The last bucket holds everything larger than the last bound.
+     */
+    public static final long[] BOUNDS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000,
+            60000 };
+
+    private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public LatencyHistogram() {
+        for (int i = 0; i < buckets.length; i++)
+            buckets[i] = new LongAdder();
+    }
+
+    public void record(final long millis) {
+        int i = 0;
+        while (i < BOUNDS.length && millis > BOUNDS[i])
+            i++;
+        buckets[i].increment();
+        total.add(millis);
+        max.accumulate(millis);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (final LongAdder bucket : buckets)
+            count += bucket.sum();
+        return count;
+    }
+
+    /**
+     * @return the number of latencies in each bucket. The array has one more element than BOUNDS.
+     */
+    public long[] getBucketCounts() {
+        final long[] counts = new long[buckets.length];
+        for (int i = 0; i < buckets.length; i++)
+            counts[i] = buckets[i].sum();
+        return counts;
+    }
+
+    public long getTotal() {
+        return total.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @return the average latency in ms, or 0 if none have been recorded.
+     */
+    public double getAverage() {
+        final long count = getCount();
+        if (count == 0)
+            return 0;
+        return (double) total.sum() / count;
+    }
+
+    /**
+     * Estimates a percentile of the latencies as the upper bound of the bucket that it falls in, or the maximum if that
+     * is smaller.
+     *
+     * @param percentile
+     *            between 0 and 100
+     * @return the estimate in ms, or 0 if no latencies have been recorded.
+     */
+    public long getPercentile(final double percentile) {
+        final long[] counts = getBucketCounts();
+        long count = 0;
+        for (final long c : counts)
+            count += c;
+        if (count == 0)
+            return 0;
+
+        final long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank)
+                return i < BOUNDS.length ? Math.min(BOUNDS[i], getMax()) : getMax();
+        }
+        return getMax();
+    }
+
+    public void reset() {
+        for (final LongAdder bucket : buckets)
+            bucket.reset();
+        total.reset();
+        max.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyHistogram [count=" + getCount() + ", average=" + String.format("%.2f", getAverage())
+                + "ms, p50=" + getPercentile(50) + "ms, p99=" + getPercentile(99) + "ms, max=" + getMax() + "ms]";
+    }
+}
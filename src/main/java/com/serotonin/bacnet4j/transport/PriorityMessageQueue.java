@@ -0,0 +1,141 @@
+/*
+ * ============================================================================
+ * GNU General Public License
+ * ============================================================================
+ *
+ * Copyright (C) 2015 Infinite Automation Software. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * When signing a commercial license with Infinite Automation Software,
+ * the following extension to GPL is made. A special exception to the GPL is
+ * included to allow you to distribute a combined work that includes BAcnet4J
+ * without being obliged to provide the source code for any proprietary components.
+ *
+ * See www.infiniteautomation.com for commercial license options.
+ *
+ * @author Matthew Lohbihler
+ */
+package com.serotonin.bacnet4j.transport;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.serotonin.bacnet4j.npdu.NPCI.NetworkPriority;
+
+/**
+ * A queue of messages with a FIFO for each network priority. Messages are taken from the highest priority that has
+ * any, except that every FAIRNESS_INTERVAL-th poll takes the message that has waited the longest regardless of its
+ * priority. This keeps normal traffic moving when there is a steady stream of higher priority messages.
+ *
+ * Any number of threads can add messages, but only one may poll them.
+ *
+ * @param <E>
+ *            the message type
+ */
+class PriorityMessageQueue<E> {
+    static final int FAIRNESS_INTERVAL = 8;
+
+    private final Queue<Entry<E>>[] queues;
+    private final QueueDelayStats delays;
+    private final AtomicInteger size = new AtomicInteger();
+    private int polls;
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    PriorityMessageQueue(final QueueDelayStats delays) {
+        this.delays = delays;
+        queues = new Queue[NetworkPriority.values().length];
+        for (int i = 0; i < queues.length; i++)
+            queues[i] = new ConcurrentLinkedQueue<>();
+    }
+
+    void add(final E e, final NetworkPriority priority) {
+        final NetworkPriority p = priority == null ? NetworkPriority.normal : priority;
+        queues[p.value].add(new Entry<>(e, p, System.nanoTime()));
+        size.incrementAndGet();
+    }
+
+    E poll() {
+        Queue<Entry<E>> queue = null;
+        if (++polls % FAIRNESS_INTERVAL == 0) {
+            // Take the oldest message. Ties go to the lower priority.
+            long oldest = 0;
+            for (int i = queues.length - 1; i >= 0; i--) {
+                final Entry<E> head = queues[i].peek();
+                if (head != null && (queue == null || head.enqueued - oldest <= 0)) {
+                    queue = queues[i];
+                    oldest = head.enqueued;
+                }
+            }
+        } else {
+            // Take the highest priority message.
+            for (int i = queues.length - 1; i >= 0 && queue == null; i--) {
+                if (!queues[i].isEmpty())
+                    queue = queues[i];
+            }
+        }
+
+        if (queue == null)
+            return null;
+        final Entry<E> entry = queue.poll();
+        size.decrementAndGet();
+        if (delays != null)
+            delays.record(entry.priority, System.nanoTime() - entry.enqueued);
+        return entry.e;
+    }
+
+    boolean isEmpty() {
+        for (final Queue<Entry<E>> queue : queues) {
+            if (!queue.isEmpty())
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of messages in the queue, which can be read from any thread.
+     */
+    int size() {
+        return size.get();
+    }
+
+    /**
+     * Removes and returns all of the messages, highest priority first.
+     */
+    List<E> drain() {
+        final List<E> result = new ArrayList<>();
+        for (int i = queues.length - 1; i >= 0; i--) {
+            Entry<E> entry;
+            while ((entry = queues[i].poll()) != null) {
+                size.decrementAndGet();
+                result.add(entry.e);
+            }
+        }
+        return result;
+    }
+
+    private static class Entry<E> {
+        final E e;
+        final NetworkPriority priority;
+        final long enqueued;
+
+        Entry(final E e, final NetworkPriority priority, final long enqueued) {
+            this.e = e;
+            this.priority = priority;
+            this.enqueued = enqueued;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * ============================================================================
+ * GNU General Public License
+ * ============================================================================
+ *
+ * Copyright (C) 2015 Infinite Automation Software. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * When signing a commercial license with Infinite Automation Software,
+ * the following extension to GPL is made. A special exception to the GPL is
+ * included to allow you to distribute a combined work that includes BAcnet4J
+ * without being obliged to provide the source code for any proprietary components.
+ *
+ * See www.infiniteautomation.com for commercial license options.
+ *
+ * @author Matthew Lohbihler
+ */
+package com.serotonin.bacnet4j.transport;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.serotonin.bacnet4j.npdu.NPCI.NetworkPriority;
+
+/**
+ * Statistics on the time that messages spend in the transport's queues before they are processed, by network
+ * priority.
+ */
+public class QueueDelayStats {
+    private final LongAdder[] counts = new LongAdder[NetworkPriority.values().length];
+    private final LongAdder[] totals = new LongAdder[counts.length];
+    private final LongAccumulator[] maxes = new LongAccumulator[counts.length];
+
+    public QueueDelayStats() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+            totals[i] = new LongAdder();
+            maxes[i] = new LongAccumulator(Math::max, 0);
+        }
+    }
+
+    void record(final NetworkPriority priority, final long nanos) {
+        counts[priority.value].increment();
+        totals[priority.value].add(nanos);
+        maxes[priority.value].accumulate(nanos);
+    }
+
+    /**
+     * @return the number of messages of the given priority that have been taken from the queue.
+     */
+    public long getCount(final NetworkPriority priority) {
+        return counts[priority.value].sum();
+    }
+
+    public long getTotalDelay(final NetworkPriority priority, final TimeUnit unit) {
+        return unit.convert(totals[priority.value].sum(), TimeUnit.NANOSECONDS);
+    }
+
+    public long getMaxDelay(final NetworkPriority priority, final TimeUnit unit) {
+        return unit.convert(maxes[priority.value].get(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return the average delay in milliseconds, or 0 if there have been no messages.
+     */
+    public double getAverageDelayMillis(final NetworkPriority priority) {
+        final long count = getCount(priority);
+        if (count == 0)
+            return 0;
+        return totals[priority.value].sum() / 1_000_000.0 / count;
+    }
+
+    public void reset() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i].reset();
+            totals[i].reset();
+            maxes[i].reset();
+        }
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("QueueDelayStats [");
+        for (final NetworkPriority priority : NetworkPriority.values()) {
+            if (sb.length() > 16)
+                sb.append(", ");
+            sb.append(priority).append("=").append(getCount(priority)).append("/")
+                    .append(String.format("%.2f", getAverageDelayMillis(priority))).append("ms");
+        }
+        return sb.append("]").toString();
+    }
+}
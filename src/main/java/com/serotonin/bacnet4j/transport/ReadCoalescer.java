@@ -0,0 +1,196 @@
+/*
+ * ============================================================================
+ * GNU General Public License
+ * ============================================================================
+ *
+ * Copyright (C) 2015 Infinite Automation Software. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * When signing a commercial license with Infinite Automation Software,
+ * the following extension to GPL is made. A special exception to the GPL is
+ * included to allow you to distribute a combined work that includes BAcnet4J
+ * without being obliged to provide the source code for any proprietary components.
+ *
+ * See www.infiniteautomation.com for commercial license options.
+ *
+ * @author Matthew Lohbihler
+ */
+package com.serotonin.bacnet4j.transport;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.serotonin.bacnet4j.ResponseConsumer;
+import com.serotonin.bacnet4j.apdu.AckAPDU;
+import com.serotonin.bacnet4j.exception.BACnetException;
+import com.serotonin.bacnet4j.service.acknowledgement.AcknowledgementService;
+import com.serotonin.bacnet4j.service.confirmed.ConfirmedRequestService;
+import com.serotonin.bacnet4j.service.confirmed.ReadPropertyMultipleRequest;
+import com.serotonin.bacnet4j.service.confirmed.ReadPropertyRequest;
+import com.serotonin.bacnet4j.type.constructed.Address;
+
+/**
+ * Lets identical read requests to the same device that are in flight at the same time share a single transaction.
+ * The response - or failure - of the transaction is given to every consumer that joined it. Note that this means that
+ * the consumers share the same acknowledgement object.
+ */
+class ReadCoalescer {
+    static final Logger LOG = LoggerFactory.getLogger(ReadCoalescer.class);
+
+    private final Map<Key, Transaction> inFlight = new ConcurrentHashMap<>();
+
+    static boolean isCoalescable(final ConfirmedRequestService service) {
+        return service instanceof ReadPropertyRequest || service instanceof ReadPropertyMultipleRequest;
+    }
+
+    /**
+     * Adds the consumer to the transaction of an identical request that is in flight. If there isn't one, a new
+     * transaction is created and given to the sender, which must send the request with the transaction as its
+     * consumer.
+     *
+     * @return the transaction that the consumer joined.
+     */
+    Transaction join(final Address address, final ConfirmedRequestService service, final ResponseConsumer consumer,
+            final Consumer<Transaction> sender) {
+        final Key key = new Key(address, service);
+        while (true) {
+            final Transaction existing = inFlight.get(key);
+            if (existing != null) {
+                if (existing.add(consumer))
+                    return existing;
+                // The transaction finished in the meantime.
+                inFlight.remove(key, existing);
+                continue;
+            }
+
+            final Transaction transaction = new Transaction(key, consumer);
+            if (inFlight.putIfAbsent(key, transaction) == null) {
+                sender.accept(transaction);
+                return transaction;
+            }
+        }
+    }
+
+    /**
+     * @return the number of transactions in flight.
+     */
+    int size() {
+        return inFlight.size();
+    }
+
+    class Transaction implements ResponseConsumer {
+        private final Key key;
+        private final List<ResponseConsumer> consumers = new ArrayList<>();
+        private boolean done;
+        private volatile Runnable cancelHandler;
+
+        Transaction(final Key key, final ResponseConsumer consumer) {
+            this.key = key;
+            consumers.add(consumer);
+        }
+
+        synchronized boolean add(final ResponseConsumer consumer) {
+            if (done)
+                return false;
+            consumers.add(consumer);
+            return true;
+        }
+
+        void setCancelHandler(final Runnable cancelHandler) {
+            this.cancelHandler = cancelHandler;
+        }
+
+        /**
+         * Removes the consumer from the transaction. The transaction is cancelled when there are no consumers left.
+         */
+        void leave(final ResponseConsumer consumer) {
+            synchronized (this) {
+                if (done || !consumers.remove(consumer) || !consumers.isEmpty())
+                    return;
+                done = true;
+            }
+            inFlight.remove(key, this);
+            final Runnable handler = cancelHandler;
+            if (handler != null)
+                handler.run();
+        }
+
+        private List<ResponseConsumer> finish() {
+            final List<ResponseConsumer> result;
+            synchronized (this) {
+                done = true;
+                result = new ArrayList<>(consumers);
+            }
+            inFlight.remove(key, this);
+            return result;
+        }
+
+        @Override
+        public void success(final AcknowledgementService ack) {
+            forEach((consumer) -> consumer.success(ack));
+        }
+
+        @Override
+        public void fail(final AckAPDU ack) {
+            forEach((consumer) -> consumer.fail(ack));
+        }
+
+        @Override
+        public void ex(final BACnetException e) {
+            forEach((consumer) -> consumer.ex(e));
+        }
+
+        private void forEach(final Consumer<ResponseConsumer> action) {
+            for (final ResponseConsumer consumer : finish()) {
+                try {
+                    action.accept(consumer);
+                } catch (final Exception e) {
+                    LOG.warn("Error in response consumer", e);
+                }
+            }
+        }
+    }
+
+    private static class Key {
+        final Address address;
+        final ConfirmedRequestService service;
+
+        Key(final Address address, final ConfirmedRequestService service) {
+            this.address = address;
+            this.service = service;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(address, service);
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof Key))
+                return false;
+            final Key other = (Key) obj;
+            return address.equals(other.address) && service.equals(other.service);
+        }
+    }
+}
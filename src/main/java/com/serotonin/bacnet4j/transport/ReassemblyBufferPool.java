@@ -0,0 +1,142 @@
+/*
+ * ============================================================================
+ * GNU General Public License
+ * ============================================================================
+ *
+ * Copyright (C) 2015 Infinite Automation Software. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * When signing a commercial license with Infinite Automation Software,
+ * the following extension to GPL is made. A special exception to the GPL is
+ * included to allow you to distribute a combined work that includes BAcnet4J
+ * without being obliged to provide the source code for any proprietary components.
+ *
+ * See www.infiniteautomation.com for commercial license options.
+ *
+ * @author Matthew Lohbihler
+ */
+package com.serotonin.bacnet4j.transport;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.serotonin.bacnet4j.util.sero.ByteQueue;
+
+/**
+ * Provides the buffers into which the segments of incoming messages are reassembled. The total capacity of the
+ * buffers that are in use can be limited by a memory budget, so that many concurrent segmented messages cannot exhaust
+ * the heap. Buffers have capacities that are powers of two, and the smaller ones are kept for reuse when they are
+ * released.
+ */
+class ReassemblyBufferPool {
+    static final int MIN_CAPACITY = 1024;
+    // Buffers larger than this are left for the garbage collector.
+    static final int MAX_POOLED_CAPACITY = 64 * 1024;
+    static final int MAX_IDLE_PER_CAPACITY = 4;
+
+    private volatile long budget;
+    private final AtomicLong used = new AtomicLong();
+    // Idle buffers, indexed by the log2 of their capacity.
+    private final Queue<ByteQueue>[] idle;
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    ReassemblyBufferPool(final long budget) {
+        this.budget = budget;
+        idle = new Queue[Integer.numberOfTrailingZeros(MAX_POOLED_CAPACITY) + 1];
+        for (int i = 0; i < idle.length; i++)
+            idle[i] = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * @param budget
+     *            the maximum total capacity of the buffers in use, or 0 for no limit
+     */
+    void setBudget(final long budget) {
+        this.budget = budget;
+    }
+
+    long getBudget() {
+        return budget;
+    }
+
+    /**
+     * @return the total capacity of the buffers that are in use.
+     */
+    long getUsed() {
+        return used.get();
+    }
+
+    /**
+     * Returns an empty buffer that can hold at least the given number of bytes without expanding, or null if the
+     * buffer would exceed the budget.
+     */
+    Buffer acquire(final int minCapacity) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < minCapacity)
+            capacity <<= 1;
+
+        while (true) {
+            final long current = used.get();
+            final long limit = budget;
+            if (limit > 0 && current + capacity > limit)
+                return null;
+            if (used.compareAndSet(current, current + capacity))
+                break;
+        }
+
+        ByteQueue queue = null;
+        if (capacity <= MAX_POOLED_CAPACITY)
+            queue = idle[Integer.numberOfTrailingZeros(capacity)].poll();
+        if (queue == null)
+            queue = new ByteQueue(capacity);
+        return new Buffer(queue, capacity);
+    }
+
+    class Buffer {
+        final ByteQueue queue;
+        final int capacity;
+        private boolean released;
+
+        Buffer(final ByteQueue queue, final int capacity) {
+            this.queue = queue;
+            this.capacity = capacity;
+        }
+
+        /**
+         * @return true if the given number of bytes can be added without the buffer expanding.
+         */
+        boolean hasRoom(final int length) {
+            return queue.size() + length <= capacity;
+        }
+
+        /**
+         * Returns the buffer to the pool. It must no longer be used.
+         */
+        void release() {
+            if (released)
+                return;
+            released = true;
+            used.addAndGet(-capacity);
+
+            if (capacity <= MAX_POOLED_CAPACITY) {
+                final Queue<ByteQueue> queues = idle[Integer.numberOfTrailingZeros(capacity)];
+                if (queues.size() < MAX_IDLE_PER_CAPACITY) {
+                    queue.clear();
+                    queues.add(queue);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * ============================================================================
+ * GNU General Public License
+ * ============================================================================
+ *
+ * Copyright (C) 2015 Infinite Automation Software. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * When signing a commercial license with Infinite Automation Software,
+ * the following extension to GPL is made. A special exception to the GPL is
+ * included to allow you to distribute a combined work that includes BAcnet4J
+ * without being obliged to provide the source code for any proprietary components.
+ *
+ * See www.infiniteautomation.com for commercial license options.
+ *
+ * @author Matthew Lohbihler
+ */
+package com.serotonin.bacnet4j.transport;
+
+import java.util.concurrent.TimeUnit;
+
+import com.serotonin.bacnet4j.ResponseConsumer;
+import com.serotonin.bacnet4j.apdu.AckAPDU;
+import com.serotonin.bacnet4j.exception.BACnetException;
+import com.serotonin.bacnet4j.service.Service;
+import com.serotonin.bacnet4j.service.acknowledgement.AcknowledgementService;
+import com.serotonin.bacnet4j.type.constructed.Address;
+
+/**
+ * A record of a message's way through the transport: where it was sent from, when it was queued, when it went onto
+ * the wire, and when and how it was completed. Times are from System.nanoTime.
+ */
+public class RequestTrace {
+    private final Address address;
+    private final Service service;
+    private final Exception sendSite;
+    private final RequestTracer tracer;
+    private final long enqueued;
+    private volatile boolean isSent;
+    private volatile long sent;
+    private volatile boolean isCompleted;
+    private volatile long completed;
+    private volatile Exception error;
+
+    RequestTrace(final Address address, final Service service, final Exception sendSite,
+            final RequestTracer tracer) {
+        this.address = address;
+        this.service = service;
+        this.sendSite = sendSite;
+        this.tracer = tracer;
+        enqueued = System.nanoTime();
+    }
+
+    public Address getAddress() {
+        return address;
+    }
+
+    public Service getService() {
+        return service;
+    }
+
+    /**
+     * @return the stack of the thread that sent the message, or null if it was not captured.
+     */
+    public Exception getSendSite() {
+        return sendSite;
+    }
+
+    public long getEnqueued() {
+        return enqueued;
+    }
+
+    public boolean isSent() {
+        return isSent;
+    }
+
+    /**
+     * @return when the message was first put on the wire. Only meaningful if {@link #isSent()}.
+     */
+    public long getSent() {
+        return sent;
+    }
+
+    public boolean isCompleted() {
+        return isCompleted;
+    }
+
+    /**
+     * @return when the message was completed. Only meaningful if {@link #isCompleted()}.
+     */
+    public long getCompleted() {
+        return completed;
+    }
+
+    /**
+     * @return the reason that the message failed, or null if it succeeded.
+     */
+    public Exception getError() {
+        return error;
+    }
+
+    /**
+     * @return the time that the message waited in the transport before it was put on the wire, or -1 if it never was.
+     */
+    public long getQueueTime(final TimeUnit unit) {
+        if (!isSent)
+            return -1;
+        return unit.convert(sent - enqueued, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return the time from when the message was put on the wire until it was completed, or -1 if it was not put on
+     *         the wire or is not completed yet.
+     */
+    public long getWireTime(final TimeUnit unit) {
+        if (!isSent || !isCompleted)
+            return -1;
+        return unit.convert(completed - sent, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return the time from when the message was queued until it was completed, or -1 if it is not completed yet.
+     */
+    public long getTotalTime(final TimeUnit unit) {
+        if (!isCompleted)
+            return -1;
+        return unit.convert(completed - enqueued, TimeUnit.NANOSECONDS);
+    }
+
+    void sent() {
+        if (!isSent) {
+            sent = System.nanoTime();
+            isSent = true;
+        }
+    }
+
+    void complete(final Exception error) {
+        synchronized (this) {
+            if (isCompleted)
+                return;
+            this.error = error;
+            completed = System.nanoTime();
+            isCompleted = true;
+        }
+        tracer.completed(this);
+    }
+
+    /**
+     * @return a consumer that completes the trace before passing the response on to the given consumer, which may
+     *         be null.
+     */
+    ResponseConsumer wrap(final ResponseConsumer consumer) {
+        return new ResponseConsumer() {
+            @Override
+            public void success(final AcknowledgementService ack) {
+                complete(null);
+                if (consumer != null)
+                    consumer.success(ack);
+            }
+
+            @Override
+            public void fail(final AckAPDU ack) {
+                complete(ServiceFutureImpl.failure(ack));
+                if (consumer != null)
+                    consumer.fail(ack);
+            }
+
+            @Override
+            public void ex(final BACnetException e) {
+                complete(e);
+                if (consumer != null)
+                    consumer.ex(e);
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return "RequestTrace [address=" + address + ", service=" + service.getClass().getSimpleName() + ", queueTime="
+                + getQueueTime(TimeUnit.MICROSECONDS) + "us, wireTime=" + getWireTime(TimeUnit.MICROSECONDS)
+                + "us, error=" + error + "]";
+    }
+}
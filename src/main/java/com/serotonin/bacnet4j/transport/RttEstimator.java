@@ -0,0 +1,129 @@
+/*
+ * ============================================================================
+ * GNU General Public License
+ * ============================================================================
+ *
+ * Copyright (C) 2015 Infinite Automation Software. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * When signing a commercial license with Infinite Automation Software,
+ * the following extension to GPL is made. A special exception to the GPL is
+ * included to allow you to distribute a combined work that includes BAcnet4J
+ * without being obliged to provide the source code for any proprietary components.
+ *
+ * See www.infiniteautomation.com for commercial license options.
+ *
+ * @author Matthew Lohbihler
+ */
+package com.serotonin.bacnet4j.transport;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.serotonin.bacnet4j.type.constructed.Address;
+
+/**
+ * Estimates the round trip time to each peer in the manner of TCP's retransmission timer (RFC 6298), and derives
+ * request timeouts from it. Samples must only be taken from requests that were not retried (Karn's algorithm),
+ * because a response to a resent request cannot be matched to a particular attempt.
+ *
+ * Samples for a peer are only given by the worker that handles it, but the estimates may be read from any thread.
+ * Estimates that have not been sampled for {@link #IDLE_TIME} are dropped, so that the estimates of peers that are
+ * gone do not build up.
+ */
+class RttEstimator {
+    // The smallest variance allowance, in ms.
+    static final int GRANULARITY = 10;
+    // How long an estimate is kept without samples, in ms.
+    static final long IDLE_TIME = 10 * 60 * 1000;
+
+    private final Map<Address, Rtt> rtts = new ConcurrentHashMap<>();
+    private volatile long nextExpiry;
+
+    /**
+     * @param now
+     *            the time of the sample, in ms
+     */
+    void sample(final Address address, final long rtt, final long now) {
+        final Rtt existing = rtts.get(address);
+        if (existing == null)
+            rtts.put(address, new Rtt(rtt, now));
+        else
+            existing.sample(rtt, now);
+    }
+
+    /**
+     * Drops the estimates that have not been sampled for {@link #IDLE_TIME}. The estimates are only checked every
+     * quarter of that time, so this can be called often.
+     */
+    void expire(final long now) {
+        if (now < nextExpiry)
+            return;
+        nextExpiry = now + IDLE_TIME / 4;
+        rtts.values().removeIf((rtt) -> now - rtt.lastSampled >= IDLE_TIME);
+    }
+
+    int size() {
+        return rtts.size();
+    }
+
+    /**
+     * @return the estimate for the given peer, or null if there have been no samples.
+     */
+    Rtt get(final Address address) {
+        return rtts.get(address);
+    }
+
+    /**
+     * Returns the timeout to use for a new request to the given peer.
+     *
+     * @param defaultTimeout
+     *            the timeout to use when there is no estimate for the peer yet
+     */
+    int getTimeout(final Address address, final int defaultTimeout, final int minTimeout, final int maxTimeout) {
+        final Rtt rtt = rtts.get(address);
+        final long timeout = rtt == null ? defaultTimeout : rtt.getTimeout();
+        return (int) Math.max(minTimeout, Math.min(maxTimeout, timeout));
+    }
+
+    static class Rtt {
+        private volatile long srtt;
+        private volatile long rttvar;
+        volatile long lastSampled;
+
+        Rtt(final long rtt, final long now) {
+            srtt = rtt;
+            rttvar = rtt / 2;
+            lastSampled = now;
+        }
+
+        void sample(final long rtt, final long now) {
+            rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+            srtt = (7 * srtt + rtt) / 8;
+            lastSampled = now;
+        }
+
+        long getSmoothedRtt() {
+            return srtt;
+        }
+
+        long getRttVariance() {
+            return rttvar;
+        }
+
+        long getTimeout() {
+            return srtt + Math.max(GRANULARITY, 4 * rttvar);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * ============================================================================
+ * GNU General Public License
+ * ============================================================================
+ *
+ * Copyright (C) 2015 Infinite Automation Software. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * When signing a commercial license with Infinite Automation Software,
+ * the following extension to GPL is made. A special exception to the GPL is
+ * included to allow you to distribute a combined work that includes BAcnet4J
+ * without being obliged to provide the source code for any proprietary components.
+ *
+ * See www.infiniteautomation.com for commercial license options.
+ *
+ * @author Matthew Lohbihler
+ */
+package com.serotonin.bacnet4j.transport;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.serotonin.bacnet4j.type.constructed.Address;
+
+/**
+ * Sizes the segment windows used with each peer by additive increase and multiplicative decrease, in the manner of
+ * TCP's congestion window. The window grows by one segment for each window that is transferred cleanly, and is
+ * halved when segments are lost, as signalled by a negative segment ack or a segment timeout. The window never
+ * exceeds the limit that the peer has shown it will accept.
+ *
+ * The window for a peer is only changed by the worker that handles it, but it may be read from any thread.
+ */
+class SegmentWindowController {
+    // The largest window size that BACnet allows.
+    static final int MAX_WINDOW_SIZE = 127;
+
+    private final Map<Address, Window> windows = new ConcurrentHashMap<>();
+    private volatile int initialSize;
+
+    SegmentWindowController(final int initialSize) {
+        this.initialSize = initialSize;
+    }
+
+    /**
+     * Sets the size of the window for peers with which no windows have been transferred yet.
+     */
+    void setInitialSize(final int initialSize) {
+        this.initialSize = initialSize;
+    }
+
+    int getWindowSize(final Address address) {
+        final Window window = windows.get(address);
+        return window == null ? initialSize : window.size;
+    }
+
+    /**
+     * Called when a window was transferred without loss.
+     *
+     * @param limit
+     *            the largest window that the peer will accept
+     */
+    void windowComplete(final Address address, final int limit) {
+        final Window window = getWindow(address);
+        window.size = clamp(Math.min(window.size + 1, limit));
+    }
+
+    /**
+     * Called when segments were lost.
+     */
+    void segmentLost(final Address address) {
+        final Window window = getWindow(address);
+        window.size = clamp(window.size / 2);
+    }
+
+    private Window getWindow(final Address address) {
+        return windows.computeIfAbsent(address, a -> new Window(clamp(initialSize)));
+    }
+
+    private static int clamp(final int size) {
+        return Math.max(1, Math.min(MAX_WINDOW_SIZE, size));
+    }
+
+    static class Window {
+        volatile int size;
+
+        Window(final int size) {
+            this.size = size;
+        }
+    }
+}
@@ -41,6 +41,7 @@ import com.serotonin.bacnet4j.exception.BACnetException;
 import com.serotonin.bacnet4j.exception.BACnetTimeoutException;
 import com.serotonin.bacnet4j.exception.ErrorAPDUException;
 import com.serotonin.bacnet4j.exception.RejectAPDUException;
+import com.serotonin.bacnet4j.exception.RequestQueueFullException;
 import com.serotonin.bacnet4j.exception.ServiceTooBigException;
 import com.serotonin.bacnet4j.service.acknowledgement.AcknowledgementService;
 import com.serotonin.bacnet4j.util.sero.ThreadUtils;
@@ -75,20 +76,32 @@ public class ServiceFutureImpl implements ServiceFuture, ResponseConsumer {
                 throw new BACnetTimeoutException(ex.getMessage(), ex);
             }else if(ex instanceof ServiceTooBigException) {
                 throw new ServiceTooBigException(ex.getMessage());
+            } else if (ex instanceof RequestQueueFullException) {
+                throw new RequestQueueFullException(ex.getMessage());
             }
             throw new BACnetException(ex.getMessage(), ex);
         }
         if (fail != null) {
-            if (fail instanceof com.serotonin.bacnet4j.apdu.Error)
-                throw new ErrorAPDUException((com.serotonin.bacnet4j.apdu.Error) fail);
-            else if (fail instanceof Reject)
-                throw new RejectAPDUException((Reject) fail);
-            else if (fail instanceof Abort)
-                throw new AbortAPDUException((Abort) fail);
+            final BACnetException e = failure(fail);
+            if (e != null)
+                throw e;
         }
         return (T) ack;
     }
 
+    /**
+     * Converts a failure response into the exception that the client receives.
+     */
+    static BACnetException failure(final AckAPDU fail) {
+        if (fail instanceof com.serotonin.bacnet4j.apdu.Error)
+            return new ErrorAPDUException((com.serotonin.bacnet4j.apdu.Error) fail);
+        else if (fail instanceof Reject)
+            return new RejectAPDUException((Reject) fail);
+        else if (fail instanceof Abort)
+            return new AbortAPDUException((Abort) fail);
+        return null;
+    }
+
     @Override
     public synchronized void success(final AcknowledgementService ack) {
         this.ack = ack;
@@ -29,6 +29,7 @@
 package com.serotonin.bacnet4j.transport;
 
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 import com.serotonin.bacnet4j.LocalDevice;
 import com.serotonin.bacnet4j.ResponseConsumer;
@@ -36,6 +37,7 @@ import com.serotonin.bacnet4j.ServiceFuture;
 import com.serotonin.bacnet4j.npdu.NPDU;
 import com.serotonin.bacnet4j.npdu.Network;
 import com.serotonin.bacnet4j.npdu.NetworkIdentifier;
+import com.serotonin.bacnet4j.service.acknowledgement.AcknowledgementService;
 import com.serotonin.bacnet4j.service.confirmed.ConfirmedRequestService;
 import com.serotonin.bacnet4j.service.unconfirmed.UnconfirmedRequestService;
 import com.serotonin.bacnet4j.type.constructed.Address;
@@ -99,5 +101,18 @@ public interface Transport {
     void send(Address address, int maxAPDULengthAccepted, Segmentation segmentationSupported,
             ConfirmedRequestService service, ResponseConsumer consumer);
 
+    /**
+     * Sends the request without blocking. The returned future can be composed, waited on with a timeout, or
+     * cancelled. By default, cancelling only completes the future, and the request carries on in the transport;
+     * DefaultTransport also withdraws the request.
+     */
+    default <T extends AcknowledgementService> CompletableFuture<T> sendAsync(final Address address,
+            final int maxAPDULengthAccepted, final Segmentation segmentationSupported,
+            final ConfirmedRequestService service) {
+        final CompletableServiceFuture<T> future = new CompletableServiceFuture<>();
+        send(address, maxAPDULengthAccepted, segmentationSupported, service, future);
+        return future;
+    }
+
     void incoming(NPDU npdu);
 }
@@ -0,0 +1,76 @@
+/*
+ * ============================================================================
+ * GNU General Public License
+ * ============================================================================
+ *
+ * Copyright (C) 2015 Infinite Automation Software. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * When signing a commercial license with Infinite Automation Software,
+ * the following extension to GPL is made. A special exception to the GPL is
+ * included to allow you to distribute a combined work that includes BAcnet4J
+ * without being obliged to provide the source code for any proprietary components.
+ *
+ * See www.infiniteautomation.com for commercial license options.
+ *
+ * @author Matthew Lohbihler
+ */
+package com.serotonin.bacnet4j.transport;
+
+import com.serotonin.bacnet4j.service.confirmed.ConfirmedRequestService;
+import com.serotonin.bacnet4j.type.constructed.Address;
+
+/**
+ * Receives measurements from a transport so that they can be recorded, or passed on to a monitoring system. The
+ * methods are called from the threads of the transport's workers, so they need to be quick, and must not block or
+ * throw.
+ *
+ * @see TransportStats
+ */
+public interface TransportMetrics {
+    /**
+     * Called when the response to a confirmed request that this device sent has been received, or found to be an
+     * error, reject or abort.
+     *
+     * @param millis
+     *            the time from when the request was first sent, including any retries
+     */
+    void requestCompleted(Address peer, ConfirmedRequestService service, long millis);
+
+    /**
+     * Called when a message that was not acknowledged in time is resent.
+     *
+     * @param service
+     *            the request, or null if the message was a segmented response
+     */
+    void requestRetried(Address peer, ConfirmedRequestService service);
+
+    /**
+     * Called when a message was not acknowledged in time and has no more retries.
+     *
+     * @param service
+     *            the request, or null if the message was a segmented response
+     */
+    void requestTimedOut(Address peer, ConfirmedRequestService service);
+
+    /**
+     * Called for each segment of a segmented request or response that is sent.
+     */
+    void segmentSent(Address peer);
+
+    /**
+     * Called for each segment of a segmented request or response that is received.
+     */
+    void segmentReceived(Address peer);
+}
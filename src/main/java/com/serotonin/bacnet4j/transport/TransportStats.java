@@ -0,0 +1,132 @@
+/*
+ * ============================================================================
+ * GNU General Public License
+ * ============================================================================
+ *
+ * Copyright (C) 2015 Infinite Automation Software. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * When signing a commercial license with Infinite Automation Software,
+ * the following extension to GPL is made. A special exception to the GPL is
+ * included to allow you to distribute a combined work that includes BAcnet4J
+ * without being obliged to provide the source code for any proprietary components.
+ *
+ * See www.infiniteautomation.com for commercial license options.
+ *
+ * @author Matthew Lohbihler
+ */
+package com.serotonin.bacnet4j.transport;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.serotonin.bacnet4j.service.confirmed.ConfirmedRequestService;
+import com.serotonin.bacnet4j.type.constructed.Address;
+
+/**
+ * The default transport metrics, which keep request latency histograms by service choice and by peer, and counts of
+ * retries, timeouts and segments. Subclasses can override the methods to also pass the measurements on elsewhere.
+ */
+public class TransportStats implements TransportMetrics {
+    private final Map<Integer, LatencyHistogram> latencyByService = new ConcurrentHashMap<>();
+    private final Map<Address, LatencyHistogram> latencyByPeer = new ConcurrentHashMap<>();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder segmentsSent = new LongAdder();
+    private final LongAdder segmentsReceived = new LongAdder();
+
+    @Override
+    public void requestCompleted(final Address peer, final ConfirmedRequestService service, final long millis) {
+        if (service != null)
+            latencyByService.computeIfAbsent(service.getChoiceId() & 0xff, k -> new LatencyHistogram())
+                    .record(millis);
+        latencyByPeer.computeIfAbsent(peer, k -> new LatencyHistogram()).record(millis);
+    }
+
+    @Override
+    public void requestRetried(final Address peer, final ConfirmedRequestService service) {
+        retries.increment();
+    }
+
+    @Override
+    public void requestTimedOut(final Address peer, final ConfirmedRequestService service) {
+        timeouts.increment();
+    }
+
+    @Override
+    public void segmentSent(final Address peer) {
+        segmentsSent.increment();
+    }
+
+    @Override
+    public void segmentReceived(final Address peer) {
+        segmentsReceived.increment();
+    }
+
+    /**
+     * @return the latencies of requests with the given service choice, or null if there have been none.
+     */
+    public LatencyHistogram getLatency(final int serviceChoice) {
+        return latencyByService.get(serviceChoice);
+    }
+
+    /**
+     * @return the latencies of requests to the given peer, or null if there have been none.
+     */
+    public LatencyHistogram getLatency(final Address peer) {
+        return latencyByPeer.get(peer);
+    }
+
+    public Map<Integer, LatencyHistogram> getLatencyByService() {
+        return Collections.unmodifiableMap(latencyByService);
+    }
+
+    public Map<Address, LatencyHistogram> getLatencyByPeer() {
+        return Collections.unmodifiableMap(latencyByPeer);
+    }
+
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    public long getSegmentsSent() {
+        return segmentsSent.sum();
+    }
+
+    public long getSegmentsReceived() {
+        return segmentsReceived.sum();
+    }
+
+    public void reset() {
+        latencyByService.clear();
+        latencyByPeer.clear();
+        retries.reset();
+        timeouts.reset();
+        segmentsSent.reset();
+        segmentsReceived.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "TransportStats [latencyByService=" + latencyByService + ", retries=" + getRetries() + ", timeouts="
+                + getTimeouts() + ", segmentsSent=" + getSegmentsSent() + ", segmentsReceived="
+                + getSegmentsReceived() + "]";
+    }
+}
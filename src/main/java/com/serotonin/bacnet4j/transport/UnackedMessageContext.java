@@ -29,7 +29,6 @@
 package com.serotonin.bacnet4j.transport;
 
 import java.time.Clock;
-import java.util.Arrays;
 
 import com.serotonin.bacnet4j.ResponseConsumer;
 import com.serotonin.bacnet4j.apdu.APDU;
@@ -39,7 +38,12 @@ import com.serotonin.bacnet4j.util.sero.ByteQueue;
 
 public class UnackedMessageContext {
     private long deadline;
+    private int timeout;
     private int attemptsLeft;
+    private boolean retried;
+
+    // When the context was created, which for requests is when they were first sent.
+    private final long created;
 
     private final Clock clock;
 
@@ -55,16 +59,19 @@ public class UnackedMessageContext {
     // Segment info for receiving segmented messages.
     private SegmentWindow segmentWindow;
     private Segmentable segmentedMessage;
+    private ReassemblyBufferPool.Buffer reassemblyBuffer;
 
-    // Segment info for sending segmented messages.
+    // Segment info for sending segmented messages. The segments are views of the encoded service data.
     private Segmentable segmentTemplate;
-    private ByteQueue serviceData;
-    private byte[] segBuf;
+    private byte[] serviceData;
+    private int serviceDataOffset;
+    private int segmentLength;
     private int lastIdSent;
 
     public UnackedMessageContext(final Clock clock, final int timeout, final int retries,
             final ResponseConsumer consumer, final ConfirmedRequestService service) {
         this.clock = clock;
+        created = clock.millis();
         reset(timeout, retries);
         this.consumer = consumer;
         this.service = service;
@@ -72,14 +79,38 @@ public class UnackedMessageContext {
 
     public void retry(final int timeout) {
         this.deadline = clock.millis() + timeout;
+        this.timeout = timeout;
         attemptsLeft--;
+        retried = true;
     }
 
     public void reset(final int timeout, final int retries) {
         this.deadline = clock.millis() + timeout;
+        this.timeout = timeout;
         this.attemptsLeft = retries;
     }
 
+    /**
+     * @return the timeout of the current attempt.
+     */
+    public int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * @return true if the message has been resent at least once.
+     */
+    public boolean isRetried() {
+        return retried;
+    }
+
+    /**
+     * @return the time in ms since the context was created.
+     */
+    public long getAge() {
+        return clock.millis() - created;
+    }
+
     public long getDeadline() {
         return deadline;
     }
@@ -124,6 +155,25 @@ public class UnackedMessageContext {
         return deadline < now;
     }
 
+    ReassemblyBufferPool.Buffer getReassemblyBuffer() {
+        return reassemblyBuffer;
+    }
+
+    void setReassemblyBuffer(final ReassemblyBufferPool.Buffer reassemblyBuffer) {
+        this.reassemblyBuffer = reassemblyBuffer;
+    }
+
+    /**
+     * Returns the reassembly buffer, if any, to its pool. Must be called once the segmented message is no longer
+     * needed.
+     */
+    public void releaseReassemblyBuffer() {
+        if (reassemblyBuffer != null) {
+            reassemblyBuffer.release();
+            reassemblyBuffer = null;
+        }
+    }
+
     public Segmentable getSegmentTemplate() {
         return segmentTemplate;
     }
@@ -132,21 +182,48 @@ public class UnackedMessageContext {
         this.segmentTemplate = segmentTemplate;
     }
 
-    public ByteQueue getServiceData() {
-        return serviceData;
+    /**
+     * Sets the encoded service data that is to be sent in segments of the given length.
+     */
+    public void setServiceData(final ByteQueue serviceData, final int segmentLength) {
+        this.serviceData = serviceData.popAll();
+        this.serviceDataOffset = 0;
+        this.segmentLength = segmentLength;
     }
 
-    public void setServiceData(final ByteQueue serviceData) {
-        this.serviceData = serviceData;
+    /**
+     * @return the number of bytes of service data that have not been sent yet.
+     */
+    public int getRemainingServiceData() {
+        return serviceData == null ? 0 : serviceData.length - serviceDataOffset;
     }
 
-    public void setSegBuf(final byte[] segBuf) {
-        this.segBuf = segBuf;
+    /**
+     * @return the next segment, which shares the service data array rather than copying it.
+     */
+    public ByteQueue getNextSegment() {
+        final int count = Math.min(segmentLength, getRemainingServiceData());
+        final ByteQueue segment = ByteQueue.wrap(serviceData, serviceDataOffset, count);
+        serviceDataOffset += count;
+        return segment;
     }
 
-    public ByteQueue getNextSegment() {
-        final int count = serviceData.pop(segBuf);
-        return new ByteQueue(segBuf, 0, count);
+    /**
+     * Goes back to the segment with the given sequence number, so that it is the next one to be sent.
+     */
+    public void rewindToSegment(final int sequenceNumber) {
+        serviceDataOffset = Math.min(serviceData.length, sequenceNumber * segmentLength);
+        lastIdSent = sequenceNumber - 1;
+    }
+
+    /**
+     * Segment acks carry 8 bit sequence numbers, while segments are counted from the start of the message. A sequence
+     * number is taken to be of the last segment sent with that number.
+     *
+     * @return the index of the segment with the given sequence number.
+     */
+    public int toSegmentIndex(final int sequenceNumber) {
+        return lastIdSent - (lastIdSent - sequenceNumber & 0xff);
     }
 
     public int getLastIdSent() {
@@ -168,7 +245,7 @@ public class UnackedMessageContext {
         return "UnackedMessageContext [deadline=" + deadline + ", attemptsLeft=" + attemptsLeft + ", clock=" + clock
                 + ", service=" + service + ", consumer=" + consumer + ", originalApdu=" + originalApdu
                 + ", segmentWindow=" + segmentWindow + ", segmentedMessage=" + segmentedMessage + ", segmentTemplate="
-                + segmentTemplate + ", serviceData=" + serviceData + ", segBuf=" + Arrays.toString(segBuf)
+                + segmentTemplate + ", serviceDataOffset=" + serviceDataOffset + ", segmentLength=" + segmentLength
                 + ", lastIdSent=" + lastIdSent + "]";
     }
 
@@ -28,8 +28,13 @@
  */
 package com.serotonin.bacnet4j.transport;
 
+import java.time.Clock;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,45 +42,69 @@ import org.slf4j.LoggerFactory;
 import com.serotonin.bacnet4j.exception.BACnetRecoverableException;
 import com.serotonin.bacnet4j.type.constructed.Address;
 import com.serotonin.bacnet4j.type.primitive.OctetString;
+import com.serotonin.bacnet4j.util.TimingWheel;
 
 /**
  * This is a non-thread safe class for maintaining the list of pending requests at a local device. Access to this is
- * exclusively from Transport, which uses a single management thread.
+ * exclusively from a transport worker, each of which has its own instance and uses a single management thread.
+ *
+ * The deadlines of the requests are tracked in a timing wheel so that finding the expired requests does not require
+ * a scan of all pending requests. Every change to the deadline of a context must be followed by a call to one of the
+ * add methods so that the context is rescheduled.
+ *
+ * Invoke ids for client requests are allocated per peer address, so up to 256 requests can be pending with each peer.
+ * Allocators only exist while requests are pending with the peer. Where the allocators of recent peers left off is
+ * remembered, so that ids are not reused right away when the peer is contacted again.
  *
  * @author Matthew
  */
 public class UnackedMessages {
     static final Logger LOG = LoggerFactory.getLogger(UnackedMessages.class);
 
+    // The resolution of the timing wheel, and the number of buckets it uses.
+    private static final int TICK_MILLIS = 10;
+    private static final int WHEEL_SIZE = 1024;
+
     private final Map<UnackedMessageKey, UnackedMessageContext> requests = new HashMap<>();
-    private byte nextInvokeId;
+    private final TimingWheel<Timeout> timeouts;
+    // The number of peers whose next invoke id is remembered, and whose exhaustions are counted.
+    static final int MAX_PEERS_REMEMBERED = 1024;
+
+    private final Map<Address, InvokeIdAllocator> invokeIds = new HashMap<>();
+    // The next invoke id of the peers that have no pending requests, least recently used first.
+    private final Map<Address, Integer> nextInvokeIds = new LinkedHashMap<Address, Integer>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Address, Integer> eldest) {
+            return size() > MAX_PEERS_REMEMBERED;
+        }
+    };
+
+    // The number of times that a client request could not be added because all invoke ids for the peer were in use.
+    // This is read from other threads, so it needs to be thread safe.
+    private final Map<Address, LongAdder> invokeIdExhaustions = new ConcurrentHashMap<>();
+
+    public UnackedMessages(final Clock clock) {
+        timeouts = new TimingWheel<>(TICK_MILLIS, WHEEL_SIZE, clock.millis());
+    }
 
     /**
      * Add a new client-based request to the list of pending requests.
      */
     public UnackedMessageKey addClient(final Address address, final OctetString linkService,
             final UnackedMessageContext ctx) throws BACnetRecoverableException {
-        UnackedMessageKey key;
-
-        // Loop until we find a key that is available.
-        int attempts = 256;
-        while (true) {
-            // We set the server value in the key to true so that it matches with the message from the server.
-            key = new UnackedMessageKey(address, linkService, nextInvokeId++, true);
-
-            if (requests.containsKey(key)) {
-                // Key collision. Try again unless we've tried too many times.
-                if (--attempts > 0)
-                    continue;
-                throw new BACnetRecoverableException(
-                        "Cannot enter a client into the un-acked messages list. key=" + key);
-            }
-
-            // Found a good id. Use it and exit.
-            requests.put(key, ctx);
-            break;
+        final InvokeIdAllocator allocator = getAllocator(address);
+        final int invokeId = allocator.allocate();
+        if (invokeId == -1) {
+            countExhaustion(address);
+            throw new BACnetRecoverableException(
+                    "Cannot enter a client into the un-acked messages list. All invoke ids are in use for " + address);
         }
 
+        // We set the server value in the key to true so that it matches with the message from the server.
+        final UnackedMessageKey key = new UnackedMessageKey(address, linkService, (byte) invokeId, true);
+        add(key, ctx);
         return key;
     }
 
@@ -89,25 +118,128 @@ public class UnackedMessages {
 
         if (requests.containsKey(key))
             throw new BACnetRecoverableException("Cannot enter a server into the un-acked messages list. key=" + key);
-        requests.put(key, ctx);
+        add(key, ctx);
 
         return key;
     }
 
+    /**
+     * Adds the context to the list of pending requests, or reschedules it if its deadline has changed.
+     */
     public void add(final UnackedMessageKey key, final UnackedMessageContext value) {
+        if (key.isFromServer()) {
+            // A client request. Make sure that its invoke id is marked as being in use.
+            getAllocator(key.getAddress()).reserve(key.getInvokeId() & 0xff);
+        }
         requests.put(key, value);
+        timeouts.schedule(new Timeout(key, value, value.getDeadline()), value.getDeadline());
     }
 
     public UnackedMessageContext remove(final UnackedMessageKey key) {
-        return requests.remove(key);
+        final UnackedMessageContext ctx = requests.remove(key);
+        if (ctx != null && key.isFromServer()) {
+            final InvokeIdAllocator allocator = invokeIds.get(key.getAddress());
+            if (allocator != null) {
+                allocator.release(key.getInvokeId() & 0xff);
+                if (allocator.isEmpty()) {
+                    invokeIds.remove(key.getAddress());
+                    nextInvokeIds.put(key.getAddress(), allocator.getNext());
+                }
+            }
+        }
+        return ctx;
+    }
+
+    private InvokeIdAllocator getAllocator(final Address address) {
+        InvokeIdAllocator allocator = invokeIds.get(address);
+        if (allocator == null) {
+            final Integer next = nextInvokeIds.remove(address);
+            allocator = new InvokeIdAllocator(next == null ? 0 : next);
+            invokeIds.put(address, allocator);
+        }
+        return allocator;
+    }
+
+    private void countExhaustion(final Address address) {
+        if (invokeIdExhaustions.size() >= MAX_PEERS_REMEMBERED && !invokeIdExhaustions.containsKey(address)) {
+            // Forget the peers that no longer have pending requests.
+            invokeIdExhaustions.keySet().removeIf((a) -> !invokeIds.containsKey(a));
+        }
+        invokeIdExhaustions.computeIfAbsent(address, (a) -> new LongAdder()).increment();
+    }
+
+    /**
+     * @return the number of peers with which client requests are pending.
+     */
+    int getPeerCount() {
+        return invokeIds.size();
+    }
+
+    /**
+     * @return the number of messages waiting for an acknowledgement.
+     */
+    public int size() {
+        return requests.size();
+    }
+
+    /**
+     * Returns the number of client requests that are pending with the given peer.
+     */
+    public int getClientCount(final Address address) {
+        final InvokeIdAllocator allocator = invokeIds.get(address);
+        return allocator == null ? 0 : allocator.getCount();
+    }
+
+    /**
+     * Returns the number of times, by peer address, that a client request could not be added because all of the
+     * invoke ids for the peer were in use. Once many peers have been counted, the counts of peers that have no pending
+     * requests are dropped. This method is thread safe.
+     */
+    public Map<Address, Long> getInvokeIdExhaustions() {
+        final Map<Address, Long> result = new HashMap<>();
+        invokeIdExhaustions.forEach((address, count) -> result.put(address, count.sum()));
+        return result;
     }
 
     public Map<UnackedMessageKey, UnackedMessageContext> getRequests() {
         return requests;
     }
 
+    /**
+     * Provides the pending requests whose deadlines are at or before the given time. The requests remain in the list;
+     * the consumer is expected to either remove them or to add them again with a new deadline.
+     */
+    public void expire(final long now, final BiConsumer<UnackedMessageKey, UnackedMessageContext> consumer) {
+        timeouts.expire(now, (timeout) -> {
+            // Ignore timeouts for requests that have since been removed or rescheduled.
+            if (requests.get(timeout.key) == timeout.ctx && timeout.ctx.getDeadline() == timeout.deadline)
+                consumer.accept(timeout.key, timeout.ctx);
+        });
+    }
+
+    /**
+     * Returns the time at which the next pending request may expire, or Long.MAX_VALUE if there are none.
+     */
+    public long getNextDeadline() {
+        if (requests.isEmpty())
+            return Long.MAX_VALUE;
+        return timeouts.getNextDeadline();
+    }
+
     @Override
     public String toString() {
-        return "UnackedMessages [requests=" + requests + ", nextInvokeId=" + nextInvokeId + "]";
+        return "UnackedMessages [requests=" + requests + ", invokeIds=" + invokeIds + "]";
+    }
+
+    private static class Timeout {
+        final UnackedMessageKey key;
+        final UnackedMessageContext ctx;
+        final long deadline;
+
+        Timeout(final UnackedMessageKey key, final UnackedMessageContext ctx, final long deadline) {
+            this.key = key;
+            this.ctx = ctx;
+            this.deadline = deadline;
+        }
     }
 }
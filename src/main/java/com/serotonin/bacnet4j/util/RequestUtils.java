@@ -32,6 +32,9 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.Pair;
@@ -47,6 +50,7 @@ import com.serotonin.bacnet4j.exception.BACnetTimeoutException;
 import com.serotonin.bacnet4j.exception.ErrorAPDUException;
 import com.serotonin.bacnet4j.exception.ServiceTooBigException;
 import com.serotonin.bacnet4j.obj.ObjectProperties;
+import com.serotonin.bacnet4j.service.acknowledgement.AcknowledgementService;
 import com.serotonin.bacnet4j.service.acknowledgement.ReadPropertyAck;
 import com.serotonin.bacnet4j.service.acknowledgement.ReadPropertyMultipleAck;
 import com.serotonin.bacnet4j.service.confirmed.AddListElementRequest;
@@ -237,6 +241,48 @@ public class RequestUtils {
         throw new BACnetException("Device does not support readProperty nor readPropertyMultiple");
     }
 
+    /**
+     * Non-blocking version of readProperty. Cancelling the returned future cancels the underlying request.
+     */
+    public static CompletableFuture<Encodable> readPropertyAsync(final LocalDevice localDevice, final RemoteDevice d,
+            final ObjectIdentifier oid, final PropertyIdentifier pid, final UnsignedInteger propertyArrayIndex) {
+        if (d.getServicesSupported().isReadProperty()) {
+            final CompletableFuture<ReadPropertyAck> future = localDevice.sendAsync(d,
+                    new ReadPropertyRequest(oid, pid, propertyArrayIndex));
+            return thenApply(future, ReadPropertyAck::getValue);
+        }
+
+        if (d.getServicesSupported().isReadPropertyMultiple()) {
+            final List<PropertyReference> refs = new ArrayList<>();
+            refs.add(new PropertyReference(pid, propertyArrayIndex));
+            final List<ReadAccessSpecification> specs = new ArrayList<>();
+            specs.add(new ReadAccessSpecification(oid, new SequenceOf<>(refs)));
+            final CompletableFuture<ReadPropertyMultipleAck> future = localDevice.sendAsync(d,
+                    new ReadPropertyMultipleRequest(new SequenceOf<>(specs)));
+            return thenApply(future, (ack) -> ack.getListOfReadAccessResults().getBase1(1).getListOfResults()
+                    .getBase1(1).getReadResult().getDatum());
+        }
+
+        final CompletableFuture<Encodable> future = new CompletableFuture<>();
+        future.completeExceptionally(
+                new BACnetException("Device does not support readProperty nor readPropertyMultiple"));
+        return future;
+    }
+
+    /**
+     * Applies the function to the result of the request, and passes a cancellation of the resulting future back to
+     * the request.
+     */
+    private static <T, U> CompletableFuture<U> thenApply(final CompletableFuture<T> request,
+            final Function<? super T, ? extends U> fn) {
+        final CompletableFuture<U> result = request.thenApply(fn);
+        result.whenComplete((r, e) -> {
+            if (result.isCancelled())
+                request.cancel(false);
+        });
+        return result;
+    }
+
     /**
      * This version of the readProperties method will preserve the order of properties given in the list in the results.
      *
@@ -399,6 +445,135 @@ public class RequestUtils {
         return propertyValues;
     }
 
+    /**
+     * Non-blocking version of readProperties. The references are read with ReadPropertyMultiple in partitions of the
+     * device's max read multiple references, or one at a time with ReadProperty if the device does not support it.
+     * Partitions are sent one after the other, so that a device is not sent more requests at once than the blocking
+     * version would send. As in readProperties, partitions that are too big are split, and properties that cannot be
+     * read have an ErrorClassAndCode as their value. Any other failure completes the future exceptionally.
+     * Cancelling the returned future cancels the request in progress.
+     */
+    public static CompletableFuture<PropertyValues> readPropertiesAsync(final LocalDevice localDevice,
+            final RemoteDevice d, final PropertyReferences refs) {
+        final boolean multipleSupported = d.getServicesSupported() != null
+                && d.getServicesSupported().isReadPropertyMultiple();
+        final AsyncPropertyRead read = new AsyncPropertyRead(localDevice, d, multipleSupported,
+                refs.getPropertiesPartitioned(multipleSupported ? d.getMaxReadMultipleReferences() : 1));
+        read.next();
+        return read.result;
+    }
+
+    /**
+     * The state of a readPropertiesAsync. Each request is sent when the previous one has completed, so the values
+     * and partitions are only used by one thread at a time.
+     */
+    private static class AsyncPropertyRead {
+        final LocalDevice localDevice;
+        final RemoteDevice d;
+        final boolean multiple;
+        final PropertyValues values = new PropertyValues();
+        final CompletableFuture<PropertyValues> result = new CompletableFuture<>();
+        List<PropertyReferences> partitions;
+        volatile CompletableFuture<? extends AcknowledgementService> current;
+
+        AsyncPropertyRead(final LocalDevice localDevice, final RemoteDevice d, final boolean multiple,
+                final List<PropertyReferences> partitions) {
+            this.localDevice = localDevice;
+            this.d = d;
+            this.multiple = multiple;
+            this.partitions = partitions;
+            result.whenComplete((r, e) -> {
+                final CompletableFuture<? extends AcknowledgementService> request = current;
+                if (result.isCancelled() && request != null)
+                    request.cancel(false);
+            });
+        }
+
+        void next() {
+            if (result.isDone())
+                return;
+            if (partitions.isEmpty()) {
+                result.complete(values);
+                return;
+            }
+
+            final PropertyReferences partition = partitions.get(0);
+            final Map<ObjectIdentifier, List<PropertyReference>> properties = partition.getProperties();
+            if (multiple) {
+                final List<ReadAccessSpecification> specs = new ArrayList<>();
+                for (final Map.Entry<ObjectIdentifier, List<PropertyReference>> e : properties.entrySet())
+                    specs.add(new ReadAccessSpecification(e.getKey(), new SequenceOf<>(e.getValue())));
+                final CompletableFuture<ReadPropertyMultipleAck> request = localDevice.sendAsync(d,
+                        new ReadPropertyMultipleRequest(new SequenceOf<>(specs)));
+                send(request, partition, (ack) -> {
+                    for (final ReadAccessResult objectResult : ack.getListOfReadAccessResults()) {
+                        for (final Result r : objectResult.getListOfResults())
+                            values.add(objectResult.getObjectIdentifier(), r.getPropertyIdentifier(),
+                                    r.getPropertyArrayIndex(), r.getReadResult().getDatum());
+                    }
+                });
+            } else {
+                final ObjectIdentifier oid = properties.keySet().iterator().next();
+                final PropertyReference ref = properties.get(oid).get(0);
+                final CompletableFuture<ReadPropertyAck> request = localDevice.sendAsync(d,
+                        new ReadPropertyRequest(oid, ref.getPropertyIdentifier(), ref.getPropertyArrayIndex()));
+                send(request, partition, (ack) -> values.add(oid, ack.getPropertyIdentifier(),
+                        ack.getPropertyArrayIndex(), ack.getValue()));
+            }
+        }
+
+        private <T extends AcknowledgementService> void send(final CompletableFuture<T> request,
+                final PropertyReferences partition, final Consumer<T> handler) {
+            current = request;
+            if (result.isCancelled())
+                request.cancel(false);
+
+            request.whenComplete((ack, e) -> {
+                try {
+                    if (e == null) {
+                        handler.accept(ack);
+                        partitions.remove(0);
+                    } else if (partition.size() > 1 && tooBig(e)) {
+                        // Reduce the device's max references and repartition the remaining references.
+                        d.reduceMaxReadMultipleReferences(partition.size());
+                        partitions = new PropertyReferences(partitions)
+                                .getPropertiesPartitioned(d.getMaxReadMultipleReferences());
+                    } else if (e instanceof ErrorAPDUException) {
+                        // The error may only apply to a single reference, so split the partition.
+                        partitions.remove(0);
+                        if (partition.size() > 1)
+                            partitions.addAll(0, partition.getPropertiesPartitioned(1));
+                        else {
+                            for (final Map.Entry<ObjectIdentifier, List<PropertyReference>> p : partition
+                                    .getProperties().entrySet()) {
+                                for (final PropertyReference ref : p.getValue())
+                                    values.add(p.getKey(), ref.getPropertyIdentifier(), ref.getPropertyArrayIndex(),
+                                            ((ErrorAPDUException) e).getError());
+                            }
+                        }
+                    } else {
+                        result.completeExceptionally(e);
+                        return;
+                    }
+                    next();
+                } catch (final Throwable t) {
+                    // Otherwise the caller would never hear of it.
+                    result.completeExceptionally(t);
+                }
+            });
+        }
+
+        private static boolean tooBig(final Throwable e) {
+            if (e instanceof ServiceTooBigException)
+                return true;
+            if (e instanceof AbortAPDUException) {
+                final AbortReason reason = ((AbortAPDUException) e).getApdu().getAbortReason();
+                return AbortReason.bufferOverflow.equals(reason) || AbortReason.segmentationNotSupported.equals(reason);
+            }
+            return false;
+        }
+    }
+
     public static void populateWithError(final RemoteDevice d,
             final Map<ObjectIdentifier, List<PropertyReference>> properties, final ReadListenerUpdater updater,
             final ErrorClassAndCode error) {
@@ -488,6 +663,17 @@ public class RequestUtils {
         return readProperties(localDevice, d, refs, false, callback);
     }
 
+    /**
+     * Non-blocking version of readOidPresentValues.
+     */
+    public static CompletableFuture<PropertyValues> readOidPresentValuesAsync(final LocalDevice localDevice,
+            final RemoteDevice d, final List<ObjectIdentifier> oids) {
+        final PropertyReferences refs = new PropertyReferences();
+        for (final ObjectIdentifier oid : oids)
+            refs.add(oid, PropertyIdentifier.presentValue);
+        return readPropertiesAsync(localDevice, d, refs);
+    }
+
     ////////////////////////////////////////////////////////////////////////////////////////////////////////////
     ////////////////////////////////////////////////////////////////////////////////////////////////////////////
     // Write properties
@@ -509,6 +695,20 @@ public class RequestUtils {
         localDevice.send(d, new WritePropertyRequest(oid, pid, null, value, new UnsignedInteger(priority))).get();
     }
 
+    /**
+     * Non-blocking version of writeProperty. Cancelling the returned future cancels the underlying request.
+     *
+     * @param priority
+     *            the write priority, or null
+     */
+    public static CompletableFuture<Void> writePropertyAsync(final LocalDevice localDevice, final RemoteDevice d,
+            final ObjectIdentifier oid, final PropertyIdentifier pid, final Encodable value,
+            final UnsignedInteger priority) {
+        final CompletableFuture<AcknowledgementService> future = localDevice.sendAsync(d,
+                new WritePropertyRequest(oid, pid, null, value, priority));
+        return thenApply(future, (ack) -> null);
+    }
+
     public static void writeProperty(final LocalDevice localDevice, final RemoteDevice d, final ObjectIdentifier oid,
             final PropertyValue pv) throws BACnetException {
         writeProperty(localDevice, d, oid, pv.getPropertyIdentifier(), pv.getPropertyArrayIndex(), pv.getValue(),
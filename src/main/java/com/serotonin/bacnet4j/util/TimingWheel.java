@@ -0,0 +1,182 @@
+/*
+ * ============================================================================
+ * GNU General Public License
+ * ============================================================================
+ *
+ * Copyright (C) 2015 Infinite Automation Software. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * When signing a commercial license with Infinite Automation Software,
+ * the following extension to GPL is made. A special exception to the GPL is
+ * included to allow you to distribute a combined work that includes BAcnet4J
+ * without being obliged to provide the source code for any proprietary components.
+ *
+ * See www.infiniteautomation.com for commercial license options.
+ *
+ * @author Matthew Lohbihler
+ */
+package com.serotonin.bacnet4j.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * A hashed timing wheel. Elements are scheduled for a deadline, and are hashed into the bucket of the tick in which the
+ * deadline falls. Expiring elements only visits the buckets of the ticks that have passed since the last expiry, so
+ * the cost is proportional to the number of elements that are due rather than the number that are scheduled. Elements
+ * with deadlines beyond one rotation of the wheel stay in their bucket until the rotation in which they are due.
+ *
+ * This class is not thread safe.
+ *
+ * @author Matthew
+ */
+public class TimingWheel<E> {
+    private final long tickMillis;
+    private final List<Entry<E>>[] buckets;
+    private final int mask;
+    private long currentTick;
+    private int size;
+
+    /**
+     * @param tickMillis
+     *            the duration of a tick, i.e. the resolution of the wheel
+     * @param wheelSize
+     *            the number of buckets, which is rounded up to a power of 2
+     * @param now
+     *            the current time in millis
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public TimingWheel(final long tickMillis, final int wheelSize, final long now) {
+        if (tickMillis < 1)
+            throw new IllegalArgumentException("tickMillis must be at least 1");
+        int n = 1;
+        while (n < wheelSize)
+            n <<= 1;
+
+        this.tickMillis = tickMillis;
+        buckets = new List[n];
+        mask = n - 1;
+        currentTick = now / tickMillis;
+    }
+
+    /**
+     * Schedules the element to expire at the given deadline. Elements whose deadline has already passed will be
+     * expired by the next call to expire.
+     */
+    public void schedule(final E element, final long deadline) {
+        final long tick = Math.max(deadline / tickMillis, currentTick);
+        final int index = (int) (tick & mask);
+        if (buckets[index] == null)
+            buckets[index] = new ArrayList<>();
+        buckets[index].add(new Entry<>(element, deadline));
+        size++;
+    }
+
+    /**
+     * Advances the wheel to the given time, and removes and provides all of the elements whose deadlines are at or
+     * before that time.
+     *
+     * @return the number of elements that expired
+     */
+    public int expire(final long now, final Consumer<E> consumer) {
+        // Don't let the wheel go backwards if the clock does.
+        final long nowTick = Math.max(now / tickMillis, currentTick);
+        if (size == 0) {
+            currentTick = nowTick;
+            return 0;
+        }
+
+        // The bucket of the current tick is always visited again, since it may contain elements that were not yet
+        // due the last time.
+        final List<E> expired = new ArrayList<>();
+        if (nowTick - currentTick >= buckets.length) {
+            // Passed at least one full rotation, so visit every bucket.
+            for (final List<Entry<E>> bucket : buckets)
+                expire(bucket, now, expired);
+        } else {
+            for (long tick = currentTick; tick <= nowTick; tick++)
+                expire(buckets[(int) (tick & mask)], now, expired);
+        }
+        currentTick = nowTick;
+
+        // Provide the elements only after the wheel is updated so that the consumer can schedule new elements.
+        for (final E e : expired)
+            consumer.accept(e);
+        return expired.size();
+    }
+
+    private void expire(final List<Entry<E>> bucket, final long now, final List<E> expired) {
+        if (bucket == null || bucket.isEmpty())
+            return;
+        final Iterator<Entry<E>> iter = bucket.iterator();
+        while (iter.hasNext()) {
+            final Entry<E> e = iter.next();
+            if (e.deadline <= now) {
+                iter.remove();
+                size--;
+                expired.add(e.element);
+            }
+        }
+    }
+
+    /**
+     * Returns the earliest time at which an element may be due, or Long.MAX_VALUE if the wheel is empty. Only the
+     * current rotation of the wheel is examined, so if all elements are due in later rotations the end of the current
+     * rotation is returned.
+     */
+    public long getNextDeadline() {
+        if (size == 0)
+            return Long.MAX_VALUE;
+
+        final long rotationEnd = (currentTick + buckets.length) * tickMillis;
+        for (long tick = currentTick; tick < currentTick + buckets.length; tick++) {
+            final List<Entry<E>> bucket = buckets[(int) (tick & mask)];
+            if (bucket == null || bucket.isEmpty())
+                continue;
+
+            long earliest = Long.MAX_VALUE;
+            for (final Entry<E> e : bucket) {
+                if (e.deadline < rotationEnd && e.deadline < earliest)
+                    earliest = e.deadline;
+            }
+            if (earliest != Long.MAX_VALUE)
+                return earliest;
+        }
+        return rotationEnd;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        for (final List<Entry<E>> bucket : buckets) {
+            if (bucket != null)
+                bucket.clear();
+        }
+        size = 0;
+    }
+
+    private static class Entry<E> {
+        final E element;
+        final long deadline;
+
+        Entry(final E element, final long deadline) {
+            this.element = element;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -47,6 +47,9 @@ public class ByteQueue implements Cloneable {
     private int markTail;
     private int markSize;
 
+    // Whether the array belongs to someone else, in which case it is copied before it is written to.
+    private boolean shared;
+
     public ByteQueue() {
         this(1024);
     }
@@ -70,6 +73,24 @@ public class ByteQueue implements Cloneable {
         push(hex);
     }
 
+    /**
+     * Returns a queue that reads the given range of the array without copying it. The range is copied if the queue
+     * is written to, so the array is never modified, but the array must not be modified while the queue is in use.
+     */
+    public static ByteQueue wrap(final byte[] b, final int pos, final int length) {
+        if (b.length == 0)
+            return new ByteQueue();
+        final ByteQueue queue = new ByteQueue(0);
+        queue.queue = b;
+        if (length > 0) {
+            queue.head = pos;
+            queue.tail = (pos + length) % b.length;
+            queue.size = length;
+        }
+        queue.shared = true;
+        return queue;
+    }
+
     public void push(final String hex) {
         if (hex.length() % 2 != 0)
             throw new IllegalArgumentException("Hex string must have an even number of characters");
@@ -80,6 +101,8 @@ public class ByteQueue implements Cloneable {
     }
 
     public void push(final byte b) {
+        if (shared)
+            unshare();
         if (room() == 0)
             expand();
 
@@ -172,6 +195,8 @@ public class ByteQueue implements Cloneable {
     public void read(final InputStream in, final int length) throws IOException {
         if (length == 0)
             return;
+        if (shared)
+            unshare();
 
         while (room() < length)
             expand();
@@ -209,6 +234,8 @@ public class ByteQueue implements Cloneable {
     public void push(final byte[] b, final int pos, final int length) {
         if (length == 0)
             return;
+        if (shared)
+            unshare();
 
         while (room() < length)
             expand();
@@ -256,6 +283,8 @@ public class ByteQueue implements Cloneable {
         final int length = source.remaining();
         if (length == 0)
             return;
+        if (shared)
+            unshare();
 
         while (room() < length)
             expand();
@@ -364,6 +393,27 @@ public class ByteQueue implements Cloneable {
         return len;
     }
 
+    /**
+     * Moves as much of the queue as fits into the buffer, without an intermediate array.
+     *
+     * @return the number of bytes that were moved
+     */
+    public int pop(final ByteBuffer dest) {
+        final int len = Math.min(size, dest.remaining());
+        if (len == 0)
+            return 0;
+
+        final int headLength = queue.length - head;
+        if (headLength >= len)
+            dest.put(queue, head, len);
+        else {
+            dest.put(queue, head, headLength);
+            dest.put(queue, 0, len - headLength);
+        }
+
+        return pop(len);
+    }
+
     public String popString(final int length, final Charset charset) {
         final byte[] b = new byte[length];
         pop(b);
@@ -530,6 +580,12 @@ public class ByteQueue implements Cloneable {
         return queue.length - size;
     }
 
+    private void unshare() {
+        // Copy the whole array so that the positions - including the mark - remain valid.
+        queue = queue.clone();
+        shared = false;
+    }
+
     private void expand() {
         final byte[] newb = new byte[queue.length * 2];
 
@@ -556,6 +612,7 @@ public class ByteQueue implements Cloneable {
             final ByteQueue clone = (ByteQueue) super.clone();
             // Array is mutable, so make a copy of it too.
             clone.queue = queue.clone();
+            clone.shared = false;
             return clone;
         } catch (final CloneNotSupportedException e) {
             // Will never happen because we're Cloneable
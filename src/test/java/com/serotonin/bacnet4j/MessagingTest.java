@@ -4,6 +4,7 @@ import static com.serotonin.bacnet4j.TestUtils.assertListEqualsIgnoreOrder;
 import static com.serotonin.bacnet4j.TestUtils.toList;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -16,6 +17,7 @@ import org.slf4j.LoggerFactory;
 
 import com.serotonin.bacnet4j.enums.MaxApduLength;
 import com.serotonin.bacnet4j.event.DeviceEventAdapter;
+import com.serotonin.bacnet4j.exception.BACnetException;
 import com.serotonin.bacnet4j.exception.BACnetServiceException;
 import com.serotonin.bacnet4j.exception.BACnetTimeoutException;
 import com.serotonin.bacnet4j.exception.ErrorAPDUException;
@@ -30,6 +32,7 @@ import com.serotonin.bacnet4j.service.confirmed.WritePropertyMultipleRequest;
 import com.serotonin.bacnet4j.service.confirmed.WritePropertyRequest;
 import com.serotonin.bacnet4j.service.unconfirmed.WhoIsRequest;
 import com.serotonin.bacnet4j.transport.DefaultTransport;
+import com.serotonin.bacnet4j.transport.Transport;
 import com.serotonin.bacnet4j.type.constructed.Address;
 import com.serotonin.bacnet4j.type.constructed.NetworkSourceAddress;
 import com.serotonin.bacnet4j.type.constructed.PropertyReference;
@@ -201,6 +204,91 @@ public class MessagingTest {
         d2.terminate();
     }
 
+    @Test
+    public void segmentedResponseReassemblyBudget() throws Exception {
+        final DefaultTransport transport = new DefaultTransport(new TestNetwork(map, 1, 0));
+        final LocalDevice d1 = new LocalDevice(1, transport);
+        d1.initialize();
+
+        final LocalDevice d2 = new LocalDevice(2, new DefaultTransport(new TestNetwork(map, 2, 0)));
+        for (int i = 0; i < 1000; i++)
+            createAnalogValue(d2, i);
+        d2.initialize();
+
+        final RemoteDevice r2 = d1.getRemoteDevice(2).get();
+        r2.setDeviceProperty(PropertyIdentifier.segmentationSupported, Segmentation.segmentedBoth);
+        r2.setDeviceProperty(PropertyIdentifier.maxApduLengthAccepted, MaxApduLength.UP_TO_1476.getMaxLength());
+
+        final List<ReadAccessSpecification> specs = new ArrayList<>();
+        specs.add(
+                new ReadAccessSpecification(new ObjectIdentifier(ObjectType.device, 2), PropertyIdentifier.objectList));
+
+        // The response fits in the default budget, and the memory is given back afterwards.
+        final ReadPropertyMultipleAck ack = d1.send(r2, new ReadPropertyMultipleRequest(new SequenceOf<>(specs)))
+                .get();
+        assertEquals(1001, ((SequenceOf<?>) ack.getListOfReadAccessResults().getBase1(1).getListOfResults()
+                .getBase1(1).getReadResult().getDatum()).getCount());
+        assertEquals(0, transport.getReassemblyMemoryUsed());
+
+        // With a small budget the response is aborted.
+        transport.setReassemblyBudget(2048);
+        try {
+            d1.send(r2, new ReadPropertyMultipleRequest(new SequenceOf<>(specs))).get();
+            fail("Should have been aborted");
+        } catch (final BACnetException e) {
+            assertEquals("Segmented response aborted because the reassembly budget is used up", e.getMessage());
+        }
+        assertEquals(0, transport.getReassemblyMemoryUsed());
+
+        d1.terminate();
+        d2.terminate();
+    }
+
+    @Test
+    public void adaptiveSegWindow() throws Exception {
+        final DefaultTransport t1 = new DefaultTransport(new TestNetwork(map, 1, 0));
+        t1.setAdaptiveSegWindow(true);
+        final LocalDevice d1 = new LocalDevice(1, t1);
+        d1.initialize();
+
+        final DefaultTransport t2 = new DefaultTransport(new TestNetwork(map, 2, 0));
+        t2.setAdaptiveSegWindow(true);
+        final LocalDevice d2 = new LocalDevice(2, t2);
+        for (int i = 0; i < 1000; i++)
+            createAnalogValue(d2, i);
+        d2.initialize();
+
+        final RemoteDevice r2 = d1.getRemoteDevice(2).get();
+        r2.setDeviceProperty(PropertyIdentifier.segmentationSupported, Segmentation.segmentedBoth);
+        r2.setDeviceProperty(PropertyIdentifier.maxApduLengthAccepted, MaxApduLength.UP_TO_1476.getMaxLength());
+
+        final List<ReadAccessSpecification> specs = new ArrayList<>();
+        specs.add(
+                new ReadAccessSpecification(new ObjectIdentifier(ObjectType.device, 2), PropertyIdentifier.objectList));
+
+        assertEquals(Transport.DEFAULT_SEG_WINDOW, t2.getSendSegWindow(d1.getLoopbackAddress()));
+        assertEquals(Transport.DEFAULT_SEG_WINDOW, t1.getReceiveSegWindow(r2.getAddress()));
+
+        // Each response is sent as the first segment and then a single window, both of which are received cleanly.
+        for (int i = 0; i < 2; i++) {
+            final ReadPropertyMultipleAck ack = d1
+                    .send(r2, new ReadPropertyMultipleRequest(new SequenceOf<>(specs))).get();
+            assertEquals(1001, ((SequenceOf<?>) ack.getListOfReadAccessResults().getBase1(1).getListOfResults()
+                    .getBase1(1).getReadResult().getDatum()).getCount());
+        }
+        // Give the last segment ack a moment to arrive.
+        ThreadUtils.sleep(100);
+
+        // The receiver's window grows by one for each clean window.
+        assertEquals(Transport.DEFAULT_SEG_WINDOW + 2, t1.getReceiveSegWindow(r2.getAddress()));
+        // The sender's window grew by two in the first transfer, but the receiver accepted less than that in the
+        // second.
+        assertEquals(Transport.DEFAULT_SEG_WINDOW + 1, t2.getSendSegWindow(d1.getLoopbackAddress()));
+
+        d1.terminate();
+        d2.terminate();
+    }
+
     @Test
     public void writeRequest() throws Exception {
         // Create the first local device.
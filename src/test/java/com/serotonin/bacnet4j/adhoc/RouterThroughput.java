@@ -0,0 +1,77 @@
+package com.serotonin.bacnet4j.adhoc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.serotonin.bacnet4j.LocalDevice;
+import com.serotonin.bacnet4j.ServiceFuture;
+import com.serotonin.bacnet4j.npdu.NetworkRouter;
+import com.serotonin.bacnet4j.npdu.test.TestNetwork;
+import com.serotonin.bacnet4j.npdu.test.TestNetworkMap;
+import com.serotonin.bacnet4j.service.confirmed.ReadPropertyRequest;
+import com.serotonin.bacnet4j.transport.DefaultTransport;
+import com.serotonin.bacnet4j.type.constructed.Address;
+import com.serotonin.bacnet4j.type.enumerated.PropertyIdentifier;
+
+/**
+ * Measures how many confirmed requests per second get through a NetworkRouter between two test networks, compared to
+ * the same requests between two devices on one test network.
+ */
+public class RouterThroughput {
+    static final int REQUESTS = 20000;
+    static final int IN_FLIGHT = 64;
+
+    public static void main(final String[] args) throws Exception {
+        // Direct, as the baseline.
+        final TestNetworkMap map = new TestNetworkMap();
+        final LocalDevice client = new LocalDevice(100, new DefaultTransport(new TestNetwork(map, 1, 0))).initialize();
+        final LocalDevice server = new LocalDevice(200, new DefaultTransport(new TestNetwork(map, 2, 0))).initialize();
+        run("Direct", client, new Address(new byte[] { 2 }), server);
+        client.terminate();
+        server.terminate();
+
+        // Through a router.
+        final TestNetworkMap mapA = new TestNetworkMap();
+        final TestNetworkMap mapB = new TestNetworkMap();
+        final TestNetwork portA = new TestNetwork(mapA, new Address(new byte[] { 1 }), 0, 10);
+        final TestNetwork portB = new TestNetwork(mapB, new Address(new byte[] { 1 }), 0, 20);
+        final NetworkRouter router = new NetworkRouter().addPort(portA).addPort(portB);
+        final LocalDevice routerA = new LocalDevice(1, new DefaultTransport(portA)).initialize();
+        final LocalDevice routerB = new LocalDevice(2, new DefaultTransport(portB)).initialize();
+        final LocalDevice a = new LocalDevice(100, new DefaultTransport(new TestNetwork(mapA, 2, 0))).initialize();
+        final LocalDevice b = new LocalDevice(200, new DefaultTransport(new TestNetwork(mapB, 2, 0))).initialize();
+        run("Routed", a, new Address(20, new byte[] { 2 }), b);
+        System.out.println("Forwarded: " + router.getForwardedCount() + ", dropped: " + router.getDroppedCount());
+        a.terminate();
+        b.terminate();
+        routerA.terminate();
+        routerB.terminate();
+    }
+
+    static void run(final String name, final LocalDevice client, final Address address, final LocalDevice server)
+            throws Exception {
+        final ReadPropertyRequest request = new ReadPropertyRequest(server.getId(), PropertyIdentifier.objectName);
+
+        // Warm up, which also lets the client find the router.
+        batch(client, address, request, 1000);
+
+        final long start = System.nanoTime();
+        batch(client, address, request, REQUESTS);
+        final long elapsed = System.nanoTime() - start;
+
+        System.out.println(String.format("%s: %d requests in %d ms, %.0f requests/s", name, REQUESTS,
+                elapsed / 1000000, REQUESTS * 1e9 / elapsed));
+    }
+
+    static void batch(final LocalDevice client, final Address address, final ReadPropertyRequest request,
+            final int count) throws Exception {
+        int sent = 0;
+        while (sent < count) {
+            final List<ServiceFuture> futures = new ArrayList<>();
+            for (int i = 0; i < IN_FLIGHT && sent < count; i++, sent++)
+                futures.add(client.send(address, request));
+            for (final ServiceFuture future : futures)
+                future.get();
+        }
+    }
+}
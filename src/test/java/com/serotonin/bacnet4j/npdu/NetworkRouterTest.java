@@ -0,0 +1,93 @@
+package com.serotonin.bacnet4j.npdu;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.serotonin.bacnet4j.LocalDevice;
+import com.serotonin.bacnet4j.RemoteDevice;
+import com.serotonin.bacnet4j.npdu.test.TestNetwork;
+import com.serotonin.bacnet4j.npdu.test.TestNetworkMap;
+import com.serotonin.bacnet4j.service.acknowledgement.ReadPropertyAck;
+import com.serotonin.bacnet4j.service.confirmed.ReadPropertyRequest;
+import com.serotonin.bacnet4j.transport.DefaultTransport;
+import com.serotonin.bacnet4j.type.constructed.Address;
+import com.serotonin.bacnet4j.type.enumerated.PropertyIdentifier;
+import com.serotonin.bacnet4j.type.primitive.OctetString;
+import com.serotonin.bacnet4j.util.sero.ThreadUtils;
+
+public class NetworkRouterTest {
+    private final TestNetworkMap mapA = new TestNetworkMap();
+    private final TestNetworkMap mapB = new TestNetworkMap();
+
+    private LocalDevice routerA;
+    private LocalDevice routerB;
+    private LocalDevice a;
+    private LocalDevice b;
+    private NetworkRouter router;
+
+    @Before
+    public void before() throws Exception {
+        final TestNetwork portA = new TestNetwork(mapA, new Address(new byte[] { 1 }), 0, 10);
+        final TestNetwork portB = new TestNetwork(mapB, new Address(new byte[] { 1 }), 0, 20);
+        router = new NetworkRouter().addPort(portA).addPort(portB);
+
+        routerA = new LocalDevice(1, new DefaultTransport(portA)).initialize();
+        routerB = new LocalDevice(2, new DefaultTransport(portB)).initialize();
+        a = new LocalDevice(100, new DefaultTransport(new TestNetwork(mapA, 2, 0))).initialize();
+        b = new LocalDevice(200, new DefaultTransport(new TestNetwork(mapB, 2, 0))).initialize();
+    }
+
+    @After
+    public void after() {
+        a.terminate();
+        b.terminate();
+        routerA.terminate();
+        routerB.terminate();
+    }
+
+    @Test
+    public void routingTable() {
+        final Map<Integer, Integer> table = router.getRoutingTable();
+        assertEquals(2, table.size());
+        assertEquals(Integer.valueOf(10), table.get(10));
+        assertEquals(Integer.valueOf(20), table.get(20));
+    }
+
+    @Test
+    public void confirmedRequestThroughRouter() throws Exception {
+        // The device has to find the router with Who-Is-Router-To-Network first.
+        final ReadPropertyAck ack = a
+                .send(new Address(20, new byte[] { 2 }),
+                        new ReadPropertyRequest(b.getId(), PropertyIdentifier.objectName)) //
+                .get();
+        assertEquals(b.getDeviceObject().get(PropertyIdentifier.objectName), ack.getValue());
+
+        assertEquals(new OctetString(new byte[] { 1 }), a.getNetwork().getTransport().getNetworkRouters().get(20));
+        // The request and the ack.
+        assertEquals(2, router.getForwardedCount());
+    }
+
+    @Test
+    public void globalBroadcastThroughRouter() throws Exception {
+        final RemoteDevice rd = a.getRemoteDeviceBlocking(200);
+        assertEquals(new Address(20, new byte[] { 2 }), rd.getAddress());
+    }
+
+    @Test
+    public void unknownNetworkIsRejected() {
+        a.getNetwork().getTransport().addNetworkRouter(30, new OctetString(new byte[] { 1 }));
+        a.send(new Address(30, new byte[] { 2 }), new ReadPropertyRequest(b.getId(), PropertyIdentifier.objectName));
+
+        // The reject makes the device forget the router.
+        for (int i = 0; i < 100 && a.getNetwork().getTransport().getNetworkRouters().containsKey(30); i++)
+            ThreadUtils.sleep(10);
+        assertTrue(!a.getNetwork().getTransport().getNetworkRouters().containsKey(30));
+        assertEquals(1, router.getDroppedCount());
+    }
+}
@@ -213,6 +213,80 @@ public class BBMDTest {
         assertPacketEquals("810700187F009701BAC0000300147F009801BAC0001E002F", response);
     }
 
+    @Test
+    public void fdtReRegistration() throws Exception {
+        final InetSocketAddress target = ld11.network.getLocalBindAddress();
+        clock.plus(1, TimeUnit.SECONDS, 20);
+
+        // Register with a TTL of 1s, which expires after 31s.
+        fd153.network.getSocket().send(packet(5, "0001", target));
+        Thread.sleep(100);
+
+        // Register again before the entry expires.
+        clock.plus(20, TimeUnit.SECONDS, 1, TimeUnit.SECONDS, 10, 20);
+        fd153.network.getSocket().send(packet(5, "0001", target));
+        Thread.sleep(100);
+
+        // Advance past the first expiry time. The entry must still be there with the remaining time of the second
+        // registration.
+        clock.plus(20, TimeUnit.SECONDS, 1, TimeUnit.SECONDS, 10, 20);
+        configurer.send(packet(6, "", ld11));
+        final DatagramPacket response = new DatagramPacket(new byte[1024], 1024);
+        configurer.receive(response);
+        assertPacketEquals("8107000E7F009901BAC00001000B", response);
+
+        // Advance past the second expiry time.
+        clock.plus(20, TimeUnit.SECONDS, 1, TimeUnit.SECONDS, 10, 20);
+        configurer.send(packet(6, "", ld11));
+        configurer.receive(response);
+        assertPacketEquals("81070004", response);
+    }
+
+    @Test
+    public void fdtDeleteAndReRegister() throws Exception {
+        final InetSocketAddress target = ld11.network.getLocalBindAddress();
+        clock.plus(1, TimeUnit.SECONDS, 20);
+
+        // Register with a TTL of 1s, and delete the registration.
+        fd153.network.getSocket().send(packet(5, "0001", target));
+        Thread.sleep(100);
+        configurer.send(packet(8, "7F009901BAC0", ld11));
+        final DatagramPacket response = new DatagramPacket(new byte[1024], 1024);
+        configurer.receive(response);
+        assertPacketEquals("810000060000", response);
+
+        // Register again.
+        clock.plus(20, TimeUnit.SECONDS, 1, TimeUnit.SECONDS, 10, 20);
+        fd153.network.getSocket().send(packet(5, "0001", target));
+        Thread.sleep(100);
+
+        // Advance past the expiry time of the deleted registration. It must not expire the new one.
+        clock.plus(20, TimeUnit.SECONDS, 1, TimeUnit.SECONDS, 10, 20);
+        configurer.send(packet(6, "", ld11));
+        configurer.receive(response);
+        assertPacketEquals("8107000E7F009901BAC00001000B", response);
+    }
+
+    @Test
+    public void fdtExpiryStopsForwarding() throws Exception {
+        final InetSocketAddress target = ld11.network.getLocalBindAddress();
+        clock.plus(1, TimeUnit.SECONDS, 20);
+
+        // Register with a TTL of 1s. Broadcasts are forwarded to the foreign device.
+        fd153.network.getSocket().send(packet(5, "0001", target));
+        Thread.sleep(100);
+        ld11.ld.sendLocalBroadcast(ld11.ld.getIAm());
+        clock.plus(100, TimeUnit.MILLISECONDS, 200);
+        assertEquals(1, fd153.iamCount());
+        fd153.reset();
+
+        // Let the registration expire. Broadcasts are no longer forwarded to the foreign device.
+        clock.plus(42, TimeUnit.SECONDS, 1, TimeUnit.SECONDS, 10, 20);
+        ld11.ld.sendLocalBroadcast(ld11.ld.getIAm());
+        clock.plus(100, TimeUnit.MILLISECONDS, 200);
+        assertEquals(0, fd153.iamCount());
+    }
+
     @Test
     public void broadcasts() throws Exception {
 
@@ -0,0 +1,92 @@
+package com.serotonin.bacnet4j.npdu.ip;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class InetAddrCacheTest {
+    @Before
+    public void before() {
+        InetAddrCache.clear();
+    }
+
+    @After
+    public void after() {
+        InetAddrCache.setMaxSize(InetAddrCache.DEFAULT_MAX_SIZE);
+        InetAddrCache.clear();
+    }
+
+    @Test
+    public void hitsAndMisses() throws Exception {
+        final long hits = InetAddrCache.getHits();
+        final long misses = InetAddrCache.getMisses();
+
+        final InetSocketAddress a = InetAddrCache.get(InetAddress.getByName("192.168.0.1"), 47808);
+        final InetSocketAddress b = InetAddrCache.get(new byte[] { (byte) 192, (byte) 168, 0, 1 }, 47808);
+        final InetSocketAddress c = InetAddrCache.get("192.168.0.1", 47809);
+
+        assertSame(a, b);
+        assertEquals(new InetSocketAddress("192.168.0.1", 47808), a);
+        assertEquals(47809, c.getPort());
+        assertEquals(2, InetAddrCache.size());
+        assertEquals(hits + 1, InetAddrCache.getHits());
+        assertEquals(misses + 2, InetAddrCache.getMisses());
+    }
+
+    @Test
+    public void ipv6() throws Exception {
+        final InetAddress addr = InetAddress.getByName("fe80::1");
+        assertSame(InetAddrCache.get(addr, 47808), InetAddrCache.get(addr.getAddress(), 47808));
+        assertEquals(1, InetAddrCache.size());
+    }
+
+    @Test
+    public void eviction() {
+        InetAddrCache.setMaxSize(100);
+        final long evictions = InetAddrCache.getEvictions();
+
+        // Fill the cache past its size.
+        for (int i = 0; i <= 100; i++)
+            InetAddrCache.get(address(i), 47808);
+        assertTrue(InetAddrCache.size() <= 100);
+
+        final InetSocketAddress first = InetAddrCache.get(address(0), 47808);
+        for (int i = 101; i < 1000; i++) {
+            InetAddrCache.get(address(i), 47808);
+            // Keep using the first address so that it is never the least recently used.
+            assertSame(first, InetAddrCache.get(address(0), 47808));
+        }
+
+        assertTrue(InetAddrCache.size() <= 100);
+        assertTrue(InetAddrCache.getEvictions() - evictions >= 900);
+    }
+
+    @Test
+    public void recencyBeforeFirstEviction() {
+        InetAddrCache.setMaxSize(100);
+
+        // Fill the cache, and use the first quarter again so that it is the most recently used.
+        for (int i = 0; i < 100; i++)
+            InetAddrCache.get(address(i), 47808);
+        for (int i = 0; i < 25; i++)
+            InetAddrCache.get(address(i), 47808);
+
+        // The first eviction removes the second quarter rather than the first.
+        InetAddrCache.get(address(100), 47808);
+        final long misses = InetAddrCache.getMisses();
+        for (int i = 0; i < 25; i++)
+            InetAddrCache.get(address(i), 47808);
+        assertEquals(misses, InetAddrCache.getMisses());
+    }
+
+    private static byte[] address(final int i) {
+        return new byte[] { 10, 0, (byte) (i >> 8), (byte) i };
+    }
+}
@@ -0,0 +1,104 @@
+package com.serotonin.bacnet4j.npdu.ip;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.serotonin.bacnet4j.LocalDevice;
+import com.serotonin.bacnet4j.service.acknowledgement.ReadPropertyAck;
+import com.serotonin.bacnet4j.service.confirmed.ReadPropertyRequest;
+import com.serotonin.bacnet4j.transport.DefaultTransport;
+import com.serotonin.bacnet4j.type.enumerated.PropertyIdentifier;
+
+public class NioIpNetworkTest {
+    static final int PORT1 = 47911;
+    static final int PORT2 = 47912;
+    static final int PORT3 = 47913;
+    static final int PORT4 = 47914;
+
+    private IpNetwork network1;
+    private IpNetwork network2;
+    private LocalDevice d1;
+    private LocalDevice d2;
+
+    @Before
+    public void before() throws Exception {
+        network1 = createNetwork(PORT1);
+        network2 = createNetwork(PORT2);
+        d1 = new LocalDevice(1, new DefaultTransport(network1)).initialize();
+        d2 = new LocalDevice(2, new DefaultTransport(network2)).initialize();
+    }
+
+    @After
+    public void after() {
+        d1.terminate();
+        d2.terminate();
+    }
+
+    @Test
+    public void builder() {
+        assertTrue(network1 instanceof NioIpNetwork);
+        assertEquals(IpNetwork.class,
+                new IpNetworkBuilder().withBroadcast("127.255.255.255", 8).withNio(false).build().getClass());
+    }
+
+    @Test
+    public void request() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            final ReadPropertyAck ack = d1.send(IpNetworkUtils.toAddress("127.0.0.1", PORT2),
+                    new ReadPropertyRequest(d2.getId(), PropertyIdentifier.objectName)).get();
+            assertEquals(d2.getDeviceObject().get(PropertyIdentifier.objectName), ack.getValue());
+        }
+
+        assertTrue(network1.getBytesOut() > 0);
+        assertTrue(network1.getBytesIn() > 0);
+    }
+
+    @Test
+    public void multipleReceiveThreads() throws Exception {
+        multipleReceiveThreads(false);
+        multipleReceiveThreads(true);
+    }
+
+    private static void multipleReceiveThreads(final boolean nio) throws Exception {
+        final IpNetwork network3 = createNetwork(PORT3, nio, 4);
+        final IpNetwork network4 = createNetwork(PORT4, nio, 4);
+        assertEquals(4, network3.getReceiveThreads());
+
+        final LocalDevice d3 = new LocalDevice(3, new DefaultTransport(network3)).initialize();
+        final LocalDevice d4 = new LocalDevice(4, new DefaultTransport(network4)).initialize();
+        try {
+            final List<CompletableFuture<ReadPropertyAck>> futures = new ArrayList<>();
+            for (int i = 0; i < 100; i++)
+                futures.add(d3.sendAsync(IpNetworkUtils.toAddress("127.0.0.1", PORT4),
+                        new ReadPropertyRequest(d4.getId(), PropertyIdentifier.objectName)));
+            for (final CompletableFuture<ReadPropertyAck> future : futures)
+                assertEquals(d4.getDeviceObject().get(PropertyIdentifier.objectName),
+                        future.get(5, TimeUnit.SECONDS).getValue());
+        } finally {
+            d3.terminate();
+            d4.terminate();
+        }
+    }
+
+    private static IpNetwork createNetwork(final int port) {
+        return createNetwork(port, true, 1);
+    }
+
+    private static IpNetwork createNetwork(final int port, final boolean nio, final int receiveThreads) {
+        return new IpNetworkBuilder().withLocalBindAddress("127.0.0.1") //
+                .withBroadcast("127.255.255.255", 8) //
+                .withPort(port) //
+                .withNio(nio) //
+                .withReceiveThreads(receiveThreads) //
+                .build();
+    }
+}
@@ -0,0 +1,60 @@
+package com.serotonin.bacnet4j.npdu.ipv6;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import com.serotonin.bacnet4j.type.primitive.OctetString;
+
+public class VmacTableTest {
+    private final OctetString vmac1 = new OctetString(new byte[] { 0, 0, 1 });
+    private final OctetString vmac2 = new OctetString(new byte[] { 0, 0, 2 });
+    private final OctetString addr1 = address(1);
+    private final OctetString addr2 = address(2);
+
+    @Test
+    public void learnAndAge() {
+        final VmacTable table = new VmacTable(1000);
+        assertNull(table.get(vmac1, 0));
+
+        table.learn(vmac1, addr1, 0);
+        assertEquals(addr1, table.get(vmac1, 500));
+
+        // Hearing from the node again refreshes the entry.
+        table.learn(vmac1, addr1, 800);
+        assertEquals(addr1, table.get(vmac1, 1500));
+
+        // Stale entries are not returned, and are removed by purge.
+        assertNull(table.get(vmac1, 1801));
+        assertEquals(1, table.purge(1801));
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void addressChange() {
+        final VmacTable table = new VmacTable(1000);
+        table.learn(vmac1, addr1, 0);
+        table.learn(vmac1, addr2, 100);
+        assertEquals(addr2, table.get(vmac1, 100));
+    }
+
+    @Test
+    public void pinned() {
+        final VmacTable table = new VmacTable(1000);
+        table.pin(vmac1, addr1);
+        table.learn(vmac2, addr2, 0);
+
+        assertEquals(1, table.purge(1_000_000));
+        assertEquals(addr1, table.get(vmac1, 1_000_000));
+        assertNull(table.get(vmac2, 1_000_000));
+    }
+
+    private static OctetString address(final int last) {
+        final byte[] b = new byte[18];
+        b[15] = (byte) last;
+        b[16] = (byte) 0xBA;
+        b[17] = (byte) 0xC0;
+        return new OctetString(b);
+    }
+}
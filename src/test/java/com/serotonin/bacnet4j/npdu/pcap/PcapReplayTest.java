@@ -0,0 +1,88 @@
+package com.serotonin.bacnet4j.npdu.pcap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.serotonin.bacnet4j.LocalDevice;
+import com.serotonin.bacnet4j.npdu.test.SimNetwork;
+import com.serotonin.bacnet4j.npdu.test.SimNetworkMap;
+import com.serotonin.bacnet4j.service.confirmed.ReadPropertyRequest;
+import com.serotonin.bacnet4j.transport.DefaultTransport;
+import com.serotonin.bacnet4j.type.constructed.Address;
+import com.serotonin.bacnet4j.type.enumerated.PropertyIdentifier;
+
+public class PcapReplayTest {
+    private final List<LocalDevice> devices = new ArrayList<>();
+
+    @After
+    public void after() {
+        for (final LocalDevice d : devices)
+            d.terminate();
+    }
+
+    @Test
+    public void captureAndReplay() throws Exception {
+        final SimNetworkMap map = new SimNetworkMap();
+        final LocalDevice d1 = createDevice(map, 1);
+        final LocalDevice d2 = createDevice(map, 2);
+        final Address address = d1.getNetwork().getAllLocalAddresses()[0];
+
+        // Capture the traffic of device 1 while device 2 reads from it. The capture may also have the broadcasts
+        // that the devices make when they start.
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final long frames;
+        try (PcapCapture capture = new PcapCapture(d1.getNetwork(), out, d1.getClock())) {
+            for (int i = 0; i < 5; i++)
+                d2.send(address, new ReadPropertyRequest(d1.getId(), PropertyIdentifier.objectName)).get();
+            frames = capture.getFrames();
+        }
+        assertTrue(frames >= 10);
+
+        // Replay the requests into device 1. The replies are sent to where device 2 was.
+        d2.terminate();
+        devices.remove(d2);
+
+        final PcapReplay.Result result = new PcapReplay(d1).replay(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(frames, result.getFramesRead());
+        assertEquals(frames, result.getFramesReplayed() + result.getFramesSkipped());
+        assertTrue(result.getFramesSkipped() >= 5);
+        assertEquals(5, result.getRequests());
+        assertEquals(0, result.getUnanswered());
+        assertEquals(5, result.getLatency().getCount());
+    }
+
+    @Test
+    public void excludedSource() throws Exception {
+        final SimNetworkMap map = new SimNetworkMap();
+        final LocalDevice d1 = createDevice(map, 1);
+        final LocalDevice d2 = createDevice(map, 2);
+        final Address address = d1.getNetwork().getAllLocalAddresses()[0];
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (PcapCapture capture = new PcapCapture(d1.getNetwork(), out, d1.getClock())) {
+            d2.send(address, new ReadPropertyRequest(d1.getId(), PropertyIdentifier.objectName)).get();
+        }
+
+        // All of the frames that device 1 received came from device 2.
+        final PcapReplay.Result result = new PcapReplay(d1) //
+                .withExcludedSource(((SimNetwork) d2.getNetwork()).getMac()) //
+                .replay(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(result.getFramesRead(), result.getFramesSkipped());
+        assertEquals(0, result.getFramesReplayed());
+        assertEquals(0, result.getRequests());
+    }
+
+    private LocalDevice createDevice(final SimNetworkMap map, final int id) throws Exception {
+        final LocalDevice d = new LocalDevice(id, new DefaultTransport(new SimNetwork(map, id))).initialize();
+        devices.add(d);
+        return d;
+    }
+}
@@ -0,0 +1,188 @@
+package com.serotonin.bacnet4j.npdu.pcap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.time.Instant;
+
+import org.junit.Test;
+
+import com.serotonin.bacnet4j.npdu.ip.IpNetwork;
+import com.serotonin.bacnet4j.npdu.ip.IpNetworkBuilder;
+import com.serotonin.bacnet4j.npdu.mstp.DataCRC;
+import com.serotonin.bacnet4j.npdu.mstp.FrameType;
+import com.serotonin.bacnet4j.npdu.mstp.HeaderCRC;
+import com.serotonin.bacnet4j.npdu.mstp.MasterNode;
+import com.serotonin.bacnet4j.npdu.mstp.MstpNetwork;
+import com.serotonin.bacnet4j.npdu.mstp.MstpNetworkUtils;
+import com.serotonin.bacnet4j.type.primitive.OctetString;
+
+public class PcapTest {
+    @Test
+    public void writeAndRead() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (PcapWriter writer = new PcapWriter(out, PcapWriter.LINKTYPE_BACNET_MS_TP)) {
+            writer.write(Instant.ofEpochSecond(1000, 123_456_000), new byte[] { 1, 2, 3 });
+            writer.write(Instant.ofEpochSecond(1001), new byte[0]);
+            assertEquals(2, writer.getFrames());
+        }
+        assertEquals(24 + 16 + 3 + 16, out.size());
+
+        try (PcapReader reader = new PcapReader(new ByteArrayInputStream(out.toByteArray()))) {
+            assertEquals(PcapWriter.LINKTYPE_BACNET_MS_TP, reader.getLinkType());
+
+            PcapRecord record = reader.next();
+            assertEquals(1000_123_456_000L, record.getTimestampNanos());
+            assertArrayEquals(new byte[] { 1, 2, 3 }, record.getData());
+            assertFalse(record.isTruncated());
+
+            record = reader.next();
+            assertEquals(1001_000_000_000L, record.getTimestampNanos());
+            assertEquals(0, record.getData().length);
+
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    public void readLittleEndianNanos() throws Exception {
+        final byte[] capture = { //
+                0x4d, 0x3c, (byte) 0xb2, (byte) 0xa1, 2, 0, 4, 0, 0, 0, 0, 0, 0, 0, 0, 0, //
+                (byte) 0xff, (byte) 0xff, 0, 0, (byte) 228, 0, 0, 0, //
+                5, 0, 0, 0, 7, 0, 0, 0, 1, 0, 0, 0, 2, 0, 0, 0, //
+                (byte) 0xaa };
+
+        try (PcapReader reader = new PcapReader(new ByteArrayInputStream(capture))) {
+            assertEquals(PcapWriter.LINKTYPE_IPV4, reader.getLinkType());
+
+            final PcapRecord record = reader.next();
+            assertEquals(5_000_000_007L, record.getTimestampNanos());
+            assertEquals(2, record.getOriginalLength());
+            assertTrue(record.isTruncated());
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    public void ipv4Udp() throws Exception {
+        final InetSocketAddress from = new InetSocketAddress("192.168.0.10", 47808);
+        final InetSocketAddress to = new InetSocketAddress("192.168.0.255", 47809);
+        final byte[] payload = { (byte) 0x81, 0xb, 0, 8, 1, 0, 0x10, 8 };
+
+        final byte[] packet = UdpFrames.toPacket(from, to, payload);
+        assertEquals(20 + 8 + payload.length, packet.length);
+        assertEquals(0, ~checksum(packet, 0, 20, 0) & 0xffff);
+
+        final UdpFrames.Datagram datagram = UdpFrames.parse(packet);
+        assertEquals(from, datagram.getSource());
+        assertEquals(to, datagram.getDestination());
+        assertArrayEquals(payload, datagram.getPayload());
+    }
+
+    @Test
+    public void ipv6Udp() throws Exception {
+        final InetSocketAddress from = new InetSocketAddress("fe80::1", 47808);
+        final InetSocketAddress to = new InetSocketAddress("ff02::bac0", 47808);
+        final byte[] payload = { (byte) 0x82, 2, 0, 9, 0, 0, 1, 1, 0 };
+
+        final byte[] packet = UdpFrames.toPacket(from, to, payload);
+        assertEquals(40 + 8 + payload.length, packet.length);
+
+        // The checksum over the pseudo header and the datagram, including the checksum itself, is 0xffff.
+        final int udpLength = 8 + payload.length;
+        assertEquals(0xffff, checksum(packet, 40, udpLength, checksum(packet, 8, 32, 0) + udpLength + 17));
+
+        final UdpFrames.Datagram datagram = UdpFrames.parse(packet);
+        assertEquals(from, datagram.getSource());
+        assertEquals(to, datagram.getDestination());
+        assertArrayEquals(payload, datagram.getPayload());
+    }
+
+    @Test
+    public void parseOthers() {
+        assertNull(UdpFrames.parse(new byte[0]));
+        // TCP
+        final byte[] packet = UdpFrames.toIpv4Packet(new byte[4], 1, new byte[4], 2, new byte[0]);
+        packet[9] = 6;
+        assertNull(UdpFrames.parse(packet));
+    }
+
+    @Test
+    public void npduExpectsReply() {
+        assertTrue(CapturedFrame.npduExpectsReply(new byte[] { 1, 4 }, 0));
+        assertFalse(CapturedFrame.npduExpectsReply(new byte[] { 1, 0x20 }, 0));
+        assertTrue(CapturedFrame.npduExpectsReply(new byte[] { (byte) 0x81, 0xa, 0, 6, 1, 4 }, 4));
+        assertFalse(CapturedFrame.npduExpectsReply(new byte[] { 1 }, 0));
+        assertFalse(CapturedFrame.npduExpectsReply(new byte[] { 1, 4 }, -1));
+    }
+
+    @Test
+    public void mstpRoundTrip() throws Exception {
+        final MstpNetwork network = new MstpNetwork(new MasterNode("test", null, null, (byte) 1, 2));
+        final OctetString peer = MstpNetworkUtils.toOctetString((byte) 5);
+        final byte[] npdu = { 1, 4, 0, 5, 1, 0xc };
+
+        // A sent frame goes from this station to the peer, with the CRCs that the wire would have.
+        byte[] frame = network.toCaptureFrame(true, peer, npdu);
+        assertEquals(8 + npdu.length + 2, frame.length);
+        assertEquals(0x55, frame[0] & 0xff);
+        assertEquals(0xff, frame[1] & 0xff);
+        assertEquals(FrameType.bacnetDataExpectingReply.id, frame[2]);
+        assertEquals(5, frame[3]);
+        assertEquals(1, frame[4]);
+        assertEquals(npdu.length, (frame[5] & 0xff) << 8 | frame[6] & 0xff);
+
+        final HeaderCRC headerCrc = new HeaderCRC();
+        for (int i = 2; i < 8; i++)
+            headerCrc.accumulate(frame[i]);
+        assertTrue(headerCrc.isOk());
+        final DataCRC dataCrc = new DataCRC();
+        for (int i = 8; i < frame.length; i++)
+            dataCrc.accumulate(frame[i]);
+        assertTrue(dataCrc.isOk());
+
+        CapturedFrame captured = network.fromCaptureFrame(frame);
+        assertTrue(captured.isSent());
+        assertEquals(peer, captured.getLink());
+        assertArrayEquals(npdu, captured.getData());
+        assertTrue(captured.isExpectsReply());
+
+        // A received frame goes the other way.
+        npdu[1] = 0;
+        frame = network.toCaptureFrame(false, peer, npdu);
+        assertEquals(FrameType.bacnetDataNotExpectingReply.id, frame[2]);
+        captured = network.fromCaptureFrame(frame);
+        assertFalse(captured.isSent());
+        assertEquals(peer, captured.getLink());
+        assertFalse(captured.isExpectsReply());
+
+        // Tokens are not replayed.
+        frame[2] = FrameType.token.id;
+        assertNull(network.fromCaptureFrame(frame));
+    }
+
+    @Test
+    public void ipNpduOffset() throws Exception {
+        final IpNetwork network = new IpNetworkBuilder().withSubnet("127.0.0.0", 8).build();
+        assertEquals(4, network.getNpduOffset(new byte[] { (byte) 0x81, 0xa, 0, 6, 1, 4 }));
+        assertEquals(10, network.getNpduOffset(new byte[] { (byte) 0x81, 0x4, 0, 12, 1, 2, 3, 4, 5, 6, 1, 4 }));
+        // BVLC-Result
+        assertEquals(-1, network.getNpduOffset(new byte[] { (byte) 0x81, 0, 0, 6, 0, 0 }));
+        assertEquals(-1, network.getNpduOffset(new byte[] { 1, 4 }));
+    }
+
+    private static int checksum(final byte[] b, final int pos, final int length, final int start) {
+        long sum = start;
+        for (int i = 0; i < length; i += 2)
+            sum += (b[pos + i] & 0xff) << 8 | (i + 1 < length ? b[pos + i + 1] & 0xff : 0);
+        while (sum >> 16 != 0)
+            sum = (sum & 0xffff) + (sum >> 16);
+        return (int) sum;
+    }
+}
@@ -0,0 +1,159 @@
+package com.serotonin.bacnet4j.npdu.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.serotonin.bacnet4j.LocalDevice;
+import com.serotonin.bacnet4j.RemoteDevice;
+import com.serotonin.bacnet4j.event.DeviceEventAdapter;
+import com.serotonin.bacnet4j.service.unconfirmed.WhoIsRequest;
+import com.serotonin.bacnet4j.transport.DefaultTransport;
+
+import lohbihler.warp.WarpClock;
+
+public class SimNetworkTest {
+    private final List<LocalDevice> devices = new ArrayList<>();
+    private final Map<Integer, Set<Integer>> iams = new ConcurrentHashMap<>();
+
+    @After
+    public void after() {
+        for (final LocalDevice d : devices)
+            d.terminate();
+    }
+
+    @Test
+    public void broadcastFanOut() throws Exception {
+        final SimNetworkMap map = new SimNetworkMap().withLatency(1, 5).withSeed(1);
+        for (int i = 1; i <= 100; i++)
+            createDevice(map, i, 0, Clock.systemUTC());
+
+        devices.get(0).sendGlobalBroadcast(new WhoIsRequest());
+
+        // Device 1 hears from every other device.
+        waitFor(() -> iams.get(1).size() == 99);
+        assertEquals(0, map.getDropped());
+    }
+
+    @Test
+    public void virtualTime() throws Exception {
+        final WarpClock clock = new WarpClock();
+        final SimNetworkMap map = new SimNetworkMap(clock).withLatency(60000, 60000);
+        createDevice(map, 1, 0, clock);
+        createDevice(map, 2, 0, clock);
+
+        // Deliver the messages that the devices sent when they started, some of which are sent asynchronously.
+        awaitSettled(map, clock);
+        final long delivered = map.getDelivered();
+
+        devices.get(0).sendGlobalBroadcast(new WhoIsRequest());
+
+        // Nothing is delivered until the clock reaches the latency.
+        waitFor(() -> map.getPending() == 1);
+        assertEquals(delivered, map.getDelivered());
+
+        // The Who-Is arrives, and the I-Am is sent in reply.
+        clock.plus(60, TimeUnit.SECONDS, 0);
+        waitFor(() -> map.getDelivered() == delivered + 2 && map.getPending() > 0);
+        assertTrue(iams.get(1).isEmpty());
+
+        // The replies are not necessarily all sent before the clock is advanced, so advance it until the I-Am from
+        // device 2 has arrived.
+        waitFor(() -> {
+            if (map.getPending() > 0)
+                clock.plus(60, TimeUnit.SECONDS, 0);
+            return iams.get(1).contains(2);
+        });
+    }
+
+    @Test
+    public void loss() throws Exception {
+        final SimNetworkMap map = new SimNetworkMap().withLossRate(1);
+        createDevice(map, 1, 0, Clock.systemUTC());
+        createDevice(map, 2, 0, Clock.systemUTC());
+
+        // The messages that the devices sent when they started, some of which are sent asynchronously, are lost too.
+        awaitSettled(map, null);
+        final long dropped = map.getDropped();
+
+        devices.get(0).sendGlobalBroadcast(new WhoIsRequest());
+
+        waitFor(() -> map.getDropped() == dropped + 2);
+        assertEquals(0, map.getDelivered());
+        assertTrue(iams.get(1).isEmpty());
+    }
+
+    @Test
+    public void segments() throws Exception {
+        final SimNetworkMap map = new SimNetworkMap();
+        createDevice(map, 1, 1, Clock.systemUTC());
+        createDevice(map, 2, 1, Clock.systemUTC());
+        createDevice(map, 3, 2, Clock.systemUTC());
+
+        devices.get(0).sendGlobalBroadcast(new WhoIsRequest());
+
+        // The broadcast only reaches the sender's segment.
+        waitFor(() -> iams.get(1).contains(2));
+        Thread.sleep(100);
+        assertEquals(1, iams.get(1).size());
+        assertTrue(iams.get(3).isEmpty());
+    }
+
+    private void createDevice(final SimNetworkMap map, final int id, final int networkNumber, final Clock clock)
+            throws Exception {
+        final LocalDevice d = new LocalDevice(id, new DefaultTransport(new SimNetwork(map, id, networkNumber)))
+                .withClock(clock).initialize();
+        final Set<Integer> heard = ConcurrentHashMap.newKeySet();
+        iams.put(id, heard);
+        d.getEventHandler().addListener(new DeviceEventAdapter() {
+            @Override
+            public void iAmReceived(final RemoteDevice rd) {
+                if (rd.getInstanceNumber() != id)
+                    heard.add(rd.getInstanceNumber());
+            }
+        });
+        devices.add(d);
+    }
+
+    /**
+     * Waits until nothing is pending and the counts of the network have stopped changing, advancing the clock, if
+     * given, to deliver what is pending.
+     */
+    private static void awaitSettled(final SimNetworkMap map, final WarpClock clock) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10000;
+        long last = -1;
+        int unchanged = 0;
+        while (unchanged < 20) {
+            assertTrue("Timed out", System.currentTimeMillis() < deadline);
+            if (clock != null && map.getPending() > 0)
+                clock.plus(60, TimeUnit.SECONDS, 0);
+
+            final long counts = map.getSent() + map.getDelivered() + map.getDropped();
+            if (map.getPending() == 0 && counts == last)
+                unchanged++;
+            else
+                unchanged = 0;
+            last = counts;
+            Thread.sleep(10);
+        }
+    }
+
+    private static void waitFor(final BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.getAsBoolean()) {
+            assertTrue("Timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+}
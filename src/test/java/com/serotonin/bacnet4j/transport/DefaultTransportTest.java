@@ -1,32 +1,92 @@
 package com.serotonin.bacnet4j.transport;
 
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
 import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
 
 import org.junit.Test;
 import org.mockito.InOrder;
 
 import com.serotonin.bacnet4j.LocalDevice;
+import com.serotonin.bacnet4j.RemoteDevice;
+import com.serotonin.bacnet4j.ServiceFuture;
 import com.serotonin.bacnet4j.apdu.APDU;
+import com.serotonin.bacnet4j.apdu.Abort;
 import com.serotonin.bacnet4j.apdu.ConfirmedRequest;
 import com.serotonin.bacnet4j.apdu.SegmentACK;
 import com.serotonin.bacnet4j.apdu.Segmentable;
+import com.serotonin.bacnet4j.apdu.SimpleACK;
+import com.serotonin.bacnet4j.apdu.UnconfirmedRequest;
+import com.serotonin.bacnet4j.enums.MaxApduLength;
+import com.serotonin.bacnet4j.enums.MaxSegments;
+import com.serotonin.bacnet4j.event.DeviceEventAdapter;
 import com.serotonin.bacnet4j.event.DeviceEventHandler;
 import com.serotonin.bacnet4j.exception.BACnetException;
+import com.serotonin.bacnet4j.exception.BACnetTimeoutException;
+import com.serotonin.bacnet4j.exception.RequestQueueFullException;
 import com.serotonin.bacnet4j.npdu.NPCI;
 import com.serotonin.bacnet4j.npdu.NPDU;
 import com.serotonin.bacnet4j.npdu.Network;
+import com.serotonin.bacnet4j.npdu.test.TestNetwork;
+import com.serotonin.bacnet4j.npdu.test.TestNetworkMap;
+import com.serotonin.bacnet4j.obj.AnalogValueObject;
+import com.serotonin.bacnet4j.service.Service;
+import com.serotonin.bacnet4j.service.acknowledgement.ReadPropertyAck;
 import com.serotonin.bacnet4j.service.confirmed.ConfirmedRequestService;
+import com.serotonin.bacnet4j.service.confirmed.DeviceCommunicationControlRequest.EnableDisable;
+import com.serotonin.bacnet4j.service.confirmed.ReadPropertyRequest;
+import com.serotonin.bacnet4j.service.confirmed.SubscribeCOVRequest;
+import com.serotonin.bacnet4j.service.confirmed.WritePropertyRequest;
+import com.serotonin.bacnet4j.service.unconfirmed.WhoIsRequest;
+import com.serotonin.bacnet4j.type.Encodable;
 import com.serotonin.bacnet4j.type.constructed.Address;
+import com.serotonin.bacnet4j.type.constructed.CovSubscription;
+import com.serotonin.bacnet4j.type.constructed.SequenceOf;
 import com.serotonin.bacnet4j.type.constructed.ServicesSupported;
+import com.serotonin.bacnet4j.type.enumerated.AbortReason;
+import com.serotonin.bacnet4j.type.enumerated.EngineeringUnits;
+import com.serotonin.bacnet4j.type.enumerated.ObjectType;
+import com.serotonin.bacnet4j.type.enumerated.PropertyIdentifier;
+import com.serotonin.bacnet4j.type.enumerated.Segmentation;
+import com.serotonin.bacnet4j.type.primitive.CharacterString;
+import com.serotonin.bacnet4j.type.primitive.ObjectIdentifier;
+import com.serotonin.bacnet4j.type.primitive.OctetString;
+import com.serotonin.bacnet4j.type.primitive.Real;
+import com.serotonin.bacnet4j.type.primitive.UnsignedInteger;
+import com.serotonin.bacnet4j.util.RequestUtils;
 import com.serotonin.bacnet4j.util.sero.ByteQueue;
 import com.serotonin.bacnet4j.util.sero.ThreadUtils;
 
+import lohbihler.warp.WarpClock;
+
 public class DefaultTransportTest {
     // Recreation of this issue: https://github.com/infiniteautomation/BACnet4J/issues/8
     @Test
@@ -132,6 +192,654 @@ public class DefaultTransportTest {
         inOrder.verify(request).appendServiceData(new ByteQueue(new byte[] { 5 }));
     }
 
+    @Test
+    public void stripedWorkers() throws Exception {
+        final TestNetworkMap map = new TestNetworkMap();
+        final DefaultTransport transport = new DefaultTransport(new TestNetwork(map, 1, 0));
+        transport.setWorkerCount(4);
+        final LocalDevice d1 = new LocalDevice(1, transport).initialize();
+
+        final List<LocalDevice> peers = new ArrayList<>();
+        for (int i = 2; i < 10; i++)
+            peers.add(new LocalDevice(i, new DefaultTransport(new TestNetwork(map, i, 0))).initialize());
+
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            final List<Future<CharacterString>> names = new ArrayList<>();
+            for (final LocalDevice peer : peers) {
+                final RemoteDevice rd = d1.getRemoteDevice(peer.getInstanceNumber()).get();
+                for (int i = 0; i < 10; i++)
+                    names.add(executor.submit(
+                            () -> RequestUtils.getProperty(d1, rd, PropertyIdentifier.objectName)));
+            }
+
+            int index = 0;
+            for (final LocalDevice peer : peers) {
+                final CharacterString expected = peer.get(PropertyIdentifier.objectName);
+                for (int i = 0; i < 10; i++)
+                    assertEquals(expected, names.get(index++).get());
+            }
+        } finally {
+            executor.shutdown();
+            d1.terminate();
+            for (final LocalDevice peer : peers)
+                peer.terminate();
+        }
+    }
+
+    @Test
+    public void concurrentHandlers() throws Exception {
+        final TestNetworkMap map = new TestNetworkMap();
+        final DefaultTransport transport = new DefaultTransport(new TestNetwork(map, 1, 0));
+        transport.setWorkerCount(2);
+        final LocalDevice d1 = new LocalDevice(1, transport).initialize();
+        final AnalogValueObject av = new AnalogValueObject(d1, 0, "av0", 0, EngineeringUnits.amperes, false);
+        av.supportCovReporting(1);
+
+        final List<LocalDevice> peers = new ArrayList<>();
+        for (int i = 2; i < 4; i++)
+            peers.add(new LocalDevice(i, new DefaultTransport(new TestNetwork(map, i, 0))).initialize());
+
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            // Each peer writes the value and subscribes to it in its own thread, so that the requests of the peers are
+            // handled concurrently by different workers.
+            final List<Future<Void>> results = new ArrayList<>();
+            for (final LocalDevice peer : peers) {
+                final RemoteDevice rd1 = peer.getRemoteDevice(1).get();
+                results.add(executor.submit(() -> {
+                    for (int i = 1; i <= 20; i++) {
+                        peer.send(rd1, new WritePropertyRequest(av.getId(), PropertyIdentifier.presentValue, null,
+                                new Real(i), null)).get();
+                        peer.send(rd1, new SubscribeCOVRequest(new UnsignedInteger(i), av.getId(), Boolean.FALSE,
+                                new UnsignedInteger(600))).get();
+                    }
+                    return null;
+                }));
+            }
+            for (final Future<Void> result : results)
+                result.get();
+
+            final SequenceOf<CovSubscription> subscriptions = d1.getDeviceObject()
+                    .readProperty(PropertyIdentifier.activeCovSubscriptions);
+            assertEquals(40, subscriptions.getCount());
+            assertEquals(new Real(20), av.get(PropertyIdentifier.presentValue));
+        } finally {
+            executor.shutdown();
+            d1.terminate();
+            for (final LocalDevice peer : peers)
+                peer.terminate();
+        }
+    }
+
+    @Test
+    public void requestWindow() throws Exception {
+        final TestNetworkMap map = new TestNetworkMap();
+        final DefaultTransport transport = new DefaultTransport(new TestNetwork(map, 1, 0));
+        transport.setMaxRequestsInFlight(2);
+        transport.setMaxRequestsQueued(3);
+        final LocalDevice d1 = new LocalDevice(1, transport).initialize();
+        // Responses from d2 are slow to arrive.
+        final LocalDevice d2 = new LocalDevice(2, new DefaultTransport(new TestNetwork(map, 2, 50))).initialize();
+
+        try {
+            final RemoteDevice rd2 = d1.getRemoteDevice(2).get();
+
+            // 2 requests go out, 3 wait, and the last is rejected.
+            final List<ServiceFuture> futures = new ArrayList<>();
+            for (int i = 0; i < 6; i++)
+                futures.add(d1.send(rd2, new ReadPropertyRequest(rd2.getObjectIdentifier(),
+                        PropertyIdentifier.objectName)));
+
+            for (int i = 0; i < 5; i++) {
+                final ReadPropertyAck ack = futures.get(i).get();
+                assertEquals(d2.get(PropertyIdentifier.objectName), ack.getValue());
+            }
+            try {
+                futures.get(5).get();
+                fail("Should have been rejected");
+            } catch (@SuppressWarnings("unused") final RequestQueueFullException e) {
+                // Expected
+            }
+        } finally {
+            d1.terminate();
+            d2.terminate();
+        }
+    }
+
+    @Test
+    public void asyncRequests() throws Exception {
+        final TestNetworkMap map = new TestNetworkMap();
+        final LocalDevice d1 = new LocalDevice(1, new DefaultTransport(new TestNetwork(map, 1, 0))).initialize();
+        final LocalDevice d2 = new LocalDevice(2, new DefaultTransport(new TestNetwork(map, 2, 0))).initialize();
+
+        try {
+            final RemoteDevice rd2 = d1.getRemoteDevice(2).get();
+            rd2.setDeviceProperty(PropertyIdentifier.protocolServicesSupported, d2.getServicesSupported());
+
+            // The second request is sent from the transport thread when the first completes.
+            final CompletableFuture<Encodable> future = RequestUtils
+                    .readPropertyAsync(d1, rd2, rd2.getObjectIdentifier(), PropertyIdentifier.objectName, null)
+                    .thenCompose((name) -> RequestUtils.readPropertyAsync(d1, rd2, rd2.getObjectIdentifier(),
+                            PropertyIdentifier.objectIdentifier, null));
+            assertEquals(rd2.getObjectIdentifier(), future.get(5, TimeUnit.SECONDS));
+        } finally {
+            d1.terminate();
+            d2.terminate();
+        }
+    }
+
+    @Test
+    public void cancelAsyncRequest() throws Exception {
+        final TestNetworkMap map = new TestNetworkMap();
+        final DefaultTransport transport = new DefaultTransport(new TestNetwork(map, 1, 0));
+        final LocalDevice d1 = new LocalDevice(1, transport).initialize();
+        // Responses from d2 are slow to arrive.
+        final LocalDevice d2 = new LocalDevice(2, new DefaultTransport(new TestNetwork(map, 2, 200))).initialize();
+
+        try {
+            final RemoteDevice rd2 = d1.getRemoteDevice(2).get();
+
+            final CompletableFuture<ReadPropertyAck> future = d1.sendAsync(rd2,
+                    new ReadPropertyRequest(rd2.getObjectIdentifier(), PropertyIdentifier.objectName));
+            while (clientCount(transport, rd2.getAddress()) == 0)
+                ThreadUtils.sleep(5);
+
+            assertTrue(future.cancel(false));
+            assertEquals(0, clientCount(transport, rd2.getAddress()));
+            try {
+                future.get(1, TimeUnit.SECONDS);
+                fail("Should have been cancelled");
+            } catch (@SuppressWarnings("unused") final CancellationException e) {
+                // Expected
+            }
+
+            // The late response is ignored, and the next request gets its own.
+            final ReadPropertyAck ack = d1.send(rd2,
+                    new ReadPropertyRequest(rd2.getObjectIdentifier(), PropertyIdentifier.objectIdentifier)).get();
+            assertEquals(rd2.getObjectIdentifier(), ack.getValue());
+        } finally {
+            d1.terminate();
+            d2.terminate();
+        }
+    }
+
+    @Test
+    public void handlerExecutor() throws Exception {
+        final TestNetworkMap map = new TestNetworkMap();
+        final LocalDevice d1 = new LocalDevice(1, new DefaultTransport(new TestNetwork(map, 1, 0))).initialize();
+
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        final AtomicInteger handled = new AtomicInteger();
+        final DefaultTransport transport2 = new DefaultTransport(new TestNetwork(map, 2, 0));
+        transport2.setHandlerExecutor((command) -> {
+            handled.incrementAndGet();
+            executor.execute(command);
+        });
+        final LocalDevice d2 = new LocalDevice(2, transport2).initialize();
+
+        try {
+            final RemoteDevice rd2 = d1.getRemoteDevice(2).get();
+
+            final List<CompletableFuture<ReadPropertyAck>> futures = new ArrayList<>();
+            for (int i = 0; i < 20; i++)
+                futures.add(d1.sendAsync(rd2,
+                        new ReadPropertyRequest(rd2.getObjectIdentifier(), PropertyIdentifier.objectName)));
+            for (final CompletableFuture<ReadPropertyAck> future : futures)
+                assertEquals(d2.get(PropertyIdentifier.objectName), future.get(5, TimeUnit.SECONDS).getValue());
+
+            // Including the requests made while discovering the remote device.
+            assertTrue(handled.get() >= 20);
+        } finally {
+            d1.terminate();
+            d2.terminate();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void coalescedReads() throws Exception {
+        final TestNetworkMap map = new TestNetworkMap();
+        final DefaultTransport transport = new DefaultTransport(new TestNetwork(map, 1, 0));
+        transport.setCoalesceReads(true);
+        final LocalDevice d1 = new LocalDevice(1, transport).initialize();
+        // Responses from d2 are slow to arrive.
+        final LocalDevice d2 = new LocalDevice(2, new DefaultTransport(new TestNetwork(map, 2, 50))).initialize();
+
+        try {
+            final RemoteDevice rd2 = d1.getRemoteDevice(2).get();
+
+            final AtomicInteger received = new AtomicInteger();
+            d2.getEventHandler().addListener(new DeviceEventAdapter() {
+                @Override
+                public void requestReceived(final Address from, final Service service) {
+                    received.incrementAndGet();
+                }
+            });
+
+            final List<CompletableFuture<ReadPropertyAck>> futures = new ArrayList<>();
+            for (int i = 0; i < 10; i++)
+                futures.add(d1.sendAsync(rd2,
+                        new ReadPropertyRequest(rd2.getObjectIdentifier(), PropertyIdentifier.objectName)));
+            final ServiceFuture blocking = d1.send(rd2,
+                    new ReadPropertyRequest(rd2.getObjectIdentifier(), PropertyIdentifier.objectName));
+            // A different request is not coalesced.
+            final CompletableFuture<ReadPropertyAck> other = d1.sendAsync(rd2,
+                    new ReadPropertyRequest(rd2.getObjectIdentifier(), PropertyIdentifier.objectIdentifier));
+
+            // Cancelling one of the requesters does not cancel the shared request.
+            futures.remove(0).cancel(false);
+
+            for (final CompletableFuture<ReadPropertyAck> future : futures)
+                assertEquals(d2.get(PropertyIdentifier.objectName), future.get(5, TimeUnit.SECONDS).getValue());
+            assertEquals(d2.get(PropertyIdentifier.objectName), ((ReadPropertyAck) blocking.get()).getValue());
+            assertEquals(rd2.getObjectIdentifier(), other.get(5, TimeUnit.SECONDS).getValue());
+            assertEquals(2, received.get());
+            assertEquals(0, transport.readCoalescer.size());
+        } finally {
+            d1.terminate();
+            d2.terminate();
+        }
+    }
+
+    @Test
+    public void adaptiveTimeouts() throws Exception {
+        final TestNetworkMap map = new TestNetworkMap();
+        final DefaultTransport transport = new DefaultTransport(new TestNetwork(map, 1, 0));
+        transport.setAdaptiveTimeouts(true);
+        transport.setMinTimeout(200);
+        final LocalDevice d1 = new LocalDevice(1, transport).initialize();
+        final LocalDevice d2 = new LocalDevice(2, new DefaultTransport(new TestNetwork(map, 2, 0))).initialize();
+
+        try {
+            final Address other = new Address(new byte[] { 9 });
+            assertEquals(-1, transport.getRoundTripTime(other));
+            assertEquals(Transport.DEFAULT_TIMEOUT, transport.getTimeout(other));
+
+            final RemoteDevice rd2 = d1.getRemoteDevice(2).get();
+            for (int i = 0; i < 10; i++)
+                RequestUtils.getProperty(d1, rd2, PropertyIdentifier.objectName);
+
+            // The peer responds quickly, so its timeout is at the minimum.
+            assertTrue(transport.getRoundTripTime(rd2.getAddress()) >= 0);
+            assertEquals(200, transport.getTimeout(rd2.getAddress()));
+            assertEquals(Transport.DEFAULT_TIMEOUT, transport.getTimeout(other));
+        } finally {
+            d1.terminate();
+            d2.terminate();
+        }
+    }
+
+    @Test
+    public void metrics() throws Exception {
+        final TestNetworkMap map = new TestNetworkMap();
+        final DefaultTransport transport = new DefaultTransport(new TestNetwork(map, 1, 0));
+        final LocalDevice d1 = new LocalDevice(1, transport).initialize();
+        final LocalDevice d2 = new LocalDevice(2, new DefaultTransport(new TestNetwork(map, 2, 0))).initialize();
+        // The test network sets these when it is initialized.
+        transport.setTimeout(100);
+        transport.setRetries(1);
+
+        try {
+            final TransportStats stats = (TransportStats) transport.getMetrics();
+            final RemoteDevice rd2 = d1.getRemoteDevice(2).get();
+            stats.reset();
+
+            for (int i = 0; i < 5; i++)
+                RequestUtils.getProperty(d1, rd2, PropertyIdentifier.objectName);
+
+            final LatencyHistogram byService = stats.getLatency(ReadPropertyRequest.TYPE_ID);
+            assertEquals(5, byService.getCount());
+            assertEquals(5, stats.getLatency(rd2.getAddress()).getCount());
+            assertTrue(byService.getPercentile(50) <= byService.getMax());
+            assertEquals(0, stats.getRetries());
+            assertEquals(0, stats.getTimeouts());
+
+            // A request to a peer that isn't there is retried and then times out.
+            final Address other = new Address(new byte[] { 9 });
+            try {
+                d1.sendAsync(other, new ReadPropertyRequest(d1.getId(), PropertyIdentifier.objectName)).get(5,
+                        TimeUnit.SECONDS);
+                fail("Should have timed out");
+            } catch (final ExecutionException e) {
+                assertTrue(e.getCause() instanceof BACnetTimeoutException);
+            }
+            assertEquals(1, stats.getRetries());
+            assertEquals(1, stats.getTimeouts());
+            assertNull(stats.getLatency(other));
+
+            // The gauges are updated when the worker finishes its loop.
+            ThreadUtils.sleep(100);
+            assertEquals(0, transport.getOutgoingQueueSize());
+            assertEquals(0, transport.getIncomingQueueSize());
+            assertEquals(0, transport.getDelayedOutgoingQueueSize());
+            assertEquals(0, transport.getUnackedMessageCount());
+        } finally {
+            d1.terminate();
+            d2.terminate();
+        }
+    }
+
+    @Test
+    public void requestTracing() throws Exception {
+        final TestNetworkMap map = new TestNetworkMap();
+        final DefaultTransport transport = new DefaultTransport(new TestNetwork(map, 1, 0));
+        final LocalDevice d1 = new LocalDevice(1, transport).initialize();
+        final LocalDevice d2 = new LocalDevice(2, new DefaultTransport(new TestNetwork(map, 2, 0))).initialize();
+        transport.setTimeout(100);
+
+        try {
+            final RemoteDevice rd2 = d1.getRemoteDevice(2).get();
+            final List<RequestTrace> traces = new CopyOnWriteArrayList<>();
+            transport.setRequestTracer(traces::add);
+
+            // Stacks are not captured by default.
+            assertEquals(0, transport.getSendStackSampling());
+            RequestUtils.getProperty(d1, rd2, PropertyIdentifier.objectName);
+            assertEquals(1, traces.size());
+            RequestTrace trace = traces.get(0);
+            assertEquals(rd2.getAddress(), trace.getAddress());
+            assertTrue(trace.getService() instanceof ReadPropertyRequest);
+            assertNull(trace.getSendSite());
+            assertNull(trace.getError());
+            assertTrue(trace.isSent());
+            assertTrue(trace.isCompleted());
+            assertTrue(trace.getQueueTime(TimeUnit.NANOSECONDS) >= 0);
+            assertTrue(trace.getWireTime(TimeUnit.NANOSECONDS) >= 0);
+            assertEquals(trace.getQueueTime(TimeUnit.NANOSECONDS) + trace.getWireTime(TimeUnit.NANOSECONDS),
+                    trace.getTotalTime(TimeUnit.NANOSECONDS));
+
+            // Always capture the stack. A request to a peer that isn't there times out.
+            transport.setSendStackSampling(1);
+            traces.clear();
+            try {
+                d1.send(new Address(new byte[] { 9 }), new ReadPropertyRequest(d1.getId(), PropertyIdentifier.objectName))
+                        .get();
+                fail("Should have timed out");
+            } catch (@SuppressWarnings("unused") final BACnetTimeoutException e) {
+                // Expected
+            }
+            assertEquals(1, traces.size());
+            trace = traces.get(0);
+            assertTrue(trace.getError() instanceof BACnetTimeoutException);
+            assertTrue(Arrays.stream(trace.getSendSite().getStackTrace())
+                    .anyMatch(e -> e.getMethodName().equals("requestTracing")));
+
+            // Unconfirmed requests are complete once they are sent.
+            traces.clear();
+            d1.send(rd2, new WhoIsRequest());
+            ThreadUtils.sleep(100);
+            assertEquals(1, traces.size());
+            assertTrue(traces.get(0).getService() instanceof WhoIsRequest);
+            assertTrue(traces.get(0).getWireTime(TimeUnit.NANOSECONDS) >= 0);
+
+            // Nothing is traced once the tracer is removed.
+            transport.setRequestTracer(null);
+            traces.clear();
+            RequestUtils.getProperty(d1, rd2, PropertyIdentifier.objectName);
+            assertEquals(0, traces.size());
+        } finally {
+            d1.terminate();
+            d2.terminate();
+        }
+    }
+
+    @Test
+    public void loadShedding() throws Exception {
+        final Network network = mock(Network.class);
+        when(network.isThisNetwork(any())).thenReturn(true);
+        when(network.getAllLocalAddresses()).thenReturn(new Address[] { getSourceAddress() });
+
+        final LocalDevice localDevice = mock(LocalDevice.class);
+        when(localDevice.getClock()).thenReturn(Clock.systemUTC());
+        when(localDevice.getEventHandler()).thenReturn(new DeviceEventHandler());
+        final ServicesSupported servicesSupported = new ServicesSupported();
+        servicesSupported.setAll(true);
+        when(localDevice.getServicesSupported()).thenReturn(servicesSupported);
+
+        final DefaultTransport transport = new DefaultTransport(network);
+        transport.setLocalDevice(localDevice);
+        transport.setMaxIncomingQueued(4);
+        transport.initialize();
+
+        final Address from = new Address(0, new byte[] { 1 });
+
+        // Hold up the worker so that the incoming messages are queued.
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        transport.workerFor(from).execute(() -> {
+            blocked.countDown();
+            try {
+                release.await();
+            } catch (final InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        blocked.await();
+
+        try {
+            // Unconfirmed requests are shed once the queue is half full.
+            transport.incoming(unconfirmedNpdu(from));
+            transport.incoming(unconfirmedNpdu(from));
+            transport.incoming(unconfirmedNpdu(from));
+            assertEquals(2, transport.getIncomingQueueSize());
+            assertEquals(1, transport.getShedUnconfirmedCount());
+
+            // Network messages are not.
+            transport.incoming(new NPDU(from, null, 0x1, new ByteQueue(new byte[] { 0, 5 })));
+            assertEquals(3, transport.getIncomingQueueSize());
+
+            // Confirmed requests are shed once it is full, and are aborted.
+            transport.incoming(confirmedNpdu(from, 10));
+            transport.incoming(confirmedNpdu(from, 12));
+            assertEquals(4, transport.getIncomingQueueSize());
+            assertEquals(1, transport.getShedConfirmedCount());
+            final Abort abort = new Abort(true, (byte) 12, AbortReason.outOfResources);
+            verify(network).sendNPDU(from, null, createNPDU(abort), false, abort.expectsReply());
+
+            // So are network messages.
+            transport.incoming(new NPDU(from, null, 0x1, new ByteQueue(new byte[] { 0, 6 })));
+            assertEquals(4, transport.getIncomingQueueSize());
+            assertEquals(1, transport.getShedNetworkMessageCount());
+
+            // Acks are never shed.
+            final ByteQueue ack = new ByteQueue();
+            new SimpleACK((byte) 1, WritePropertyRequest.TYPE_ID).write(ack);
+            transport.incoming(new NPDU(from, null, ack));
+            assertEquals(5, transport.getIncomingQueueSize());
+
+            // Nor are shed requests aborted if that is turned off.
+            transport.setAbortShedRequests(false);
+            transport.incoming(confirmedNpdu(from, 13));
+            assertEquals(2, transport.getShedConfirmedCount());
+            final Abort abort13 = new Abort(true, (byte) 13, AbortReason.outOfResources);
+            verify(network, never()).sendNPDU(from, null, createNPDU(abort13), false, abort13.expectsReply());
+        } finally {
+            release.countDown();
+            transport.terminate();
+        }
+    }
+
+    @Test
+    public void loadSheddingSmallestQueue() throws Exception {
+        final DefaultTransport transport = new DefaultTransport(new TestNetwork(new TestNetworkMap(), 1, 0));
+        transport.setMaxIncomingQueued(1);
+        final LocalDevice localDevice = new LocalDevice(1, transport).initialize();
+
+        final Address from = new Address(0, new byte[] { 2 });
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        transport.workerFor(from).execute(() -> {
+            blocked.countDown();
+            try {
+                release.await();
+            } catch (final InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        blocked.await();
+
+        try {
+            // An unconfirmed request is let into the empty queue, and only the next one is shed.
+            transport.incoming(unconfirmedNpdu(from));
+            assertEquals(1, transport.getIncomingQueueSize());
+            assertEquals(0, transport.getShedUnconfirmedCount());
+
+            transport.incoming(unconfirmedNpdu(from));
+            assertEquals(1, transport.getIncomingQueueSize());
+            assertEquals(1, transport.getShedUnconfirmedCount());
+        } finally {
+            release.countDown();
+            localDevice.terminate();
+        }
+    }
+
+    @Test
+    public void routerDiscovery() throws Exception {
+        final Network network = mock(Network.class);
+        when(network.getAllLocalAddresses()).thenReturn(new Address[] { getSourceAddress() });
+        when(network.isThisNetwork(any()))
+                .thenAnswer(i -> i.<Address> getArgument(0).getNetworkNumber().intValue() == Address.LOCAL_NETWORK);
+        when(network.getMaxApduLength()).thenReturn(MaxApduLength.UP_TO_1476);
+
+        final LocalDevice localDevice = mock(LocalDevice.class);
+        when(localDevice.getClock()).thenReturn(Clock.systemUTC());
+        when(localDevice.getEventHandler()).thenReturn(new DeviceEventHandler());
+        when(localDevice.getCommunicationControlState()).thenReturn(EnableDisable.enable);
+        final ServicesSupported servicesSupported = new ServicesSupported();
+        servicesSupported.setAll(true);
+        when(localDevice.getServicesSupported()).thenReturn(servicesSupported);
+
+        final DefaultTransport transport = new DefaultTransport(network);
+        transport.setLocalDevice(localDevice);
+        transport.setRouterDiscoveryTimeout(200);
+        transport.initialize();
+        final Address broadcast = transport.getLocalBroadcastAddress();
+        // The Who-Is-Router-To-Network that is sent on initialization.
+        verify(network, times(1)).sendNPDU(eq(broadcast), isNull(), any(), eq(true), eq(false));
+
+        final Address router = new Address(new byte[] { 9 });
+        final Address remote = new Address(5, new byte[] { 7 });
+
+        try {
+            // A request to a network with no known router waits while the router is looked for.
+            final CompletableFuture<ReadPropertyAck> future = transport.sendAsync(remote, 1476,
+                    Segmentation.segmentedBoth,
+                    new ReadPropertyRequest(new ObjectIdentifier(ObjectType.device, 5), PropertyIdentifier.objectName));
+            verify(network, timeout(1000).times(2)).sendNPDU(eq(broadcast), isNull(), any(), eq(true),
+                    eq(false));
+            verify(network, never()).sendNPDU(eq(remote), any(), any(), eq(false), eq(true));
+
+            // The router answers, and the request is sent through it.
+            transport.incoming(new NPDU(router, null, 0x1, new ByteQueue(new byte[] { 0, 5 })));
+            verify(network, timeout(1000)).sendNPDU(eq(remote), eq(router.getMacAddress()), any(), eq(false),
+                    eq(true));
+            assertEquals(router.getMacAddress(), transport.getNetworkRouters().get(5));
+            future.cancel(true);
+
+            // A request to a network whose router doesn't answer fails.
+            try {
+                transport.sendAsync(new Address(6, new byte[] { 7 }), 1476, Segmentation.segmentedBoth,
+                        new ReadPropertyRequest(new ObjectIdentifier(ObjectType.device, 6),
+                                PropertyIdentifier.objectName))
+                        .get(5, TimeUnit.SECONDS);
+                fail("Should have failed");
+            } catch (final ExecutionException e) {
+                assertEquals("Unable to find router to network 6", e.getCause().getMessage());
+            }
+
+            // The router says that it is busy, and then available again.
+            transport.incoming(new NPDU(router, null, 0x4, new ByteQueue()));
+            awaitTrue(() -> transport.isNetworkBusy(5));
+            transport.incoming(new NPDU(router, null, 0x5, new ByteQueue(new byte[] { 0, 5 })));
+            awaitTrue(() -> !transport.isNetworkBusy(5));
+
+            // The router rejects a message because it has no route to the network.
+            transport.incoming(new NPDU(router, null, 0x3, new ByteQueue(new byte[] { 1, 0, 5 })));
+            awaitTrue(() -> !transport.getNetworkRouters().containsKey(5));
+
+            // Routers that haven't been heard from are forgotten.
+            transport.addNetworkRouter(5, router.getMacAddress());
+            transport.setRouterMaxAge(50);
+            ThreadUtils.sleep(100);
+            transport.sendAsync(remote, 1476, Segmentation.segmentedBoth,
+                    new ReadPropertyRequest(new ObjectIdentifier(ObjectType.device, 5), PropertyIdentifier.objectName));
+            // Discovery for network 6, and then again for network 5.
+            verify(network, timeout(1000).times(4)).sendNPDU(eq(broadcast), isNull(), any(), eq(true),
+                    eq(false));
+        } finally {
+            transport.terminate();
+        }
+    }
+
+    @Test
+    public void routerRefresh() throws Exception {
+        final WarpClock clock = new WarpClock();
+        final DefaultTransport transport = new DefaultTransport(new TestNetwork(new TestNetworkMap(), 1, 0));
+        final LocalDevice localDevice = new LocalDevice(1, transport).withClock(clock).initialize();
+        try {
+            final OctetString router = new OctetString(new byte[] { 9 });
+            transport.addNetworkRouter(5, router);
+            final long added = clock.millis();
+
+            // Without aging, a known router is not refreshed.
+            clock.plusSeconds(10);
+            transport.addNetworkRouter(5, router);
+            assertEquals(added, transport.networkRoutersSeen.get(5).longValue());
+
+            // With aging, it is refreshed once a quarter of the max age has passed.
+            transport.setRouterMaxAge(20000);
+            transport.addNetworkRouter(5, router);
+            final long refreshed = clock.millis();
+            assertEquals(refreshed, transport.networkRoutersSeen.get(5).longValue());
+
+            clock.plusSeconds(4);
+            transport.addNetworkRouter(5, router);
+            assertEquals(refreshed, transport.networkRoutersSeen.get(5).longValue());
+
+            clock.plusSeconds(1);
+            transport.addNetworkRouter(5, router);
+            assertEquals(clock.millis(), transport.networkRoutersSeen.get(5).longValue());
+        } finally {
+            localDevice.terminate();
+        }
+    }
+
+    private static void awaitTrue(final BooleanSupplier condition) {
+        final long deadline = System.currentTimeMillis() + 1000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline)
+                fail("Condition not met");
+            ThreadUtils.sleep(10);
+        }
+    }
+
+    private static NPDU unconfirmedNpdu(final Address from) {
+        final ByteQueue queue = new ByteQueue();
+        new UnconfirmedRequest(new WhoIsRequest()).write(queue);
+        return new NPDU(from, null, queue);
+    }
+
+    private static NPDU confirmedNpdu(final Address from, final int invokeId) {
+        final ByteQueue serviceData = new ByteQueue();
+        new ReadPropertyRequest(new ObjectIdentifier(ObjectType.device, 1), PropertyIdentifier.objectName)
+                .write(serviceData);
+        final ByteQueue queue = new ByteQueue();
+        new ConfirmedRequest(false, false, true, MaxSegments.UNSPECIFIED, MaxApduLength.UP_TO_1476, (byte) invokeId,
+                0, 0, ReadPropertyRequest.TYPE_ID, serviceData, null).write(queue);
+        return new NPDU(from, null, queue);
+    }
+
+    /**
+     * Reads the number of unacked client requests to the given peer in the thread of its worker.
+     */
+    private static int clientCount(final DefaultTransport transport, final Address address) throws Exception {
+        final DefaultTransport.Worker worker = transport.workerFor(address);
+        final CompletableFuture<Integer> count = new CompletableFuture<>();
+        worker.execute(() -> count.complete(worker.unackedMessages.getClientCount(address)));
+        return count.get(5, TimeUnit.SECONDS);
+    }
+
     private static Segmentable addIncomingSegmentedMessage(final boolean moreFollows, final int windowSize,
             final int sequenceNumber, final Address from, final Transport transport,
             final ConfirmedRequestService service) throws BACnetException {
@@ -0,0 +1,49 @@
+package com.serotonin.bacnet4j.transport;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+    @Test
+    public void buckets() {
+        final LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.getPercentile(50));
+        assertEquals(0, h.getAverage(), 0);
+
+        h.record(0);
+        h.record(1);
+        h.record(3);
+        h.record(150);
+        h.record(100000);
+
+        final long[] expected = new long[LatencyHistogram.BOUNDS.length + 1];
+        expected[0] = 2;
+        expected[2] = 1;
+        expected[7] = 1;
+        expected[LatencyHistogram.BOUNDS.length] = 1;
+        assertArrayEquals(expected, h.getBucketCounts());
+        assertEquals(5, h.getCount());
+        assertEquals(100154, h.getTotal());
+        assertEquals(100000, h.getMax());
+    }
+
+    @Test
+    public void percentiles() {
+        final LatencyHistogram h = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++)
+            h.record(i);
+
+        assertEquals(1, h.getPercentile(1));
+        assertEquals(50, h.getPercentile(50));
+        assertEquals(100, h.getPercentile(90));
+        assertEquals(100, h.getPercentile(100));
+
+        // The estimate is not more than the largest latency.
+        h.reset();
+        h.record(120);
+        assertEquals(1, h.getCount());
+        assertEquals(120, h.getPercentile(99));
+    }
+}
@@ -0,0 +1,61 @@
+package com.serotonin.bacnet4j.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.serotonin.bacnet4j.npdu.NPCI.NetworkPriority;
+
+public class PriorityMessageQueueTest {
+    private final QueueDelayStats delays = new QueueDelayStats();
+    private final PriorityMessageQueue<String> queue = new PriorityMessageQueue<>(delays);
+
+    @Test
+    public void highestPriorityFirst() {
+        queue.add("n1", NetworkPriority.normal);
+        queue.add("u1", NetworkPriority.urgent);
+        queue.add("n2", null);
+        queue.add("l1", NetworkPriority.lifeSafety);
+        queue.add("c1", NetworkPriority.criticalEquipment);
+        queue.add("l2", NetworkPriority.lifeSafety);
+
+        assertEquals("l1", queue.poll());
+        assertEquals("l2", queue.poll());
+        assertEquals("c1", queue.poll());
+        assertEquals("u1", queue.poll());
+        assertEquals("n1", queue.poll());
+        assertEquals("n2", queue.poll());
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+
+        assertEquals(2, delays.getCount(NetworkPriority.lifeSafety));
+        assertEquals(1, delays.getCount(NetworkPriority.criticalEquipment));
+        assertEquals(1, delays.getCount(NetworkPriority.urgent));
+        assertEquals(2, delays.getCount(NetworkPriority.normal));
+    }
+
+    @Test
+    public void normalIsNotStarved() {
+        queue.add("n", NetworkPriority.normal);
+        for (int i = 0; i < 20; i++)
+            queue.add("l" + i, NetworkPriority.lifeSafety);
+
+        // The normal message is taken at the fairness interval because it is the oldest.
+        for (int i = 1; i < PriorityMessageQueue.FAIRNESS_INTERVAL; i++)
+            assertEquals("l" + (i - 1), queue.poll());
+        assertEquals("n", queue.poll());
+        assertEquals("l" + (PriorityMessageQueue.FAIRNESS_INTERVAL - 1), queue.poll());
+    }
+
+    @Test
+    public void drain() {
+        queue.add("n", NetworkPriority.normal);
+        queue.add("u", NetworkPriority.urgent);
+        assertEquals(Arrays.asList("u", "n"), queue.drain());
+        assertTrue(queue.isEmpty());
+    }
+}
@@ -0,0 +1,68 @@
+package com.serotonin.bacnet4j.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.serotonin.bacnet4j.util.sero.ByteQueue;
+
+public class ReassemblyBufferPoolTest {
+    @Test
+    public void budget() {
+        final ReassemblyBufferPool pool = new ReassemblyBufferPool(4096);
+
+        final ReassemblyBufferPool.Buffer b1 = pool.acquire(1500);
+        assertEquals(2048, b1.capacity);
+        assertEquals(2048, pool.getUsed());
+
+        final ReassemblyBufferPool.Buffer b2 = pool.acquire(100);
+        assertEquals(1024, b2.capacity);
+        assertEquals(3072, pool.getUsed());
+
+        // Over budget
+        assertNull(pool.acquire(2000));
+        assertEquals(3072, pool.getUsed());
+
+        b1.release();
+        assertEquals(1024, pool.getUsed());
+        // Releasing twice does not free the budget again.
+        b1.release();
+        assertEquals(1024, pool.getUsed());
+
+        b2.release();
+        assertEquals(0, pool.getUsed());
+    }
+
+    @Test
+    public void unlimited() {
+        final ReassemblyBufferPool pool = new ReassemblyBufferPool(0);
+
+        final ReassemblyBufferPool.Buffer b1 = pool.acquire(1024 * 1024);
+        final ReassemblyBufferPool.Buffer b2 = pool.acquire(1024 * 1024);
+        assertEquals(2 * 1024 * 1024, pool.getUsed());
+
+        b1.release();
+        b2.release();
+        assertEquals(0, pool.getUsed());
+    }
+
+    @Test
+    public void reuse() {
+        final ReassemblyBufferPool pool = new ReassemblyBufferPool(1024 * 1024);
+
+        final ReassemblyBufferPool.Buffer b1 = pool.acquire(2048);
+        final ByteQueue queue = b1.queue;
+        queue.push(new byte[] { 1, 2, 3 });
+        assertTrue(b1.hasRoom(2045));
+        b1.release();
+
+        // The released queue is handed out again, empty.
+        final ReassemblyBufferPool.Buffer b2 = pool.acquire(2000);
+        assertSame(queue, b2.queue);
+        assertEquals(0, b2.queue.size());
+        b2.release();
+    }
+}
@@ -0,0 +1,70 @@
+package com.serotonin.bacnet4j.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import com.serotonin.bacnet4j.type.constructed.Address;
+
+public class RttEstimatorTest {
+    private final RttEstimator estimator = new RttEstimator();
+    private final Address a1 = new Address(new byte[] { 1 });
+    private final Address a2 = new Address(new byte[] { 2 });
+
+    @Test
+    public void firstSample() {
+        assertNull(estimator.get(a1));
+        assertEquals(6000, estimator.getTimeout(a1, 6000, 500, 30000));
+
+        estimator.sample(a1, 1000, 0);
+        assertEquals(1000, estimator.get(a1).getSmoothedRtt());
+        assertEquals(500, estimator.get(a1).getRttVariance());
+        assertEquals(3000, estimator.getTimeout(a1, 6000, 500, 30000));
+
+        // Other peers are unaffected.
+        assertEquals(6000, estimator.getTimeout(a2, 6000, 500, 30000));
+    }
+
+    @Test
+    public void converges() {
+        estimator.sample(a1, 1000, 0);
+        for (int i = 0; i < 100; i++)
+            estimator.sample(a1, 100, 0);
+
+        assertEquals(100, estimator.get(a1).getSmoothedRtt(), 5);
+        assertEquals(0, estimator.get(a1).getRttVariance(), 5);
+        // The timeout is the smoothed time plus the minimum variance allowance.
+        assertEquals(100 + RttEstimator.GRANULARITY, estimator.get(a1).getTimeout(), 10);
+    }
+
+    @Test
+    public void bounds() {
+        estimator.sample(a1, 10, 0);
+        assertEquals(500, estimator.getTimeout(a1, 6000, 500, 30000));
+
+        estimator.sample(a2, 20000, 0);
+        assertEquals(30000, estimator.getTimeout(a2, 6000, 500, 30000));
+    }
+
+    @Test
+    public void expiry() {
+        final long idle = RttEstimator.IDLE_TIME;
+        estimator.sample(a1, 100, 0);
+        estimator.sample(a2, 100, 0);
+        estimator.expire(idle - 1);
+        assertEquals(2, estimator.size());
+
+        // Checks are not made more often than every quarter of the idle time.
+        estimator.expire(idle);
+        assertEquals(2, estimator.size());
+
+        // Only the peer that is still sampled is kept.
+        estimator.sample(a1, 100, idle);
+        estimator.expire(idle - 1 + idle / 4);
+        assertEquals(1, estimator.size());
+        assertNotNull(estimator.get(a1));
+        assertNull(estimator.get(a2));
+    }
+}
@@ -0,0 +1,56 @@
+package com.serotonin.bacnet4j.transport;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import com.serotonin.bacnet4j.type.constructed.Address;
+
+public class SegmentWindowControllerTest {
+    private final Address a1 = new Address(new byte[] { 1 });
+    private final Address a2 = new Address(new byte[] { 2 });
+
+    @Test
+    public void aimd() {
+        final SegmentWindowController windows = new SegmentWindowController(4);
+        assertEquals(4, windows.getWindowSize(a1));
+
+        // Additive increase
+        windows.windowComplete(a1, SegmentWindowController.MAX_WINDOW_SIZE);
+        windows.windowComplete(a1, SegmentWindowController.MAX_WINDOW_SIZE);
+        assertEquals(6, windows.getWindowSize(a1));
+        assertEquals(4, windows.getWindowSize(a2));
+
+        // Multiplicative decrease
+        windows.segmentLost(a1);
+        assertEquals(3, windows.getWindowSize(a1));
+        windows.segmentLost(a1);
+        windows.segmentLost(a1);
+        windows.segmentLost(a1);
+        assertEquals(1, windows.getWindowSize(a1));
+
+        // Peers that have no windows follow the initial size.
+        windows.setInitialSize(8);
+        assertEquals(8, windows.getWindowSize(a2));
+        assertEquals(1, windows.getWindowSize(a1));
+    }
+
+    @Test
+    public void limits() {
+        final SegmentWindowController windows = new SegmentWindowController(4);
+
+        // The window does not grow beyond what the peer accepts.
+        for (int i = 0; i < 10; i++)
+            windows.windowComplete(a1, 6);
+        assertEquals(6, windows.getWindowSize(a1));
+
+        // A peer that accepts less brings the window down.
+        windows.windowComplete(a1, 2);
+        assertEquals(2, windows.getWindowSize(a1));
+
+        // Nor beyond what BACnet allows.
+        for (int i = 0; i < 200; i++)
+            windows.windowComplete(a2, 1000);
+        assertEquals(SegmentWindowController.MAX_WINDOW_SIZE, windows.getWindowSize(a2));
+    }
+}
@@ -0,0 +1,36 @@
+package com.serotonin.bacnet4j.transport;
+
+import static org.junit.Assert.assertEquals;
+
+import java.time.Clock;
+
+import org.junit.Test;
+
+import com.serotonin.bacnet4j.util.sero.ByteQueue;
+
+public class UnackedMessageContextTest {
+    @Test
+    public void rewindPastSequenceWrap() {
+        // 300 segments of 4 bytes, each filled with its index.
+        final ByteQueue data = new ByteQueue();
+        for (int i = 0; i < 300; i++)
+            data.pushS4B(i);
+
+        final UnackedMessageContext ctx = new UnackedMessageContext(Clock.systemUTC(), 1000, 3, null, null);
+        ctx.setServiceData(data, 4);
+        for (int i = 0; i <= 270; i++)
+            ctx.getNextSegment();
+        ctx.setLastIdSent(270);
+
+        // Sequence numbers are the segment index mod 256.
+        assertEquals(270, ctx.toSegmentIndex(270 & 0xff));
+        assertEquals(265, ctx.toSegmentIndex(265 & 0xff));
+        assertEquals(250, ctx.toSegmentIndex(250));
+
+        // A NAK for segment 265 resends from segment 266.
+        ctx.rewindToSegment(ctx.toSegmentIndex(265 & 0xff) + 1);
+        assertEquals(265, ctx.getLastIdSent());
+        assertEquals(266, ctx.getNextSegment().popS4B());
+        assertEquals(33 * 4, ctx.getRemainingServiceData());
+    }
+}
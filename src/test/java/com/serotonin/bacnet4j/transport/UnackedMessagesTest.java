@@ -0,0 +1,93 @@
+package com.serotonin.bacnet4j.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.fail;
+
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.serotonin.bacnet4j.exception.BACnetRecoverableException;
+import com.serotonin.bacnet4j.type.constructed.Address;
+
+public class UnackedMessagesTest {
+    private final Clock clock = Clock.systemUTC();
+    private final UnackedMessages unackedMessages = new UnackedMessages(clock);
+    private final Address a1 = new Address(new byte[] { 1 });
+    private final Address a2 = new Address(new byte[] { 2 });
+
+    @Test
+    public void invokeIdsPerPeer() throws Exception {
+        // Fill all of the ids for the first peer.
+        final List<UnackedMessageKey> keys = new ArrayList<>();
+        for (int i = 0; i < 256; i++)
+            keys.add(unackedMessages.addClient(a1, null, newContext()));
+        assertEquals(256, unackedMessages.getClientCount(a1));
+
+        try {
+            unackedMessages.addClient(a1, null, newContext());
+            fail("Should have thrown");
+        } catch (@SuppressWarnings("unused") final BACnetRecoverableException e) {
+            // Expected
+        }
+        assertEquals(Long.valueOf(1), unackedMessages.getInvokeIdExhaustions().get(a1));
+
+        // The second peer still has all of its ids.
+        for (int i = 0; i < 256; i++)
+            unackedMessages.addClient(a2, null, newContext());
+        assertEquals(256, unackedMessages.getClientCount(a2));
+        assertEquals(null, unackedMessages.getInvokeIdExhaustions().get(a2));
+
+        // Free up an id for the first peer and use it.
+        unackedMessages.remove(keys.get(17));
+        assertEquals(255, unackedMessages.getClientCount(a1));
+        final UnackedMessageKey key = unackedMessages.addClient(a1, null, newContext());
+        assertEquals(17, key.getInvokeId());
+    }
+
+    @Test
+    public void idsAreNotReusedImmediately() throws Exception {
+        final UnackedMessageKey key1 = unackedMessages.addClient(a1, null, newContext());
+        unackedMessages.remove(key1);
+        assertEquals(0, unackedMessages.getClientCount(a1));
+
+        final UnackedMessageKey key2 = unackedMessages.addClient(a1, null, newContext());
+        assertNotEquals(key1.getInvokeId(), key2.getInvokeId());
+    }
+
+    @Test
+    public void removeAndAddAgain() throws Exception {
+        final UnackedMessageContext ctx = newContext();
+        final UnackedMessageKey key = unackedMessages.addClient(a1, null, ctx);
+        unackedMessages.remove(key);
+        unackedMessages.add(key, ctx);
+        assertEquals(1, unackedMessages.getClientCount(a1));
+
+        // Server keys don't use the allocator.
+        unackedMessages.addServer(a1, null, (byte) 5, newContext());
+        assertEquals(1, unackedMessages.getClientCount(a1));
+    }
+
+    @Test
+    public void allocatorsArePruned() throws Exception {
+        final UnackedMessageKey key1 = unackedMessages.addClient(a1, null, newContext());
+        final UnackedMessageKey key2 = unackedMessages.addClient(a2, null, newContext());
+        assertEquals(2, unackedMessages.getPeerCount());
+
+        unackedMessages.remove(key1);
+        unackedMessages.remove(key2);
+        assertEquals(0, unackedMessages.getPeerCount());
+
+        // The peer continues on from where its allocator left off.
+        final UnackedMessageKey key3 = unackedMessages.addClient(a1, null, newContext());
+        assertEquals(key1.getInvokeId() + 1, key3.getInvokeId());
+        assertEquals(1, unackedMessages.getPeerCount());
+    }
+
+    private UnackedMessageContext newContext() {
+        return new UnackedMessageContext(clock, 1000, 0, null, null);
+    }
+}
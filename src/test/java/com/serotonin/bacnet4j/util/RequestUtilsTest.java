@@ -8,6 +8,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.lang3.tuple.Pair;
@@ -220,4 +221,28 @@ public class RequestUtilsTest {
         assertEquals(PropertyIdentifier.presentValue, results.get(2).getLeft().getPropertyIdentifier());
         assertEquals(new ErrorClassAndCode(ErrorClass.object, ErrorCode.unknownObject), results.get(2).getRight());
     }
+
+    @Test
+    public void readPropertiesAsync() throws Exception {
+        final LocalDevice d1 = new LocalDevice(1, new DefaultTransport(new TestNetwork(map, 1, 0))).initialize();
+        final LocalDevice d2 = new LocalDevice(2, new DefaultTransport(new TestNetwork(map, 2, 0))).initialize();
+        final AnalogInputObject ai0 = new AnalogInputObject(d2, 0, "ai0", 0, EngineeringUnits.noUnits, false);
+        final AnalogInputObject ai1 = new AnalogInputObject(d2, 1, "ai1", 1, EngineeringUnits.noUnits, false);
+        final ObjectIdentifier ao0 = new ObjectIdentifier(ObjectType.analogOutput, 0);
+        final RemoteDevice rd2 = d1.getRemoteDeviceBlocking(2);
+
+        try {
+            final PropertyValues values = RequestUtils.readOidPresentValuesAsync(d1, rd2,
+                    TestUtils.toList(ai0.getId(), ai1.getId(), ao0)).get(5, TimeUnit.SECONDS);
+
+            assertEquals(3, values.size());
+            assertEquals(new Real(0), values.getNoErrorCheck(ai0.getId(), PropertyIdentifier.presentValue));
+            assertEquals(new Real(1), values.getNoErrorCheck(ai1.getId(), PropertyIdentifier.presentValue));
+            assertEquals(new ErrorClassAndCode(ErrorClass.object, ErrorCode.unknownObject),
+                    values.getNoErrorCheck(ao0, PropertyIdentifier.presentValue));
+        } finally {
+            d1.terminate();
+            d2.terminate();
+        }
+    }
 }
@@ -0,0 +1,97 @@
+package com.serotonin.bacnet4j.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TimingWheelTest {
+    @Test
+    public void expireInOrder() {
+        final TimingWheel<String> wheel = new TimingWheel<>(10, 16, 1000);
+        wheel.schedule("c", 1125);
+        wheel.schedule("a", 1005);
+        wheel.schedule("b", 1050);
+        assertEquals(3, wheel.size());
+        assertEquals(1005, wheel.getNextDeadline());
+
+        final List<String> expired = new ArrayList<>();
+        assertEquals(0, wheel.expire(1004, expired::add));
+        assertEquals(1, wheel.expire(1005, expired::add));
+        assertEquals(Arrays.asList("a"), expired);
+        assertEquals(1050, wheel.getNextDeadline());
+
+        assertEquals(1, wheel.expire(1100, expired::add));
+        assertEquals(Arrays.asList("a", "b"), expired);
+        assertEquals(1125, wheel.getNextDeadline());
+
+        assertEquals(1, wheel.expire(1130, expired::add));
+        assertEquals(Arrays.asList("a", "b", "c"), expired);
+        assertEquals(0, wheel.size());
+        assertEquals(Long.MAX_VALUE, wheel.getNextDeadline());
+    }
+
+    @Test
+    public void laterRotations() {
+        // One rotation of this wheel is 160ms.
+        final TimingWheel<String> wheel = new TimingWheel<>(10, 16, 1000);
+        wheel.schedule("later", 1500);
+
+        // The element is not due in this rotation, so the end of the rotation is the next time to look.
+        assertTrue(wheel.getNextDeadline() <= 1160);
+
+        final List<String> expired = new ArrayList<>();
+        assertEquals(0, wheel.expire(1165, expired::add));
+        assertEquals(0, wheel.expire(1330, expired::add));
+        assertEquals(0, wheel.expire(1499, expired::add));
+        assertEquals(1500, wheel.getNextDeadline());
+        assertEquals(1, wheel.expire(1500, expired::add));
+    }
+
+    @Test
+    public void pastDeadlinesAndJumps() {
+        final TimingWheel<String> wheel = new TimingWheel<>(10, 16, 1000);
+        wheel.schedule("past", 900);
+        wheel.schedule("far", 5000);
+
+        final List<String> expired = new ArrayList<>();
+        assertEquals(1, wheel.expire(1010, expired::add));
+        assertEquals(Arrays.asList("past"), expired);
+
+        // Jump more than a full rotation.
+        assertEquals(1, wheel.expire(10000, expired::add));
+        assertEquals(Arrays.asList("past", "far"), expired);
+    }
+
+    @Test
+    public void partiallyExpiredTick() {
+        final TimingWheel<String> wheel = new TimingWheel<>(10, 16, 1000);
+        wheel.schedule("a", 1052);
+        wheel.schedule("b", 1057);
+
+        final List<String> expired = new ArrayList<>();
+        assertEquals(1, wheel.expire(1054, expired::add));
+        assertEquals(1057, wheel.getNextDeadline());
+        assertEquals(1, wheel.expire(1057, expired::add));
+        assertEquals(Arrays.asList("a", "b"), expired);
+    }
+
+    @Test
+    public void scheduleFromConsumer() {
+        final TimingWheel<String> wheel = new TimingWheel<>(10, 16, 1000);
+        wheel.schedule("a", 1020);
+
+        final List<String> expired = new ArrayList<>();
+        wheel.expire(1020, (e) -> {
+            expired.add(e);
+            wheel.schedule(e + "'", 1040);
+        });
+        assertEquals(1, wheel.size());
+        wheel.expire(1040, expired::add);
+        assertEquals(Arrays.asList("a", "a'"), expired);
+    }
+}
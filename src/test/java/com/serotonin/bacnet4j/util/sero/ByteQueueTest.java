@@ -0,0 +1,64 @@
+package com.serotonin.bacnet4j.util.sero;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class ByteQueueTest {
+    @Test
+    public void wrap() {
+        final byte[] b = { 1, 2, 3, 4, 5, 6 };
+        final ByteQueue queue = ByteQueue.wrap(b, 2, 3);
+        assertEquals(3, queue.size());
+        assertArrayEquals(new byte[] { 3, 4, 5 }, queue.peekAll());
+
+        // Pushing the view copies its content.
+        final ByteQueue target = new ByteQueue();
+        target.push(queue);
+        assertArrayEquals(new byte[] { 3, 4, 5 }, target.popAll());
+        assertEquals(3, queue.size());
+
+        assertEquals(3, queue.pop());
+        assertArrayEquals(new byte[] { 4, 5 }, queue.peekAll());
+    }
+
+    @Test
+    public void wrapToEnd() {
+        final byte[] b = { 1, 2, 3 };
+        final ByteQueue queue = ByteQueue.wrap(b, 1, 2);
+        assertArrayEquals(new byte[] { 2, 3 }, queue.popAll());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void writeToWrapped() {
+        final byte[] b = { 1, 2, 3, 4, 5, 6 };
+        final ByteQueue queue = ByteQueue.wrap(b, 0, 2);
+        queue.push((byte) 9);
+        queue.push(new byte[] { 10, 11, 12, 13, 14, 15 });
+
+        // The original array is untouched.
+        assertArrayEquals(new byte[] { 1, 2, 3, 4, 5, 6 }, b);
+        assertArrayEquals(new byte[] { 1, 2, 9, 10, 11, 12, 13, 14, 15 }, queue.popAll());
+    }
+
+    @Test
+    public void popToBuffer() {
+        // Make the content wrap around the end of the array.
+        final ByteQueue queue = new ByteQueue(4);
+        queue.push(new byte[] { 1, 2, 3 });
+        queue.pop(2);
+        queue.push(new byte[] { 4, 5, 6 });
+
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(3);
+        assertEquals(3, queue.pop(buffer));
+        buffer.flip();
+        final byte[] b = new byte[3];
+        buffer.get(b);
+        assertArrayEquals(new byte[] { 3, 4, 5 }, b);
+        assertArrayEquals(new byte[] { 6 }, queue.popAll());
+    }
+}